@@ -0,0 +1,207 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BackgroundWriter writes dirty pages of a BufferPool to disk on a
+ * background thread, so that the pool keeps a target fraction of its frames
+ * clean (or free) and an eviction rarely has to write a page before it can
+ * reuse its frame.
+ * <p>
+ * Only pages whose last writer has committed are written. A commit logs
+ * the pages the transaction dirtied and forces the log before it releases
+ * the transaction's locks, so once the writer of a page holds no lock on it,
+ * the log records of its changes are on disk, and writing the page keeps
+ * to write-ahead logging without logging anything itself. Pages of
+ * transactions still running are left to eviction, which logs them first.
+ * While it writes a page, the writer holds a shared lock on it under a
+ * transaction of its own, taken without waiting, so that the page can't
+ * change underneath it; pages it can't lock at once are skipped.
+ * <p>
+ * The writer wakes every interval, and at once when an eviction had to
+ * write a dirty page, and writes at most maxPages pages a round. Its
+ * thread is started when a page is dirtied or a transaction commits, and
+ * stops after some rounds with nothing to write, so that an idle
+ * BufferPool doesn't keep a thread around. The clean target defaults to
+ * the value of the system property simpledb.cleanTarget, or 0 (no
+ * background writing) if that is not set; the interval and the pages a
+ * round to simpledb.writerInterval and simpledb.writerMaxPages.
+ *
+ * @see BufferPool#getBackgroundWriter
+ */
+public class BackgroundWriter {
+
+    /** Clean target of new BufferPools, as a fraction of their frames. */
+    public static final double DEFAULT_CLEAN_TARGET =
+            Double.parseDouble(System.getProperty("simpledb.cleanTarget", "0"));
+
+    /** Milliseconds between rounds of new BufferPools' writers. */
+    public static final int DEFAULT_INTERVAL = Integer.getInteger("simpledb.writerInterval", 50);
+
+    /** Largest number of pages a round of new BufferPools' writers writes. */
+    public static final int DEFAULT_MAX_PAGES = Integer.getInteger("simpledb.writerMaxPages", 32);
+
+    // rounds without a page to write after which the thread stops
+    private static final int IDLE_ROUNDS = 20;
+
+    private final BufferPool pool;
+    private volatile double cleanTarget;
+    private volatile int interval;
+    private volatile int maxPages;
+
+    // the writer thread, or null if it isn't running; guarded by this
+    private Thread thread;
+    private boolean urgent;
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong pagesWritten = new AtomicLong();
+    private final AtomicLong pagesSkipped = new AtomicLong();
+
+    /**
+     * Creates a background writer for the given BufferPool.
+     */
+    public BackgroundWriter(BufferPool pool) {
+        this.pool = pool;
+        this.cleanTarget = DEFAULT_CLEAN_TARGET;
+        this.interval = DEFAULT_INTERVAL;
+        this.maxPages = DEFAULT_MAX_PAGES;
+    }
+
+    /**
+     * @return the fraction of the pool's frames the writer keeps clean, or
+     *   0 if background writing is off
+     */
+    public double getCleanTarget() {
+        return this.cleanTarget;
+    }
+
+    /**
+     * Sets the fraction of the pool's frames the writer keeps clean; 0
+     * turns background writing off.
+     */
+    public void setCleanTarget(double cleanTarget) {
+        if (cleanTarget < 0 || cleanTarget > 1) {
+            throw new IllegalArgumentException("clean target " + cleanTarget + " not between 0 and 1");
+        }
+        this.cleanTarget = cleanTarget;
+    }
+
+    /** @return the milliseconds between rounds */
+    public int getInterval() {
+        return this.interval;
+    }
+
+    /** Sets the milliseconds between rounds. */
+    public void setInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("writer interval " + interval + " not positive");
+        }
+        this.interval = interval;
+    }
+
+    /** @return the largest number of pages a round writes */
+    public int getMaxPages() {
+        return this.maxPages;
+    }
+
+    /** Sets the largest number of pages a round writes. */
+    public void setMaxPages(int maxPages) {
+        if (maxPages <= 0) {
+            throw new IllegalArgumentException("writer max pages " + maxPages + " not positive");
+        }
+        this.maxPages = maxPages;
+    }
+
+    /** @return the number of rounds run so far */
+    public long getRounds() {
+        return this.rounds.get();
+    }
+
+    /** @return the number of pages written so far */
+    public long getPagesWritten() {
+        return this.pagesWritten.get();
+    }
+
+    /**
+     * @return the number of times a dirty page was passed over because its
+     *   writer hadn't committed or it was locked
+     */
+    public long getPagesSkipped() {
+        return this.pagesSkipped.get();
+    }
+
+    /** @return whether the writer thread is running */
+    public synchronized boolean isRunning() {
+        return this.thread != null;
+    }
+
+    /**
+     * Called by the BufferPool when a page is dirtied or a transaction
+     * commits; starts the writer thread if background writing is on and it
+     * isn't running.
+     */
+    void wake() {
+        if (this.cleanTarget == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (this.thread == null) {
+                this.thread = new Thread("simpledb-bgwriter") {
+                    public void run() {
+                        BackgroundWriter.this.run();
+                    }
+                };
+                this.thread.setDaemon(true);
+                this.thread.start();
+            }
+        }
+    }
+
+    /**
+     * Called by the BufferPool when an eviction had to write a dirty page;
+     * runs the next round without waiting for the interval.
+     */
+    synchronized void fellBehind() {
+        if (this.thread != null) {
+            this.urgent = true;
+            notifyAll();
+        }
+    }
+
+    /** Counts a dirty page the pool passed over. */
+    void pageSkipped() {
+        this.pagesSkipped.incrementAndGet();
+    }
+
+    private void run() {
+        int idle = 0;
+        while (true) {
+            synchronized (this) {
+                if (!this.urgent) {
+                    try {
+                        wait(this.interval);
+                    } catch (InterruptedException e) {
+                        this.thread = null;
+                        return;
+                    }
+                }
+                this.urgent = false;
+                // a pool with nothing to write, or that has been replaced,
+                // lets its thread go; the next dirtied page starts a new one
+                if (this.cleanTarget == 0 || idle >= IDLE_ROUNDS) {
+                    this.thread = null;
+                    return;
+                }
+            }
+            this.rounds.incrementAndGet();
+            int written = 0;
+            try {
+                written = this.pool.writeDirtyPages(this.cleanTarget, this.maxPages);
+                this.pagesWritten.addAndGet(written);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            idle = written == 0 ? idle + 1 : 0;
+        }
+    }
+}
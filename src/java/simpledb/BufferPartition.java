@@ -0,0 +1,116 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A BufferPartition is a named share of a BufferPool with a capacity and
+ * eviction policy of its own. Every cached page belongs to the partition
+ * of its table (see {@link Catalog#setPartition}), and a page read into a
+ * full partition evicts a page of that partition only, so that the pages
+ * of a small, hot table assigned to a partition of their own stay cached
+ * however hard scans of other tables compete for the rest of the pool.
+ * Tables not assigned to a partition, or assigned to one the pool doesn't
+ * have, use the pool's default partition.
+ * <p>
+ * A partition counts the page requests it served from memory (hits), the
+ * pages it had to read (misses) and the pages it evicted.
+ *
+ * @see BufferPool#addPartition
+ */
+public class BufferPartition {
+
+    /** Name of the partition of tables not assigned to one. */
+    public static final String DEFAULT = "default";
+
+    private final String name;
+    private volatile int numPages;
+    private final EvictionPolicy evictionPolicy;
+
+    // pages of this partition in the page table, including pages being read
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    BufferPartition(String name, int numPages, EvictionPolicy evictionPolicy) {
+        this.name = name;
+        this.numPages = numPages;
+        this.evictionPolicy = evictionPolicy;
+    }
+
+    /** @return the name of this partition */
+    public String getName() {
+        return this.name;
+    }
+
+    /** @return the number of pages this partition caches */
+    public int getNumPages() {
+        return this.numPages;
+    }
+
+    void setNumPages(int numPages) {
+        this.numPages = numPages;
+    }
+
+    /** @return the policy choosing which pages this partition evicts */
+    public EvictionPolicy getEvictionPolicy() {
+        return this.evictionPolicy;
+    }
+
+    /** @return the number of pages of this partition in the pool */
+    public int size() {
+        return this.size.get();
+    }
+
+    /** @return the number of page requests served from the pool so far */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /** @return the number of page requests that had to read the page so far */
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    /** @return the number of pages evicted so far */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /**
+     * @return the fraction of page requests served from the pool, or 0 if
+     *   there were none
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long requests = hits + this.misses.get();
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    void added() {
+        this.size.incrementAndGet();
+    }
+
+    void removed() {
+        this.size.decrementAndGet();
+    }
+
+    void hit() {
+        this.hits.incrementAndGet();
+    }
+
+    void missed() {
+        this.misses.incrementAndGet();
+    }
+
+    void evicted() {
+        this.evictions.incrementAndGet();
+    }
+
+    public String toString() {
+        return String.format("%s: %d/%d pages, %d hits, %d misses (%.1f%%), %d evictions", this.name,
+                size(), this.numPages, getHits(), getMisses(), 100 * getHitRatio(), getEvictions());
+    }
+}
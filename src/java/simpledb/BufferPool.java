@@ -1,8 +1,19 @@
 package simpledb;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -12,6 +23,32 @@ import java.util.concurrent.ConcurrentHashMap;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Transactions change the pages of HeapFiles of fixed-size records one
+ * record at a time (see {@link #insertRecord} and {@link #deleteRecord}),
+ * holding an exclusive lock on the record and an intention lock on the
+ * page, so that several of them can change one page at once. Each such
+ * change is logged before it is made under the page's frame latch, and is
+ * undone on the cached page if its transaction aborts. Pages fetched with
+ * READ_WRITE, which their transaction may change in any way, are logged
+ * whole, as before images and after images.
+ * <p>
+ * The page table maps each cached page to a frame, and the frame's monitor
+ * is its latch. A frame goes into the table before its page is read, so a
+ * miss reads the page once however many threads ask for it, and misses on
+ * different pages neither wait for each other nor for a flush. Scans pin
+ * the page they are on (see {@link #pinPage}); a pinned page is never
+ * evicted, and if every page is pinned the pool grows past its capacity
+ * until pages are unpinned. A {@link BackgroundWriter} can keep some of the
+ * frames clean, so that evictions don't wait for writes. The pool never
+ * calls into the LogFile while it holds a latch, since the LogFile takes
+ * latches while it holds its own monitor (see LogFile).
+ * <p>
+ * The pool may be split into {@link BufferPartition}s, each with its own
+ * capacity and eviction policy, that tables are assigned to in the catalog.
+ * A pool starts with the default partition alone, of the size it was
+ * created with; partitions added to it (see {@link #addPartition}) come on
+ * top of that.
  *
  * @Threadsafe, all fields are final
  */
@@ -26,9 +63,161 @@ public class BufferPool {
      constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private ConcurrentHashMap<PageId, Page> pool;
-    private int numPages;
+    /** Largest number of pages a scan ring of a new buffer pool holds. */
+    public static final int MAX_SCAN_RING_PAGES = 32;
+
+    /** Eviction policy of new buffer pools: the value of the system property
+     simpledb.evictionPolicy, or "clock" if that is not set. See
+     {@link #newEvictionPolicy}. */
+    public static final String DEFAULT_EVICTION_POLICY =
+            System.getProperty("simpledb.evictionPolicy", "clock");
+
+    /** Whether new buffer pools keep pages off the Java heap: true if the
+     system property simpledb.offHeapPool is "true". See
+     {@link #BufferPool(int, EvictionPolicy, boolean)}. */
+    public static final boolean DEFAULT_OFF_HEAP = Boolean.getBoolean("simpledb.offHeapPool");
+
+    /** Partitions of new buffer pools besides the default one: the value of
+     the system property simpledb.partitions, or "" if that is not set. See
+     {@link #addPartitions}. */
+    public static final String DEFAULT_PARTITIONS = System.getProperty("simpledb.partitions", "");
+
+    /**
+     * A slot of the page table. Its monitor guards the pin count and whether
+     * the page is loaded, and is held while the page is flushed or evicted.
+     */
+    private static class Frame {
+        private volatile Page page;
+        private final BufferPartition partition;
+        private boolean loading;
+        private int pins;
+        // the arena frame page was read into, or -1
+        private int slot = -1;
+        // set once the frame has left the page table
+        private boolean gone;
+        // System.nanoTime() of the page's last use, for PoolWarmer
+        private volatile long lastUsed;
+        // the number LogFile gave the log record of the latest change to a
+        // record of the page, which must be on disk before the page is
+        // written
+        private long lsn;
+
+        /** Creates a frame holding the given page, or one still being read if it is null. */
+        Frame(Page page, BufferPartition partition) {
+            this.page = page;
+            this.partition = partition;
+            this.loading = page == null;
+            this.lastUsed = System.nanoTime();
+        }
+
+        /**
+         * @return false if the frame was discarded while the page was read
+         */
+        synchronized boolean loaded(Page page, int slot, boolean pin) {
+            this.page = page;
+            this.slot = slot;
+            this.loading = false;
+            if (pin) {
+                this.pins++;
+            }
+            notifyAll();
+            return !this.gone;
+        }
+
+        synchronized void failed() {
+            this.loading = false;
+            this.gone = true;
+            notifyAll();
+        }
+
+        /**
+         * Waits for the page to be loaded, and pins it if asked to.
+         *
+         * @return the page, or null if the frame has left the page table
+         */
+        synchronized Page acquire(boolean pin) {
+            awaitLoaded();
+            if (this.gone) {
+                return null;
+            }
+            if (pin) {
+                this.pins++;
+            }
+            return this.page;
+        }
+
+        synchronized void unpin() {
+            if (this.pins > 0) {
+                this.pins--;
+            }
+        }
+
+        private void awaitLoaded() {
+            boolean interrupted = false;
+            while (this.loading) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // a read doesn't take long; finish waiting for it
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private ConcurrentHashMap<PageId, Frame> pool;
     private LockManager lockManager;
+    private Prefetcher prefetcher;
+    private final BufferPartition defaultPartition;
+    // every partition by name, and the pages of all of them
+    private final ConcurrentHashMap<String, BufferPartition> partitions = new ConcurrentHashMap<>();
+    private volatile int capacity;
+    // off-heap frames that pages are read into, or null
+    private final FrameArena arena;
+
+    // the ring each page read by a large scan belongs to, until it leaves
+    // the ring or the pool
+    private final ConcurrentHashMap<PageId, BufferRing> ringOf = new ConcurrentHashMap<>();
+    private volatile int scanRingPages;
+
+    private final BackgroundWriter writer;
+    private final PoolWarmer warmer;
+    private final PoolSizer sizer;
+    // the transaction the background writer locks pages under
+    private final TransactionId writerTid = new TransactionId();
+
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong dirtyEvictions = new AtomicLong();
+
+    // the pages each running transaction may have dirtied: those it fetched
+    // for writing and those its inserts and deletes returned, apart from
+    // those it changed record by record
+    private final ConcurrentHashMap<TransactionId, Set<PageId>> writeSets = new ConcurrentHashMap<>();
+
+    // a change a transaction made to a single record, as it was logged
+    private static class RecordChange {
+        final HeapPageId pid;
+        final int slot;
+        final Tuple before;
+
+        RecordChange(HeapPageId pid, int slot, Tuple before) {
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+        }
+    }
+
+    // the changes a running transaction made to single records, in the
+    // order it made them, and the pages they are on; guarded by itself
+    private static class RecordChanges {
+        final ArrayList<RecordChange> changes = new ArrayList<>();
+        final Set<PageId> pages = new HashSet<>();
+    }
+
+    private final ConcurrentHashMap<TransactionId, RecordChanges> recordChanges = new ConcurrentHashMap<>();
 
 
     /**
@@ -37,10 +226,204 @@ public class BufferPool {
      * @param numPages maximum number of pages in this buffer pool.
      */
     public BufferPool(int numPages) {
+        this(numPages, newEvictionPolicy(DEFAULT_EVICTION_POLICY, numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * pages chosen by the given policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the policy, which must not know any pages yet
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy) {
+        this(numPages, evictionPolicy, DEFAULT_OFF_HEAP);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, evicting the
+     * pages chosen by the given policy. If offHeap is true, the pool
+     * allocates a {@link FrameArena} of numPages frames of the current page
+     * size up front and reads HeapFile pages into it, so that cached pages
+     * are not page-sized arrays on the Java heap. Pages of tables with larger
+     * pages, of memory-mapped tables and pages read ahead stay on the heap.
+     * <p>
+     * Pages built over a frame decode their tuples in full and don't keep
+     * them, which costs scans the lazy decoding of unread fields. Once
+     * evicted, such a page copies its image onto the heap, so that it stays
+     * usable, before its frame is reused; a thread that keeps reading a page
+     * while it may be evicted should pin it (see {@link #pinPage}).
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param evictionPolicy the policy, which must not know any pages yet
+     * @param offHeap whether to keep cached pages in off-heap frames
+     */
+    public BufferPool(int numPages, EvictionPolicy evictionPolicy, boolean offHeap) {
         // some code goes here
         this.pool = new ConcurrentHashMap<>();
-        this.numPages = numPages;
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
         this.lockManager = new LockManager();
+        this.prefetcher = new Prefetcher(this, numPages);
+        this.defaultPartition = new BufferPartition(BufferPartition.DEFAULT, numPages, evictionPolicy);
+        this.partitions.put(BufferPartition.DEFAULT, this.defaultPartition);
+        this.capacity = numPages;
+        this.scanRingPages = Math.min(MAX_SCAN_RING_PAGES, Math.max(4, numPages / 8));
+        this.writer = new BackgroundWriter(this);
+        this.warmer = new PoolWarmer(this);
+        this.sizer = new PoolSizer(this);
+        this.addPartitions(DEFAULT_PARTITIONS);
+    }
+
+    /**
+     * Adds a partition of numPages pages to this buffer pool, evicting the
+     * pages chosen by the given policy. The pool grows by numPages pages.
+     * Tables assigned to the partition in the catalog use it from then on;
+     * their pages already cached stay in the partition they were read into
+     * until they are evicted. Pages of an off-heap pool's partitions are
+     * kept on the heap once its arena, as large as the default partition,
+     * is full.
+     *
+     * @param name the name tables are assigned to the partition by
+     * @param numPages maximum number of pages in the partition
+     * @param evictionPolicy the policy, which must not know any pages yet
+     * @return the partition
+     * @throws IllegalArgumentException if the pool has a partition of that
+     *   name already
+     */
+    public BufferPartition addPartition(String name, int numPages, EvictionPolicy evictionPolicy) {
+        if (numPages <= 0) {
+            throw new IllegalArgumentException("partition " + name + " of " + numPages + " pages");
+        }
+        BufferPartition partition = new BufferPartition(name, numPages, evictionPolicy);
+        synchronized (this.partitions) {
+            if (this.partitions.putIfAbsent(name, partition) != null) {
+                throw new IllegalArgumentException("partition " + name + " already exists");
+            }
+            this.capacity += numPages;
+        }
+        return partition;
+    }
+
+    /**
+     * Adds the partitions described by spec, a comma-separated list of
+     * name:pages or name:pages:policy, where the policy is one
+     * {@link #newEvictionPolicy} knows and defaults to the pool's default
+     * policy, e.g. "venues:64:lru2,scans:256".
+     *
+     * @throws IllegalArgumentException if spec is malformed, or names a
+     *   partition twice or one the pool has
+     */
+    public void addPartitions(String spec) {
+        for (String part : spec.split(",")) {
+            part = part.trim();
+            if (part.isEmpty()) {
+                continue;
+            }
+            String[] fields = part.split(":");
+            if (fields.length < 2 || fields.length > 3) {
+                throw new IllegalArgumentException("Bad partition " + part + ", expected name:pages[:policy]");
+            }
+            int pages;
+            try {
+                pages = Integer.parseInt(fields[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad page count in partition " + part);
+            }
+            String policy = fields.length == 3 ? fields[2].trim() : DEFAULT_EVICTION_POLICY;
+            addPartition(fields[0].trim(), pages, newEvictionPolicy(policy, pages));
+        }
+    }
+
+    /**
+     * @return the partition of the given name, or null if there is none
+     */
+    public BufferPartition getPartition(String name) {
+        return this.partitions.get(name);
+    }
+
+    /**
+     * @return the partitions of this pool, the default one included
+     */
+    public Collection<BufferPartition> getPartitions() {
+        return Collections.unmodifiableCollection(this.partitions.values());
+    }
+
+    /**
+     * @return the partition the pages of the given table go into
+     */
+    public BufferPartition partitionOf(int tableId) {
+        if (this.partitions.size() == 1) {
+            return this.defaultPartition;
+        }
+        String name;
+        try {
+            name = Database.getCatalog().getPartition(tableId);
+        } catch (NoSuchElementException e) {
+            return this.defaultPartition;
+        }
+        BufferPartition partition = name == null ? null : this.partitions.get(name);
+        return partition == null ? this.defaultPartition : partition;
+    }
+
+    /**
+     * @return the number of pages this buffer pool caches, in all of its
+     *   partitions
+     */
+    public int getNumPages() {
+        return this.capacity;
+    }
+
+    /**
+     * Changes the number of pages of the default partition, and with it
+     * the number of pages of the pool. Shrinking evicts pages of the
+     * partition until it fits, writing dirty pages as eviction always does,
+     * after logging them if their transaction is still running. Pinned
+     * pages and pages being read stay until a later read evicts them.
+     *
+     * @param numPages the new number of pages of the default partition
+     */
+    public void resize(int numPages) throws DbException {
+        if (numPages <= 0) {
+            throw new IllegalArgumentException("buffer pool of " + numPages + " pages");
+        }
+        synchronized (this.partitions) {
+            this.capacity += numPages - this.defaultPartition.getNumPages();
+            this.defaultPartition.setNumPages(numPages);
+        }
+        this.evictPage(this.defaultPartition);
+    }
+
+    /**
+     * Creates the eviction policy with the given name for a buffer pool of
+     * numPages pages: "clock" ({@link ClockPolicy}), "lru2"
+     * ({@link Lru2Policy}) or "random" ({@link RandomPolicy}).
+     *
+     * @throws IllegalArgumentException if there is no policy of that name
+     */
+    public static EvictionPolicy newEvictionPolicy(String name, int numPages) {
+        if (name.equals("clock"))
+            return new ClockPolicy(numPages);
+        else if (name.equals("lru2"))
+            return new Lru2Policy(numPages);
+        else if (name.equals("random"))
+            return new RandomPolicy(numPages);
+        throw new IllegalArgumentException("Unknown eviction policy " + name);
+    }
+
+    /**
+     * @return the arena holding this pool's pages, or null if pages are
+     *   kept on the heap
+     */
+    public FrameArena getArena() {
+        return this.arena;
+    }
+
+    /**
+     * @return the policy choosing which pages of the default partition this
+     *   buffer pool evicts
+     */
+    public EvictionPolicy getEvictionPolicy() {
+        return this.defaultPartition.getEvictionPolicy();
     }
 
     public static int getPageSize() {
@@ -74,19 +457,446 @@ public class BufferPool {
      */
     public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, like
+     * {@link #getPage(TransactionId, PageId, Permissions)}, on behalf of a
+     * scan reading through the given ring. A page read from disk goes into
+     * the ring, displacing the ring's oldest page instead of a page chosen
+     * by the eviction policy once the ring is full.
+     *
+     * @param ring the scan's ring, or null to use the pool as usual
+     * @see #newScanRing
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
         // some code goes here
+        return fetch(tid, pid, perm, ring, false);
+    }
+
+    /**
+     * Retrieve the specified page like
+     * {@link #getPage(TransactionId, PageId, Permissions, BufferRing)}, and
+     * pin it: the page is not evicted until every pin on it is released
+     * with {@link #unpinPage}.
+     */
+    public  Page pinPage(TransactionId tid, PageId pid, Permissions perm, BufferRing ring)
+            throws TransactionAbortedException, DbException {
+        return fetch(tid, pid, perm, ring, true);
+    }
+
+    /**
+     * Releases a pin taken by {@link #pinPage}. Does nothing if the page is
+     * no longer in the pool.
+     */
+    public void unpinPage(PageId pid) {
+        Frame frame = this.pool.get(pid);
+        if (frame != null) {
+            frame.unpin();
+        }
+    }
+
+    private Set<PageId> writeSetOf(TransactionId tid) {
+        Set<PageId> pids = this.writeSets.get(tid);
+        if (pids == null) {
+            Set<PageId> mine = ConcurrentHashMap.newKeySet();
+            pids = this.writeSets.putIfAbsent(tid, mine);
+            if (pids == null) {
+                pids = mine;
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * @return the number of pins on the given page, 0 if it is not in the pool
+     */
+    int getPinCount(PageId pid) {
+        Frame frame = this.pool.get(pid);
+        if (frame == null) {
+            return 0;
+        }
+        synchronized (frame) {
+            return frame.pins;
+        }
+    }
 
+    private Page fetch(TransactionId tid, PageId pid, Permissions perm, BufferRing ring, boolean pin)
+            throws TransactionAbortedException, DbException {
         this.lockManager.getLock(pid, tid, perm);
+        if (perm == Permissions.READ_WRITE && this.writeSetOf(tid).add(pid)) {
+            Frame frame = this.lookup(pid, ring, pin);
+            synchronized (frame) {
+                // the page will be logged whole from here on: its before
+                // image is what other transactions committed or left
+                // undone, which the X lock keeps as it is
+                if (!frame.gone) {
+                    frame.page.setBeforeImage();
+                }
+                return frame.page;
+            }
+        }
+        return this.lookup(pid, ring, pin).page;
+    }
+
+    /**
+     * Finds the frame of a page, reading the page into it if it is not in
+     * the pool, and pins it if asked to. The frame may have left the page
+     * table by the time it is returned, but still holds the page.
+     */
+    private Frame lookup(PageId pid, BufferRing ring, boolean pin) throws DbException {
+        while (true) {
+            Frame frame = this.pool.get(pid);
+            if (frame == null) {
+                Frame mine = new Frame(null, this.partitionOf(pid.getTableId()));
+                frame = this.pool.putIfAbsent(pid, mine);
+                if (frame == null) {
+                    mine.partition.added();
+                    mine.partition.missed();
+                    this.sizer.wake();
+                    load(pid, mine, ring, pin);
+                    return mine;
+                }
+            }
+
+            // waits if another thread is reading the page
+            Page page = frame.acquire(pin);
+            if (page == null) {
+                // evicted or discarded meanwhile
+                continue;
+            }
+            frame.partition.hit();
+            frame.lastUsed = System.nanoTime();
+            frame.partition.getEvictionPolicy().pageAccessed(pid);
+            // a ring page someone else wants is no longer the scan's to recycle
+            BufferRing owner = this.ringOf.get(pid);
+            if (owner != null && owner != ring) {
+                this.ringOf.remove(pid, owner);
+            }
+            return frame;
+        }
+    }
+
+    /**
+     * Reads a page into the frame this thread has put into the page table
+     * for it, making room for it first.
+     */
+    private Page load(PageId pid, Frame frame, BufferRing ring, boolean pin) throws DbException {
+        Page page = null;
+        int slot = -1;
+        boolean done = false;
+        try {
+            // if the partition is full, we need to evict; this comes first
+            // so that the page can go into the frame freed
+            if (ring == null || !this.recycleRingPage(ring, pid)) {
+                this.evictPage(frame.partition);
+            }
 
-        if (!this.pool.containsKey(pid)) {
-            Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
+            // use the page if a sequential scan has read it ahead
+            page = this.prefetcher.take(pid);
+            if (page == null) {
+                DbFile file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+                slot = allocateSlot(file);
+                if (slot >= 0) {
+                    page = readIntoFrame((HeapFile) file, pid, slot);
+                } else {
+                    page = file.readPage(pid);
+                }
+            }
+            done = true;
+        } finally {
+            if (!done) {
+                // let waiting threads try again
+                if (this.pool.remove(pid, frame)) {
+                    frame.partition.removed();
+                }
+                frame.failed();
+                if (page != null) {
+                    releaseSlot(page, slot);
+                } else if (slot >= 0) {
+                    this.arena.release(slot);
+                }
+            }
+        }
 
-            // if pool size is greater or equal than numPages, we need to evict
-            this.evictPage();
+        frame.partition.getEvictionPolicy().pageAdded(pid);
+        if (!frame.loaded(page, slot, pin)) {
+            releaseSlot(page, slot);
+        }
+        return page;
+    }
 
-            this.pool.put(pid, page);
+    /**
+     * @return a free arena frame to read a page of the given file into, or
+     *   -1 if the page is to be read onto the heap
+     */
+    private int allocateSlot(DbFile file) {
+        if (this.arena == null || !(file instanceof HeapFile)) {
+            return -1;
+        }
+        HeapFile hf = (HeapFile) file;
+        if (hf.isMemoryMapped() || hf.getPageSize() > this.arena.frameSize()) {
+            return -1;
         }
-        return this.pool.get(pid);
+        return this.arena.allocate();
+    }
+
+    private Page readIntoFrame(HeapFile file, PageId pid, int slot) {
+        try {
+            return file.readPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()),
+                    this.arena.frame(slot));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("page does not exist in this file");
+        }
+    }
+
+    /**
+     * Gives back the arena frame a page was read into, once nothing but the
+     * page itself can reach it: the page first moves onto the heap.
+     */
+    private void releaseSlot(Page page, int slot) {
+        if (slot >= 0) {
+            ((TuplePage) page).detach();
+            this.arena.release(slot);
+        }
+    }
+
+    /**
+     * Returns a ring for a sequential scan of a table of the given number of
+     * pages in the default partition, or null if the table is small enough
+     * to be cached: scans of tables larger than three quarters of their
+     * partition go through a ring.
+     */
+    public BufferRing newScanRing(int tablePages) {
+        return newScanRing(this.defaultPartition, tablePages);
+    }
+
+    /**
+     * Returns a ring for a sequential scan of the given table, of the given
+     * number of pages, like {@link #newScanRing(int)}, comparing the table
+     * with the partition it is in.
+     */
+    public BufferRing newScanRing(int tableId, int tablePages) {
+        return newScanRing(this.partitionOf(tableId), tablePages);
+    }
+
+    private BufferRing newScanRing(BufferPartition partition, int tablePages) {
+        int size = this.scanRingPages;
+        if (partition != this.defaultPartition) {
+            // rings of a smaller partition are smaller too
+            size = Math.min(size, Math.max(4, partition.getNumPages() / 8));
+        }
+        if (size == 0 || tablePages <= partition.getNumPages() * 3 / 4) {
+            return null;
+        }
+        return new BufferRing(size);
+    }
+
+    /**
+     * Sets the number of pages in the rings of large scans; 0 turns rings
+     * off, so that large scans read through the whole pool.
+     */
+    public void setScanRingPages(int pages) {
+        if (pages < 0) {
+            throw new IllegalArgumentException("negative scan ring size " + pages);
+        }
+        this.scanRingPages = pages;
+    }
+
+    /**
+     * Hands the pages of a finished scan's ring back to the pool, as
+     * ordinary pages.
+     */
+    public void releaseScanRing(BufferRing ring) {
+        for (PageId pid : ring.clear()) {
+            if (pid != null) {
+                this.ringOf.remove(pid, ring);
+            }
+        }
+    }
+
+    /**
+     * Puts a page about to be read into the given ring, evicting the ring
+     * page it displaces.
+     *
+     * @return true if a page was evicted, false if the caller has to evict
+     *   one the usual way
+     */
+    private boolean recycleRingPage(BufferRing ring, PageId pid) throws DbException {
+        PageId old = ring.add(pid);
+        this.ringOf.put(pid, ring);
+        if (old == null || !this.ringOf.remove(old, ring)) {
+            return false;
+        }
+        Frame frame = this.pool.get(old);
+        if (frame == null || !this.evict(old, frame)) {
+            return false;
+        }
+        frame.partition.getEvictionPolicy().pageRemoved(old);
+        return true;
+    }
+
+    /**
+     * @return true if the given page is in the buffer pool
+     */
+    boolean isCached(PageId pid) {
+        return this.pool.containsKey(pid);
+    }
+
+    /**
+     * @return the number of pages the buffer pool has room for
+     */
+    int numFree() {
+        return Math.max(0, this.capacity - this.pool.size() - this.prefetcher.size());
+    }
+
+    /**
+     * @return the ids of the HeapFile pages in the buffer pool, most
+     *   recently used first
+     */
+    List<HeapPageId> residentPages() {
+        final HashMap<HeapPageId, Long> used = new HashMap<>();
+        for (Map.Entry<PageId, Frame> e : this.pool.entrySet()) {
+            if (e.getKey() instanceof HeapPageId && e.getValue().page != null) {
+                used.put((HeapPageId) e.getKey(), e.getValue().lastUsed);
+            }
+        }
+        ArrayList<HeapPageId> pids = new ArrayList<>(used.keySet());
+        Collections.sort(pids, new Comparator<HeapPageId>() {
+            public int compare(HeapPageId a, HeapPageId b) {
+                return Long.compare(used.get(b), used.get(a));
+            }
+        });
+        return pids;
+    }
+
+    /**
+     * Adds pages of the given file, read without locks while the file's
+     * write count was writes, to the buffer pool, unless they are cached
+     * already, the file has been written since, or their partition is full.
+     * Nothing is evicted. Called by the {@link PoolWarmer}.
+     *
+     * @return the number of pages added
+     */
+    int warmPages(HeapFile file, List<Page> pages, long writes) {
+        int added = 0;
+        for (Page page : pages) {
+            PageId pid = page.getId();
+            BufferPartition partition = this.partitionOf(pid.getTableId());
+            if (partition.size() + (partition == this.defaultPartition ? this.prefetcher.size() : 0)
+                    >= partition.getNumPages()) {
+                continue;
+            }
+            Frame frame = new Frame(null, partition);
+            if (this.pool.putIfAbsent(pid, frame) != null) {
+                continue;
+            }
+            partition.added();
+            // a write of the page could have overlapped the read, until the
+            // frame above kept new writers out
+            if (file.writeCount() != writes) {
+                if (this.pool.remove(pid, frame)) {
+                    partition.removed();
+                }
+                frame.failed();
+                continue;
+            }
+            partition.getEvictionPolicy().pageAdded(pid);
+            if (frame.loaded(page, -1, false)) {
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Asks for count pages of the given file, starting at page first, to be
+     * read ahead in the background, because a sequential scan is about to
+     * need them. Does nothing if read-ahead is off.
+     *
+     * @see Prefetcher
+     */
+    public void prefetch(HeapFile file, int first, int count) {
+        this.prefetcher.prefetch(file, first, count);
+    }
+
+    /**
+     * @return the number of pages sequential scans read ahead, or 0 if
+     *   read-ahead is off
+     */
+    public int getPrefetchDepth() {
+        return this.prefetcher.getDepth();
+    }
+
+    /**
+     * Sets the number of pages sequential scans read ahead; 0 turns
+     * read-ahead off. The depth is capped at half the buffer pool.
+     */
+    public void setPrefetchDepth(int depth) {
+        this.prefetcher.setDepth(depth);
+    }
+
+    /**
+     * @return the read-ahead stage of this buffer pool, for its statistics
+     */
+    public Prefetcher getPrefetcher() {
+        return this.prefetcher;
+    }
+
+    /**
+     * @return the background writer of this buffer pool, to configure it
+     *   and for its statistics
+     */
+    public BackgroundWriter getBackgroundWriter() {
+        return this.writer;
+    }
+
+    /**
+     * @return the warmer that saves the pages of this buffer pool and
+     *   restores them after a restart
+     */
+    public PoolWarmer getWarmer() {
+        return this.warmer;
+    }
+
+    /**
+     * @return the sizer that grows and shrinks this buffer pool with the
+     *   heap's headroom
+     */
+    public PoolSizer getSizer() {
+        return this.sizer;
+    }
+
+    /**
+     * @return the lock manager of this buffer pool, to configure how it
+     *   deals with deadlocks
+     */
+    public LockManager getLockManager() {
+        return this.lockManager;
+    }
+
+    /** @return the number of pages evicted so far */
+    public long getEvictions() {
+        return this.evictions.get();
+    }
+
+    /** @return the number of evicted pages that had to be written first */
+    public long getDirtyEvictions() {
+        return this.dirtyEvictions.get();
+    }
+
+    /** @return the number of cached pages that are dirty */
+    public int numDirtyPages() {
+        int dirty = 0;
+        for (Frame frame : this.pool.values()) {
+            Page page = frame.page;
+            if (page != null && page.isDirty() != null) {
+                dirty++;
+            }
+        }
+        return dirty;
     }
 
     /**
@@ -140,11 +950,24 @@ public class BufferPool {
         // some code goes here
         // not necessary for lab1|lab2
 
+        // only the pages in tid's write set can hold its changes, apart
+        // from those it changed record by record; the write set stays
+        // until tid's locks go, so that its pages are logged if they are
+        // written meanwhile
+        Set<PageId> pids = this.writeSets.get(tid);
+        if (pids == null) {
+            pids = Collections.emptySet();
+        }
+
         // check if we need to commit or abort
         if (!commit) {
-            // abort
-            for (PageId pid: this.pool.keySet()) {
-                TransactionId currTid = this.pool.get(pid).isDirty();
+            // abort; the pages whose records tid changed leave its write
+            // set as they are undone, and are kept
+            this.undoRecords(tid);
+            for (PageId pid : pids) {
+                Frame frame = this.pool.get(pid);
+                Page page = frame == null ? null : frame.page;
+                TransactionId currTid = page == null ? null : page.isDirty();
                 // we discard any dirty pages so that the dirty changes will not be seen by any other transactions
                 if (currTid != null && currTid.equals(tid)) {
                     this.discardPage(pid);
@@ -154,16 +977,58 @@ public class BufferPool {
             // LAB 3: commit by flushing all pages
             // this.flushPages(tid);
             // LAB 4: NO-FORCE: no longer force pages to disk when committing
-            for (Page p: this.pool.values()) {
-                // add dirty pages to the log
-                Database.getLogFile().logWrite(tid, p.getBeforeImage(),p);
-                // force the log to disk
+            boolean logged = false;
+            RecordChanges records = this.recordChanges.remove(tid);
+            Set<PageId> changed = pids;
+            if (records != null) {
+                changed = new HashSet<>(pids);
+                changed.addAll(records.pages);
+            }
+            for (PageId pid : changed) {
+                Frame frame = this.pool.get(pid);
+                if (frame == null) {
+                    // evicted, and logged when it was written
+                    continue;
+                }
+                Page p;
+                boolean dirty;
+                synchronized (frame) {
+                    p = frame.page;
+                    if (p == null) {
+                        continue;
+                    }
+                    // add dirty pages to the log; pages written since they
+                    // were dirtied were logged then, and changes to records
+                    // as they were made
+                    dirty = tid.equals(p.isDirty()) && pids.contains(pid);
+                    frame.pins++;
+                }
+                try {
+                    // logged without the latch (see LogFile); tid's lock
+                    // keeps the page as it is
+                    if (dirty) {
+                        Database.getLogFile().logWrite(tid, p.getBeforeImage(), p);
+                        logged = true;
+                    }
+                    synchronized (frame) {
+                        // use curr page contents as the before image because the dirty changes cannot be seen
+                        p.setBeforeImage();
+                    }
+                } finally {
+                    frame.unpin();
+                }
+            }
+            // force the log to disk, once for all the pages
+            if (logged) {
                 Database.getLogFile().force();
-                // use curr page contents as the before image because the dirty changes cannot be seen
-                p.setBeforeImage();
             }
         }
+        this.writeSets.remove(tid);
         this.lockManager.releaseAllLocks(tid);
+        if (commit) {
+            // the pages tid dirtied can be written now
+            this.writer.wake();
+        }
     }
 
     /**
@@ -171,6 +1036,8 @@ public class BufferPool {
      * acquire a write lock on the page the tuple is added to and any other
      * pages that are updated (Lock acquisition is not needed for lab2).
      * May block if the lock(s) cannot be acquired.
+     * Files of fixed-size records lock and change just the record (see
+     * {@link #insertRecord}).
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
@@ -188,14 +1055,15 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
 
         ArrayList<Page> modifiedPage = file.insertTuple(tid, t);
+        Set<PageId> writeSet = this.writeSetOf(tid);
         for (Page page: modifiedPage) {
-            page.markDirty(true, tid);
-            if (!this.pool.containsKey(page.getId())) {
-                this.evictPage();
-                this.pool.put(page.getId(), page);
-            } else {
-                this.pool.put(page.getId(), page);
+            if (this.changedRecords(tid, page.getId())) {
+                // changed in place, and already dirty
+                continue;
             }
+            page.markDirty(true, tid);
+            writeSet.add(page.getId());
+            this.putPage(page);
         }
     }
 
@@ -203,6 +1071,8 @@ public class BufferPool {
      * Remove the specified tuple from the buffer pool.
      * Will acquire a write lock on the page the tuple is removed from and any
      * other pages that are updated. May block if the lock(s) cannot be acquired.
+     * Files of fixed-size records lock and change just the record (see
+     * {@link #deleteRecord}).
      *
      * Marks any pages that were dirtied by the operation as dirty by calling
      * their markDirty bit, and adds versions of any pages that have
@@ -220,78 +1090,507 @@ public class BufferPool {
         DbFile file = Database.getCatalog().getDatabaseFile(tableId);
 
         ArrayList<Page> modifiedPage = file.deleteTuple(tid, t);
+        Set<PageId> writeSet = this.writeSetOf(tid);
         for (Page page: modifiedPage) {
+            if (this.changedRecords(tid, page.getId())) {
+                continue;
+            }
             page.markDirty(true, tid);
-            // TODO: Aakash, do a check for containsKey in buffer pool?
-            if (!this.pool.containsKey(page.getId())) {
-                this.evictPage();
-                this.pool.put(page.getId(), page);
-            } else {
-                this.pool.put(page.getId(), page);
+            writeSet.add(page.getId());
+            this.putPage(page);
+        }
+    }
+
+    /**
+     * Inserts a tuple into an empty slot of the given page of a HeapFile of
+     * fixed-size records, on behalf of transaction tid: takes an intention
+     * exclusive lock on the page, which may block, and then an exclusive
+     * lock on the first empty slot that no other transaction holds a lock
+     * on. The change is logged, then made, and marks the page dirty (see
+     * {@link #changeRecord}).
+     *
+     * @return the page, or null if it has no empty slot that tid could
+     *   lock without waiting
+     */
+    Page insertRecord(TransactionId tid, HeapPageId pid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        this.lockManager.getIntentionLock(pid, tid, Permissions.READ_WRITE);
+        while (true) {
+            Frame frame = this.lookup(pid, null, true);
+            try {
+                int slot = -1;
+                synchronized (frame) {
+                    if (frame.gone) {
+                        continue;
+                    }
+                    HeapPage page = (HeapPage) frame.page;
+                    if (page.getNumEmptySlots() == 0) {
+                        noteFreeSpace(page);
+                        return null;
+                    }
+                    int numSlots = page.getNumTuples();
+                    for (int i = page.nextSlot(0, false); i < numSlots; i = page.nextSlot(i + 1, false)) {
+                        if (this.lockManager.tryRecordLock(new RecordId(pid, i), tid)) {
+                            slot = i;
+                            break;
+                        }
+                    }
+                }
+                if (slot < 0) {
+                    return null;
+                }
+                // the lock keeps the slot empty
+                Page page = this.changeRecord(tid, frame, pid, slot, null, t);
+                this.noteRecordChange(tid, pid, slot, null);
+                return page;
+            } finally {
+                frame.unpin();
             }
         }
     }
 
     /**
-     * Flush all dirty pages to disk.
-     * NB: Be careful using this routine -- it writes dirty data to disk so will
-     *     break simpledb if running in NO STEAL mode.
+     * Deletes a tuple from a page of a HeapFile of fixed-size records, on
+     * behalf of transaction tid: takes an exclusive lock on its record,
+     * which may block, and then logs and makes the change, marking the page
+     * dirty (see {@link #changeRecord}).
+     *
+     * @return the page the tuple was on
+     * @throws DbException if the tuple's slot is empty
      */
-    public synchronized void flushAllPages() throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        for (PageId pageId: this.pool.keySet()) {
-            this.flushPage(pageId);
+    Page deleteRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        RecordId rid = t.getRecordId();
+        this.lockManager.getRecordLock(rid, tid, Permissions.READ_WRITE);
+        HeapPageId pid = new HeapPageId(rid.getPageId().getTableId(), rid.getPageId().getPageNumber());
+        int slot = rid.getTupleNumber();
+        while (true) {
+            Frame frame = this.lookup(pid, null, true);
+            try {
+                Tuple before;
+                synchronized (frame) {
+                    if (frame.gone) {
+                        continue;
+                    }
+                    before = ((HeapPage) frame.page).copyTuple(slot);
+                }
+                if (before == null) {
+                    throw new DbException("tuple slot wasn't being used and is already empty.");
+                }
+                Page page = this.changeRecord(tid, frame, pid, slot, before, null);
+                this.noteRecordChange(tid, pid, slot, before);
+                return page;
+            } finally {
+                frame.unpin();
+            }
         }
+    }
 
+    /**
+     * Logs a change to a record and then makes it, marking the page dirty.
+     * The caller holds the lock on the record, which keeps it as before,
+     * and a pin on the page's frame. The change is logged without the
+     * frame latch (see LogFile), and made under it, on the page read back
+     * if the frame has left the pool meanwhile.
+     *
+     * @param before the contents of the slot, or null if it is empty
+     * @param after the new contents of the slot, or null to empty it
+     * @return the page changed
+     */
+    private Page changeRecord(TransactionId tid, Frame frame, HeapPageId pid, int slot,
+                              Tuple before, Tuple after) throws DbException, IOException {
+        long lsn = Database.getLogFile().logTupleWrite(tid, pid, slot, before, after);
+        Frame target = frame;
+        try {
+            while (true) {
+                synchronized (target) {
+                    if (!target.gone) {
+                        HeapPage page = (HeapPage) target.page;
+                        page.setTuple(slot, after);
+                        page.markDirty(true, tid);
+                        // another transaction may have logged a change to
+                        // another record later, and made it first
+                        target.lsn = Math.max(target.lsn, lsn);
+                        this.writer.wake();
+                        return page;
+                    }
+                }
+                if (target != frame) {
+                    target.unpin();
+                }
+                target = this.lookup(pid, null, true);
+            }
+        } finally {
+            if (target != frame) {
+                target.unpin();
+            }
+        }
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Remembers a change a transaction made to a record, to undo it if the
+     * transaction aborts.
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
+    private void noteRecordChange(TransactionId tid, HeapPageId pid, int slot, Tuple before) {
+        RecordChanges records = this.recordChanges.get(tid);
+        if (records == null) {
+            RecordChanges mine = new RecordChanges();
+            records = this.recordChanges.putIfAbsent(tid, mine);
+            if (records == null) {
+                records = mine;
+            }
+        }
+        synchronized (records) {
+            records.changes.add(new RecordChange(pid, slot, before));
+            records.pages.add(pid);
+        }
+    }
+
+    /**
+     * @return whether tid changed records of the given page one at a time
+     */
+    private boolean changedRecords(TransactionId tid, PageId pid) {
+        RecordChanges records = this.recordChanges.get(tid);
+        if (records == null) {
+            return false;
+        }
+        synchronized (records) {
+            return records.pages.contains(pid);
+        }
+    }
+
+    /**
+     * Undoes the changes a transaction made to single records, latest
+     * first, on the cached pages, logging each undo as a change of its
+     * own: other transactions may have changed other records of the pages
+     * since, so the pages can't revert to an older image. Called when the
+     * transaction aborts, while it still holds its record locks, and not
+     * under the LogFile monitor, since it may wait for a page being read.
+     * <p>
+     * A page the transaction also fetched for writing first reverts to its
+     * before image, if the transaction's changes to it are still cached,
+     * and then has its records undone. Such pages leave the transaction's
+     * write set, so that its abort keeps them rather than discarding them
+     * for a copy on disk that may hold its record changes; and the undone
+     * pages become their own before images.
+     */
+    void undoRecords(TransactionId tid) throws IOException {
+        RecordChanges records = this.recordChanges.remove(tid);
+        if (records == null) {
+            return;
+        }
+        ArrayList<RecordChange> changes;
+        ArrayList<PageId> pages;
+        synchronized (records) {
+            changes = records.changes;
+            pages = new ArrayList<>(records.pages);
+        }
+        Set<PageId> pids = this.writeSets.get(tid);
+        if (pids != null) {
+            for (PageId pid : pages) {
+                if (pids.contains(pid)) {
+                    this.restoreBeforeImage(tid, pid);
+                    pids.remove(pid);
+                }
+            }
+        }
+        for (int i = changes.size() - 1; i >= 0; i--) {
+            RecordChange change = changes.get(i);
+            while (true) {
+                Frame frame;
+                try {
+                    frame = this.lookup(change.pid, null, true);
+                } catch (DbException e) {
+                    throw new IOException("cannot read " + change.pid + " to undo a change: " + e.getMessage());
+                }
+                try {
+                    Tuple current;
+                    synchronized (frame) {
+                        if (frame.gone) {
+                            continue;
+                        }
+                        current = ((HeapPage) frame.page).copyTuple(change.slot);
+                    }
+                    this.changeRecord(tid, frame, change.pid, change.slot, current, change.before);
+                    break;
+                } catch (DbException e) {
+                    throw new IOException("cannot undo a change to " + change.pid + ": " + e.getMessage());
+                } finally {
+                    frame.unpin();
+                }
+            }
+        }
+        for (PageId pid : pages) {
+            Frame frame = this.pool.get(pid);
+            if (frame == null) {
+                continue;
+            }
+            synchronized (frame) {
+                if (!frame.loading && !frame.gone && frame.page != null) {
+                    frame.page.setBeforeImage();
+                }
+            }
+        }
+    }
 
-        // buffer pool does not contain page
-        if (!this.pool.containsKey(pid)) {
+    /**
+     * Reverts a cached page that a transaction dirtied to its before image,
+     * which stays dirty so that it replaces any copy of the transaction's
+     * changes written meanwhile. Does nothing if the page is not cached or
+     * not dirtied by the transaction.
+     */
+    private void restoreBeforeImage(TransactionId tid, PageId pid) {
+        Frame frame = this.pool.get(pid);
+        if (frame == null) {
             return;
         }
+        synchronized (frame) {
+            Page page = frame.page;
+            if (frame.loading || frame.gone || page == null || !tid.equals(page.isDirty())) {
+                return;
+            }
+            // off the arena frame first, which the before image may share
+            releaseSlot(page, frame.slot);
+            frame.slot = -1;
+            Page before = page.getBeforeImage();
+            before.markDirty(true, tid);
+            frame.page = before;
+        }
+    }
 
-        // buffer pool contains page
-        Page page = this.pool.get(pid);
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null) { // check if page is dirty
-            // page is dirty, we want to write it to disk
-            HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+    /**
+     * @return whether the given page is logged whole when it is written,
+     *   since the transaction that dirtied it fetched it for writing and
+     *   has not finished
+     */
+    private boolean inWriteSet(TransactionId dirtier, PageId pid) {
+        Set<PageId> pids = this.writeSets.get(dirtier);
+        return pids != null && pids.contains(pid);
+    }
 
-            // check if the transaction that cause this page to be dirty is still executing,
-            // if it is, we have to change the log
-            if (this.lockManager.holdsLock(pid, dirtier, LockType.ANY)) {
-                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-                Database.getLogFile().force();
+    /**
+     * Adds a page to the pool, replacing the cached version of it if there
+     * is one.
+     */
+    private void putPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        this.writer.wake();
+        while (true) {
+            Frame frame = this.pool.get(pid);
+            if (frame == null) {
+                BufferPartition partition = this.partitionOf(pid.getTableId());
+                if (this.pool.putIfAbsent(pid, new Frame(page, partition)) == null) {
+                    partition.added();
+                    this.evictPage(partition);
+                    partition.getEvictionPolicy().pageAdded(pid);
+                    return;
+                }
+                continue;
+            }
+            synchronized (frame) {
+                frame.awaitLoaded();
+                if (!frame.gone) {
+                    if (frame.page != page) {
+                        releaseSlot(frame.page, frame.slot);
+                        frame.slot = -1;
+                        frame.page = page;
+                    }
+                    frame.partition.getEvictionPolicy().pageAccessed(pid);
+                    return;
+                }
             }
+        }
+    }
 
-            heapFile.writePage(page);
-            page.markDirty(false, null);
+    /**
+     * Flush all dirty pages to disk.
+     * NB: Be careful using this routine -- it writes dirty data to disk so will
+     *     break simpledb if running in NO STEAL mode.
+     */
+    public void flushAllPages() throws IOException {
+        // some code goes here
+        // not necessary for lab1
+        this.flushBatch(this.pool.keySet());
+    }
 
+    /**
+     * Writes those of the given pages that are dirty, grouped by table and
+     * in page order, so that runs of consecutive pages go to disk with one
+     * write (see {@link HeapFile#writePages}). Pages that running
+     * transactions fetched for writing are logged first, and the log is
+     * forced once for the batch, before anything is written.
+     * <p>
+     * The pages are marked clean as they are gathered, and stay pinned
+     * until they are written, so that none of them is evicted and read back
+     * from disk before its write; if a write fails they are marked dirty
+     * again. What is logged and written is a copy of each page's image
+     * taken under its frame latch: a transaction may change the page again
+     * once the latch is dropped, and that change must neither tear the
+     * write nor reach disk unlogged. The log is written once the latches
+     * are dropped (see LogFile).
+     */
+    private void flushBatch(Collection<PageId> pids) throws IOException {
+        ArrayList<Frame> frames = new ArrayList<>();
+        ArrayList<Page> pages = new ArrayList<>();
+        ArrayList<TransactionId> dirtiers = new ArrayList<>();
+        HashMap<Integer, ArrayList<Page>> byTable = new HashMap<>();
+        // the images to log, with their before images and transactions
+        ArrayList<Page> afters = new ArrayList<>();
+        ArrayList<Page> befores = new ArrayList<>();
+        ArrayList<TransactionId> loggers = new ArrayList<>();
+        long lsn = 0;
+        try {
+            for (PageId pid : pids) {
+                Frame frame = this.pool.get(pid);
+                if (frame == null) {
+                    continue;
+                }
+                synchronized (frame) {
+                    Page page = frame.page;
+                    TransactionId dirtier = page == null ? null : page.isDirty();
+                    if (frame.loading || frame.gone || dirtier == null) {
+                        continue;
+                    }
+                    int tableId = pid.getTableId();
+                    DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+                    if (file instanceof HeapFile) {
+                        Page image = ((HeapFile) file).newPage(
+                                new HeapPageId(tableId, pid.getPageNumber()),
+                                ByteBuffer.wrap(page.getPageData()));
+                        // see flush
+                        if (this.inWriteSet(dirtier, pid)) {
+                            afters.add(image);
+                            befores.add(page.getBeforeImage());
+                            loggers.add(dirtier);
+                        }
+                        lsn = Math.max(lsn, frame.lsn);
+                        if (!byTable.containsKey(tableId)) {
+                            byTable.put(tableId, new ArrayList<Page>());
+                        }
+                        byTable.get(tableId).add(image);
+                        frame.pins++;
+                        page.markDirty(false, null);
+                        frames.add(frame);
+                        pages.add(page);
+                        dirtiers.add(dirtier);
+                        continue;
+                    }
+                }
+                // no way to copy the page: write it on its own
+                this.flush(pid, frame, false);
+            }
+            for (int i = 0; i < afters.size(); i++) {
+                Database.getLogFile().logWrite(loggers.get(i), befores.get(i), afters.get(i));
+            }
+            if (!afters.isEmpty()) {
+                Database.getLogFile().force();
+            } else {
+                Database.getLogFile().forceTo(lsn);
+            }
 
+            for (Map.Entry<Integer, ArrayList<Page>> e : byTable.entrySet()) {
+                HeapFile file = (HeapFile) Database.getCatalog().getDatabaseFile(e.getKey());
+                file.writePages(e.getValue());
+            }
+            dirtiers.clear();
+        } finally {
+            for (int i = 0; i < frames.size(); i++) {
+                if (i < dirtiers.size()) {
+                    Page page = pages.get(i);
+                    synchronized (frames.get(i)) {
+                        if (page.isDirty() == null) {
+                            page.markDirty(true, dirtiers.get(i));
+                        }
+                    }
+                }
+                frames.get(i).unpin();
+            }
         }
+    }
 
+    /**
+     * Writes a page to disk if it is dirty, and removes it from the pool
+     * if asked to. The log is written and forced without the frame latch
+     * (see LogFile): the page stays pinned meanwhile, and is written under
+     * the latch if nothing changed it since, or logged again otherwise.
+     *
+     * @param evict whether to remove the page from the pool
+     * @return false if the page is being read or has left the pool, or is
+     *   pinned and to be evicted
+     */
+    private boolean flush(PageId pid, Frame frame, boolean evict) throws IOException {
+        Page logged = null;
+        TransactionId loggedBy = null;
+        long loggedLsn = 0;
+        while (true) {
+            synchronized (frame) {
+                if ((evict && frame.pins > 0) || frame.loading || frame.gone) {
+                    return false;
+                }
+                Page page = frame.page;
+                TransactionId dirtier = page.isDirty();
+                // check if the transaction that cause this page to be dirty is still executing,
+                // if it is, we have to change the log; changes to records were
+                // logged as they were made, and only need to be on disk
+                if (dirtier == null
+                        || (page == logged && dirtier.equals(loggedBy) && frame.lsn == loggedLsn)
+                        || (!this.inWriteSet(dirtier, pid) && Database.getLogFile().isForced(frame.lsn))) {
+                    if (evict) {
+                        this.evictions.incrementAndGet();
+                    }
+                    if (dirtier != null) { // check if page is dirty
+                        if (evict) {
+                            this.dirtyEvictions.incrementAndGet();
+                            this.writer.fellBehind();
+                        }
+                        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                        page.markDirty(false, null);
+                    }
+                    if (evict) {
+                        frame.gone = true;
+                        this.pool.remove(pid, frame);
+                        frame.partition.removed();
+                        frame.partition.evicted();
+                        releaseSlot(frame.page, frame.slot);
+                        frame.slot = -1;
+                    }
+                    return true;
+                }
+                logged = page;
+                loggedBy = dirtier;
+                loggedLsn = frame.lsn;
+                frame.pins++;
+            }
+            try {
+                if (this.inWriteSet(loggedBy, pid)) {
+                    Database.getLogFile().logWrite(loggedBy, logged.getBeforeImage(), logged);
+                    Database.getLogFile().force();
+                } else {
+                    Database.getLogFile().forceTo(loggedLsn);
+                }
+            } finally {
+                frame.unpin();
+            }
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public  void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        for (PageId pid : pool.keySet()) {
-            TransactionId currTid = pool.get(pid).isDirty();
-            if(currTid != null && currTid.equals(tid)) {
-                flushPage(pid);
+        HashSet<PageId> pids = new HashSet<>();
+        Set<PageId> writeSet = this.writeSets.get(tid);
+        if (writeSet != null) {
+            pids.addAll(writeSet);
+        }
+        RecordChanges records = this.recordChanges.get(tid);
+        if (records != null) {
+            synchronized (records) {
+                pids.addAll(records.pages);
             }
         }
+        this.flushBatch(pids);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -302,53 +1601,190 @@ public class BufferPool {
      Also used by B+ tree files to ensure that deleted pages
      are removed from the cache so they can be reused safely
      */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        this.pool.remove(pid);
+        Frame frame = this.pool.remove(pid);
+        BufferPartition partition;
+        if (frame != null) {
+            partition = frame.partition;
+            partition.removed();
+            synchronized (frame) {
+                frame.gone = true;
+                if (frame.page != null) {
+                    if (frame.page.isDirty() != null) {
+                        // the page reverts to its before image, e.g. on abort
+                        noteFreeSpace(frame.page.getBeforeImage());
+                    }
+                    releaseSlot(frame.page, frame.slot);
+                    frame.slot = -1;
+                }
+            }
+        } else {
+            partition = this.partitionOf(pid.getTableId());
+        }
+        partition.getEvictionPolicy().pageRemoved(pid);
+        this.ringOf.remove(pid);
+        this.prefetcher.discard(pid);
+    }
+
+    /**
+     * Tells the HeapFile the given page belongs to, if any, how much room
+     * the page has.
+     */
+    private static void noteFreeSpace(Page page) {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        if (file instanceof HeapFile && page instanceof TuplePage) {
+            ((HeapFile) file).noteFreeSpace((TuplePage) page);
+        }
     }
 
     /**
-     * Discards a page from the buffer pool.
+     * Discards pages of the given partition from the buffer pool until it
+     * is back to its capacity.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * Pinned pages and pages still being read are passed over.
      */
-    private synchronized  void evictPage() throws DbException {
+    private  void evictPage(BufferPartition partition) throws DbException {
         // some code goes here
         // not necessary for lab1
 
-        // if pool.size if lesser that than numPages, we don't need to evict
-        if (this.pool.size() < this.numPages) {
-            return;
+        // if the partition is not over its capacity, we don't need to evict;
+        // pages read ahead take up room in the default partition too
+        EvictionPolicy evictionPolicy = partition.getEvictionPolicy();
+        ArrayList<PageId> skipped = null;
+        try {
+            while (partition.size() + (partition == this.defaultPartition ? this.prefetcher.size() : 0)
+                    > partition.getNumPages()) {
+                // let the eviction policy choose the page to evict
+                PageId pid = evictionPolicy.evict();
+                if (pid == null) {
+                    // every page is in use
+                    return;
+                }
+                Frame frame = this.pool.get(pid);
+                if (frame != null && !this.evict(pid, frame) && this.pool.get(pid) == frame) {
+                    if (skipped == null) {
+                        skipped = new ArrayList<>();
+                    }
+                    skipped.add(pid);
+                }
+            }
+        } finally {
+            if (skipped != null) {
+                for (PageId pid : skipped) {
+                    evictionPolicy.pageAdded(pid);
+                }
+            }
         }
+    }
 
-        // get the random page from the buffer pool to evict
-        int random = (int) Math.floor(Math.random() * this.pool.size());
-        ArrayList<PageId> evictList = new ArrayList<>(this.pool.keySet());
-
-        PageId pid = evictList.get(random);
-        Page randomPage = this.pool.get(pid);
-
-        //        we are checking if the random pages are dirty
-        //        if pages are dirty, we do not evict
-        //        while (randomPage.isDirty() != null) {
-        //            if (evictList.isEmpty()) {
-        //                throw new DbException("No pages to evict. All pages are dirty");
-        //            }
-        //            evictList.remove(pid);
-        //
-        //            if (!evictList.isEmpty()) {
-        //                random = (int) Math.floor(Math.random() * evictList.size());
-        //                pid = evictList.get(random);
-        //                randomPage = this.pool.get(pid);
-        //            }
-        //        }
-
+    /**
+     * Flushes and removes a page the eviction policy has given up, unless
+     * it is pinned or still being read.
+     *
+     * @return true if the page was evicted
+     */
+    private boolean evict(PageId pid, Frame frame) throws DbException {
         try {
-            this.flushPage(pid);
+            if (!this.flush(pid, frame, true)) {
+                return false;
+            }
         } catch (IOException e) {
             throw new DbException("Page flush during eviction failed.");
         }
-        this.pool.remove(pid);
+        this.ringOf.remove(pid);
+        return true;
+    }
+
+    /**
+     * Writes dirty pages of committed transactions to disk until at least
+     * the given fraction of the frames is free or holds a clean page, or
+     * until maxPages pages are written. Called by the background writer.
+     *
+     * @return the number of pages written
+     */
+    int writeDirtyPages(double cleanTarget, int maxPages) throws IOException {
+        int capacity = this.capacity;
+        int wanted = (int) Math.ceil(cleanTarget * capacity);
+        int clean = capacity - this.pool.size() - this.prefetcher.size();
+        ArrayList<PageId> dirty = new ArrayList<>();
+        for (Map.Entry<PageId, Frame> e : this.pool.entrySet()) {
+            Page page = e.getValue().page;
+            if (page == null) {
+                continue;
+            }
+            if (page.isDirty() == null) {
+                clean++;
+            } else {
+                dirty.add(e.getKey());
+            }
+        }
+
+        int written = 0;
+        for (PageId pid : dirty) {
+            if (clean >= wanted || written >= maxPages) {
+                break;
+            }
+            Frame frame = this.pool.get(pid);
+            if (frame != null && this.writeCommitted(pid, frame)) {
+                written++;
+                clean++;
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Writes a dirty page to disk if the transaction that dirtied it has
+     * committed, so that its log records have been forced, and no
+     * transaction holds an exclusive lock on it.
+     *
+     * @return true if the page was written
+     */
+    private boolean writeCommitted(PageId pid, Frame frame) throws IOException {
+        if (!this.lockManager.trySharedLock(pid, this.writerTid)) {
+            this.writer.pageSkipped();
+            return false;
+        }
+        try {
+            while (true) {
+                long lsn;
+                synchronized (frame) {
+                    Page page = frame.page;
+                    if (frame.loading || frame.gone || page == null) {
+                        return false;
+                    }
+                    TransactionId dirtier = page.isDirty();
+                    if (dirtier == null) {
+                        return false;
+                    }
+                    if (this.lockManager.holdsLock(pid, dirtier, LockType.ANY)) {
+                        // still running, or committing
+                        this.writer.pageSkipped();
+                        return false;
+                    }
+                    lsn = frame.lsn;
+                    if (Database.getLogFile().isForced(lsn)) {
+                        Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(page);
+                        page.markDirty(false, null);
+                        return true;
+                    }
+                }
+                // an aborted transaction's undo of a record is logged but
+                // not forced; the log is forced without the latch (see
+                // LogFile), and the page checked again
+                Database.getLogFile().forceTo(lsn);
+            }
+        } finally {
+            this.lockManager.releaseLock(pid, this.writerTid);
+            this.lockManager.releaseTableLock(pid.getTableId(), this.writerTid);
+        }
     }
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,59 @@
+package simpledb;
+
+import java.util.Arrays;
+
+/**
+ * BufferRing is a small, private set of BufferPool frames that a large
+ * sequential scan reads its pages into, like PostgreSQL's buffer access
+ * strategies. Once the ring is full, each page the scan reads displaces
+ * the ring's oldest page instead of a page chosen by the eviction policy,
+ * so a scan of a table larger than the pool doesn't flush the working set
+ * of other transactions.
+ * <p>
+ * Only pages the scan reads from disk enter the ring; pages it finds in
+ * the pool are left alone. A ring page that another reader uses is taken
+ * out of the ring and becomes an ordinary page of the pool.
+ *
+ * @see BufferPool#newScanRing
+ * @see BufferPool#getPage(TransactionId, PageId, Permissions, BufferRing)
+ */
+public class BufferRing {
+
+    private final PageId[] pages;
+    private int next;
+
+    /**
+     * Creates a ring of the given number of pages.
+     */
+    public BufferRing(int size) {
+        this.pages = new PageId[Math.max(size, 1)];
+    }
+
+    /** @return the number of pages in this ring */
+    public int size() {
+        return this.pages.length;
+    }
+
+    /**
+     * Puts a page into the ring.
+     *
+     * @return the page it displaces, or null if that slot was empty
+     */
+    synchronized PageId add(PageId pid) {
+        PageId old = this.pages[this.next];
+        this.pages[this.next] = pid;
+        this.next = (this.next + 1) % this.pages.length;
+        return old;
+    }
+
+    /**
+     * Empties the ring.
+     *
+     * @return the pages that were in it
+     */
+    synchronized PageId[] clear() {
+        PageId[] old = this.pages.clone();
+        Arrays.fill(this.pages, null);
+        return old;
+    }
+}
@@ -23,12 +23,13 @@ public class Catalog {
     private ConcurrentHashMap<String, String> lowercaseToName;
 
     // table class
-    // - contain file, name and primary key
+    // - contain file, name, primary key and buffer pool partition
     // - constructor
     private class Table {
         public DbFile file;
         public String name;
         public String primaryKey;
+        public volatile String partition;
 
         public Table (DbFile file, String name, String primaryKey) {
             this.file = file;
@@ -68,8 +69,13 @@ public class Catalog {
         Table table = new Table (file, lowercase, pkeyField);
 
         this.nameToId.put(lowercase, id);
-        this.idToTable.put(id, table);
+        Table replaced = this.idToTable.put(id, table);
         this.lowercaseToName.put(lowercase, name);
+
+        // release the file handle of a table we just replaced
+        if (replaced != null && replaced.file != file) {
+            closeFile(replaced.file);
+        }
     }
 
     public void addTable(DbFile file, String name) {
@@ -140,6 +146,26 @@ public class Catalog {
         return this.getTable(tableid).primaryKey;
     }
 
+    /**
+     * Assigns the specified table to a partition of the buffer pool, whose
+     * pages are cached in that partition from then on (see
+     * {@link BufferPartition}).
+     * @param tableid The id of the table
+     * @param partition The name of the partition, or null for the default
+     *     partition
+     */
+    public void setPartition(int tableid, String partition) throws NoSuchElementException {
+        this.getTable(tableid).partition = partition;
+    }
+
+    /**
+     * Returns the name of the buffer pool partition the specified table is
+     * assigned to, or null if it is not assigned to one.
+     */
+    public String getPartition(int tableid) throws NoSuchElementException {
+        return this.getTable(tableid).partition;
+    }
+
     public Iterator<Integer> tableIdIterator() {
         // some code goes here
         return this.nameToId.values().iterator();
@@ -159,13 +185,50 @@ public class Catalog {
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
+        for (Table table : this.idToTable.values()) {
+            closeFile(table.file);
+        }
         this.nameToId.clear();
         this.idToTable.clear();
         this.lowercaseToName.clear(); // TODO: check this
     }
 
+    /**
+     * Releases any OS resources held by a table's file. The file itself stays
+     * usable and reopens lazily if it is accessed again.
+     */
+    private void closeFile(DbFile file) {
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).close();
+        }
+    }
+
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each line describes one table as
+     * <pre>
+     *     name (field type [pk], field type, ...) [option ...]
+     * </pre>
+     * where the supported table options are:
+     * <ul>
+     * <li> mmap -- read pages from a memory mapping of the table's file
+     *      (see {@link HeapFile#setMemoryMapped})
+     * <li> slotted -- store the table in slotted pages with variable-length
+     *      strings (see {@link SlottedHeapPage}). A missing table file is
+     *      created in this format; an existing one must already be in it,
+     *      e.g. by converting it with {@code SimpleDb repage}
+     * <li> compressed -- store the table's pages deflate-compressed (see
+     *      {@link CompressedHeapFile}). A missing table file is created
+     *      compressed; an existing one must already be, e.g. by converting
+     *      it with {@code SimpleDb compress}. Compressed tables are never
+     *      memory-mapped
+     * <li> partition=NAME -- cache the table's pages in the buffer pool
+     *      partition NAME (see {@link #setPartition}); the pool needs no
+     *      such partition until the table is read
+     * </ul>
+     * The page format of an existing table is recorded in its file, so a
+     * table's format does not depend on its options. Once the tables are
+     * added, the buffer pool starts warming up (see {@link PoolWarmer}).
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -175,10 +238,11 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [option ...]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
+                String options = line.substring(line.indexOf(")") + 1).trim();
                 String[] els = fields.split(",");
                 ArrayList<String> names = new ArrayList<String>();
                 ArrayList<Type> types = new ArrayList<Type>();
@@ -206,10 +270,62 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
+                File tabFile = new File(baseFolder+"/"+name + ".dat");
+                boolean mmap = false, slotted = false, compressed = false;
+                String partition = null;
+                for (String option : options.split("\\s+")) {
+                    if (option.isEmpty())
+                        continue;
+                    if (option.equals("mmap"))
+                        mmap = true;
+                    else if (option.equals("slotted"))
+                        slotted = true;
+                    else if (option.equals("compressed"))
+                        compressed = true;
+                    else if (option.startsWith("partition=") && option.length() > "partition=".length())
+                        partition = option.substring("partition=".length());
+                    else {
+                        System.out.println("Unknown table option " + option);
+                        System.exit(0);
+                    }
+                }
+                HeapFile.PageFormat format = slotted ? HeapFile.PageFormat.SLOTTED : HeapFile.PageFormat.FIXED;
+                boolean empty = !tabFile.exists() || tabFile.length() == 0;
+                HeapFile tabHf;
+                if (compressed) {
+                    if (empty) {
+                        tabHf = CompressedHeapFile.create(tabFile, t, BufferPool.getPageSize(), format);
+                    } else if (!CompressedHeapFile.isCompressed(tabFile)) {
+                        System.out.println("Table " + name + " is not compressed;"
+                                + " convert it with SimpleDb compress");
+                        System.exit(0);
+                        return;
+                    } else {
+                        tabHf = new CompressedHeapFile(tabFile, t);
+                    }
+                } else if (slotted && empty) {
+                    tabHf = HeapFile.create(tabFile, t, BufferPool.getPageSize(), format);
+                } else if (CompressedHeapFile.isCompressed(tabFile)) {
+                    System.out.println("Table " + name + " is compressed;"
+                            + " declare it compressed or convert it with SimpleDb decompress");
+                    System.exit(0);
+                    return;
+                } else {
+                    tabHf = new HeapFile(tabFile, t);
+                }
+                if (slotted && tabHf.getPageFormat() != HeapFile.PageFormat.SLOTTED) {
+                    System.out.println("Table " + name + " is not stored in slotted pages;"
+                            + " convert it with SimpleDb repage");
+                    System.exit(0);
+                }
+                tabHf.setMemoryMapped(mmap);
                 addTable(tabHf,name,primaryKey);
+                setPartition(tabHf.getId(), partition);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
+            // the tables are known, so the pages the buffer pool held before
+            // a restart can be read back in
+            Database.getBufferPool().getWarmer().start();
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
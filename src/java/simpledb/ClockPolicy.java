@@ -0,0 +1,99 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * ClockPolicy is the CLOCK (second chance) approximation of LRU. Every page
+ * has a frame with a reference bit that is set whenever the page is used. To
+ * find a victim, a clock hand sweeps the frames, clearing set bits, and
+ * evicts the first page whose bit is already clear.
+ * <p>
+ * An access only sets a bit, and the hand clears a bit for every frame it
+ * passes, so eviction takes O(1) amortized time.
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    // frame i holds page frames[i], or null if it is free
+    private PageId[] frames;
+    private boolean[] referenced;
+    private final HashMap<PageId, Integer> frameOf = new HashMap<>();
+    // free frames, as a stack
+    private int[] free;
+    private int numFree;
+    private int hand;
+
+    /**
+     * Creates a policy for a buffer pool of the given number of pages; it
+     * grows if the pool ever holds more.
+     */
+    public ClockPolicy(int numPages) {
+        int n = Math.max(numPages, 1);
+        this.frames = new PageId[n];
+        this.referenced = new boolean[n];
+        this.free = new int[n];
+        for (int i = 0; i < n; i++) {
+            this.free[i] = n - 1 - i;
+        }
+        this.numFree = n;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = this.frameOf.get(pid);
+        if (frame == null) {
+            if (this.numFree == 0) {
+                grow();
+            }
+            frame = this.free[--this.numFree];
+            this.frames[frame] = pid;
+            this.frameOf.put(pid, frame);
+        }
+        this.referenced[frame] = true;
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = this.frameOf.get(pid);
+        if (frame != null) {
+            this.referenced[frame] = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = this.frameOf.remove(pid);
+        if (frame != null) {
+            this.frames[frame] = null;
+            this.referenced[frame] = false;
+            this.free[this.numFree++] = frame;
+        }
+    }
+
+    public synchronized PageId evict() {
+        if (this.frameOf.isEmpty()) {
+            return null;
+        }
+        // at most two sweeps: the first clears every bit
+        while (true) {
+            this.hand = (this.hand + 1) % this.frames.length;
+            PageId pid = this.frames[this.hand];
+            if (pid == null) {
+                continue;
+            }
+            if (this.referenced[this.hand]) {
+                this.referenced[this.hand] = false;
+                continue;
+            }
+            pageRemoved(pid);
+            return pid;
+        }
+    }
+
+    private void grow() {
+        int n = this.frames.length;
+        this.frames = Arrays.copyOf(this.frames, n * 2);
+        this.referenced = Arrays.copyOf(this.referenced, n * 2);
+        this.free = Arrays.copyOf(this.free, n * 2);
+        for (int i = 2 * n - 1; i >= n; i--) {
+            this.free[this.numFree++] = i;
+        }
+    }
+}
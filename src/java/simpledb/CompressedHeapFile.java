@@ -0,0 +1,474 @@
+package simpledb;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * CompressedHeapFile is a HeapFile whose pages are stored deflate-compressed,
+ * for archival tables that are scanned far more often than they are updated.
+ * Pages are decompressed when they are read, so the BufferPool only ever
+ * holds ordinary HeapPages or SlottedHeapPages.
+ * <p>
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: the magic
+ * number, the format version, the page size and page format of the
+ * uncompressed pages, the number of pages and the offset of the page index.
+ * The compressed pages follow, each in a run of whole {@link #BLOCK_SIZE}
+ * byte blocks so that it can usually be rewritten in place when it grows a
+ * little. The page index gives the offset, compressed length and reserved
+ * length of every page.
+ * <p>
+ * A page rewritten in place has its index entry lengthened before its bytes
+ * are overwritten, or shortened after, so the entry always spans a complete
+ * stream; deflate streams mark their own end, and the bytes after it are
+ * ignored when reading. A page that no longer fits in its reserved space is
+ * appended to the file, followed by a new copy of the index; the header is
+ * updated last, so a crash in between leaves the old index in place. The
+ * space this abandons is only reclaimed by compressing the table again, see
+ * {@link HeapFileEncoder#compress}. As in a HeapFile, a crash part-way
+ * through writing a page's own bytes can tear that page; recovery rewrites
+ * it from the page images in the log.
+ *
+ * @see HeapFileEncoder#compress
+ * @see HeapFileEncoder#decompress
+ */
+public class CompressedHeapFile extends HeapFile {
+
+    /** The first bytes of a compressed file ("SimpleDZ"). */
+    static final long FILE_MAGIC = 0x53696d706c65445aL;
+    static final int FILE_VERSION = 1;
+
+    static final int HEADER_SIZE = 32;
+    static final int INDEX_ENTRY_SIZE = 16;
+    /** Compressed pages are stored in multiples of this many bytes. */
+    static final int BLOCK_SIZE = 64;
+
+    private final File f;
+
+    // the page index, loaded on first use (or after close)
+    private boolean loaded;
+    private int pageSize;
+    private PageFormat format;
+    private int numPages;
+    private long[] offsets;
+    private int[] lengths;
+    private int[] reserved;
+    // end of the last compressed page or index written
+    private long end;
+
+    /**
+     * Constructs a compressed heap file backed by the specified file, which
+     * must have been written by {@link #create} or
+     * {@link HeapFileEncoder#compress}.
+     */
+    public CompressedHeapFile(File f, TupleDesc td) {
+        super(f, td);
+        this.f = f;
+    }
+
+    /**
+     * Creates a new, empty compressed table file whose pages have the given
+     * size and format, replacing any existing file, and returns a
+     * CompressedHeapFile over it.
+     *
+     * @throws IllegalArgumentException if pageSize is not a power of two
+     *   between {@link #MIN_PAGE_SIZE} and {@link #MAX_PAGE_SIZE}
+     */
+    public static CompressedHeapFile create(File f, TupleDesc td, int pageSize, PageFormat format)
+            throws IOException {
+        checkPageSize(pageSize);
+        RandomAccessFile out = new RandomAccessFile(f, "rw");
+        try {
+            out.setLength(0);
+            out.getChannel().write(header(pageSize, format, 0, HEADER_SIZE));
+        } finally {
+            out.close();
+        }
+        CompressedHeapFile file = new CompressedHeapFile(f, td);
+        // a map of the file this one replaced would be trusted otherwise
+        file.invalidateFreeSpaceMap();
+        return file;
+    }
+
+    /**
+     * @return true if the given file starts with the header of a compressed
+     *   table file
+     */
+    public static boolean isCompressed(File f) {
+        if (f.length() < HEADER_SIZE) {
+            return false;
+        }
+        try {
+            RandomAccessFile in = new RandomAccessFile(f, "r");
+            try {
+                return in.readLong() == FILE_MAGIC;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns a header for a compressed file with the given page size and
+     * format, holding numPages pages whose index starts at indexOffset.
+     */
+    static ByteBuffer header(int pageSize, PageFormat format, int numPages, long indexOffset) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putLong(FILE_MAGIC);
+        header.putInt(FILE_VERSION);
+        header.putInt(pageSize);
+        header.putInt(format.ordinal());
+        header.putInt(numPages);
+        header.putLong(indexOffset);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Returns the page index for the given pages.
+     */
+    static ByteBuffer index(int numPages, long[] offsets, int[] lengths, int[] reserved) {
+        ByteBuffer index = ByteBuffer.allocate(numPages * INDEX_ENTRY_SIZE);
+        for (int i = 0; i < numPages; i++) {
+            index.putLong(offsets[i]);
+            index.putInt(lengths[i]);
+            index.putInt(reserved[i]);
+        }
+        index.flip();
+        return index;
+    }
+
+    /**
+     * Compresses the given page image.
+     *
+     * @return a buffer holding the compressed bytes between its position
+     *   and limit
+     */
+    static ByteBuffer deflate(byte[] page) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        try {
+            deflater.setInput(page);
+            deflater.finish();
+            byte[] out = new byte[page.length + page.length / 100 + 64];
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                len += deflater.deflate(out, len, out.length - len);
+            }
+            return ByteBuffer.wrap(out, 0, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Decompresses a page image of pageSize bytes. Bytes after the end of
+     * the compressed stream are ignored.
+     */
+    static byte[] inflate(byte[] compressed, int length, int pageSize) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, 0, length);
+            byte[] page = new byte[pageSize];
+            int len = 0;
+            while (len < pageSize && !inflater.finished()) {
+                int n = inflater.inflate(page, len, pageSize - len);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                len += n;
+            }
+            // the end of the stream may only be seen once the page is full
+            if (!inflater.finished() && inflater.inflate(new byte[1]) > 0) {
+                len++;
+            }
+            if (len != pageSize || !inflater.finished()) {
+                throw new IOException("corrupt compressed page");
+            }
+            return page;
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt compressed page: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * @return the number of bytes reserved for a compressed page of the
+     *   given length
+     */
+    static int reservedLength(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    /**
+     * Reads the header and page index, if that hasn't happened since the
+     * file was last closed.
+     */
+    private synchronized void load() throws IOException {
+        if (this.loaded) {
+            return;
+        }
+        FileChannel ch = getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(ch, header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getLong() != FILE_MAGIC
+                || header.getInt() != FILE_VERSION) {
+            throw new IOException(this.f + " is not a compressed table file");
+        }
+        int pgSz = header.getInt();
+        int fmt = header.getInt();
+        int n = header.getInt();
+        long indexOffset = header.getLong();
+        try {
+            checkPageSize(pgSz);
+        } catch (IllegalArgumentException e) {
+            throw new IOException(this.f + ": " + e.getMessage());
+        }
+        if (fmt < 0 || fmt >= PageFormat.values().length || n < 0
+                || indexOffset < HEADER_SIZE
+                || indexOffset + (long) n * INDEX_ENTRY_SIZE > ch.size()) {
+            throw new IOException("corrupt header in compressed table file " + this.f);
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(n * INDEX_ENTRY_SIZE);
+        readFully(ch, index, indexOffset);
+        index.flip();
+        this.offsets = new long[Math.max(n, 16)];
+        this.lengths = new int[this.offsets.length];
+        this.reserved = new int[this.offsets.length];
+        for (int i = 0; i < n; i++) {
+            this.offsets[i] = index.getLong();
+            this.lengths[i] = index.getInt();
+            this.reserved[i] = index.getInt();
+        }
+        this.pageSize = pgSz;
+        this.format = PageFormat.values()[fmt];
+        this.numPages = n;
+        this.end = indexOffset + (long) n * INDEX_ENTRY_SIZE;
+        this.loaded = true;
+    }
+
+    /**
+     * Returns the size of the uncompressed pages of this table.
+     */
+    public int getPageSize() {
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return BufferPool.getPageSize();
+        }
+        return this.pageSize;
+    }
+
+    /**
+     * Returns the format of the uncompressed pages of this table.
+     */
+    public PageFormat getPageFormat() {
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return PageFormat.FIXED;
+        }
+        return this.format;
+    }
+
+    /**
+     * Compressed pages are never memory-mapped, so this does nothing.
+     */
+    public void setMemoryMapped(boolean memoryMapped) {
+    }
+
+    /**
+     * Reads and decompresses the image of the given page. Like a HeapFile,
+     * pages past the end of the file read as empty.
+     */
+    byte[] readPageData(int pageNo) throws IOException {
+        byte[] compressed;
+        int pgSz;
+        synchronized (this) {
+            load();
+            pgSz = this.pageSize;
+            if (pageNo < 0) {
+                throw new IOException("negative page number");
+            }
+            if (pageNo >= this.numPages) {
+                return new byte[pgSz];
+            }
+            compressed = new byte[this.lengths[pageNo]];
+            readFully(getChannel(), ByteBuffer.wrap(compressed), this.offsets[pageNo]);
+        }
+        // decompress outside the lock, so concurrent scans don't serialize on it
+        return inflate(compressed, compressed.length, pgSz);
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) throws IllegalArgumentException {
+        try {
+            byte[] data = readPageData(pid.getPageNumber());
+            TuplePage page = newPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()),
+                    ByteBuffer.wrap(data));
+            noteFreeSpace(page);
+            return page;
+        } catch (IOException e) {
+            throw new IllegalArgumentException("page does not exist in this file");
+        }
+    }
+
+    /**
+     * Decompresses a page into the given BufferPool frame.
+     */
+    TuplePage readPage(HeapPageId pid, ByteBuffer frame) throws IOException {
+        frame.put(readPageData(pid.getPageNumber()));
+        frame.flip();
+        TuplePage page = newPage(pid, frame.asReadOnlyBuffer(), true);
+        noteFreeSpace(page);
+        return page;
+    }
+
+    /**
+     * Reads a run of pages for read-ahead, decompressing them one by one.
+     */
+    List<Page> readPages(int first, int count) throws IOException {
+        count = Math.min(count, numPages() - first);
+        ArrayList<Page> pages = new ArrayList<Page>();
+        for (int i = first; i < first + count; i++) {
+            TuplePage page = newPage(new HeapPageId(getId(), i), ByteBuffer.wrap(readPageData(i)));
+            noteFreeSpace(page);
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        ByteBuffer buf = deflate(page.getPageData());
+        int length = buf.remaining();
+        int pageNo = page.getId().getPageNumber();
+
+        invalidateFreeSpaceMap();
+        countWrite();
+        try {
+            writeCompressed(buf, length, pageNo);
+        } finally {
+            countWrite();
+        }
+        noteFreeSpace((TuplePage) page);
+    }
+
+    /**
+     * Writes a batch of pages one by one, in page order: compressed pages
+     * don't sit at fixed offsets, so there are no runs to gather.
+     */
+    void writePages(List<Page> pages) throws IOException {
+        ArrayList<Page> sorted = new ArrayList<Page>(pages);
+        sorted.sort(PAGE_ORDER);
+        for (Page page : sorted) {
+            writePage(page);
+        }
+    }
+
+    /**
+     * Stores a compressed page image, in place if it fits, otherwise at the
+     * end of the file.
+     */
+    private void writeCompressed(ByteBuffer buf, int length, int pageNo) throws IOException {
+        synchronized (this) {
+            load();
+            if (pageNo < 0 || pageNo > this.numPages) {
+                throw new IOException("page " + pageNo + " is past the end of " + this.f);
+            }
+            FileChannel ch = getChannel();
+            if (pageNo < this.numPages && length <= this.reserved[pageNo]) {
+                // fits where the page already is: overwrite it. The index
+                // entry covers the longer of the old and new streams while
+                // the bytes change, so that a crash in between leaves a
+                // whole stream followed by bytes that inflate ignores
+                long entryOffset = indexOffset() + (long) pageNo * INDEX_ENTRY_SIZE;
+                if (length > this.lengths[pageNo]) {
+                    writeFully(ch, indexEntry(pageNo, length), entryOffset);
+                }
+                writeFully(ch, buf, this.offsets[pageNo]);
+                if (length < this.lengths[pageNo]) {
+                    writeFully(ch, indexEntry(pageNo, length), entryOffset);
+                }
+                this.lengths[pageNo] = length;
+            } else {
+                // append the page and a new index, then switch the header over to it
+                long offset = this.end;
+                writeFully(ch, buf, offset);
+                if (pageNo == this.numPages) {
+                    if (pageNo == this.offsets.length) {
+                        this.offsets = Arrays.copyOf(this.offsets, pageNo * 2);
+                        this.lengths = Arrays.copyOf(this.lengths, pageNo * 2);
+                        this.reserved = Arrays.copyOf(this.reserved, pageNo * 2);
+                    }
+                    this.numPages++;
+                }
+                this.offsets[pageNo] = offset;
+                this.lengths[pageNo] = length;
+                this.reserved[pageNo] = reservedLength(length);
+                long indexOffset = offset + this.reserved[pageNo];
+                writeFully(ch, index(this.numPages, this.offsets, this.lengths, this.reserved),
+                        indexOffset);
+                writeFully(ch, header(this.pageSize, this.format, this.numPages, indexOffset), 0);
+                this.end = indexOffset + (long) this.numPages * INDEX_ENTRY_SIZE;
+            }
+        }
+    }
+
+    /**
+     * Returns the index entry of the given page, stored in place with the
+     * given compressed length.
+     */
+    private ByteBuffer indexEntry(int pageNo, int length) {
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(this.offsets[pageNo]).putInt(length).putInt(this.reserved[pageNo]);
+        entry.flip();
+        return entry;
+    }
+
+    /**
+     * @return the offset of the current page index
+     */
+    private long indexOffset() {
+        return this.end - (long) this.numPages * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Returns the number of pages in this file.
+     */
+    public int numPages() {
+        try {
+            load();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+        synchronized (this) {
+            return this.numPages;
+        }
+    }
+
+    /**
+     * Releases the file handle held by this file; the page index is read
+     * again on next use.
+     */
+    public synchronized void close() {
+        super.close();
+        this.loaded = false;
+    }
+}
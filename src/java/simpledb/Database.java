@@ -55,11 +55,30 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(new BufferPool(pages));
+    }
+
+    /**
+     * Replace the buffer pool with a new one of the given number of pages in
+     * its default partition, plus the partitions described by partitions
+     * (see {@link BufferPool#addPartitions}), and return it
+     */
+    public static BufferPool resetBufferPool(int pages, String partitions) {
+        BufferPool pool = new BufferPool(pages);
+        pool.addPartitions(partitions);
+        return resetBufferPool(pool);
+    }
+
+    /**
+     * Method used for testing -- replace the buffer pool with the given one,
+     * e.g. one built with a particular eviction policy, and return it
+     */
+    public static BufferPool resetBufferPool(BufferPool pool) {
         java.lang.reflect.Field bufferPoolF=null;
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), pool);
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,7 +94,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
-        _instance.set(new Database());
+        Database old = _instance.getAndSet(new Database());
+        // release the file handles held by the old catalog's tables
+        old._catalog.clear();
     }
 
 }
@@ -0,0 +1,269 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DeadlockDetector breaks deadlocks among the transactions waiting for
+ * locks of a LockManager, on a background thread, so that a transaction
+ * that has to wait doesn't search for cycles itself.
+ * <p>
+ * The detector runs a round soon after a transaction starts to wait, once
+ * for all the transactions that started meanwhile, and every interval while
+ * transactions wait. A round copies the lock manager's waits-for graph and
+ * looks for cycles in the copy. For each cycle it chooses a victim among
+ * the transactions on it, by its victim policy, and takes the victim out
+ * of the copy before it looks for the next cycle, so that one victim
+ * breaks all the cycles it is on. Then it aborts the request each victim
+ * waits on, if the victim is still on a cycle of the live graph; the
+ * victim's getLock throws a TransactionAbortedException, and the other
+ * transactions keep waiting. The policies are:
+ * <ul>
+ * <li>YOUNGEST: the transaction that started last, i.e. with the highest id;
+ * <li>FEWEST_LOCKS: the transaction holding or waiting for the fewest locks;
+ * <li>LEAST_WORK: the transaction holding the fewest exclusive locks, i.e.
+ * having changed the fewest pages, whose changes its abort undoes.
+ * </ul>
+ * Ties go to the youngest transaction.
+ * <p>
+ * The detector's thread is started when a transaction has to wait, and
+ * stops after some rounds without waiting transactions. The interval
+ * defaults to the value of the system property simpledb.deadlockInterval,
+ * or 50 ms if that is not set, and the policy to simpledb.deadlockVictim
+ * (e.g. "fewest_locks"), or YOUNGEST.
+ *
+ * @see LockManager#getDetector
+ */
+public class DeadlockDetector {
+
+    /** How the detector chooses the transaction to abort in a cycle. */
+    public enum Victim {
+        YOUNGEST,
+        FEWEST_LOCKS,
+        LEAST_WORK
+    }
+
+    /** Milliseconds between rounds of new detectors. */
+    public static final int DEFAULT_INTERVAL = Integer.getInteger("simpledb.deadlockInterval", 50);
+
+    /** Victim policy of new detectors. */
+    public static final Victim DEFAULT_VICTIM =
+            Victim.valueOf(System.getProperty("simpledb.deadlockVictim", "youngest").toUpperCase());
+
+    // rounds without waiting transactions after which the thread stops
+    private static final int IDLE_ROUNDS = 20;
+
+    private final LockManager lockManager;
+    private volatile int interval;
+    private volatile Victim victim;
+
+    // the detector thread, or null if it isn't running, and whether a
+    // transaction started to wait since the last round; guarded by this
+    private Thread thread;
+    private boolean pending;
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong deadlocks = new AtomicLong();
+
+    /**
+     * Creates a detector for the given LockManager.
+     */
+    public DeadlockDetector(LockManager lockManager) {
+        this.lockManager = lockManager;
+        this.interval = DEFAULT_INTERVAL;
+        this.victim = DEFAULT_VICTIM;
+    }
+
+    /** @return the milliseconds between rounds */
+    public int getInterval() {
+        return this.interval;
+    }
+
+    /** Sets the milliseconds between rounds. */
+    public void setInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("deadlock interval " + interval + " not positive");
+        }
+        this.interval = interval;
+    }
+
+    /** @return how victims are chosen */
+    public Victim getVictim() {
+        return this.victim;
+    }
+
+    /** Sets how victims are chosen. */
+    public void setVictim(Victim victim) {
+        if (victim == null) {
+            throw new IllegalArgumentException("no victim policy");
+        }
+        this.victim = victim;
+    }
+
+    /** @return the number of rounds run so far */
+    public long getRounds() {
+        return this.rounds.get();
+    }
+
+    /** @return the number of transactions aborted to break deadlocks so far */
+    public long getDeadlocks() {
+        return this.deadlocks.get();
+    }
+
+    /** @return whether the detector thread is running */
+    public synchronized boolean isRunning() {
+        return this.thread != null;
+    }
+
+    /**
+     * Called by the LockManager when a transaction starts to wait; has the
+     * next round run at once.
+     */
+    synchronized void waitStarted() {
+        this.pending = true;
+        notifyAll();
+        wake();
+    }
+
+    /**
+     * Called by the LockManager while a transaction waits; starts the
+     * detector thread if it isn't running.
+     */
+    synchronized void wake() {
+        if (this.thread == null) {
+            this.thread = new Thread("simpledb-deadlock") {
+                public void run() {
+                    DeadlockDetector.this.run();
+                }
+            };
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+    }
+
+    /**
+     * Runs a round: aborts a victim in each cycle of the waits-for graph.
+     *
+     * @return the number of transactions waiting at the start of the round
+     */
+    int round() {
+        this.rounds.incrementAndGet();
+        HashMap<TransactionId, HashSet<TransactionId>> graph = this.lockManager.waitsForGraph();
+        int waiting = graph.size();
+        ArrayList<TransactionId> victims = new ArrayList<>();
+        List<TransactionId> cycle;
+        while ((cycle = findCycle(graph)) != null) {
+            TransactionId v = choose(cycle);
+            graph.remove(v);
+            victims.add(v);
+        }
+        for (TransactionId v : victims) {
+            if (this.lockManager.abortWaiter(v)) {
+                this.deadlocks.incrementAndGet();
+                Debug.log("deadlock: aborted transaction %d", v.getId());
+            }
+        }
+        return waiting;
+    }
+
+    private TransactionId choose(List<TransactionId> cycle) {
+        Victim policy = this.victim;
+        TransactionId best = null;
+        long bestCost = 0;
+        for (TransactionId tid : cycle) {
+            long cost;
+            if (policy == Victim.FEWEST_LOCKS) {
+                cost = this.lockManager.numLocks(tid);
+            } else if (policy == Victim.LEAST_WORK) {
+                cost = this.lockManager.numExclusiveLocks(tid);
+            } else {
+                cost = 0;
+            }
+            if (best == null || cost < bestCost || (cost == bestCost && tid.getId() > best.getId())) {
+                best = tid;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Finds a cycle in a waits-for graph by depth-first search.
+     *
+     * @return the transactions on a cycle, in order, or null if there is none
+     */
+    static List<TransactionId> findCycle(Map<TransactionId, ? extends Set<TransactionId>> graph) {
+        HashSet<TransactionId> done = new HashSet<>();
+        for (TransactionId start : graph.keySet()) {
+            if (done.contains(start)) {
+                continue;
+            }
+            // the path from start, where each transaction is on it, and the
+            // edges of each yet to follow
+            ArrayList<TransactionId> path = new ArrayList<>();
+            HashMap<TransactionId, Integer> onPath = new HashMap<>();
+            ArrayList<Iterator<TransactionId>> edges = new ArrayList<>();
+            path.add(start);
+            onPath.put(start, 0);
+            edges.add(graph.get(start).iterator());
+            while (!path.isEmpty()) {
+                int last = path.size() - 1;
+                Iterator<TransactionId> it = edges.get(last);
+                if (!it.hasNext()) {
+                    TransactionId finished = path.remove(last);
+                    onPath.remove(finished);
+                    done.add(finished);
+                    edges.remove(last);
+                    continue;
+                }
+                TransactionId next = it.next();
+                Integer at = onPath.get(next);
+                if (at != null) {
+                    return new ArrayList<>(path.subList(at, path.size()));
+                }
+                Set<TransactionId> out = graph.get(next);
+                if (out == null || done.contains(next)) {
+                    continue;
+                }
+                onPath.put(next, path.size());
+                path.add(next);
+                edges.add(out.iterator());
+            }
+        }
+        return null;
+    }
+
+    private void run() {
+        int idle = 0;
+        while (true) {
+            synchronized (this) {
+                if (!this.pending) {
+                    try {
+                        wait(this.interval);
+                    } catch (InterruptedException e) {
+                        this.thread = null;
+                        return;
+                    }
+                }
+                this.pending = false;
+                // nobody waiting lets the thread go; the next wait starts a
+                // new one
+                if (idle >= IDLE_ROUNDS) {
+                    this.thread = null;
+                    return;
+                }
+            }
+            try {
+                idle = round() == 0 ? idle + 1 : 0;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package simpledb;
+
+/**
+ * EvictionPolicy chooses which page BufferPool evicts when it is full. The
+ * BufferPool tells the policy about every page that enters, is found in or
+ * leaves the pool, and asks it for a victim when it needs a free frame.
+ * <p>
+ * Implementations must be thread-safe, and should record a hit without
+ * allocating, since that happens on every BufferPool access.
+ *
+ * @see BufferPool#newEvictionPolicy
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Records that a page was added to the buffer pool. Adding a page the
+     * policy already knows counts as an access.
+     */
+    public void pageAdded(PageId pid);
+
+    /**
+     * Records that a page in the buffer pool was used.
+     */
+    public void pageAccessed(PageId pid);
+
+    /**
+     * Records that a page left the buffer pool without being chosen as a
+     * victim, e.g. because it was discarded.
+     */
+    public void pageRemoved(PageId pid);
+
+    /**
+     * Chooses a page to evict and forgets it.
+     *
+     * @return the page to evict, or null if the policy knows no pages
+     */
+    public PageId evict();
+}
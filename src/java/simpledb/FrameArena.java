@@ -0,0 +1,96 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * FrameArena is a preallocated block of off-heap memory, cut into
+ * page-sized frames, that an off-heap BufferPool reads pages into. Pages
+ * built over a frame are views that keep only their slot bitmap and a few
+ * fields on the Java heap, so a large pool neither holds gigabytes of page
+ * arrays in the old generation nor allocates a page array per miss.
+ * <p>
+ * The memory is a set of direct ByteBuffers of up to 1 GB each, allocated
+ * when the arena is created and freed when it becomes unreachable. Frames
+ * are handed out and taken back by number; the arena does not know which
+ * page is in which frame.
+ *
+ * @see BufferPool#BufferPool(int, EvictionPolicy, boolean)
+ */
+public class FrameArena {
+
+    private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+    private final int frameSize;
+    private final int framesPerChunk;
+    private final ByteBuffer[] chunks;
+
+    // free frames, as a stack
+    private final int[] free;
+    private int numFree;
+
+    /**
+     * Allocates an arena of the given number of frames of frameSize bytes.
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.framesPerChunk = Math.max(MAX_CHUNK_BYTES / frameSize, 1);
+        int numChunks = (numFrames + this.framesPerChunk - 1) / this.framesPerChunk;
+        this.chunks = new ByteBuffer[numChunks];
+        for (int i = 0; i < numChunks; i++) {
+            int frames = Math.min(this.framesPerChunk, numFrames - i * this.framesPerChunk);
+            this.chunks[i] = ByteBuffer.allocateDirect(frames * frameSize);
+        }
+        this.free = new int[numFrames];
+        for (int i = 0; i < numFrames; i++) {
+            this.free[i] = numFrames - 1 - i;
+        }
+        this.numFree = numFrames;
+    }
+
+    /** @return the number of bytes in a frame */
+    public int frameSize() {
+        return this.frameSize;
+    }
+
+    /** @return the number of frames in this arena */
+    public int numFrames() {
+        return this.free.length;
+    }
+
+    /** @return the number of frames not handed out */
+    public synchronized int numFree() {
+        return this.numFree;
+    }
+
+    /**
+     * Hands out a frame.
+     *
+     * @return the frame's number, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        if (this.numFree == 0) {
+            return -1;
+        }
+        return this.free[--this.numFree];
+    }
+
+    /**
+     * Takes back a frame handed out by {@link #allocate}. Nothing may read
+     * or write the frame afterwards.
+     */
+    public synchronized void release(int frame) {
+        this.free[this.numFree++] = frame;
+    }
+
+    /**
+     * @return a buffer over the given frame, positioned at its start, with
+     *   frameSize bytes remaining
+     */
+    public ByteBuffer frame(int frame) {
+        ByteBuffer chunk = this.chunks[frame / this.framesPerChunk].duplicate();
+        int start = (frame % this.framesPerChunk) * this.frameSize;
+        chunk.limit(start + this.frameSize);
+        chunk.position(start);
+        return chunk.slice();
+    }
+}
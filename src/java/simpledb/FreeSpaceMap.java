@@ -0,0 +1,154 @@
+package simpledb;
+
+import java.io.*;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records, one bit per page, which pages of a HeapFile have at
+ * least one empty slot, so that inserts can go straight to a page with room
+ * instead of pulling every page of the file into the BufferPool.
+ * <p>
+ * The map is a hint. A page marked free may turn out to be full, in which
+ * case the inserter clears its bit and moves on; a page marked full that has
+ * room only costs that space until the page is next read, written or has a
+ * tuple deleted from it. Pages past the end of the map are treated as free,
+ * so pages the map has never seen are always checked.
+ * <p>
+ * The map is kept in a sidecar file next to the table (see
+ * {@link HeapFile#getFreeSpaceMapFile}) that is written at checkpoints and
+ * when the table is closed. The first page write after the map is loaded or
+ * saved deletes the sidecar (see {@link HeapFile#invalidateFreeSpaceMap}),
+ * so after a crash there is none and the map is rebuilt from the page
+ * headers. A sidecar also records the length of the table file it was
+ * written for, and is ignored if a tool outside the engine has since
+ * changed the table file.
+ *
+ * @see HeapFile#insertTuple
+ */
+public class FreeSpaceMap {
+
+    private static final int MAGIC = 0x46534d31; // "FSM1"
+
+    // bit i is set if page i may have an empty slot
+    private final BitSet free;
+    // number of pages the map has an entry for
+    private int numPages;
+    // true if the map changed since it was last loaded or saved
+    private boolean dirty;
+
+    /** Creates an empty map; every page is considered free. */
+    public FreeSpaceMap() {
+        this.free = new BitSet();
+        this.numPages = 0;
+    }
+
+    private FreeSpaceMap(BitSet free, int numPages) {
+        this.free = free;
+        this.numPages = numPages;
+    }
+
+    /**
+     * Records whether the given page has at least one empty slot.
+     */
+    public synchronized void setFree(int pageNo, boolean hasFree) {
+        if (pageNo >= this.numPages) {
+            // pages between the old end and pageNo are unknown: keep them free
+            this.free.set(this.numPages, pageNo);
+            this.numPages = pageNo + 1;
+            this.dirty = true;
+        } else if (this.free.get(pageNo) == hasFree) {
+            return;
+        }
+        this.free.set(pageNo, hasFree);
+        this.dirty = true;
+    }
+
+    /**
+     * Returns the first page at or after from that may have an empty slot.
+     *
+     * @param from the first page number to consider
+     * @param numPages the number of pages in the file
+     * @return the page number, or -1 if no page in [from, numPages) is free
+     */
+    public synchronized int nextFreePage(int from, int numPages) {
+        int next = this.free.nextSetBit(from);
+        if (next < 0 || next >= this.numPages) {
+            // no known free page: fall back to the pages the map hasn't seen
+            next = Math.max(from, this.numPages);
+        }
+        return next < numPages ? next : -1;
+    }
+
+    /**
+     * @return true if the map changed since it was last loaded or saved.
+     */
+    public synchronized boolean isDirty() {
+        return this.dirty;
+    }
+
+    /**
+     * Writes the map to the given file, recording the length of the table
+     * file it describes. The file is replaced atomically, so a crash while
+     * saving leaves the previous map in place. Should be called after the
+     * table's pages have been written: the sidecar is only current until
+     * the next page write.
+     */
+    public synchronized void save(File sidecar, File table) throws IOException {
+        File tmp = new File(sidecar.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeLong(table.length());
+            dos.writeInt(this.numPages);
+            byte[] bits = this.free.toByteArray();
+            dos.writeInt(bits.length);
+            dos.write(bits);
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(sidecar)) {
+            sidecar.delete();
+            if (!tmp.renameTo(sidecar)) {
+                throw new IOException("could not replace " + sidecar);
+            }
+        }
+        this.dirty = false;
+    }
+
+    /**
+     * Reads a map saved by {@link #save}.
+     *
+     * @return the map, or null if the file is missing or unreadable, or if
+     *   the table file has visibly changed since the map was saved. File
+     *   times are too coarse to tell every change: writes by the engine
+     *   itself delete the sidecar instead.
+     */
+    public static FreeSpaceMap load(File sidecar, File table) {
+        if (!sidecar.exists() || sidecar.lastModified() < table.lastModified()) {
+            return null;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar)));
+            if (dis.readInt() != MAGIC || dis.readLong() != table.length()) {
+                return null;
+            }
+            int numPages = dis.readInt();
+            byte[] bits = new byte[dis.readInt()];
+            dis.readFully(bits);
+            return new FreeSpaceMap(BitSet.valueOf(bits), numPages);
+        } catch (IOException e) {
+            // a torn or foreign file: rebuild the map instead
+            return null;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
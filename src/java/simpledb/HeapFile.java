@@ -1,7 +1,13 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * HeapFile is an implementation of a DbFile that stores a collection of tuples
@@ -9,15 +15,79 @@ import java.util.*;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * A file may start with a header page recording the page size of the table
+ * and the format of its pages (see {@link #create}); its data pages then
+ * follow, all of that size. Files without a header, such as those written by
+ * HeapFileEncoder.convert, hold {@link PageFormat#FIXED} pages of the
+ * database's page size, {@link BufferPool#getPageSize()}.
+ * <p>
+ * Tuples are inserted into and deleted from FIXED pages one record at a
+ * time, under record locks (see {@link BufferPool#insertRecord}), so that
+ * transactions can change one page at once. SLOTTED pages move their
+ * records about as they are compacted, and are changed under page locks.
  *
  * @see simpledb.HeapPage#HeapPage
  * @author Sam Madden
  */
 public class HeapFile implements DbFile {
 
+    /** The first bytes of a file header ("SimpleDB"). */
+    static final long FILE_MAGIC = 0x53696d706c654442L;
+    static final int FILE_VERSION = 1;
+
+    /** The on-disk formats of the pages of a HeapFile. */
+    public enum PageFormat {
+        /** Fixed-size tuple slots and a slot bitmap; see {@link HeapPage}. */
+        FIXED,
+        /** A slot directory and variable-length tuples; see {@link SlottedHeapPage}. */
+        SLOTTED
+    }
+
+    /** The smallest and largest page sizes a file header may record. */
+    public static final int MIN_PAGE_SIZE = 1024;
+    public static final int MAX_PAGE_SIZE = 64 * 1024;
+
     private File f;
     private TupleDesc td;
 
+    // page size recorded in the file header, 0 if the file has no header,
+    // or -1 if the file hasn't been looked at yet
+    private volatile int headerPageSize = -1;
+    private volatile PageFormat pageFormat = PageFormat.FIXED;
+
+    // one long-lived channel per table; all page I/O goes through positional
+    // reads/writes on it so concurrent readers never share a file pointer
+    private FileChannel channel;
+
+    /** Most pages writePages writes with one write. */
+    static final int MAX_WRITE_RUN = 256;
+
+    /** Orders pages of a file by page number. */
+    static final Comparator<Page> PAGE_ORDER = new Comparator<Page>() {
+        public int compare(Page a, Page b) {
+            return Integer.compare(a.getId().getPageNumber(), b.getId().getPageNumber());
+        }
+    };
+
+    /** Bytes mapped per segment when the file is memory-mapped. */
+    static final int MMAP_SEGMENT_SIZE = 1 << 20;
+
+    // read-mostly tables can be served from read-only mappings of the file;
+    // segments are mapped lazily and dropped for good on the first write
+    private volatile boolean memoryMapped;
+    private final HashMap<Integer, MappedByteBuffer> segments = new HashMap<>();
+
+    // which pages have empty slots; loaded or rebuilt on the first insert
+    private FreeSpaceMap freeSpace;
+    // false once the sidecar has been deleted by a write to the file, until
+    // the map is next saved; a sidecar left on disk is always current
+    private boolean sidecarCurrent = true;
+
+    // bumped before and after every page write, so that pages read ahead
+    // can tell whether a write may have overlapped their read
+    private final AtomicLong writes = new AtomicLong();
+
     /**
      * Constructs a heap file backed by the specified file.
      *
@@ -31,6 +101,163 @@ public class HeapFile implements DbFile {
         this.td = td;
     }
 
+    /**
+     * Creates a new, empty table file with a header recording the given page
+     * size, replacing any existing file, and returns a HeapFile over it.
+     *
+     * @throws IllegalArgumentException if pageSize is not a power of two
+     *   between {@link #MIN_PAGE_SIZE} and {@link #MAX_PAGE_SIZE}
+     */
+    public static HeapFile create(File f, TupleDesc td, int pageSize) throws IOException {
+        return create(f, td, pageSize, PageFormat.FIXED);
+    }
+
+    /**
+     * Creates a new, empty table file with a header recording the given page
+     * size and page format, replacing any existing file, and returns a
+     * HeapFile over it.
+     *
+     * @throws IllegalArgumentException if pageSize is not a power of two
+     *   between {@link #MIN_PAGE_SIZE} and {@link #MAX_PAGE_SIZE}
+     */
+    public static HeapFile create(File f, TupleDesc td, int pageSize, PageFormat format)
+            throws IOException {
+        checkPageSize(pageSize);
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(f));
+        try {
+            writeFileHeader(os, pageSize, format);
+        } finally {
+            os.close();
+        }
+        HeapFile file = new HeapFile(f, td);
+        // a map of the file this one replaced would be trusted otherwise
+        file.invalidateFreeSpaceMap();
+        return file;
+    }
+
+    static void checkPageSize(int pageSize) {
+        if (pageSize < MIN_PAGE_SIZE || pageSize > MAX_PAGE_SIZE || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("page size must be a power of two between "
+                    + MIN_PAGE_SIZE + " and " + MAX_PAGE_SIZE + ": " + pageSize);
+        }
+    }
+
+    /**
+     * Writes a header page for a file with the given page size: the magic
+     * number, the format version, the page size and the page format, padded
+     * with zeroes to a whole page.
+     */
+    static void writeFileHeader(OutputStream os, int pageSize, PageFormat format) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(pageSize);
+        header.putLong(FILE_MAGIC);
+        header.putInt(FILE_VERSION);
+        header.putInt(pageSize);
+        header.putInt(format.ordinal());
+        os.write(header.array());
+    }
+
+    /**
+     * Reads the fixed fields of the header of the file open on ch.
+     *
+     * @return the header's fields, or null if the file does not start with
+     *   a valid header
+     */
+    private static ByteBuffer readHeaderFields(FileChannel ch) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(20);
+        readFully(ch, header, 0);
+        if (header.hasRemaining() || header.getLong(0) != FILE_MAGIC
+                || header.getInt(8) != FILE_VERSION
+                || header.getInt(16) < 0 || header.getInt(16) >= PageFormat.values().length) {
+            return null;
+        }
+        try {
+            checkPageSize(header.getInt(12));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return header;
+    }
+
+    /**
+     * Reads the page size from the header of the file open on ch.
+     *
+     * @return the page size, or 0 if the file does not start with a header
+     */
+    static int readFileHeader(FileChannel ch) throws IOException {
+        ByteBuffer header = readHeaderFields(ch);
+        return header == null ? 0 : header.getInt(12);
+    }
+
+    /**
+     * Reads the page format from the header of the file open on ch.
+     *
+     * @return the page format, which is FIXED if the file has no header
+     */
+    static PageFormat readFileFormat(FileChannel ch) throws IOException {
+        ByteBuffer header = readHeaderFields(ch);
+        return header == null ? PageFormat.FIXED : PageFormat.values()[header.getInt(16)];
+    }
+
+    /**
+     * Returns the size of the pages of this table: the size recorded in the
+     * file header, or {@link BufferPool#getPageSize()} if there is none.
+     */
+    public int getPageSize() {
+        int size = headerPageSize();
+        return size > 0 ? size : BufferPool.getPageSize();
+    }
+
+    /**
+     * Returns the format of the pages of this table, as recorded in the file
+     * header. Files without a header hold FIXED pages.
+     */
+    public PageFormat getPageFormat() {
+        headerPageSize();
+        return this.pageFormat;
+    }
+
+    /**
+     * @return the page size recorded in the file header, or 0 if there is no
+     *   header
+     */
+    private int headerPageSize() {
+        int size = this.headerPageSize;
+        if (size >= 0) {
+            return size;
+        }
+        synchronized (this) {
+            if (this.headerPageSize >= 0) {
+                return this.headerPageSize;
+            }
+            if (!this.f.exists()) {
+                return 0;
+            }
+            PageFormat format;
+            try {
+                size = readFileHeader(getChannel());
+                format = readFileFormat(getChannel());
+            } catch (IOException e) {
+                e.printStackTrace();
+                return 0;
+            }
+            // an empty file may still be given a header
+            if (this.f.length() > 0) {
+                this.pageFormat = format;
+                this.headerPageSize = size;
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Returns the offset in the file of the given page, which follows the
+     * header page if the file has one.
+     */
+    private long pageOffset(int pageNo, int pgSz) {
+        long start = headerPageSize() > 0 ? pgSz : 0;
+        return start + (long) pageNo * pgSz;
+    }
+
     /**
      * Returns the File backing this HeapFile on disk.
      *
@@ -69,41 +296,418 @@ public class HeapFile implements DbFile {
     public Page readPage(PageId pid) throws IllegalArgumentException {
         // some code goes here
         try {
-            int pgSz = BufferPool.getPageSize();
+            int pgSz = getPageSize();
 
             // BufferPool contains multiple pages, so to start reading
             // from a certain page, need to move the corresponding no
             // of bytes from the start to that page
-            int offset = pid.getPageNumber() * pgSz;
-            byte[] pgData = new byte[pgSz];
+            long offset = pageOffset(pid.getPageNumber(), pgSz);
+            HeapPageId hpid = new HeapPageId(pid.getTableId(), pid.getPageNumber());
+
+            if (this.memoryMapped) {
+                // build the page straight over the mapping, without copying
+                ByteBuffer mapped = mappedPage(offset, pgSz);
+                if (mapped != null) {
+                    TuplePage page = newPage(hpid, mapped);
+                    noteFreeSpace(page);
+                    return page;
+                }
+            }
 
-            RandomAccessFile reader = new RandomAccessFile(f, "r");
+            byte[] pgData = new byte[pgSz];
 
-            reader.seek(offset);  // "seek" to the start of byte of the page
-            reader.read(pgData);  // read pgSz amount and store it in pgData
-            reader.close();       // close after finish reading
+            // reading past the end of the file leaves the rest of the page zeroed
+            this.read(ByteBuffer.wrap(pgData), offset);
 
-            return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), pgData);
+            TuplePage page = newPage(hpid, ByteBuffer.wrap(pgData));
+            noteFreeSpace(page);
+            return page;
         } catch (IOException e) {
             throw new IllegalArgumentException("page does not exist in this file");
         }
     }
 
+    /**
+     * Reads a page into the given BufferPool frame and builds the page over
+     * it, as a page that borrows the frame (see {@link TuplePage#detach}).
+     * Like {@link #readPages}, this does not go through a subclass's
+     * readPage.
+     *
+     * @param frame a buffer of at least {@link #getPageSize} bytes,
+     *   positioned at its start
+     */
+    TuplePage readPage(HeapPageId pid, ByteBuffer frame) throws IOException {
+        int pgSz = getPageSize();
+        frame.limit(frame.position() + pgSz);
+        this.read(frame, pageOffset(pid.getPageNumber(), pgSz));
+        // reading past the end of the file leaves the rest of the page zeroed
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0);
+        }
+        frame.flip();
+        TuplePage page = newPage(pid, frame.asReadOnlyBuffer(), true);
+        noteFreeSpace(page);
+        return page;
+    }
+
+    /**
+     * Reads a run of consecutive pages with a single read, for read-ahead.
+     * Pages past the end of the file are not returned. Unlike
+     * {@link #readPage}, this does not go through a subclass's readPage.
+     *
+     * @return the pages that exist, in order
+     * @see Prefetcher
+     */
+    List<Page> readPages(int first, int count) throws IOException {
+        int pgSz = getPageSize();
+        count = Math.min(count, numPages() - first);
+        ArrayList<Page> pages = new ArrayList<Page>();
+        if (count <= 0) {
+            return pages;
+        }
+        if (this.memoryMapped) {
+            for (int i = first; i < first + count; i++) {
+                pages.add(readPage(new HeapPageId(getId(), i)));
+            }
+            return pages;
+        }
+
+        // pages never write to their data, so they can share one buffer
+        ByteBuffer run = ByteBuffer.allocate(count * pgSz);
+        this.read(run, pageOffset(first, pgSz));
+        for (int i = 0; i < count; i++) {
+            run.limit((i + 1) * pgSz);
+            run.position(i * pgSz);
+            TuplePage page = newPage(new HeapPageId(getId(), first + i), run.slice());
+            noteFreeSpace(page);
+            pages.add(page);
+        }
+        return pages;
+    }
+
+    /**
+     * @return a count that changes whenever a page of this file is written
+     */
+    long writeCount() {
+        return this.writes.get();
+    }
+
+    /**
+     * Bumps the write count; called before and after each page write.
+     */
+    void countWrite() {
+        this.writes.incrementAndGet();
+    }
+
+    /**
+     * Builds a page of this table's format over the given bytes.
+     */
+    TuplePage newPage(HeapPageId pid, ByteBuffer data) throws IOException {
+        return newPage(pid, data, false);
+    }
+
+    /**
+     * Builds a page of this table's format over the given bytes, which are
+     * a BufferPool frame if borrowed is true.
+     */
+    TuplePage newPage(HeapPageId pid, ByteBuffer data, boolean borrowed) throws IOException {
+        if (getPageFormat() == PageFormat.SLOTTED) {
+            return new SlottedHeapPage(pid, data, borrowed);
+        }
+        return new HeapPage(pid, data, borrowed);
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
         // not necessary for lab1
+        int pgSz = getPageSize();
+        long offset = pageOffset(page.getId().getPageNumber(), pgSz);
+
+        // the table is no longer read-mostly: serve it from the channel
+        if (this.memoryMapped) {
+            setMemoryMapped(false);
+        }
+        invalidateFreeSpaceMap();
+        countWrite();
         try {
-            RandomAccessFile writer = new RandomAccessFile(this.f, "rw");
+            this.write(ByteBuffer.wrap(page.getPageData()), offset);
+        } finally {
+            countWrite();
+        }
+        noteFreeSpace((TuplePage) page);
+    }
 
-            int pgSz = BufferPool.getPageSize();
-            int offset = page.getId().getPageNumber() * pgSz;
+    /**
+     * Returns the file next to this table's file that its free space map
+     * is saved in.
+     */
+    public File getFreeSpaceMapFile() {
+        return new File(this.f.getPath() + ".fsm");
+    }
 
-            writer.seek(offset);
-            writer.write(page.getPageData());
-            writer.close();
+    /**
+     * Returns the map of pages with empty slots, loading it from its sidecar
+     * file on first use, or rebuilding it from the page headers if the
+     * sidecar is missing or out of date.
+     */
+    synchronized FreeSpaceMap getFreeSpaceMap() {
+        if (this.freeSpace == null) {
+            FreeSpaceMap map = FreeSpaceMap.load(getFreeSpaceMapFile(), this.f);
+            if (map == null) {
+                // read the pages directly, so the rebuild doesn't disturb the BufferPool
+                map = new FreeSpaceMap();
+                for (int i = 0; i < numPages(); i++) {
+                    TuplePage page = (TuplePage) readPage(new HeapPageId(getId(), i));
+                    map.setFree(i, page.getNumEmptySlots() > 0);
+                }
+            }
+            this.freeSpace = map;
+        }
+        return this.freeSpace;
+    }
+
+    /**
+     * Records the free space of a page whose contents have been read,
+     * written or changed. Does nothing until the map has been loaded, since
+     * loading it reads the pages anyway.
+     */
+    void noteFreeSpace(TuplePage page) {
+        FreeSpaceMap map;
+        synchronized (this) {
+            map = this.freeSpace;
+        }
+        if (map != null) {
+            map.setFree(page.getId().getPageNumber(), page.getNumEmptySlots() > 0);
+        }
+    }
+
+    /**
+     * Deletes the free space map's sidecar file before the first page write
+     * since the map was loaded or saved, so that a crash before the next
+     * save leaves no sidecar to be trusted and the map is rebuilt instead.
+     * Called by every path that writes pages of this file.
+     */
+    synchronized void invalidateFreeSpaceMap() throws IOException {
+        if (this.sidecarCurrent) {
+            File sidecar = getFreeSpaceMapFile();
+            if (sidecar.exists() && !sidecar.delete()) {
+                throw new IOException("could not delete " + sidecar);
+            }
+            this.sidecarCurrent = false;
+        }
+    }
+
+    /**
+     * Saves the free space map to its sidecar file if it has changed, or if
+     * pages have been written since it was saved. Called once the table's
+     * pages are on disk, at checkpoints and when the file is closed.
+     */
+    public synchronized void saveFreeSpaceMap() {
+        if (this.freeSpace == null || !this.f.exists()) {
+            return;
+        }
+        if (!this.freeSpace.isDirty() && this.sidecarCurrent) {
+            return;
+        }
+        try {
+            this.freeSpace.save(getFreeSpaceMapFile(), this.f);
+            this.sidecarCurrent = true;
         } catch (IOException e) {
-            throw new IOException();
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Selects whether pages of this file are read from read-only memory
+     * mappings of the file instead of being copied out through the channel.
+     * Intended for read-mostly tables: the first write to the file turns
+     * the mapping off again, since mapped pages would otherwise observe
+     * writes underneath them.
+     */
+    public synchronized void setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        if (!memoryMapped) {
+            this.segments.clear();
+        }
+    }
+
+    /**
+     * @return true if pages of this file are currently read from a memory
+     *   mapping of the file.
+     */
+    public boolean isMemoryMapped() {
+        return this.memoryMapped;
+    }
+
+    /**
+     * Returns a read-only view of the page at the given file offset inside
+     * the mapped segment that contains it, mapping the segment if needed.
+     *
+     * @return the page's bytes, or null if the page lies (partly) past the end
+     *   of the file or straddles two segments
+     */
+    private synchronized ByteBuffer mappedPage(long offset, int pgSz) throws IOException {
+        if (!this.memoryMapped) {
+            return null;
+        }
+        int segNo = (int) (offset / MMAP_SEGMENT_SIZE);
+        int segOffset = (int) (offset % MMAP_SEGMENT_SIZE);
+
+        MappedByteBuffer segment = this.segments.get(segNo);
+        if (segment == null || segment.limit() < segOffset + pgSz) {
+            // (re)map the segment, never past the current end of the file
+            long segStart = (long) segNo * MMAP_SEGMENT_SIZE;
+            FileChannel ch = getChannel();
+            long len = Math.min(MMAP_SEGMENT_SIZE, ch.size() - segStart);
+            if (len < segOffset + pgSz) {
+                return null;
+            }
+            segment = ch.map(FileChannel.MapMode.READ_ONLY, segStart, len);
+            this.segments.put(segNo, segment);
+        }
+
+        ByteBuffer page = segment.duplicate();
+        page.position(segOffset);
+        page.limit(segOffset + pgSz);
+        return page.slice();
+    }
+
+    /**
+     * Returns the channel backing this HeapFile, opening it on first use (or
+     * after {@link #close()}).
+     */
+    synchronized FileChannel getChannel() throws IOException {
+        if (this.channel == null || !this.channel.isOpen()) {
+            if (!this.f.exists()) {
+                throw new FileNotFoundException(this.f.getPath());
+            }
+            String mode = this.f.canWrite() ? "rw" : "r";
+            this.channel = new RandomAccessFile(this.f, mode).getChannel();
+        }
+        return this.channel;
+    }
+
+    /**
+     * Writes a batch of pages of this file, such as the dirty pages of a
+     * checkpoint, in page order, with one write per run of consecutive
+     * pages. The pages of a run are gathered into one direct buffer first:
+     * a gathering write of the page arrays themselves would have the JDK
+     * copy each into a temporary direct buffer of its own. Unlike
+     * {@link #writePage}, this does not go through a subclass's writePage.
+     *
+     * @see BufferPool#flushAllPages
+     */
+    void writePages(List<Page> pages) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        ArrayList<Page> sorted = new ArrayList<Page>(pages);
+        sorted.sort(PAGE_ORDER);
+        int pgSz = getPageSize();
+        if (this.memoryMapped) {
+            setMemoryMapped(false);
+        }
+        invalidateFreeSpaceMap();
+        ByteBuffer run = ByteBuffer.allocateDirect(Math.min(sorted.size(), MAX_WRITE_RUN) * pgSz);
+        countWrite();
+        try {
+            int start = 0;
+            while (start < sorted.size()) {
+                int first = sorted.get(start).getId().getPageNumber();
+                int end = start + 1;
+                while (end < sorted.size() && end - start < MAX_WRITE_RUN
+                        && sorted.get(end).getId().getPageNumber() == first + (end - start)) {
+                    end++;
+                }
+                run.clear();
+                for (int i = start; i < end; i++) {
+                    run.put(sorted.get(i).getPageData());
+                }
+                run.flip();
+                this.write(run, pageOffset(first, pgSz));
+                start = end;
+            }
+        } finally {
+            countWrite();
+        }
+        for (Page page : sorted) {
+            noteFreeSpace((TuplePage) page);
+        }
+    }
+
+    /**
+     * Fills buf from the file starting at the given offset, stopping early at
+     * end of file. If the channel was closed underneath us (e.g. an interrupt
+     * on another thread), it is reopened and the read retried once.
+     */
+    private void read(ByteBuffer buf, long offset) throws IOException {
+        int start = buf.position();
+        try {
+            readFully(getChannel(), buf, offset);
+        } catch (ClosedChannelException e) {
+            retryable(e);
+            readFully(getChannel(), buf, offset + buf.position() - start);
+        }
+    }
+
+    /**
+     * Rethrows the exception of a channel closed by an interrupt of this
+     * thread: a retry would only close the reopened channel again, under
+     * the other threads using it.
+     */
+    private static void retryable(ClosedChannelException e) throws ClosedChannelException {
+        if (e instanceof ClosedByInterruptException || Thread.currentThread().isInterrupted()) {
+            throw e;
+        }
+    }
+
+    static void readFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, offset + buf.position() - start) < 0) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes all of buf to the file at the given offset, reopening the
+     * channel and retrying once if it was closed underneath us.
+     */
+    private void write(ByteBuffer buf, long offset) throws IOException {
+        int start = buf.position();
+        try {
+            writeFully(getChannel(), buf, offset);
+        } catch (ClosedChannelException e) {
+            retryable(e);
+            writeFully(getChannel(), buf, offset + buf.position() - start);
+        }
+    }
+
+    static void writeFully(FileChannel ch, ByteBuffer buf, long offset) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            ch.write(buf, offset + buf.position() - start);
+        }
+    }
+
+    /**
+     * Releases the file handle held by this HeapFile. The HeapFile stays
+     * usable: the next page access transparently reopens the file.
+     */
+    public synchronized void close() {
+        saveFreeSpaceMap();
+        this.segments.clear();
+        // the file may be replaced while closed, e.g. with a new page size
+        this.headerPageSize = -1;
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            this.channel = null;
         }
     }
 
@@ -112,8 +716,10 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // some code goes here
-        // divide total num of bytes in file by page size
-        return (int) Math.ceil(this.f.length() * 1.0 / BufferPool.getPageSize());
+        // divide total num of bytes in file (after the header) by page size
+        int pgSz = getPageSize();
+        long bytes = this.f.length() - pageOffset(0, pgSz);
+        return (int) Math.ceil(Math.max(bytes, 0) * 1.0 / pgSz);
     }
 
     // see DbFile.java for javadocs
@@ -122,24 +728,34 @@ public class HeapFile implements DbFile {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> modifiedPage = new ArrayList<>();
+        if (getPageFormat() == PageFormat.FIXED) {
+            modifiedPage.add(insertRecord(tid, t));
+            return modifiedPage;
+        }
 
-        for (int i = 0; i < this.numPages(); i++) {
+        // only visit pages the free space map says have room
+        FreeSpaceMap freeSpace = getFreeSpaceMap();
+        int numPages = this.numPages();
+        for (int i = freeSpace.nextFreePage(0, numPages); i >= 0; i = freeSpace.nextFreePage(i + 1, numPages)) {
             PageId pid = new HeapPageId(this.getId(), i);
-            HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
 
             // if there's still space in this page, insert tuple
             if (page.getNumEmptySlots() > 0) {
-                page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+                page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
                 page.insertTuple(t);
 
                 modifiedPage.add(page);
                 return modifiedPage;
             }
+
+            // the map was out of date
+            freeSpace.setFree(i, false);
         }
 
         // if there are no empty pages, create a new HeapPage in HeapFile
         HeapPageId heapPageId = new HeapPageId(this.getId(), this.numPages());
-        HeapPage newPage = new HeapPage(heapPageId, new byte[BufferPool.getPageSize()]);
+        TuplePage newPage = newPage(heapPageId, ByteBuffer.wrap(HeapPage.createEmptyPageData(getPageSize())));
 
         newPage.insertTuple(t); // insert tuple
         this.writePage(newPage);
@@ -147,14 +763,58 @@ public class HeapFile implements DbFile {
         return modifiedPage;
     }
 
+    /**
+     * Inserts a tuple into a page of fixed-size records under a record
+     * lock (see {@link BufferPool#insertRecord}), so that transactions
+     * inserting at once share pages: into the first page the free space
+     * map says has room, with an empty slot no other transaction has
+     * locked, or else into a new page.
+     *
+     * @return the page the tuple went into
+     */
+    private Page insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple desc doesn't match");
+        }
+        FreeSpaceMap freeSpace = getFreeSpaceMap();
+        while (true) {
+            int numPages = this.numPages();
+            for (int i = freeSpace.nextFreePage(0, numPages); i >= 0; i = freeSpace.nextFreePage(i + 1, numPages)) {
+                Page page = Database.getBufferPool().insertRecord(tid, new HeapPageId(this.getId(), i), t);
+                if (page != null) {
+                    return page;
+                }
+            }
+            appendEmptyPage(numPages);
+        }
+    }
+
+    /**
+     * Adds an empty page to the end of the file, unless another
+     * transaction has done so since the file had numPages pages. The
+     * page's records are then inserted like those of any other page, and
+     * logged.
+     */
+    private synchronized void appendEmptyPage(int numPages) throws IOException {
+        if (this.numPages() == numPages) {
+            this.writePage(newPage(new HeapPageId(this.getId(), numPages),
+                    ByteBuffer.wrap(HeapPage.createEmptyPageData(getPageSize()))));
+        }
+    }
+
     // see DbFile.java for javadocs
     public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
-            TransactionAbortedException {
+            IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
         ArrayList<Page> modifiedPage = new ArrayList<>();
+        if (getPageFormat() == PageFormat.FIXED) {
+            modifiedPage.add(Database.getBufferPool().deleteRecord(tid, t));
+            return modifiedPage;
+        }
         PageId pid = t.getRecordId().getPageId();
-        HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
 
         // delete tuple
         page.deleteTuple(t);
@@ -174,6 +834,12 @@ public class HeapFile implements DbFile {
         private TransactionId tid;
         private Iterator<Tuple> tupleIter;
         private int currPgNo;
+        // pages before this one have been asked to be read ahead
+        private int readAheadTo;
+        // private buffers for scans of tables too large to cache, or null
+        private BufferRing ring;
+        // the page the scan is on, pinned in the BufferPool, or null
+        private PageId pinned;
 
         public HeapFileIterator(HeapFile hf, TransactionId tid) {
             this.hf = hf;
@@ -183,6 +849,11 @@ public class HeapFile implements DbFile {
         @Override
         public void open() throws DbException, TransactionAbortedException {
             this.currPgNo = 0;
+            this.readAheadTo = 0;
+            unpin();
+            if (this.ring == null) {
+                this.ring = Database.getBufferPool().newScanRing(hf.getId(), hf.numPages());
+            }
             this.tupleIter = getHeapPageIterator(this.currPgNo);
         }
 
@@ -202,6 +873,7 @@ public class HeapFile implements DbFile {
                         // if after incrementing currPgNo it exceeds the num
                         // of pages in HeapFile, there are no more pages left
                         // hence no more tuples left
+                        unpin();
                         return false;
                     }
 
@@ -235,6 +907,11 @@ public class HeapFile implements DbFile {
         public void close() {
             this.tupleIter = null;
             this.currPgNo = 0;
+            unpin();
+            if (this.ring != null) {
+                Database.getBufferPool().releaseScanRing(this.ring);
+                this.ring = null;
+            }
         }
 
         private Iterator<Tuple> getHeapPageIterator(int pgNo) throws DbException, TransactionAbortedException {
@@ -248,13 +925,47 @@ public class HeapFile implements DbFile {
 
             HeapPageId hpId = new HeapPageId(this.hf.getId(), currPgNo);
 
-            // iterator must use the BufferPool.getPage() method
-            // to access pages in the HeapFile
-            HeapPage hp = (HeapPage) Database.getBufferPool().getPage(this.tid, hpId, Permissions.READ_ONLY);
+            // iterator must use the BufferPool to access pages in the
+            // HeapFile; the page stays pinned while its tuples are read
+            unpin();
+            TuplePage hp = (TuplePage) Database.getBufferPool().pinPage(this.tid, hpId,
+                    Permissions.READ_ONLY, this.ring);
+            this.pinned = hpId;
+            readAhead(pgNo);
 
             return hp.iterator();
         }
 
+        private void unpin() {
+            if (this.pinned != null) {
+                Database.getBufferPool().unpinPage(this.pinned);
+                this.pinned = null;
+            }
+        }
+
+        /**
+         * Once the scan has moved past its first page, keeps the next pages
+         * requested from the prefetcher, topping the window up in batches
+         * of half the read-ahead depth.
+         */
+        private void readAhead(int pgNo) {
+            int depth = Database.getBufferPool().getPrefetchDepth();
+            if (depth == 0 || pgNo == 0) {
+                return;
+            }
+            if (this.readAheadTo <= pgNo) {
+                this.readAheadTo = pgNo + 1;
+            }
+            if (this.readAheadTo - pgNo > (depth + 1) / 2) {
+                return;
+            }
+            int end = Math.min(pgNo + 1 + depth, hf.numPages());
+            if (end > this.readAheadTo) {
+                Database.getBufferPool().prefetch(this.hf, this.readAheadTo, end - this.readAheadTo);
+                this.readAheadTo = end;
+            }
+        }
+
     }
 
 }
\ No newline at end of file
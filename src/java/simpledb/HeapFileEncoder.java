@@ -1,7 +1,10 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * HeapFileEncoder reads a comma delimited text file or accepts
@@ -223,4 +226,304 @@ public class HeapFileEncoder {
     br.close();
     os.close();
   }
+
+  /** Rewrite a table file with a different page size. <br>
+   *
+   * Equivalent to {@link #repage(File, File, TupleDesc, int, HeapFile.PageFormat)}
+   * with the FIXED page format.
+   */
+  public static void repage(File inFile, File outFile, TupleDesc td, int npagebytes)
+      throws IOException {
+      repage(inFile, outFile, td, npagebytes, HeapFile.PageFormat.FIXED);
+  }
+
+  /** Rewrite a table file with a different page size or page format. <br>
+   *
+   * The tuples of every page of inFile are copied, in order, into pages of
+   * npagebytes bytes in the given format, which are written to outFile
+   * after a file header recording the new page size and format. inFile may
+   * be a file with a header of its own or a headerless file with FIXED
+   * pages of {@link BufferPool#getPageSize()} bytes. Tuples are copied as
+   * raw bytes, only converted between the fixed-length and variable-length
+   * record formats if the page formats differ, so they are not decoded.
+   *
+   * @see HeapFile#create
+   * @see SlottedHeapPage
+   * @param inFile the table file to read
+   * @param outFile The output file to write data to; must not be inFile
+   * @param td the schema of the table
+   * @param npagebytes The number of bytes per page in the output file
+   * @param format the page format of the output file
+   * @throws IllegalArgumentException if npagebytes is not a page size a file
+   *   header can record
+   * @throws IOException if the input/output file can't be opened
+   */
+  public static void repage(File inFile, File outFile, TupleDesc td, int npagebytes,
+                            HeapFile.PageFormat format)
+      throws IOException {
+      HeapFile.checkPageSize(npagebytes);
+      int nrecbytes = td.getSize();
+
+      RandomAccessFile in = new RandomAccessFile(inFile, "r");
+      FileChannel ch = in.getChannel();
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+      try {
+          int inpagebytes = HeapFile.readFileHeader(ch);
+          boolean inSlotted = HeapFile.readFileFormat(ch) == HeapFile.PageFormat.SLOTTED;
+          long pos = inpagebytes;
+          if (inpagebytes == 0) {
+              inpagebytes = BufferPool.getPageSize();
+          }
+          int inrecords = (inpagebytes * 8) / (nrecbytes * 8 + 1);
+          int inheaderbytes = (inrecords + 7) / 8;
+
+          HeapFile.writeFileHeader(os, npagebytes, format);
+          PageWriter out = format == HeapFile.PageFormat.SLOTTED
+              ? new SlottedPageWriter(os, td, npagebytes)
+              : new FixedPageWriter(os, td, npagebytes);
+          ByteBuffer inPage = ByteBuffer.allocate(inpagebytes);
+          byte[] record = new byte[nrecbytes];
+          for (; pos < ch.size(); pos += inpagebytes) {
+              inPage.clear();
+              while (inPage.hasRemaining() && ch.read(inPage, pos + inPage.position()) >= 0)
+                  ;
+              byte[] page = inPage.array();
+              // a short last page reads as empty past the end of the file
+              Arrays.fill(page, inPage.position(), inpagebytes, (byte) 0);
+              if (inSlotted) {
+                  int nslots = inPage.getInt(0);
+                  for (int i = 0; i < nslots; i++) {
+                      int offset = inPage.getShort(SlottedHeapPage.HEADER_SIZE
+                              + i * SlottedHeapPage.SLOT_SIZE) & 0xFFFF;
+                      if (offset != 0) {
+                          toFixedRecord(inPage, offset, td, record);
+                          out.add(record, 0);
+                      }
+                  }
+              } else {
+                  for (int i = 0; i < inrecords; i++) {
+                      if ((page[i / 8] & (1 << (i % 8))) != 0)
+                          out.add(page, inheaderbytes + i * nrecbytes);
+                  }
+              }
+          }
+          out.finish();
+      } finally {
+          os.close();
+          in.close();
+      }
+  }
+
+  /** Compress a table file page by page. <br>
+   *
+   * Every page of inFile, a file with a header or a headerless file with
+   * FIXED pages of {@link BufferPool#getPageSize()} bytes, is deflated and
+   * written to outFile in the format described in {@link CompressedHeapFile},
+   * keeping its page size and page format. Pages are copied as raw bytes.
+   *
+   * @see CompressedHeapFile
+   * @param inFile the table file to read
+   * @param outFile The output file to write data to; must not be inFile
+   * @throws IOException if the input/output file can't be opened, or inFile
+   *   is already compressed
+   */
+  public static void compress(File inFile, File outFile) throws IOException {
+      if (CompressedHeapFile.isCompressed(inFile))
+          throw new IOException(inFile + " is already compressed");
+
+      RandomAccessFile in = new RandomAccessFile(inFile, "r");
+      FileChannel ch = in.getChannel();
+      RandomAccessFile out = new RandomAccessFile(outFile, "rw");
+      FileChannel outCh = out.getChannel();
+      try {
+          int pagebytes = HeapFile.readFileHeader(ch);
+          HeapFile.PageFormat format = HeapFile.readFileFormat(ch);
+          long pos = pagebytes;
+          if (pagebytes == 0) {
+              pagebytes = BufferPool.getPageSize();
+          }
+          int npages = (int) ((ch.size() - pos + pagebytes - 1) / pagebytes);
+
+          long[] offsets = new long[npages];
+          int[] lengths = new int[npages];
+          int[] reserved = new int[npages];
+          long outPos = CompressedHeapFile.HEADER_SIZE;
+          ByteBuffer inPage = ByteBuffer.allocate(pagebytes);
+          out.setLength(0);
+          for (int i = 0; i < npages; i++, pos += pagebytes) {
+              inPage.clear();
+              while (inPage.hasRemaining() && ch.read(inPage, pos + inPage.position()) >= 0)
+                  ;
+              // a short last page reads as empty past the end of the file
+              Arrays.fill(inPage.array(), inPage.position(), pagebytes, (byte) 0);
+
+              ByteBuffer compressed = CompressedHeapFile.deflate(inPage.array());
+              offsets[i] = outPos;
+              lengths[i] = compressed.remaining();
+              reserved[i] = CompressedHeapFile.reservedLength(lengths[i]);
+              HeapFile.writeFully(outCh, compressed, outPos);
+              outPos += reserved[i];
+          }
+          HeapFile.writeFully(outCh,
+                  CompressedHeapFile.index(npages, offsets, lengths, reserved), outPos);
+          HeapFile.writeFully(outCh,
+                  CompressedHeapFile.header(pagebytes, format, npages, outPos), 0);
+      } finally {
+          out.close();
+          in.close();
+      }
+  }
+
+  /** Decompress a file written by {@link #compress}. <br>
+   *
+   * The pages are written to outFile, in order, after a file header
+   * recording their page size and page format.
+   *
+   * @see HeapFile#create
+   * @param inFile the compressed table file to read
+   * @param outFile The output file to write data to; must not be inFile
+   * @throws IOException if the input/output file can't be opened, or inFile
+   *   is not compressed
+   */
+  public static void decompress(File inFile, File outFile) throws IOException {
+      if (!CompressedHeapFile.isCompressed(inFile))
+          throw new IOException(inFile + " is not compressed");
+
+      // the pages are only copied, so the file needs no schema
+      CompressedHeapFile in = new CompressedHeapFile(inFile, null);
+      OutputStream os = new BufferedOutputStream(new FileOutputStream(outFile));
+      try {
+          HeapFile.writeFileHeader(os, in.getPageSize(), in.getPageFormat());
+          for (int i = 0; i < in.numPages(); i++)
+              os.write(in.readPageData(i));
+      } finally {
+          os.close();
+          in.close();
+      }
+  }
+
+  /**
+   * Decodes the variable-length record at offset in a slotted page into the
+   * fixed-length layout of HeapPage.
+   */
+  private static void toFixedRecord(ByteBuffer page, int offset, TupleDesc td, byte[] record) {
+      Arrays.fill(record, (byte) 0);
+      int pos = 0;
+      for (int i = 0; i < td.numFields(); i++) {
+          if (td.getFieldType(i) == Type.STRING_TYPE) {
+              int len = page.getShort(offset) & 0xFFFF;
+              ByteBuffer.wrap(record).putInt(pos, len);
+              for (int j = 0; j < len; j++)
+                  record[pos + 4 + j] = page.get(offset + 2 + j);
+              offset += 2 + len;
+          } else {
+              for (int j = 0; j < td.getFieldType(i).getLen(); j++)
+                  record[pos + j] = page.get(offset + j);
+              offset += td.getFieldType(i).getLen();
+          }
+          pos += td.getFieldType(i).getLen();
+      }
+  }
+
+  /** Packs fixed-length records, in order, into pages of one format. */
+  private static abstract class PageWriter {
+      final OutputStream os;
+      final TupleDesc td;
+      final byte[] page;
+
+      PageWriter(OutputStream os, TupleDesc td, int npagebytes) {
+          this.os = os;
+          this.td = td;
+          this.page = new byte[npagebytes];
+      }
+
+      /** Adds the fixed-length record at offset in src. */
+      abstract void add(byte[] src, int offset) throws IOException;
+
+      /** Writes out the last page, if it has any records. */
+      abstract void finish() throws IOException;
+  }
+
+  private static class FixedPageWriter extends PageWriter {
+      private final int nrecbytes;
+      private final int nrecords;
+      private final int nheaderbytes;
+      private int recordcount = 0;
+
+      FixedPageWriter(OutputStream os, TupleDesc td, int npagebytes) {
+          super(os, td, npagebytes);
+          nrecbytes = td.getSize();
+          nrecords = (npagebytes * 8) / (nrecbytes * 8 + 1);
+          nheaderbytes = (nrecords + 7) / 8;
+      }
+
+      void add(byte[] src, int offset) throws IOException {
+          page[recordcount / 8] |= (byte) (1 << (recordcount % 8));
+          System.arraycopy(src, offset, page, nheaderbytes + recordcount * nrecbytes, nrecbytes);
+          if (++recordcount == nrecords) {
+              os.write(page);
+              Arrays.fill(page, (byte) 0);
+              recordcount = 0;
+          }
+      }
+
+      void finish() throws IOException {
+          if (recordcount > 0)
+              os.write(page);
+      }
+  }
+
+  private static class SlottedPageWriter extends PageWriter {
+      private final ByteBuffer buf;
+      private final byte[] record;
+      private int nslots = 0;
+      private int recordStart;
+
+      SlottedPageWriter(OutputStream os, TupleDesc td, int npagebytes) {
+          super(os, td, npagebytes);
+          buf = ByteBuffer.wrap(page);
+          record = new byte[td.getSize()];
+          recordStart = npagebytes;
+      }
+
+      void add(byte[] src, int offset) throws IOException {
+          // re-encode the record with strings cut to their length
+          int len = 0;
+          for (int i = 0; i < td.numFields(); i++) {
+              if (td.getFieldType(i) == Type.STRING_TYPE) {
+                  int strLen = ByteBuffer.wrap(src).getInt(offset);
+                  record[len] = (byte) (strLen >> 8);
+                  record[len + 1] = (byte) strLen;
+                  System.arraycopy(src, offset + 4, record, len + 2, strLen);
+                  len += 2 + strLen;
+              } else {
+                  System.arraycopy(src, offset, record, len, td.getFieldType(i).getLen());
+                  len += td.getFieldType(i).getLen();
+              }
+              offset += td.getFieldType(i).getLen();
+          }
+
+          int dirEnd = SlottedHeapPage.HEADER_SIZE + (nslots + 1) * SlottedHeapPage.SLOT_SIZE;
+          if (dirEnd + len > recordStart) {
+              finish();
+              dirEnd = SlottedHeapPage.HEADER_SIZE + SlottedHeapPage.SLOT_SIZE;
+          }
+          recordStart -= len;
+          System.arraycopy(record, 0, page, recordStart, len);
+          buf.putShort(dirEnd - SlottedHeapPage.SLOT_SIZE, (short) recordStart);
+          buf.putShort(dirEnd - SlottedHeapPage.SLOT_SIZE + 2, (short) len);
+          nslots++;
+      }
+
+      void finish() throws IOException {
+          if (nslots == 0)
+              return;
+          buf.putInt(0, nslots);
+          buf.putInt(4, recordStart);
+          os.write(page);
+          Arrays.fill(page, (byte) 0);
+          nslots = 0;
+          recordStart = page.length;
+      }
+  }
 }
@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and 
@@ -11,16 +12,38 @@ import java.io.*;
  * @see BufferPool
  *
  */
-public class HeapPage implements Page {
+public class HeapPage implements TuplePage {
 
     final HeapPageId pid;
     final TupleDesc td;
     final byte header[];
-    final Tuple tuples[];
+    // the header as 64-bit words: bit (i % 64) of word i / 64 is set if slot
+    // i is used; bits past numSlots are always clear
+    private final long usedSlots[];
+    private int numEmptySlots;
+    // tuples handed out or inserted so far; other used slots are decoded
+    // from data on demand. null while data is a borrowed frame: tuples are
+    // then decoded in full and not kept, so none reads from the frame.
+    // Tuples over a mapped slice are decoded in full as well, since the
+    // mapping changes once the file is written
+    Tuple tuples[];
     final int numSlots;
+    // the page size of the table this page belongs to
+    private final int pageSize;
+    // the page's current on-disk image, kept up to date by insertTuple and
+    // deleteTuple so that getPageData is a single copy
+    private ByteBuffer data;
+    // true once data is a private copy that this page may write to; until
+    // then data is shared with the before image and lazily decoded tuples
+    private boolean ownsData;
 
     byte[] oldData;
-    private final Byte oldDataLock=new Byte((byte)0);
+    // read-only bytes this page was built from whose copy into oldData is
+    // deferred until the page is first modified; null once oldData is set
+    private ByteBuffer beforeImageSource;
+    private final Object oldDataLock = new Object();
+    // the BufferPool frame this page was built over, until it is detached
+    private ByteBuffer frame;
 
     private TransactionId tid;
     private boolean dirty;
@@ -30,48 +53,83 @@ public class HeapPage implements Page {
      * The format of a HeapPage is a set of header bytes indicating
      * the slots of the page that are in use, some number of tuple slots.
      *  Specifically, the number of tuples is equal to: <p>
-     *          floor((BufferPool.getPageSize()*8) / (tuple size * 8 + 1))
+     *          floor((page size*8) / (tuple size * 8 + 1))
      * <p> where tuple size is the size of tuples in this
-     * database table, which can be determined via {@link Catalog#getTupleDesc}.
+     * database table, which can be determined via {@link Catalog#getTupleDesc},
+     * and page size is the table's page size (see {@link HeapFile#getPageSize}).
      * The number of 8-bit header words is equal to:
      * <p>
      *      ceiling(no. tuple slots / 8)
      * <p>
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
-     * @see BufferPool#getPageSize()
+     * @see HeapFile#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a HeapPage directly over a buffer holding the page's bytes, in
+     * the format described in {@link #HeapPage(HeapPageId, byte[])}. Fields
+     * are read with absolute gets, so a slice of a memory-mapped file can be
+     * parsed without first being copied into a byte array.
+     * <p>
+     * The page never writes to data: it is kept as the source of the before
+     * image and only copied once the page is modified, so scanning a file
+     * does not allocate a second page-sized array per page. Callers must not
+     * modify data after handing it to the page.
+     *
+     * @see HeapFile#setMemoryMapped
+     */
+    public HeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, false);
+    }
+
+    /**
+     * Create a HeapPage over a buffer, as above. If borrowed is true, data
+     * is a BufferPool frame that will be reused: the page keeps no tuples
+     * that read from it, and {@link #detach} must be called before the frame
+     * is reused.
+     */
+    HeapPage(HeapPageId id, ByteBuffer data, boolean borrowed) throws IOException {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = pageSizeOf(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
         // allocate and read the header slots of this page
         header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
+        try {
+            for (int i=0; i<header.length; i++)
+                header[i] = data.get(i);
+        } catch (IndexOutOfBoundsException e) {
+            throw new EOFException("page data is shorter than the page header");
         }
-        dis.close();
-
-        setBeforeImage();
+        usedSlots = new long[(numSlots + 63) / 64];
+        for (int i=0; i<header.length; i++)
+            usedSlots[i / 8] |= (header[i] & 0xFFL) << (8 * (i % 8));
+        if (numSlots % 64 != 0)
+            usedSlots[usedSlots.length - 1] &= (1L << numSlots) - 1;
+        numEmptySlots = numSlots;
+        for (long word : usedSlots)
+            numEmptySlots -= Long.bitCount(word);
+
+        // tuples are decoded lazily from data, see getTuple
+        tuples = borrowed ? null : new Tuple[numSlots];
+        this.frame = borrowed ? data : null;
+        this.data = data;
+        this.ownsData = false;
+        this.beforeImageSource = data;
     }
 
     /** Retrieve the number of tuples on this page.
      @return the number of tuples on this page
      */
-    private int getNumTuples() {
+    int getNumTuples() {
         // some code goes here
         // formula for numTuples is (page size * 8 ) / (tuple size * 8 + 1)
-        return ((int) Math.floor((BufferPool.getPageSize() * 8 ) / (this.td.getSize() * 8 + 1)));
+        return ((int) Math.floor((this.pageSize * 8 ) / (this.td.getSize() * 8 + 1)));
 
     }
 
@@ -90,9 +148,14 @@ public class HeapPage implements Page {
     public HeapPage getBeforeImage(){
         try {
             byte[] oldDataRef = null;
+            ByteBuffer sourceRef = null;
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                sourceRef = beforeImageSource;
+            }
+            if (oldDataRef == null) {
+                return new HeapPage(pid,sourceRef,sourceRef == frame);
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -106,10 +169,54 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-            oldData = getPageData().clone();
+            // the current image becomes the before image; the next
+            // modification copies it instead of writing to it
+            oldData = null;
+            beforeImageSource = data;
+            ownsData = false;
+        }
+    }
+
+    /**
+     * Copies a deferred before image out of a read-only source buffer.
+     * Must be called before the page is modified, since a mapped source
+     * changes once the modified page is written back. Sources backed by
+     * arrays are never written to, so they are kept as they are.
+     */
+    private void preserveBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null && beforeImageSource.isReadOnly()) {
+                ByteBuffer src = beforeImageSource.duplicate();
+                src.rewind();
+                oldData = new byte[src.remaining()];
+                src.get(oldData);
+                beforeImageSource = null;
+            }
         }
     }
 
+    /**
+     * Makes data a private, page-sized copy of the current image that this
+     * page can modify in place. Tuples still decoding from the old buffer
+     * keep reading it: it is a heap buffer that nothing writes to, since
+     * tuples over a read-only (mapped) buffer are never decoded lazily.
+     */
+    private void ensureWritable() {
+        if (tuples == null) {
+            tuples = new Tuple[numSlots];
+        }
+        if (ownsData) {
+            return;
+        }
+        byte[] image = new byte[this.pageSize];
+        ByteBuffer src = data.duplicate();
+        src.rewind();
+        src.get(image, 0, Math.min(src.remaining(), image.length));
+        data = ByteBuffer.wrap(image);
+        ownsData = true;
+    }
+
     /**
      * @return the PageId associated with this page.
      */
@@ -119,39 +226,50 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Returns the tuple stored in the given slot, or null if the slot is
+     * empty. The first call for a slot creates a tuple that decodes its
+     * fields from the page's bytes only as they are read, unless the bytes
+     * are a read-only mapping of the file.
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    private Tuple getTuple(int slotId) {
+        if (tuples == null) {
+            if (!isSlotUsed(slotId)) {
+                return null;
             }
-            return null;
+            Tuple t = new Tuple(td, data, header.length + slotId * td.getSize());
+            t.materialize();
+            t.setRecordId(new RecordId(pid, slotId));
+            return t;
         }
-
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
-        try {
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+        Tuple t = tuples[slotId];
+        if (t == null && isSlotUsed(slotId)) {
+            t = new Tuple(td, data, header.length + slotId * td.getSize());
+            if (data.isReadOnly()) {
+                t.materialize();
             }
-        } catch (java.text.ParseException e) {
-            e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
+            t.setRecordId(new RecordId(pid, slotId));
+            tuples[slotId] = t;
         }
-
         return t;
     }
 
+    public void detach() {
+        synchronized(oldDataLock)
+        {
+            if (frame == null) {
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.wrap(getPageData());
+            if (data == frame) {
+                data = copy;
+            }
+            if (beforeImageSource == frame) {
+                beforeImageSource = copy;
+            }
+            frame = null;
+        }
+    }
+
     /**
      * Generates a byte array representing the contents of this page.
      * Used to serialize this page to disk.
@@ -164,64 +282,11 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      */
     public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+        byte[] image = new byte[this.pageSize];
+        ByteBuffer src = data.duplicate();
+        src.rewind();
+        src.get(image, 0, Math.min(src.remaining(), image.length));
+        return image;
     }
 
     /**
@@ -238,6 +303,28 @@ public class HeapPage implements Page {
         return new byte[len]; //all 0
     }
 
+    /**
+     * Generates a byte array corresponding to an empty HeapPage of the given
+     * page size, for tables whose page size differs from the default.
+     *
+     * @see HeapFile#getPageSize()
+     */
+    public static byte[] createEmptyPageData(int pageSize) {
+        return new byte[pageSize]; //all 0
+    }
+
+    /**
+     * Returns the page size of the given table, which is the default page
+     * size unless the table is a HeapFile with a page size of its own.
+     */
+    static int pageSizeOf(int tableId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        if (file instanceof HeapFile) {
+            return ((HeapFile) file).getPageSize();
+        }
+        return BufferPool.getPageSize();
+    }
+
     /**
      * Delete the specified tuple from the page; the corresponding header bit should be updated to reflect
      *   that it is no longer stored on any page.
@@ -259,9 +346,23 @@ public class HeapPage implements Page {
             throw new DbException("tuple slot wasn't being used and is already empty.");
         }
 
+        clearSlot(id);
+    }
+
+    private void clearSlot(int id) {
+        preserveBeforeImage();
+        ensureWritable();
+        // a tuple decoding from this page's image must not see the slot cleared
+        if (this.tuples[id] != null) {
+            this.tuples[id].materialize();
+        }
         markSlotUsed(id, false);
+        int offset = header.length + id * td.getSize();
+        for (int j = 0; j < td.getSize(); j++) {
+            data.put(offset + j, (byte) 0);
+        }
         this.tuples[id] = null; // delete tuple
-
+        updateFreeSpaceMap();
     }
 
     /**
@@ -281,15 +382,84 @@ public class HeapPage implements Page {
         } else if (!this.td.equals(t.getTupleDesc())) { // check if the tuple desc doesn't match
             throw new DbException("tuple desc doesn't match");
         } else {
+            fillSlot(nextSlot(0, false), t);
+        }
+    }
 
-            for (int i = 0; i < this.numSlots; i++) {
-                if (!isSlotUsed(i)) {
-                    t.setRecordId(new RecordId(this.pid, i));
-                    markSlotUsed(i, true);
-                    this.tuples[i] = t;
-                    return;
-                }
-            }
+    /**
+     * Adds the specified tuple to the page in the given slot, like
+     * {@link #insertTuple(Tuple)}.
+     * @throws DbException if the slot is not empty or tupledesc is mismatch.
+     */
+    void insertTuple(Tuple t, int slot) throws DbException {
+        if (isSlotUsed(slot)) {
+            throw new DbException("tuple slot " + slot + " is not empty");
+        } else if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple desc doesn't match");
+        }
+        fillSlot(slot, t);
+    }
+
+    /**
+     * Puts the specified tuple into the given slot, or empties the slot if
+     * t is null, whatever the slot held: redoes or undoes a logged change
+     * to a single record.
+     * @throws DbException if tupledesc is mismatch.
+     */
+    void setTuple(int slot, Tuple t) throws DbException {
+        if (t != null && !this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple desc doesn't match");
+        }
+        if (isSlotUsed(slot)) {
+            clearSlot(slot);
+        }
+        if (t != null) {
+            fillSlot(slot, t);
+        }
+    }
+
+    /**
+     * @return a copy of the tuple in the given slot that doesn't read this
+     *   page's bytes, or null if the slot is empty
+     */
+    Tuple copyTuple(int slot) {
+        if (!isSlotUsed(slot)) {
+            return null;
+        }
+        Tuple t = new Tuple(td, data, header.length + slot * td.getSize());
+        t.materialize();
+        t.setRecordId(new RecordId(pid, slot));
+        return t;
+    }
+
+    private void fillSlot(int i, Tuple t) {
+        preserveBeforeImage();
+        ensureWritable();
+        int offset = header.length + i * td.getSize();
+        for (int j = 0; j < td.numFields(); j++) {
+            t.getField(j).serialize(data, offset + td.getFieldOffset(j));
+        }
+        t.setRecordId(new RecordId(this.pid, i));
+        markSlotUsed(i, true);
+        this.tuples[i] = t;
+        updateFreeSpaceMap();
+    }
+
+    /**
+     * Tells the HeapFile this page belongs to, if any, whether the page
+     * still has an empty slot.
+     *
+     * @see FreeSpaceMap
+     */
+    private void updateFreeSpaceMap() {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).noteFreeSpace(this);
         }
     }
 
@@ -322,14 +492,7 @@ public class HeapPage implements Page {
      */
     public int getNumEmptySlots() {
         // some code goes here
-        int emptySlots = 0;
-        for (int i = 0; i < this.numSlots; i++) {
-            if(!isSlotUsed(i)) {
-                emptySlots += 1;
-            }
-        }
-        return emptySlots;
-
+        return this.numEmptySlots;
     }
 
     /**
@@ -337,15 +500,28 @@ public class HeapPage implements Page {
      */
     public boolean isSlotUsed(int i) {
         // some code goes here
-        // in the header, each byte contains 8 slots
-        byte slot = header[i / 8];
-
-        // right shift i % 8 to get to the rightmost bit (dirty bit)
-        int dirtyBit = slot >> (i % 8);
+        return (this.usedSlots[i / 64] & (1L << i)) != 0;
+    }
 
-        // if dirtyBit was 1, the slot is used
-        // otherwise, not used
-        return (dirtyBit & 1) == 1;
+    /**
+     * Returns the first slot at or after from that is used (or empty, if
+     * used is false), scanning the header a 64-bit word at a time.
+     *
+     * @return the slot number, or numSlots if there is no such slot
+     */
+    int nextSlot(int from, boolean used) {
+        if (from >= this.numSlots) {
+            return this.numSlots;
+        }
+        int w = from / 64;
+        long word = (used ? this.usedSlots[w] : ~this.usedSlots[w]) & (-1L << from);
+        while (word == 0) {
+            if (++w == this.usedSlots.length) {
+                return this.numSlots;
+            }
+            word = used ? this.usedSlots[w] : ~this.usedSlots[w];
+        }
+        return Math.min(w * 64 + Long.numberOfTrailingZeros(word), this.numSlots);
     }
 
     /**
@@ -362,7 +538,14 @@ public class HeapPage implements Page {
         } else {
             this.header[i/8] = (byte) (mask | b);
         }
+        if (ownsData) {
+            data.put(i/8, this.header[i/8]);
+        }
 
+        if (isSlotUsed(i) != value) {
+            this.usedSlots[i / 64] ^= 1L << i;
+            this.numEmptySlots += value ? -1 : 1;
+        }
     }
 
     private class TupleIterator implements Iterator<Tuple> {
@@ -371,37 +554,20 @@ public class HeapPage implements Page {
 
         public TupleIterator (HeapPage heapPage) {
             this.heapPage = heapPage;
-            this.index = -1;
-
-            getNextNonEmptyIndex();
+            this.index = heapPage.nextSlot(0, true);
         }
 
         public boolean hasNext() {
             return this.index < this.heapPage.numSlots;
         }
 
-        public void getNextNonEmptyIndex() {
-            this.index++;
-            if (!this.hasNext()) {
-                return;
-            }
-
-            while (this.hasNext()) {
-                if (!this.heapPage.isSlotUsed(this.index)) {
-                    this.index++;
-                } else {
-                    return; //break;
-                }
-            }
-        }
-
         public Tuple next() throws NoSuchElementException {
             if (this.index >= this.heapPage.numSlots) {
                 throw new NoSuchElementException();
             }
 
-            Tuple res = this.heapPage.tuples[index];
-            getNextNonEmptyIndex();
+            Tuple res = this.heapPage.getTuple(index);
+            this.index = this.heapPage.nextSlot(this.index + 1, true);
             return res;
         }
 
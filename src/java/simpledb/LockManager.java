@@ -9,178 +9,797 @@ enum LockType {
     ANY
 }
 
+/**
+ * LockManager keeps the locks of transactions on tables, pages and records:
+ * shared locks for reading and exclusive locks for writing. BufferPool
+ * takes a lock before handing out a page or changing a record, and
+ * releases a transaction's locks when it commits or aborts.
+ * <p>
+ * Locks are hierarchical: a table contains its pages, and a page its
+ * records. Besides shared (S) and exclusive (X) locks there are intention
+ * locks, which a transaction takes on a table or page before it locks
+ * something inside it: intention shared (IS) before shared locks, intention
+ * exclusive (IX) before exclusive ones, and shared with intention exclusive
+ * (SIX) for reading all of it while writing some of it. A lock on a table
+ * or page thus conflicts with the locks inside it that it should:
+ * <pre>
+ *          IS   IX   S    SIX  X
+ *     IS   yes  yes  yes  yes  no
+ *     IX   yes  yes  no   no   no
+ *     S    yes  no   yes  no   no
+ *     SIX  yes  no   no   no   no
+ *     X    no   no   no   no   no
+ * </pre>
+ * A transaction asking for a lock it holds in another mode is converted to
+ * the weakest mode at least as strong as both, e.g. S and IX make SIX.
+ {@link #getTableLock} locks a table; {@link #getLock} locks a page,
+ * after taking the intention lock on its table; {@link #getRecordLock}
+ * locks a record, after taking the intention locks on its table and page,
+ * unless a lock on the page covers it. Once a transaction has locked more
+ * than the escalation threshold of records on a page, its locks on them are
+ * escalated to one lock on the page: S if it only read them, X otherwise.
+ * The intention lock it already holds on the table covers that page lock,
+ * so a table S or X lock waits for the escalated page lock as it did for
+ * the record locks. The threshold defaults to the value of the system
+ * property simpledb.lockEscalation, or 64 if that is not set.
+ * <p>
+ * Writers inserting into a page take the intention locks on its table and
+ * itself with {@link #getIntentionLock}, and then lock a free slot with
+ * {@link #tryRecordLock}, which never waits, so that they can pick among
+ * the free slots one nobody else holds. Such a writer escalates only when
+ * it can without waiting.
+ * <p>
+ * The lock table is split into shards by the hash of the locked item, each
+ * guarded by its own monitor, so that transactions locking different items
+ * rarely wait for each other's bookkeeping. A lock records the
+ * transactions holding it, with their modes, and a FIFO queue of the
+ * requests waiting for it. A request is granted at once only if it is
+ * compatible with the holders and no request is queued ahead of it, so
+ * that a stream of readers can't starve a writer. When the lock changes,
+ * the requests at the head of the queue that have become compatible are
+ * granted in order, a run of compatible requests together, and only their
+ * threads are woken: each thread waits on its own request. A conversion is
+ * granted at once if it is compatible with the other holders, and
+ * otherwise queues at the head.
+ * <p>
+ * The lock manager keeps a waits-for graph, in which a waiting transaction
+ * waits for the holders, and the requests queued ahead of it, that it
+ * conflicts with. The edges of the waiters of a lock are recomputed
+ * whenever the lock changes. A {@link DeadlockDetector} thread looks for
+ * cycles in the graph when transactions start to wait, and every so often
+ * while they do, and aborts a victim in each: the victim's getLock throws
+ * a TransactionAbortedException. Waiting threads wait for at most the
+ * detector's interval at a time, and make sure it is running before they
+ * wait again.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them by the
+ * age of transactions, i.e. the order of their ids, keeping no waits-for
+ * graph. Whenever a lock changes, each waiter is checked against the
+ * holders and the requests ahead of it that it conflicts with:
+ * <ul>
+ * <li>WAIT_DIE: a waiter may wait only for younger transactions; if it
+ * would wait for an older one, it dies, i.e. its request is aborted;
+ * <li>WOUND_WAIT: a waiter may wait only for older transactions; the
+ * younger ones it would wait for are wounded: their waiting requests are
+ * aborted, and so is their next request for a lock, while the waiter waits
+ * for them to go.
+ * </ul>
+ * Either way transactions only wait for transactions of one direction of
+ * age, so no cycle of waits can form. The policy defaults to the value of
+ * the system property simpledb.deadlockPolicy (e.g. "wound_wait"), or
+ * DETECT if that is not set, and is meant to be set before the lock
+ * manager is used.
+ * <p>
+ * Each transaction has an index of the items it holds or has requested
+ * locks on, so that releasing its locks at commit or abort visits only its
+ * own items, however many items other transactions have locked; likewise
+ * the waits-for graph is kept by waiting transaction.
+ * <p>
+ * The number of shards defaults to the value of the system property
+ * simpledb.lockShards, or 64 if that is not set.
+ */
 public class LockManager {
-    private ConcurrentHashMap<PageId, HashSet<TransactionId>> sharedLocks;
-    private ConcurrentHashMap<PageId, TransactionId> exclusiveLocks;
-    private ConcurrentHashMap<TransactionId, HashSet<TransactionId>> lockTracker;
+
+    /** How a LockManager deals with deadlocks. */
+    public enum DeadlockPolicy {
+        DETECT,
+        WAIT_DIE,
+        WOUND_WAIT
+    }
+
+    /**
+     * Modes of locks: intention shared, intention exclusive, shared, shared
+     * with intention exclusive, and exclusive.
+     */
+    public enum LockMode {
+        IS,
+        IX,
+        S,
+        SIX,
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+            { true, true, true, true, false },
+            { true, true, false, false, false },
+            { true, false, true, false, false },
+            { true, false, false, false, false },
+            { false, false, false, false, false },
+        };
+
+        private static final LockMode[][] JOIN = {
+            { IS, IX, S, SIX, X },
+            { IX, IX, SIX, SIX, X },
+            { S, SIX, S, SIX, X },
+            { SIX, SIX, SIX, SIX, X },
+            { X, X, X, X, X },
+        };
+
+        /** @return whether two transactions may hold this mode and other at once */
+        public boolean compatible(LockMode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode at least as strong as this one and other */
+        public LockMode join(LockMode other) {
+            return JOIN[ordinal()][other.ordinal()];
+        }
+
+        /** @return whether holding this mode gives all that other gives */
+        public boolean covers(LockMode other) {
+            return join(other) == this;
+        }
+    }
+
+    private static final LockMode[] MODES = LockMode.values();
+
+    /** Number of shards of the lock table of new LockManagers. */
+    public static final int DEFAULT_SHARDS = Integer.getInteger("simpledb.lockShards", 64);
+
+    /** Deadlock policy of new LockManagers. */
+    public static final DeadlockPolicy DEFAULT_DEADLOCK_POLICY =
+            DeadlockPolicy.valueOf(System.getProperty("simpledb.deadlockPolicy", "detect").toUpperCase());
+
+    /** Record locks a transaction may hold on a page before they are escalated, in new LockManagers. */
+    public static final int DEFAULT_ESCALATION = Integer.getInteger("simpledb.lockEscalation", 64);
+
+    // the item of the lock table that stands for a whole table
+    private static final class TableKey {
+        final int tableId;
+
+        TableKey(int tableId) {
+            this.tableId = tableId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof TableKey && ((TableKey) o).tableId == this.tableId;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.tableId * 0x9e3779b1;
+        }
+    }
+
+    // a transaction's request for a lock, which its thread waits on until
+    // the request is granted or aborted; the mode is the one the transaction
+    // will hold once it is granted, and the flags are guarded by the request
+    private static class Request {
+        final Object key;
+        final TransactionId tid;
+        final LockMode mode;
+        boolean granted;
+        boolean aborted;
+
+        Request(Object key, TransactionId tid, LockMode mode) {
+            this.key = key;
+            this.tid = tid;
+            this.mode = mode;
+        }
+    }
+
+    // the lock of a table, page or record: the transactions holding it with
+    // their modes, the number of holders in each mode, and the requests
+    // waiting for it in the order they were made
+    private static class Lock {
+        final HashMap<TransactionId, LockMode> holders = new HashMap<>();
+        final int[] held = new int[MODES.length];
+        final LinkedList<Request> queue = new LinkedList<>();
+    }
+
+    // a part of the lock table; its monitor guards its locks
+    private static class Shard {
+        final HashMap<Object, Lock> locks = new HashMap<>();
+    }
+
+    private final Shard[] shards;
+    private final DeadlockDetector detector;
+    private volatile DeadlockPolicy deadlockPolicy = DEFAULT_DEADLOCK_POLICY;
+    private volatile int escalation = DEFAULT_ESCALATION;
+
+    // the transactions each waiting transaction waits for; guarded by itself,
+    // which is taken after a shard's monitor
+    private final HashMap<TransactionId, HashSet<TransactionId>> waitsFor = new HashMap<>();
+    // the request each waiting transaction waits on
+    private final ConcurrentHashMap<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+    // the transactions wounded under WOUND_WAIT that haven't released their locks yet
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    // the items each transaction holds or has requested locks on; an item
+    // is added under its shard's monitor, and may stay after the transaction
+    // gave up its request
+    private final ConcurrentHashMap<TransactionId, Set<Object>> footprints = new ConcurrentHashMap<>();
+    // the number of records each transaction has locked on each page,
+    // counted until the locks are escalated
+    private final ConcurrentHashMap<TransactionId, ConcurrentHashMap<PageId, Integer>> recordCounts =
+            new ConcurrentHashMap<>();
 
     public LockManager () {
-        this.sharedLocks = new ConcurrentHashMap<>();
-        this.exclusiveLocks = new ConcurrentHashMap<>();
-        this.lockTracker = new ConcurrentHashMap<>();
+        this(DEFAULT_SHARDS);
+    }
+
+    /**
+     * Creates a lock manager whose lock table has the given number of shards.
+     */
+    public LockManager(int numShards) {
+        if (numShards <= 0) {
+            throw new IllegalArgumentException("lock table of " + numShards + " shards");
+        }
+        this.shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.detector = new DeadlockDetector(this);
+    }
+
+    /** @return the deadlock detector of this lock manager */
+    public DeadlockDetector getDetector() {
+        return this.detector;
+    }
+
+    /** @return how this lock manager deals with deadlocks */
+    public DeadlockPolicy getDeadlockPolicy() {
+        return this.deadlockPolicy;
+    }
+
+    /** Sets how this lock manager deals with deadlocks. */
+    public void setDeadlockPolicy(DeadlockPolicy deadlockPolicy) {
+        if (deadlockPolicy == null) {
+            throw new IllegalArgumentException("no deadlock policy");
+        }
+        this.deadlockPolicy = deadlockPolicy;
+    }
+
+    /** @return the number of record locks a transaction may hold on a page before they are escalated */
+    public int getEscalationThreshold() {
+        return this.escalation;
+    }
+
+    /** Sets the number of record locks a transaction may hold on a page before they are escalated. */
+    public void setEscalationThreshold(int escalation) {
+        if (escalation <= 0) {
+            throw new IllegalArgumentException("escalation threshold " + escalation + " not positive");
+        }
+        this.escalation = escalation;
     }
 
     /**
-     * Obtains the lock for a page
+     * @return the item of the lock table that stands for a table
+     */
+    static Object tableKey(int tableId) {
+        return new TableKey(tableId);
+    }
+
+    private Shard shardOf(Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return this.shards[(h & 0x7fffffff) % this.shards.length];
+    }
+
+    /**
+     * Obtains the lock for a page, and the intention lock for its table
      *
      * @param pid page ID of the page to be locked
      * @param tid the Transaction ID that wants to obtain the lock on the page
      * @param permissions the requested permissions for the page
-     * @throws TransactionAbortedException when a deadlock occurs
+     * @throws TransactionAbortedException when a deadlock occurs, or would
+     *   under a prevention policy
      */
-    public synchronized void getLock(PageId pid, TransactionId tid, Permissions permissions) throws TransactionAbortedException {
-        if (permissions.equals(Permissions.READ_WRITE)) {
-            // if we have an exclusive lock on the current page
-            if (holdsLock(pid, tid, LockType.EXCLUSIVE)) {
-                return;
-            }
-
-            // there's a exclusive lock on the page, wait till the lock is released
-            checkBecauseExclusiveLock(pid, tid);
+    public void getLock(PageId pid, TransactionId tid, Permissions permissions) throws TransactionAbortedException {
+        boolean exclusive = permissions.equals(Permissions.READ_WRITE);
+        acquire(new TableKey(pid.getTableId()), tid, exclusive ? LockMode.IX : LockMode.IS);
+        acquire(pid, tid, exclusive ? LockMode.X : LockMode.S);
+    }
 
-            // we don't have exclusive lock on this page, we need to acquire it
+    /**
+     * Obtains the lock for a record, and the intention locks for its table
+     * and page, unless the transaction's lock on the page covers the record.
+     * Escalates the transaction's record locks on the page to a page lock
+     * once there are more than the escalation threshold of them.
+     *
+     * @param rid the record to be locked
+     * @param tid the Transaction ID that wants to obtain the lock on the record
+     * @param permissions the requested permissions for the record
+     * @throws TransactionAbortedException when a deadlock occurs, or would
+     *   under a prevention policy
+     */
+    public void getRecordLock(RecordId rid, TransactionId tid, Permissions permissions)
+            throws TransactionAbortedException {
+        boolean exclusive = permissions.equals(Permissions.READ_WRITE);
+        PageId pid = rid.getPageId();
+        LockMode page = heldMode(pid, tid);
+        if (page != null && page.covers(exclusive ? LockMode.X : LockMode.S)) {
+            return;
+        }
+        acquire(new TableKey(pid.getTableId()), tid, exclusive ? LockMode.IX : LockMode.IS);
+        acquire(pid, tid, exclusive ? LockMode.IX : LockMode.IS);
+        if (!acquire(rid, tid, exclusive ? LockMode.X : LockMode.S)) {
+            return;
+        }
+        if (countRecord(pid, tid) > this.escalation) {
+            LockMode held = heldMode(pid, tid);
+            acquire(pid, tid, held == LockMode.IS ? LockMode.S : LockMode.X);
+            escalated(pid, tid);
+        }
+    }
 
-            if (sharedLockOnPage(pid)) {
-                if (!upgradeLock(pid, tid)) {
-                    checkBecauseSharedLock(pid, tid);
-                }
-            }
+    /**
+     * Obtains the intention locks for a page and its table that a
+     * transaction takes before it locks records on the page
+     *
+     * @param pid page ID of the page to be locked
+     * @param tid the Transaction ID that wants to obtain the lock on the page
+     * @param permissions the permissions the transaction will ask for on
+     *   the page's records
+     * @throws TransactionAbortedException when a deadlock occurs, or would
+     *   under a prevention policy
+     */
+    public void getIntentionLock(PageId pid, TransactionId tid, Permissions permissions)
+            throws TransactionAbortedException {
+        LockMode mode = permissions.equals(Permissions.READ_WRITE) ? LockMode.IX : LockMode.IS;
+        acquire(new TableKey(pid.getTableId()), tid, mode);
+        acquire(pid, tid, mode);
+    }
 
-            // we don't have a lock on this page and we are allowed to get an exclusive lock
-            this.exclusiveLocks.put(pid, tid);
+    /**
+     * Obtains a lock on a whole table, which covers its pages and records.
+     *
+     * @param tableId the table to be locked
+     * @param tid the Transaction ID that wants to obtain the lock on the table
+     * @param permissions the requested permissions for the table
+     * @throws TransactionAbortedException when a deadlock occurs, or would
+     *   under a prevention policy
+     */
+    public void getTableLock(int tableId, TransactionId tid, Permissions permissions)
+            throws TransactionAbortedException {
+        acquire(new TableKey(tableId), tid,
+                permissions.equals(Permissions.READ_WRITE) ? LockMode.X : LockMode.S);
+    }
 
-            // we acquired the lock, remove traces of tid from lock tracker
-            removeFromLockTracker(tid);
-        } else { // Permissions.READ_ONLY
+    /**
+     * Obtains an exclusive lock on a record if that can be done without
+     * waiting; the transaction must hold the intention locks on its page
+     * and table. If
+     * the transaction then holds more than the escalation threshold of
+     * record locks on the page, they are escalated to an X lock on the page
+     * if that can be done without waiting.
+     *
+     * @param rid the record to be locked
+     * @param tid the Transaction ID that wants to obtain the lock on the record
+     * @return true if tid now holds an exclusive lock on the record, or on
+     *         its page; false if another transaction holds a lock on the
+     *         record, or requests for it are waiting
+     */
+    public boolean tryRecordLock(RecordId rid, TransactionId tid) {
+        PageId pid = rid.getPageId();
+        if (heldMode(pid, tid) == LockMode.X) {
+            return true;
+        }
+        LockMode held = heldMode(rid, tid);
+        if (held == LockMode.X) {
+            return true;
+        }
+        if (!tryAcquire(rid, tid, LockMode.X)) {
+            return false;
+        }
+        if (held == null && countRecord(pid, tid) > this.escalation && tryAcquire(pid, tid, LockMode.X)) {
+            escalated(pid, tid);
+        }
+        return true;
+    }
 
-            if (holdsLock(pid, tid, LockType.ANY)) {
-                return;
+    /**
+     * Counts a record lock a transaction took on a page.
+     *
+     * @return the number of record locks it took on the page since they
+     *   were last escalated
+     */
+    private int countRecord(PageId pid, TransactionId tid) {
+        ConcurrentHashMap<PageId, Integer> counts = this.recordCounts.get(tid);
+        if (counts == null) {
+            counts = new ConcurrentHashMap<>();
+            ConcurrentHashMap<PageId, Integer> raced = this.recordCounts.putIfAbsent(tid, counts);
+            if (raced != null) {
+                counts = raced;
             }
+        }
+        Integer n = counts.get(pid);
+        n = n == null ? 1 : n + 1;
+        counts.put(pid, n);
+        return n;
+    }
 
-            checkBecauseExclusiveLock(pid, tid);
+    /**
+     * Releases a transaction's record locks on a page once it holds a lock
+     * on the page that covers them.
+     */
+    private void escalated(PageId pid, TransactionId tid) {
+        ConcurrentHashMap<PageId, Integer> counts = this.recordCounts.get(tid);
+        if (counts != null) {
+            counts.remove(pid);
+        }
+        Set<Object> keys = this.footprints.get(tid);
+        if (keys == null) {
+            return;
+        }
+        for (Object key : keys) {
+            if (key instanceof RecordId && ((RecordId) key).getPageId().equals(pid)) {
+                release(key, tid);
+            }
+        }
+    }
 
-            // we don't have exclusive lock on this page, we can acquire shared lock
+    /**
+     * Obtains a lock in the given mode, or in the join of it and the mode
+     * the transaction holds.
+     *
+     * @return whether the transaction held no lock on the item before
+     */
+    private boolean acquire(Object key, TransactionId tid, LockMode wanted) throws TransactionAbortedException {
+        if (this.wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+        Shard shard = shardOf(key);
+        Request request;
+        boolean fresh;
+        synchronized (shard) {
+            Lock lock = shard.locks.get(key);
+            if (lock == null) {
+                lock = new Lock();
+                shard.locks.put(key, lock);
+            }
+            LockMode held = lock.holders.get(tid);
+            if (held != null && held.covers(wanted)) {
+                return false;
+            }
+            fresh = held == null;
+            LockMode mode = fresh ? wanted : held.join(wanted);
+            track(tid, key);
+            // a conversion needn't wait for requests that wait for tid anyway
+            if (canGrant(lock, tid, mode) && (!fresh || lock.queue.isEmpty())) {
+                grant(lock, tid, mode);
+                if (!lock.queue.isEmpty()) {
+                    // the waiters now conflict with tid
+                    update(shard, key, lock);
+                }
+                return fresh;
+            }
 
-            if (sharedLockOnPage(pid)) {
-                // this page already holds some shared locks so we add our tid to the existing hash set
-                this.sharedLocks.get(pid).add(tid);
+            request = new Request(key, tid, mode);
+            if (!fresh) {
+                lock.queue.addFirst(request);
             } else {
-                // this page does not contain any shared lock, we initialise hash set
-                HashSet<TransactionId> sharedTid = new HashSet<>();
-                sharedTid.add(tid);
-                this.sharedLocks.put(pid, sharedTid);
+                lock.queue.addLast(request);
             }
+            this.waiting.put(tid, request);
+            // wounded since the check above, maybe too early for wound to
+            // find this request
+            if (this.wounded.contains(tid)) {
+                synchronized (request) {
+                    request.aborted = true;
+                }
+            }
+            update(shard, key, lock);
+        }
+        boolean detect = this.deadlockPolicy == DeadlockPolicy.DETECT;
+        if (detect) {
+            this.detector.waitStarted();
+        }
 
-            // shared lock acquired
-            // we can remove tid from lock tracker
-            removeFromLockTracker(tid);
+        boolean interrupted = false;
+        while (true) {
+            synchronized (request) {
+                if (request.granted || request.aborted) {
+                    break;
+                }
+                try {
+                    request.wait(this.detector.getInterval());
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+                if (request.granted || request.aborted) {
+                    break;
+                }
+            }
+            // the detector may have stopped just as this request was queued
+            if (detect) {
+                this.detector.wake();
+            }
         }
+        synchronized (request) {
+            if (request.granted) {
+                return fresh;
+            }
+            // give up the request when interrupted
+            request.aborted = true;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        // an aborted request may still be queued, e.g. if its transaction
+        // was wounded or its thread interrupted
+        synchronized (shard) {
+            Lock lock = shard.locks.get(key);
+            if (lock != null && lock.queue.remove(request)) {
+                forget(request);
+                update(shard, key, lock);
+            }
+        }
+        throw new TransactionAbortedException();
     }
 
     /**
-     * Attempts to abort or retry to obtain the lock while waiting
-     * due to a shared lock
+     * Obtains a shared lock on a page, and the intention lock for its
+     * table, if that can be done without waiting
      *
      * @param pid page ID of the page to be locked
-     * @param tid the Transaction ID that we want to check against
-     * @throws TransactionAbortedException when a deadlock occurs
+     * @param tid the Transaction ID that wants to obtain the lock on the page
+     * @return true if tid now holds a lock on the page; false if another
+     *         transaction holds a conflicting lock on it or its table, or
+     *         requests for them are waiting
      */
-    private void checkBecauseSharedLock(PageId pid, TransactionId tid) throws TransactionAbortedException {
-        // add the given tid's dependency on the tids that holds the shared lock to the lock
-        addDependencies(tid, this.sharedLocks.get(pid));
-
-        // add check for deadlock
-        if (deadlockDetected(tid)) {
-            removeFromLockTracker(tid);
-            // if deadlock detected, throw exception
-            throw new TransactionAbortedException();
+    public boolean trySharedLock(PageId pid, TransactionId tid) {
+        if (heldMode(pid, tid) != null) {
+            return true;
         }
+        TableKey table = new TableKey(pid.getTableId());
+        boolean fresh = heldMode(table, tid) == null;
+        if (!tryAcquire(table, tid, LockMode.IS)) {
+            return false;
+        }
+        if (!tryAcquire(pid, tid, LockMode.S)) {
+            if (fresh) {
+                release(table, tid);
+            }
+            return false;
+        }
+        return true;
+    }
 
-        try {
-            wait();
-            if (sharedLockOnPage(pid)) {
-                if (!upgradeLock(pid, tid)) {
-                    checkBecauseExclusiveLock(pid, tid);
-                    checkBecauseSharedLock(pid, tid);
+    /**
+     * Obtains a lock in the given mode, or in the join of it and the mode
+     * the transaction holds, if that can be done without waiting.
+     *
+     * @return whether the transaction now holds the lock
+     */
+    private boolean tryAcquire(Object key, TransactionId tid, LockMode wanted) {
+        if (this.wounded.contains(tid)) {
+            return false;
+        }
+        Shard shard = shardOf(key);
+        synchronized (shard) {
+            Lock lock = shard.locks.get(key);
+            if (lock == null) {
+                lock = new Lock();
+                shard.locks.put(key, lock);
+            }
+            LockMode held = lock.holders.get(tid);
+            if (held != null && held.covers(wanted)) {
+                return true;
+            }
+            LockMode mode = held == null ? wanted : held.join(wanted);
+            if (!canGrant(lock, tid, mode) || (held == null && !lock.queue.isEmpty())) {
+                if (lock.holders.isEmpty() && lock.queue.isEmpty()) {
+                    shard.locks.remove(key);
                 }
+                return false;
             }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            track(tid, key);
+            grant(lock, tid, mode);
+            if (!lock.queue.isEmpty()) {
+                update(shard, key, lock);
+            }
+            return true;
         }
     }
 
     /**
-     * Attempts to abort or retry to obtain the lock while waiting
-     * due to an exclusive lock
-     *
-     * @param pid page ID of the page to be locked
-     * @param tid the Transaction ID that we want to check against
-     * @throws TransactionAbortedException when a deadlock occurs
+     * @return true if tid may be granted the lock in the given mode,
+     *   ignoring the queue
      */
-    private void checkBecauseExclusiveLock(PageId pid, TransactionId tid) throws TransactionAbortedException {
-        if (exclusiveLockOnPage(pid)) {
-            addDependencies(tid, this.exclusiveLocks.get(pid));
-
-            // add check for deadlock
-            if (deadlockDetected(tid)) {
-                removeFromLockTracker(tid);
-                // if deadlock detected, throw exception
-                throw new TransactionAbortedException();
-            }
-
-            // no deadlock detected so we wait on the exclusive lock until we can grab it
-            try {
-                while (exclusiveLockOnPage(pid)) {
-                    wait();
-
-                    // add check for deadlock again, because you will never know
-                    if (deadlockDetected(tid)) {
-                        removeFromLockTracker(tid);
-                        // if deadlock detected, throw exception
-                        throw new TransactionAbortedException();
+    private static boolean canGrant(Lock lock, TransactionId tid, LockMode mode) {
+        LockMode mine = lock.holders.get(tid);
+        for (LockMode m : MODES) {
+            int others = lock.held[m.ordinal()] - (m == mine ? 1 : 0);
+            if (others > 0 && !m.compatible(mode)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void track(TransactionId tid, Object key) {
+        Set<Object> keys = this.footprints.get(tid);
+        if (keys == null) {
+            keys = ConcurrentHashMap.newKeySet();
+            Set<Object> raced = this.footprints.putIfAbsent(tid, keys);
+            if (raced != null) {
+                keys = raced;
+            }
+        }
+        keys.add(key);
+    }
+
+    private static void grant(Lock lock, TransactionId tid, LockMode mode) {
+        LockMode old = lock.holders.put(tid, mode);
+        if (old != null) {
+            lock.held[old.ordinal()]--;
+        }
+        lock.held[mode.ordinal()]++;
+    }
+
+    /**
+     * @return whether tid held the lock
+     */
+    private static boolean removeHolder(Lock lock, TransactionId tid) {
+        LockMode old = lock.holders.remove(tid);
+        if (old == null) {
+            return false;
+        }
+        lock.held[old.ordinal()]--;
+        return true;
+    }
+
+    /**
+     * Brings the waiters of a lock up to date after it changed: grants the
+     * requests at the head of its queue that can be granted, and drops
+     * those aborted meanwhile; recomputes what the others wait for, or
+     * aborts and wounds transactions as the prevention policy says; and
+     * drops the lock from the table once nobody holds or wants it. Called
+     * holding the shard's monitor.
+     */
+    private void update(Shard shard, Object key, Lock lock) {
+        while (true) {
+            Iterator<Request> it = lock.queue.iterator();
+            while (it.hasNext()) {
+                Request r = it.next();
+                synchronized (r) {
+                    if (!r.aborted && !canGrant(lock, r.tid, r.mode)) {
+                        break;
+                    }
+                    // before a granted request's thread can go on to its
+                    // next request
+                    forget(r);
+                    if (!r.aborted) {
+                        grant(lock, r.tid, r.mode);
+                        r.granted = true;
+                        r.notify();
                     }
                 }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+                it.remove();
             }
+            if (lock.queue.isEmpty()) {
+                break;
+            }
+
+            DeadlockPolicy policy = this.deadlockPolicy;
+            if (policy == DeadlockPolicy.DETECT) {
+                updateWaitsFor(lock);
+                break;
+            }
+            Request victim = prevent(lock, policy == DeadlockPolicy.WAIT_DIE);
+            if (victim == null) {
+                break;
+            }
+            // the victim's request goes, which may let others through
+            lock.queue.remove(victim);
+            forget(victim);
+            synchronized (victim) {
+                victim.aborted = true;
+                victim.notify();
+            }
+        }
+        if (lock.holders.isEmpty() && lock.queue.isEmpty()) {
+            shard.locks.remove(key);
         }
     }
 
     /**
-     * Checks and returns true if there is a shared lock on a specified pid;
-     * returns false otherwise
-     *
-     * @param pid page ID of the page to be locked
-     * @return true if there is a shared lock on the pid; false otherwise
+     * Recomputes the transactions the waiters of a lock wait for in the
+     * waits-for graph: the holders and the requests ahead of them whose
+     * modes they are incompatible with.
      */
-    private synchronized boolean sharedLockOnPage(PageId pid) {
-        return this.sharedLocks.containsKey(pid);
+    private void updateWaitsFor(Lock lock) {
+        ArrayList<Request> ahead = new ArrayList<>();
+        synchronized (this.waitsFor) {
+            for (Request r : lock.queue) {
+                HashSet<TransactionId> edges = new HashSet<>();
+                for (Map.Entry<TransactionId, LockMode> h : lock.holders.entrySet()) {
+                    if (!h.getValue().compatible(r.mode)) {
+                        edges.add(h.getKey());
+                    }
+                }
+                for (Request q : ahead) {
+                    if (!q.mode.compatible(r.mode)) {
+                        edges.add(q.tid);
+                    }
+                }
+                edges.remove(r.tid);
+                this.waitsFor.put(r.tid, edges);
+                ahead.add(r);
+            }
+        }
     }
 
     /**
-     * Checks and returns true if there is an exclusive lock on a specified pid;
-     * returns false otherwise
+     * Checks the waiters of a lock against the transactions they wait for
+     * by age. Under wait-die, finds a waiter that waits for an older
+     * transaction; under wound-wait, wounds the younger holders waiters
+     * wait for, and finds a younger request a waiter waits for.
      *
-     * @param pid page ID of the page to be locked
-     * @return true if there is an exclusive lock on the pid; false otherwise
+     * @return a request to abort, or null if there is none
      */
-    private synchronized boolean exclusiveLockOnPage(PageId pid) {
-        return this.exclusiveLocks.containsKey(pid);
+    private Request prevent(Lock lock, boolean waitDie) {
+        ArrayList<Request> ahead = new ArrayList<>();
+        for (Request r : lock.queue) {
+            long age = r.tid.getId();
+            for (Map.Entry<TransactionId, LockMode> h : lock.holders.entrySet()) {
+                TransactionId holder = h.getKey();
+                if (holder.equals(r.tid) || h.getValue().compatible(r.mode)) {
+                    continue;
+                }
+                if (waitDie && holder.getId() < age) {
+                    return r;
+                }
+                if (!waitDie && holder.getId() > age) {
+                    wound(holder);
+                }
+            }
+            for (Request q : ahead) {
+                if (!q.mode.compatible(r.mode) && !q.tid.equals(r.tid)) {
+                    if (waitDie && q.tid.getId() < age) {
+                        return r;
+                    }
+                    if (!waitDie && q.tid.getId() > age) {
+                        this.wounded.add(q.tid);
+                        return q;
+                    }
+                }
+            }
+            ahead.add(r);
+        }
+        return null;
     }
 
     /**
-     * Attempts to upgrade the lock on a page
-     *
-     * @param pid page ID of the page to be locked
-     * @param tid the Transaction ID that holds the lock on the page
-     * @return true if lock has been upgraded; false otherwise
+     * Wounds a transaction: aborts the request it waits on, if any, and
+     * its next request for a lock.
      */
-    private synchronized boolean upgradeLock(PageId pid, TransactionId tid) {
-        if (this.sharedLocks.get(pid).size() == 1 && this.sharedLocks.get(pid).contains(tid)) {
-            this.exclusiveLocks.remove(pid);
-            return true;
+    private void wound(TransactionId tid) {
+        if (!this.wounded.add(tid)) {
+            return;
+        }
+        Request r = this.waiting.get(tid);
+        if (r != null) {
+            // its thread takes the request out of its queue
+            synchronized (r) {
+                if (!r.granted) {
+                    r.aborted = true;
+                    r.notify();
+                }
+            }
         }
-        return false;
     }
 
     /**
@@ -189,50 +808,90 @@ public class LockManager {
      * @param pid page ID of the page to be locked
      * @param tid the Transaction ID we want to check against
      * @param lock the enum type of lock to check for; may be ANY, SHARED, EXCLUSIVE
-     * @return true if the tid holds some type of lock on pid; false otherwise
+     * @return true if the tid holds some type of lock on pid, intention
+     *   locks included for ANY; false otherwise
      */
-    public synchronized boolean holdsLock(PageId pid, TransactionId tid, LockType lock) {
-        if (lock == LockType.ANY) {
-            return (sharedLockOnPage(pid) && this.sharedLocks.get(pid).contains(tid)) ||
-                    (exclusiveLockOnPage(pid) && this.exclusiveLocks.get(pid).equals(tid));
-        }
+    public boolean holdsLock(PageId pid, TransactionId tid, LockType lock) {
+        return holds(heldMode(pid, tid), lock);
+    }
 
+    /**
+     * Checks if there is some type of lock on a specified record, not
+     * counting the locks on its page that cover it
+     *
+     * @param rid the record to check
+     * @param tid the Transaction ID we want to check against
+     * @param lock the enum type of lock to check for; may be ANY, SHARED, EXCLUSIVE
+     * @return true if the tid holds some type of lock on rid; false otherwise
+     */
+    public boolean holdsLock(RecordId rid, TransactionId tid, LockType lock) {
+        return holds(heldMode(rid, tid), lock);
+    }
+
+    private static boolean holds(LockMode mode, LockType lock) {
+        if (mode == null) {
+            return false;
+        }
         if (lock == LockType.SHARED) {
-            return sharedLockOnPage(pid) && this.sharedLocks.get(pid).contains(tid);
+            return mode == LockMode.S || mode == LockMode.SIX;
         }
-
         if (lock == LockType.EXCLUSIVE) {
-            return exclusiveLockOnPage(pid) && this.exclusiveLocks.get(pid).equals(tid);
+            return mode == LockMode.X;
         }
+        return true;
+    }
 
-        return false;
+    /**
+     * @return the mode of the lock a transaction holds on an item of the
+     *   lock table, i.e. a PageId, a RecordId or a {@link #tableKey}, or
+     *   null if it holds none
+     */
+    LockMode heldMode(Object key, TransactionId tid) {
+        Shard shard = shardOf(key);
+        synchronized (shard) {
+            Lock lock = shard.locks.get(key);
+            return lock == null ? null : lock.holders.get(tid);
+        }
     }
 
     /**
-     * Releases all locks that are held by a specified tid for all pages
+     * Releases all locks that are held by a specified tid on tables, pages
+     * and records, and aborts its requests still waiting, e.g. those of
+     * threads that died
      *
      * @param tid the Transaction ID whose locks we want to release
      */
-    public synchronized void releaseAllLocks(TransactionId tid) {
-        // find all pages that the given tid holds a shared lock on
-        for (PageId pid : this.sharedLocks.keySet()) {
-            // if the tid has a shared lock on the given page, we have to release it
-            if (holdsLock(pid, tid, LockType.SHARED)) {
-                this.sharedLocks.get(pid).remove(tid);
-                if (this.sharedLocks.get(pid).size() == 0) {
-                    this.sharedLocks.remove(pid);
+    public void releaseAllLocks(TransactionId tid) {
+        Set<Object> keys = this.footprints.remove(tid);
+        if (keys != null) {
+            for (Object key : keys) {
+                Shard shard = shardOf(key);
+                synchronized (shard) {
+                    Lock lock = shard.locks.get(key);
+                    if (lock == null) {
+                        continue;
+                    }
+                    boolean changed = removeHolder(lock, tid);
+                    for (Iterator<Request> it = lock.queue.iterator(); it.hasNext(); ) {
+                        Request r = it.next();
+                        if (r.tid.equals(tid)) {
+                            it.remove();
+                            forget(r);
+                            changed = true;
+                            synchronized (r) {
+                                r.aborted = true;
+                                r.notify();
+                            }
+                        }
+                    }
+                    if (changed) {
+                        update(shard, key, lock);
+                    }
                 }
             }
         }
-
-        // find pages that the tid has an exclusive lock on
-        for (PageId pid : this.exclusiveLocks.keySet()) {
-            // if the tid has an exclusive lock on the given page, we have release it
-            if (holdsLock(pid, tid, LockType.EXCLUSIVE)) {
-                this.exclusiveLocks.remove(pid);
-            }
-        }
-        notifyAll();
+        this.recordCounts.remove(tid);
+        this.wounded.remove(tid);
     }
 
     /**
@@ -241,127 +900,148 @@ public class LockManager {
      * @param pid the page ID held by the lock we want to release
      * @param tid the Transaction ID that wants to obtain the lock on the page
      */
-    public synchronized void releaseLock(PageId pid, TransactionId tid) {
-        // if the tid has a shared lock on pid, we need to release it
-        if (holdsLock(pid, tid, LockType.SHARED)) {
-            this.sharedLocks.get(pid).remove(tid);
-            if (this.sharedLocks.get(pid).size() == 0) {
-                this.sharedLocks.remove(pid);
-            }
-        }
-
-        // if the tid has an exclusive lock on the pid, we need to release it
-        if (holdsLock(pid, tid, LockType.EXCLUSIVE)) {
-            this.exclusiveLocks.remove(pid);
-        }
-        notifyAll();
+    public void releaseLock(PageId pid, TransactionId tid) {
+        release(pid, tid);
     }
 
     /**
+     * Releases the lock that is held by a specified transaction on a
+     * specified table, e.g. the intention lock it took for a page lock it
+     * released
      *
-     * Adds dependency between two transaction ids
-     *
-     * @param tid1 first transaction id, tid that depends on tid2 (waiting on tid2)
-     * @param tid2 second transaction id, tid that tid1 depends on
+     * @param tableId the table whose lock we want to release
+     * @param tid the Transaction ID that holds the lock on the table
      */
-    public synchronized void addDependencies(TransactionId tid1, TransactionId tid2) {
-        // ensure that tid1 does not depend on itself
-        if (tid1.equals(tid2)) {
-            return;
-        }
+    public void releaseTableLock(int tableId, TransactionId tid) {
+        release(new TableKey(tableId), tid);
+    }
 
-        if (this.lockTracker.containsKey(tid1)) {
-            this.lockTracker.get(tid1).add(tid2);
-        } else {
-            HashSet<TransactionId> dependencySet = new HashSet<>();
-            dependencySet.add(tid2);
-            this.lockTracker.put(tid1, dependencySet);
+    private void release(Object key, TransactionId tid) {
+        Shard shard = shardOf(key);
+        synchronized (shard) {
+            Lock lock = shard.locks.get(key);
+            if (lock != null && removeHolder(lock, tid)) {
+                update(shard, key, lock);
+            }
+            Set<Object> keys = this.footprints.get(tid);
+            if (keys != null && (lock == null || lock.queue.isEmpty())) {
+                keys.remove(key);
+            }
         }
     }
 
     /**
-     * Adds dependency between one transaction id and a group of transaction ids
-     *
-     * @param tid transaction id that depends on sharedTid
-     * @param sharedTid group of transaction IDs that param tid depends on
+     * Removes what a transaction waits for from the waits-for graph, once a
+     * request no longer waits; unless the transaction already waits on a
+     * newer request
      */
-    public synchronized void addDependencies(TransactionId tid, HashSet<TransactionId> sharedTid) {
-        HashSet<TransactionId> lockQueue;
-        // fetch all tids that "tid" relies on
-        if (!this.lockTracker.containsKey(tid)) {
-            lockQueue = new HashSet<>();
-        } else {
-            lockQueue = this.lockTracker.get(tid);
+    private void forget(Request request) {
+        synchronized (this.waitsFor) {
+            if (this.waiting.remove(request.tid, request)) {
+                this.waitsFor.remove(request.tid);
+            }
         }
+    }
 
-        // in case 'tid'  is inside the set of 'sharedTid'
-        // we ensure 'tid' doesn't depend on itself
-        HashSet<TransactionId> dependencies = new HashSet<TransactionId>(sharedTid);
-        dependencies.remove(tid);
+    /**
+     * @return a copy of the waits-for graph: the transactions each waiting
+     *   transaction waits for
+     */
+    HashMap<TransactionId, HashSet<TransactionId>> waitsForGraph() {
+        HashMap<TransactionId, HashSet<TransactionId>> graph = new HashMap<>();
+        synchronized (this.waitsFor) {
+            for (Map.Entry<TransactionId, HashSet<TransactionId>> e : this.waitsFor.entrySet()) {
+                graph.put(e.getKey(), new HashSet<>(e.getValue()));
+            }
+        }
+        return graph;
+    }
 
-        // add all tids in 'sharedTid', so that they are dependencies for the given 'tid'
-        lockQueue.addAll(dependencies);
+    /**
+     * @return the number of tables, pages and records a transaction holds
+     *   or has requested locks on
+     */
+    int numLocks(TransactionId tid) {
+        Set<Object> keys = this.footprints.get(tid);
+        return keys == null ? 0 : keys.size();
+    }
 
-        this.lockTracker.put(tid, lockQueue);
+    /**
+     * @return the number of items a transaction holds exclusive locks on,
+     *   i.e. that it may have changed
+     */
+    int numExclusiveLocks(TransactionId tid) {
+        Set<Object> keys = this.footprints.get(tid);
+        if (keys == null) {
+            return 0;
+        }
+        int n = 0;
+        for (Object key : keys) {
+            if (heldMode(key, tid) == LockMode.X) {
+                n++;
+            }
+        }
+        return n;
     }
 
     /**
-     * Removes all (lock) dependencies associated with a specified transaction id
+     * Aborts the request a transaction waits on, if it is still part of a
+     * cycle of waits: its getLock throws a TransactionAbortedException. The
+     * transaction's locks are left to its abort to release.
      *
-     * @param tid the transaction id that should be removed from dependency tracker graph
+     * @return whether the request was aborted
      */
-    private synchronized void removeFromLockTracker(TransactionId tid) {
-        this.lockTracker.remove(tid);
-        for (TransactionId i : this.lockTracker.keySet()) {
-            this.lockTracker.get(i).remove(tid);
+    boolean abortWaiter(TransactionId tid) {
+        Request request = this.waiting.get(tid);
+        if (request == null) {
+            return false;
+        }
+        Shard shard = shardOf(request.key);
+        synchronized (shard) {
+            synchronized (this.waitsFor) {
+                if (this.waiting.get(tid) != request || !deadlocked(tid)) {
+                    return false;
+                }
+            }
+            Lock lock = shard.locks.get(request.key);
+            if (lock == null || !lock.queue.remove(request)) {
+                return false;
+            }
+            forget(request);
+            synchronized (request) {
+                request.aborted = true;
+                request.notify();
+            }
+            update(shard, request.key, lock);
+            return true;
         }
     }
 
     /**
-     * Checks for a deadlock associated with a specified transaction id
+     * Checks whether a transaction waits for itself through the waits-for
+     * graph. Called holding its monitor.
      *
      * @param tid transaction id we want to check for deadlocks
      * @return true if deadlock (cycle) is detected, false otherwise
      */
-    private synchronized boolean deadlockDetected(TransactionId tid) {
-        // if the specified tid is not in our lock tracker dependency graph
-        // that means it does not have any dependencies and thus deadlock is not possible
-        if (!this.lockTracker.containsKey(tid)) {
-            return false;
-        }
-
-        // Keep track of all tids/nodes we still need to check
-        Queue<TransactionId> toCheck = new LinkedList<>();
-
-        // add every tid to toCheck
+    private boolean deadlocked(TransactionId tid) {
+        HashSet<TransactionId> visited = new HashSet<>();
+        ArrayDeque<TransactionId> toCheck = new ArrayDeque<>();
         toCheck.add(tid);
-
-        // Keep track of all the tids/nodes we have checked
-        List<TransactionId> alreadyChecked = new ArrayList<>();
-
-        // check for deadlocks for all tids not yet visited
         while (!toCheck.isEmpty()) {
-            TransactionId currTid = toCheck.remove();
-            alreadyChecked.add(currTid);
-
-            // check if tid has other dependencies, if so, check each of its dependencies
-            if (this.lockTracker.containsKey(currTid)) {
-                HashSet<TransactionId> dependencies = this.lockTracker.get(currTid);
-                for (TransactionId t : dependencies) {
-                    // not yet visited, add to the not yet visited queue
-                    // because we need to check this node and its dependencies
-                    if (!alreadyChecked.contains(t)) {
-                        toCheck.add(t);
-                    } else {
-                        // we already visited this tid_dependency node as well as its dependencies which means
-                        // there is a cycle
-                        return true;
-                    }
+            HashSet<TransactionId> dependencies = this.waitsFor.get(toCheck.remove());
+            if (dependencies == null) {
+                continue;
+            }
+            for (TransactionId t : dependencies) {
+                if (t.equals(tid)) {
+                    return true;
+                }
+                if (visited.add(t)) {
+                    toCheck.add(t);
                 }
             }
-            // no dependencies listed, continue to next tid to check from queue
         }
-        // no cycle found in dependency graph, so no deadlock
         return false;
     }
 }
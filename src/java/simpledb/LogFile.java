@@ -3,6 +3,7 @@ package simpledb;
 
 import javax.xml.crypto.Data;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.lang.reflect.*;
 
@@ -16,12 +17,13 @@ two-phase locking discipline are followed.  <p>
 <p>
 
 Many of the methods here are synchronized (to prevent concurrent log
-writes from happening); many of the methods in BufferPool are also
-synchronized (for similar reasons.)  Problem is that BufferPool writes
-log records (on page flushed) and the log file flushes BufferPool
-pages (on checkpoints and recovery.)  This can lead to deadlock.  For
-that reason, any LogFile operation that needs to access the BufferPool
-must not be declared synchronized and must begin with a block like:
+writes from happening); BufferPool latches each of its frames (for
+similar reasons.)  Problem is that BufferPool writes log records (on
+page flushes and record changes) and the log file flushes and discards
+BufferPool pages (on checkpoints, rollback and recovery.)  This can lead
+to deadlock.  For that reason, any LogFile operation that needs to
+access the BufferPool must not be declared synchronized and must begin
+with a block like:
 
 <p>
 <pre>
@@ -33,6 +35,14 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+and may then take frame latches, through BufferPool.  BufferPool, for
+its part, never calls into LogFile while it holds a frame latch: it pins
+the page, drops the latch to log the page or force the log, and latches
+the frame again to write the page if it has not changed meanwhile.  The
+locks are thus taken in the order BufferPool monitor, LogFile monitor,
+frame latch.
 */
 
 /**
@@ -52,8 +62,8 @@ transaction id.
 <li> Each log record ends with a long integer file offset representing
 the position in the log file where the record began.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, BEGIN,
+CHECKPOINT, CLR and TUPLE
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -62,6 +72,18 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
+<li> TUPLE records log a change to a single record of a HeapPage, for
+pages that transactions change record by record under record locks (see
+BufferPool#insertRecord). They consist of the table id, page number and
+slot of the record, and the slot's contents before and after the change,
+each an integer length followed by the tuple's bytes, or -1 for an empty
+slot. A TUPLE record is written before the change is made; rolling back a
+change writes another TUPLE record with the images swapped, so redoing
+the log repeats the rollback too.
+
+<li> CLR records name the UPDATE record whose before image was written
+back when a transaction was rolled back, by its offset.
+
 <li> CHECKPOINT records consist of active transactions at the time
 the checkpoint was taken and their first log record on disk.  The format
 of the record is an integer count of the number of transactions, as well
@@ -84,12 +106,18 @@ public class LogFile {
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
     static final int CLR_RECORD = 6;
+    static final int TUPLE_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long currentOffset = -1;//protected by this
+    // the number of TUPLE records appended so far, and of those known to
+    // be on disk; the latter is written under this, and read without it
+    // by isForced
+    private long tupleRecords = 0;//protected by this
+    private volatile long forcedTupleRecords = 0;
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
@@ -99,6 +127,7 @@ public class LogFile {
         private long toUndoOffset;
         private long tidId;
         private Page before;
+        private TupleChange change;
 
         CLR(long toUndoOffset, long tidId, Page before) {
             this.toUndoOffset = toUndoOffset;
@@ -106,11 +135,35 @@ public class LogFile {
             this.before = before;
         }
 
+        CLR(long toUndoOffset, long tidId, TupleChange change) {
+            this.toUndoOffset = toUndoOffset;
+            this.tidId = tidId;
+            this.change = change;
+        }
+
         long getTidId() {return this.tidId;}
 
         long getToUndoOffset() {return this.toUndoOffset;}
 
         Page getBefore() {return this.before;}
+
+        /** The TUPLE record to undo, or null for an UPDATE record */
+        TupleChange getChange() {return this.change;}
+    }
+
+    /** The body of a TUPLE record */
+    private static class TupleChange {
+        final HeapPageId pid;
+        final int slot;
+        final Tuple before;
+        final Tuple after;
+
+        TupleChange(HeapPageId pid, int slot, Tuple before, Tuple after) {
+            this.pid = pid;
+            this.slot = slot;
+            this.before = before;
+            this.after = after;
+        }
     }
 
     /** Constructor.
@@ -177,7 +230,19 @@ public class LogFile {
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
                 rollback(tid);
+            }
 
+            // the changes to single records are undone in the buffer
+            // pool, after the whole pages: a page's before image may hold
+            // changes tid made to its records before it fetched the page
+            // for writing. Not under this monitor: undoing a change may
+            // wait for its page to be read, and the thread reading it may
+            // be logging the page it evicts to make room. BufferPool logs
+            // the undos itself, without its frame latches, so the locks
+            // are still taken in the order given above.
+            Database.getBufferPool().undoRecords(tid);
+
+            synchronized(this) {
                 raf.writeInt(ABORT_RECORD);
                 raf.writeLong(tid.getId());
                 raf.writeLong(currentOffset);
@@ -238,6 +303,106 @@ public class LogFile {
         Debug.log("WRITE OFFSET = " + currentOffset);
     }
 
+    /** Write a TUPLE record to the log for a change the specified tid
+        makes to one record of a page. Must be called before the page is
+        changed.
+        @param tid The transaction making the change
+        @param pid The page of the record
+        @param slot The slot of the record on the page
+        @param before The record before the change, or null if the slot was empty
+        @param after The record after the change, or null if the slot is emptied
+        @return The number of the record, which grows with each TUPLE
+        record, for {@link #forceTo}
+    */
+    public synchronized long logTupleWrite(TransactionId tid, HeapPageId pid, int slot,
+                                           Tuple before, Tuple after)
+        throws IOException {
+        return appendTupleChange(tid.getId(), new TupleChange(pid, slot, before, after));
+    }
+
+    private synchronized long appendTupleChange(long tidId, TupleChange change) throws IOException {
+        preAppend();
+        // one write for the record, which is small
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(TUPLE_RECORD);
+        out.writeLong(tidId);
+        out.writeInt(change.pid.getTableId());
+        out.writeInt(change.pid.getPageNumber());
+        out.writeInt(change.slot);
+        writeTupleData(out, change.before);
+        writeTupleData(out, change.after);
+        out.writeLong(currentOffset);
+        raf.write(bytes.toByteArray());
+        currentOffset = raf.getFilePointer();
+        return ++tupleRecords;
+    }
+
+    void writeTupleData(DataOutput out, Tuple t) throws IOException {
+        if (t == null) {
+            out.writeInt(-1);
+            return;
+        }
+        TupleDesc td = t.getTupleDesc();
+        ByteBuffer data = ByteBuffer.allocate(td.getSize());
+        for (int i = 0; i < td.numFields(); i++) {
+            t.getField(i).serialize(data, td.getFieldOffset(i));
+        }
+        out.writeInt(data.capacity());
+        out.write(data.array());
+    }
+
+    Tuple readTupleData(DataInput in, TupleDesc td) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        Tuple t = new Tuple(td, ByteBuffer.wrap(data), 0);
+        t.materialize();
+        return t;
+    }
+
+    /** Read the body of a TUPLE record, after its type and tid */
+    TupleChange readTupleChange(RandomAccessFile raf) throws IOException {
+        int tableId = raf.readInt();
+        HeapPageId pid = new HeapPageId(tableId, raf.readInt());
+        int slot = raf.readInt();
+        TupleDesc td = Database.getCatalog().getTupleDesc(tableId);
+        Tuple before = readTupleData(raf, td);
+        Tuple after = readTupleData(raf, td);
+        return new TupleChange(pid, slot, before, after);
+    }
+
+    /** Copy the body of a TUPLE record, after its type and tid */
+    private void copyTupleChange(RandomAccessFile from, RandomAccessFile to) throws IOException {
+        for (int i = 0; i < 3; i++) {
+            to.writeInt(from.readInt());
+        }
+        for (int i = 0; i < 2; i++) {
+            int length = from.readInt();
+            to.writeInt(length);
+            if (length > 0) {
+                byte[] data = new byte[length];
+                from.readFully(data);
+                to.write(data);
+            }
+        }
+    }
+
+    /** Put a record image into its slot of the page on disk, for redo and undo */
+    private void writeTupleImage(HeapPageId pid, int slot, Tuple t) throws IOException {
+        HeapFile heapFile = (HeapFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+        HeapPage page = (HeapPage) heapFile.readPage(pid);
+        try {
+            page.setTuple(slot, t);
+        } catch (DbException e) {
+            throw new IOException("cannot apply log record to " + pid + ": " + e.getMessage());
+        }
+        heapFile.writePage(page);
+    }
+
     void writePageData(RandomAccessFile raf, Page p) throws IOException{
         PageId pid = p.getId();
         int pageInfo[] = pid.serialize();
@@ -285,7 +450,7 @@ public class LogFile {
             }
             pid = (PageId)idConsts[0].newInstance(idArgs);
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
+            Constructor<?> pageConst = pageConstructor(pageClass);
             int pageSize = raf.readInt();
 
             byte[] pageData = new byte[pageSize];
@@ -295,7 +460,7 @@ public class LogFile {
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
+            newPage = (Page)pageConst.newInstance(pageArgs);
 
             //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
         } catch (ClassNotFoundException e){
@@ -315,6 +480,20 @@ public class LogFile {
 
     }
 
+    /** Find the Page(PageId id, byte[] data) constructor of a page class,
+        which may also declare other constructors.
+    */
+    private static Constructor<?> pageConstructor(Class<?> pageClass) throws IOException {
+        for (Constructor<?> c : pageClass.getDeclaredConstructors()) {
+            Class<?>[] params = c.getParameterTypes();
+            if (params.length == 2 && PageId.class.isAssignableFrom(params[0])
+                    && params[1] == byte[].class) {
+                return c;
+            }
+        }
+        throw new IOException("no (PageId, byte[]) constructor in " + pageClass.getName());
+    }
+
     /** Write a BEGIN record for the specified transaction
         @param tid The transaction that is beginning
 
@@ -348,6 +527,14 @@ public class LogFile {
                 Iterator<Long> els = keys.iterator();
                 force();
                 Database.getBufferPool().flushAllPages();
+                // the pages are on disk, so the free space maps can follow
+                Iterator<Integer> tables = Database.getCatalog().tableIdIterator();
+                while (tables.hasNext()) {
+                    DbFile file = Database.getCatalog().getDatabaseFile(tables.next());
+                    if (file instanceof HeapFile) {
+                        ((HeapFile) file).saveFreeSpaceMap();
+                    }
+                }
                 startCpOffset = raf.getFilePointer();
                 raf.writeInt(CHECKPOINT_RECORD);
                 raf.writeLong(-1); //no tid , but leave space for convenience
@@ -436,6 +623,12 @@ public class LogFile {
                     writePageData(logNew, before);
                     writePageData(logNew, after);
                     break;
+                case TUPLE_RECORD:
+                    copyTupleChange(raf, logNew);
+                    break;
+                case CLR_RECORD:
+                    logNew.writeLong((raf.readLong() - minLogRecord) + LONG_SIZE);
+                    break;
                 case CHECKPOINT_RECORD:
                     int numXactions = raf.readInt();
                     logNew.writeInt(numXactions);
@@ -462,6 +655,9 @@ public class LogFile {
 
         Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
 
+        // the records forced to the old log are to stay on disk
+        logNew.getChannel().force(true);
+        logNew.close();
         raf.close();
         logFile.delete();
         newFile.renameTo(logFile);
@@ -477,7 +673,10 @@ public class LogFile {
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  The changes it made to single
+        records are left to BufferPool#undoRecords, which undoes them
+        on the cached pages, where other transactions' changes to the
+        same pages are.
 
         @param tid The transaction to rollback
     */
@@ -496,12 +695,16 @@ public class LogFile {
 
                 HashSet<Long> loserIds = new HashSet<>();
                 loserIds.add(tidId);
-                this.undo(beginRollbackOffset, loserIds);
+                this.undo(beginRollbackOffset, loserIds, false);
             }
         }
     }
 
-    private synchronized void undo(long beginUndoOffset, HashSet<Long> toUndoTidIds) throws NoSuchElementException, IOException, EOFException {
+    /** Undo the changes of the given transactions logged from the given
+        offset on, latest first.  TUPLE records are undone only if
+        records is true, i.e. on recovery.
+    */
+    private synchronized void undo(long beginUndoOffset, HashSet<Long> toUndoTidIds, boolean records) throws NoSuchElementException, IOException, EOFException {
         preAppend();
 
         this.raf.seek(beginUndoOffset);
@@ -536,6 +739,13 @@ public class LogFile {
                         CLR clr = new CLR(toUndoOffset, recordTidId, before);
                         stack.push(clr);
                     }
+                } else if (recordType == TUPLE_RECORD) {
+                    TupleChange change = readTupleChange(this.raf);
+                    if (records && toUndoTidIds.contains(recordTidId)) {
+                        stack.push(new CLR(toUndoOffset, recordTidId, change));
+                    }
+                } else if (recordType == CLR_RECORD) {
+                    this.raf.skipBytes(LONG_SIZE);
                 }
 
                 // each log record ends with a long integer file offset that represents the position in the log file where the record began
@@ -552,6 +762,15 @@ public class LogFile {
             CLR clr = stack.pop();
             long tidId = clr.getTidId();
             long toUndoOffset = clr.getToUndoOffset();
+            TupleChange change = clr.getChange();
+            if (change != null) {
+                // compensate with the images swapped, then apply it
+                appendTupleChange(tidId, new TupleChange(change.pid, change.slot, change.after, change.before));
+                this.force();
+                writeTupleImage(change.pid, change.slot, change.before);
+                Database.getBufferPool().discardPage(change.pid);
+                continue;
+            }
             Page before = clr.getBefore();
 
             this.raf.writeInt(CLR_RECORD);
@@ -575,10 +794,12 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
@@ -679,6 +900,10 @@ public class LogFile {
                                 }
                                 this.raf.seek(filePointer);
                                 break;
+                            case TUPLE_RECORD:
+                                TupleChange change = readTupleChange(this.raf);
+                                writeTupleImage(change.pid, change.slot, change.after);
+                                break;
 
                             default:
                                 break;
@@ -697,7 +922,7 @@ public class LogFile {
                     beginUndoOffset = Math.min(beginUndoOffset, this.tidToFirstLogRecord.get(tidId));
                     this.tidToFirstLogRecord.remove(tidId);
                 }
-                this.undo(beginUndoOffset, loserTidIds);
+                this.undo(beginUndoOffset, loserTidIds, true);
             }
          }
     }
@@ -709,6 +934,26 @@ public class LogFile {
 
     public  synchronized void force() throws IOException {
         raf.getChannel().force(true);
+        forcedTupleRecords = tupleRecords;
+    }
+
+    /** Whether the given TUPLE record is known to be on disk.  Does not
+        wait for this monitor, so that it may be called under a
+        BufferPool frame latch.
+        @param record A number returned by {@link #logTupleWrite}, or 0
+    */
+    public boolean isForced(long record) {
+        return record <= forcedTupleRecords;
+    }
+
+    /** Force the log to disk if the given TUPLE record may not be there
+        yet.
+        @param record A number returned by {@link #logTupleWrite}, or 0
+    */
+    public synchronized void forceTo(long record) throws IOException {
+        if (record > forcedTupleRecords) {
+            force();
+        }
     }
 
 }
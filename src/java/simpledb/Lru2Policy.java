@@ -0,0 +1,186 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Lru2Policy approximates LRU-2, which evicts the page whose second most
+ * recent use is oldest, with the 2Q algorithm of Johnson and Shasha. Exact
+ * LRU-2 needs a priority queue; 2Q gets the same scan resistance in O(1).
+ * <p>
+ * Pages used once wait in a FIFO queue (A1in) that takes at most a quarter
+ * of the pool. A page evicted from it is remembered, without its data, in a
+ * ghost queue (A1out) the size of half the pool; if it is read again while
+ * remembered, it has shown a second use and joins the main LRU queue (Am).
+ * Victims come from A1in while it is over its share, and from the LRU end
+ * of Am otherwise. A page scanned once thus never displaces pages that are
+ * used repeatedly.
+ * <p>
+ * Queues are linked through per-frame arrays, so a hit only moves a frame
+ * within Am and allocates nothing.
+ */
+public class Lru2Policy implements EvictionPolicy {
+
+    private static final int NONE = -1;
+    private static final int A1IN = 0;
+    private static final int AM = 1;
+
+    private final int maxA1in;
+
+    // frame i holds page frames[i] in queue queue[i], or null if it is free
+    private PageId[] frames;
+    private int[] queue;
+    private int[] prev;
+    private int[] next;
+    private final HashMap<PageId, Integer> frameOf = new HashMap<>();
+    private int[] free;
+    private int numFree;
+
+    // most and least recently queued frame of A1in and Am
+    private final int[] head = {NONE, NONE};
+    private final int[] tail = {NONE, NONE};
+    private final int[] size = new int[2];
+
+    // recently evicted pages of A1in, oldest first, and their ring positions
+    private final PageId[] ghosts;
+    private final HashMap<PageId, Integer> ghostAt = new HashMap<>();
+    private int nextGhost;
+
+    /**
+     * Creates a policy for a buffer pool of the given number of pages; it
+     * grows if the pool ever holds more.
+     */
+    public Lru2Policy(int numPages) {
+        int n = Math.max(numPages, 1);
+        this.maxA1in = Math.max(n / 4, 1);
+        this.ghosts = new PageId[Math.max(n / 2, 1)];
+        this.frames = new PageId[n];
+        this.queue = new int[n];
+        this.prev = new int[n];
+        this.next = new int[n];
+        this.free = new int[n];
+        for (int i = 0; i < n; i++) {
+            this.free[i] = n - 1 - i;
+        }
+        this.numFree = n;
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        Integer frame = this.frameOf.get(pid);
+        if (frame != null) {
+            access(frame);
+            return;
+        }
+        if (this.numFree == 0) {
+            grow();
+        }
+        int f = this.free[--this.numFree];
+        this.frames[f] = pid;
+        this.frameOf.put(pid, f);
+
+        Integer ghost = this.ghostAt.remove(pid);
+        if (ghost != null) {
+            // a second use soon after the first: the page is worth keeping
+            this.ghosts[ghost] = null;
+            push(f, AM);
+        } else {
+            push(f, A1IN);
+        }
+    }
+
+    public synchronized void pageAccessed(PageId pid) {
+        Integer frame = this.frameOf.get(pid);
+        if (frame != null) {
+            access(frame);
+        }
+    }
+
+    private void access(int f) {
+        // uses while a page is in A1in are correlated with its first one
+        if (this.queue[f] == AM) {
+            unlink(f);
+            push(f, AM);
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer frame = this.frameOf.remove(pid);
+        if (frame != null) {
+            unlink(frame);
+            this.frames[frame] = null;
+            this.free[this.numFree++] = frame;
+        }
+    }
+
+    public synchronized PageId evict() {
+        int f;
+        if (this.size[A1IN] > this.maxA1in || this.size[AM] == 0) {
+            f = this.tail[A1IN];
+            if (f == NONE) {
+                return null;
+            }
+            remember(this.frames[f]);
+        } else {
+            f = this.tail[AM];
+        }
+        PageId pid = this.frames[f];
+        pageRemoved(pid);
+        return pid;
+    }
+
+    /**
+     * Adds a page evicted from A1in to the ghost queue, forgetting the
+     * oldest ghost if the queue is full.
+     */
+    private void remember(PageId pid) {
+        PageId oldest = this.ghosts[this.nextGhost];
+        if (oldest != null) {
+            this.ghostAt.remove(oldest);
+        }
+        this.ghosts[this.nextGhost] = pid;
+        this.ghostAt.put(pid, this.nextGhost);
+        this.nextGhost = (this.nextGhost + 1) % this.ghosts.length;
+    }
+
+    /** Makes frame f the most recently queued frame of queue q. */
+    private void push(int f, int q) {
+        this.queue[f] = q;
+        this.prev[f] = NONE;
+        this.next[f] = this.head[q];
+        if (this.head[q] != NONE) {
+            this.prev[this.head[q]] = f;
+        } else {
+            this.tail[q] = f;
+        }
+        this.head[q] = f;
+        this.size[q]++;
+    }
+
+    /** Takes frame f out of its queue. */
+    private void unlink(int f) {
+        int q = this.queue[f];
+        if (this.prev[f] != NONE) {
+            this.next[this.prev[f]] = this.next[f];
+        } else {
+            this.head[q] = this.next[f];
+        }
+        if (this.next[f] != NONE) {
+            this.prev[this.next[f]] = this.prev[f];
+        } else {
+            this.tail[q] = this.prev[f];
+        }
+        this.size[q]--;
+    }
+
+    private void grow() {
+        int n = this.frames.length;
+        this.frames = Arrays.copyOf(this.frames, n * 2);
+        this.queue = Arrays.copyOf(this.queue, n * 2);
+        this.prev = Arrays.copyOf(this.prev, n * 2);
+        this.next = Arrays.copyOf(this.next, n * 2);
+        this.free = Arrays.copyOf(this.free, n * 2);
+        for (int i = 2 * n - 1; i >= n; i--) {
+            this.free[this.numFree++] = i;
+        }
+    }
+}
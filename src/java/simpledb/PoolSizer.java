@@ -0,0 +1,350 @@
+package simpledb;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * PoolSizer resizes the default partition of a BufferPool while it runs,
+ * between a minimum and a maximum number of pages, so that the pool uses
+ * the heap there is to spare and gives it back when the heap runs short.
+ * <p>
+ * Every interval the sizer compares the heap in use after the last garbage
+ * collection, plus the pages the pool may still fill, with the heap less a
+ * reserve (a fraction of the maximum heap). If more than
+ * {@link #GROW_MISS_RATIO} of the pool's page requests since the last round
+ * missed and growing stays within the reserve, the pool grows by an eighth.
+ * If the heap in use is over the reserve, or a collection left the old
+ * generation over it (which the JVM reports as a notification, and which
+ * starts a round at once), the pool shrinks by an eighth, or by the pages
+ * taking up the overrun if that is more. Shrinking evicts pages the usual
+ * way, so dirty pages are written, and logged first if their transaction
+ * is running (see {@link BufferPool#resize}); it waits for a collection
+ * between shrinks, since until then the evicted pages still take up heap.
+ * A page is estimated to take twice the page size, for its data and its
+ * before image.
+ * <p>
+ * The sizer's thread starts with the first page the pool reads, and stops
+ * once the pool is no longer the database's or sizing is turned off.
+ * While it runs it sets the collection usage threshold of the old
+ * generation's memory pool to its size less the reserve. Sizing is off
+ * unless the maximum is set, by default from the system property
+ * simpledb.poolMaxPages; the minimum defaults to simpledb.poolMinPages, or
+ * a quarter of the pool's initial size, the interval to
+ * simpledb.resizeInterval and the reserve to simpledb.heapReserve.
+ *
+ * @see BufferPool#getSizer
+ */
+public class PoolSizer {
+
+    /** Maximum pages of new BufferPools' default partitions, or 0 for a fixed size. */
+    public static final int DEFAULT_MAX_PAGES = Integer.getInteger("simpledb.poolMaxPages", 0);
+
+    /** Minimum pages of new BufferPools' default partitions, or 0 for a quarter of their initial size. */
+    public static final int DEFAULT_MIN_PAGES = Integer.getInteger("simpledb.poolMinPages", 0);
+
+    /** Milliseconds between rounds of new BufferPools' sizers. */
+    public static final int DEFAULT_INTERVAL = Integer.getInteger("simpledb.resizeInterval", 1000);
+
+    /** Fraction of the maximum heap new BufferPools' sizers keep free. */
+    public static final double DEFAULT_HEAP_RESERVE =
+            Double.parseDouble(System.getProperty("simpledb.heapReserve", "0.2"));
+
+    /** Fraction of page requests that must miss for the pool to grow. */
+    public static final double GROW_MISS_RATIO = 0.05;
+
+    /** Smallest number of pages the pool grows or shrinks by. */
+    public static final int MIN_STEP = 16;
+
+    private final BufferPool pool;
+    private final BufferPartition partition;
+    private volatile int minPages;
+    private volatile int maxPages;
+    private volatile int interval;
+    private volatile double heapReserve;
+
+    // the sizer thread, or null if it isn't running; guarded by this
+    private volatile Thread thread;
+    private boolean pressure;
+
+    // the partition's counts and the collections at the last round and
+    // shrink; used by rounds only
+    private long lastHits;
+    private long lastMisses;
+    private long gcsAtShrink = -1;
+
+    private final AtomicLong rounds = new AtomicLong();
+    private final AtomicLong growths = new AtomicLong();
+    private final AtomicLong shrinks = new AtomicLong();
+
+    /**
+     * Creates a sizer for the given BufferPool.
+     */
+    public PoolSizer(BufferPool pool) {
+        this.pool = pool;
+        this.partition = pool.getPartition(BufferPartition.DEFAULT);
+        this.maxPages = DEFAULT_MAX_PAGES;
+        this.minPages = DEFAULT_MIN_PAGES > 0 ? DEFAULT_MIN_PAGES : Math.max(1, this.partition.getNumPages() / 4);
+        this.interval = DEFAULT_INTERVAL;
+        this.heapReserve = DEFAULT_HEAP_RESERVE;
+    }
+
+    /** @return the fewest pages the sizer shrinks the pool to */
+    public int getMinPages() {
+        return this.minPages;
+    }
+
+    /** Sets the fewest pages the sizer shrinks the pool to. */
+    public void setMinPages(int minPages) {
+        if (minPages <= 0) {
+            throw new IllegalArgumentException("minimum pool size " + minPages + " not positive");
+        }
+        this.minPages = minPages;
+    }
+
+    /** @return the most pages the sizer grows the pool to, or 0 if sizing is off */
+    public int getMaxPages() {
+        return this.maxPages;
+    }
+
+    /** Sets the most pages the sizer grows the pool to; 0 turns sizing off. */
+    public void setMaxPages(int maxPages) {
+        if (maxPages < 0) {
+            throw new IllegalArgumentException("negative maximum pool size " + maxPages);
+        }
+        this.maxPages = maxPages;
+    }
+
+    /** @return the milliseconds between rounds */
+    public int getInterval() {
+        return this.interval;
+    }
+
+    /** Sets the milliseconds between rounds. */
+    public void setInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("resize interval " + interval + " not positive");
+        }
+        this.interval = interval;
+    }
+
+    /** @return the fraction of the maximum heap the sizer keeps free */
+    public double getHeapReserve() {
+        return this.heapReserve;
+    }
+
+    /** Sets the fraction of the maximum heap the sizer keeps free. */
+    public void setHeapReserve(double heapReserve) {
+        if (heapReserve < 0 || heapReserve >= 1) {
+            throw new IllegalArgumentException("heap reserve " + heapReserve + " not between 0 and 1");
+        }
+        this.heapReserve = heapReserve;
+    }
+
+    /** @return the number of rounds run so far */
+    public long getRounds() {
+        return this.rounds.get();
+    }
+
+    /** @return the number of times the pool grew so far */
+    public long getGrowths() {
+        return this.growths.get();
+    }
+
+    /** @return the number of times the pool shrank so far */
+    public long getShrinks() {
+        return this.shrinks.get();
+    }
+
+    /** @return whether the sizer thread is running */
+    public boolean isRunning() {
+        return this.thread != null;
+    }
+
+    /**
+     * Called by the BufferPool when it reads a page; starts the sizer
+     * thread if sizing is on and it isn't running.
+     */
+    void wake() {
+        if (this.maxPages == 0 || this.thread != null) {
+            return;
+        }
+        synchronized (this) {
+            if (this.thread == null) {
+                this.thread = new Thread("simpledb-sizer") {
+                    public void run() {
+                        PoolSizer.this.run();
+                    }
+                };
+                this.thread.setDaemon(true);
+                this.thread.start();
+            }
+        }
+    }
+
+    /**
+     * Called when the old generation is over its collection usage threshold;
+     * runs the next round without waiting for the interval.
+     */
+    synchronized void pressure() {
+        this.pressure = true;
+        notifyAll();
+    }
+
+    /**
+     * Runs a round: grows or shrinks the pool if the heap and the pool's
+     * misses call for it.
+     *
+     * @param pressure whether the heap was reported to be short
+     * @return the change in the number of pages of the pool
+     */
+    int round(boolean pressure) throws DbException {
+        this.rounds.incrementAndGet();
+        long hits = this.partition.getHits();
+        long misses = this.partition.getMisses();
+        long requests = hits - this.lastHits + misses - this.lastMisses;
+        double missRatio = requests == 0 ? 0 : (double) (misses - this.lastMisses) / requests;
+        this.lastHits = hits;
+        this.lastMisses = misses;
+
+        long pageBytes = 2L * BufferPool.getPageSize();
+        long limit = (long) (Runtime.getRuntime().maxMemory() * (1 - this.heapReserve));
+        long live = liveHeap();
+        int pages = this.partition.getNumPages();
+        int step = Math.max(MIN_STEP, pages / 8);
+
+        if ((pressure || live > limit) && pages > this.minPages) {
+            long gcs = collections();
+            if (gcs == this.gcsAtShrink && !pressure) {
+                // the pages evicted last time may not have been collected
+                return 0;
+            }
+            this.gcsAtShrink = gcs;
+            long over = Math.max(0, live - limit) / pageBytes;
+            int target = (int) Math.max(this.minPages, pages - Math.max(step, over));
+            return resize(pages, target);
+        }
+        int max = this.maxPages;
+        if (missRatio > GROW_MISS_RATIO && pages < max) {
+            int target = Math.min(max, pages + step);
+            // the pages not cached yet will be soon
+            long unfilled = Math.max(0, target - this.partition.size());
+            if (live + unfilled * pageBytes <= limit) {
+                return resize(pages, target);
+            }
+        }
+        return 0;
+    }
+
+    private int resize(int from, int to) throws DbException {
+        this.pool.resize(to);
+        if (to > from) {
+            this.growths.incrementAndGet();
+        } else {
+            this.shrinks.incrementAndGet();
+        }
+        Debug.log("buffer pool resized from %d to %d pages", from, to);
+        return to - from;
+    }
+
+    /**
+     * @return the bytes of heap in use after the last collection of each
+     *   heap memory pool, or in use now for pools not collected yet
+     */
+    static long liveHeap() {
+        long live = 0;
+        for (MemoryPoolMXBean mp : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (mp.getType() != MemoryType.HEAP) {
+                continue;
+            }
+            MemoryUsage usage = mp.getCollectionUsage();
+            if (usage == null) {
+                usage = mp.getUsage();
+            }
+            live += usage.getUsed();
+        }
+        return live;
+    }
+
+    private static long collections() {
+        long gcs = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcs += Math.max(0, gc.getCollectionCount());
+        }
+        return gcs;
+    }
+
+    private void setThresholds() {
+        for (MemoryPoolMXBean mp : ManagementFactory.getMemoryPoolMXBeans()) {
+            // only the old generation supports usage thresholds; young pools
+            // are often nearly full after a collection, and are emptied by
+            // the next one anyway
+            if (mp.getType() == MemoryType.HEAP && mp.isUsageThresholdSupported()
+                    && mp.isCollectionUsageThresholdSupported()) {
+                long max = mp.getUsage().getMax();
+                if (max > 0) {
+                    mp.setCollectionUsageThreshold((long) (max * (1 - this.heapReserve)));
+                }
+            }
+        }
+    }
+
+    private boolean isCurrent() {
+        return this.maxPages != 0 && Database.getBufferPool() == this.pool;
+    }
+
+    private void run() {
+        NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        NotificationListener listener = new NotificationListener() {
+            public void handleNotification(Notification n, Object handback) {
+                if (n.getType().equals(MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)) {
+                    pressure();
+                }
+            }
+        };
+        setThresholds();
+        emitter.addNotificationListener(listener, null, null);
+        try {
+            while (true) {
+                boolean pressure;
+                synchronized (this) {
+                    if (!this.pressure) {
+                        try {
+                            wait(this.interval);
+                        } catch (InterruptedException e) {
+                            this.thread = null;
+                            return;
+                        }
+                    }
+                    pressure = this.pressure;
+                    this.pressure = false;
+                    // a pool that has been replaced lets its thread go
+                    if (!isCurrent()) {
+                        this.thread = null;
+                        return;
+                    }
+                }
+                try {
+                    round(pressure);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        } finally {
+            try {
+                emitter.removeNotificationListener(listener);
+            } catch (ListenerNotFoundException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
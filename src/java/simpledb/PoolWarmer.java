@@ -0,0 +1,402 @@
+package simpledb;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * PoolWarmer saves which pages a BufferPool holds to a file, and reads them
+ * back into the pool after a restart, so that the first queries after the
+ * restart find the pages they need in memory rather than reading each one
+ * from disk.
+ * <p>
+ * The file lists the ids of the pool's HeapFile pages, most recently used
+ * first. {@link #start}, called once the catalog has been loaded, restores
+ * the pages listed in the file on a background thread, and then saves the
+ * pool's pages to the file every interval. When the JVM exits, a single
+ * shutdown hook saves the pages of the database's current pool, if its
+ * warmer was started and not stopped, so replaced pools aren't kept
+ * reachable by hooks of their own. Pages are
+ * restored hottest first, a batch at a time; within a batch they are read
+ * in file order, each run of nearby pages of a table with a single read
+ * (see {@link HeapFile#readPages}). Restoring stops once the pool is
+ * full, never evicts a page, and passes over pages the pool already holds,
+ * pages of tables no longer in the catalog, and pages written while they
+ * were being read, since those may be stale. Restored pages are not locked;
+ * transactions lock them as usual when they ask for them.
+ * <p>
+ * The file defaults to the value of the system property
+ * simpledb.warmupFile, or none (no warm-up) if that is not set, and the
+ * interval to simpledb.warmupInterval.
+ *
+ * @see BufferPool#getWarmer
+ */
+public class PoolWarmer {
+
+    /** File new BufferPools save their pages to, or null for none. */
+    public static final String DEFAULT_FILE = System.getProperty("simpledb.warmupFile");
+
+    /** Milliseconds between saves of new BufferPools' pages. */
+    public static final int DEFAULT_INTERVAL = Integer.getInteger("simpledb.warmupInterval", 60000);
+
+    /** Number of pages restored at a time, hottest first. */
+    public static final int BATCH_PAGES = 256;
+
+    /** Largest number of consecutive pages restored with one read. */
+    public static final int MAX_RUN = 64;
+
+    /**
+     * Largest number of unlisted pages a read may span between two listed
+     * ones; they are read and dropped, which is cheaper than another read.
+     */
+    public static final int MAX_GAP = 8;
+
+    private static final int MAGIC = 0x53445731; // "SDW1"
+
+    private static final Comparator<HeapPageId> FILE_ORDER = new Comparator<HeapPageId>() {
+        public int compare(HeapPageId a, HeapPageId b) {
+            if (a.getTableId() != b.getTableId()) {
+                return a.getTableId() < b.getTableId() ? -1 : 1;
+            }
+            return Integer.compare(a.getPageNumber(), b.getPageNumber());
+        }
+    };
+
+    // whether the hook that saves the database's pool on exit has been
+    // added; guarded by PoolWarmer.class
+    private static boolean hooked;
+
+    private final BufferPool pool;
+    private volatile File file;
+    private volatile int interval;
+
+    // the warm-up thread, or null if it isn't running; guarded by this
+    private Thread thread;
+    private boolean restoring;
+    private boolean stopping;
+    // whether the pool's pages are to be saved on exit
+    private boolean saving;
+
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong pagesRestored = new AtomicLong();
+
+    /**
+     * Creates a warmer for the given BufferPool.
+     */
+    public PoolWarmer(BufferPool pool) {
+        this.pool = pool;
+        this.file = DEFAULT_FILE == null ? null : new File(DEFAULT_FILE);
+        this.interval = DEFAULT_INTERVAL;
+    }
+
+    /** @return the file the pool's pages are saved to, or null if none */
+    public File getFile() {
+        return this.file;
+    }
+
+    /** Sets the file the pool's pages are saved to; null turns warm-up off. */
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    /** @return the milliseconds between saves */
+    public int getInterval() {
+        return this.interval;
+    }
+
+    /** Sets the milliseconds between saves. */
+    public void setInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("warm-up interval " + interval + " not positive");
+        }
+        this.interval = interval;
+    }
+
+    /** @return the number of times the pool's pages were saved so far */
+    public long getSaves() {
+        return this.saves.get();
+    }
+
+    /** @return the number of pages restored so far */
+    public long getPagesRestored() {
+        return this.pagesRestored.get();
+    }
+
+    /**
+     * Writes the ids of the pool's pages to the file, most recently used
+     * first. The file is replaced atomically, so a crash while saving
+     * leaves the previous list in place.
+     *
+     * @return the number of pages saved
+     */
+    public int save() throws IOException {
+        File file = this.file;
+        if (file == null) {
+            return 0;
+        }
+        List<HeapPageId> pids = this.pool.residentPages();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream dos = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            dos.writeInt(MAGIC);
+            dos.writeInt(pids.size());
+            for (HeapPageId pid : pids) {
+                dos.writeInt(pid.getTableId());
+                dos.writeInt(pid.getPageNumber());
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("could not replace " + file);
+            }
+        }
+        this.saves.incrementAndGet();
+        return pids.size();
+    }
+
+    /**
+     * Reads the page ids saved by {@link #save}.
+     *
+     * @return the ids, hottest first; none if the file is missing or
+     *   unreadable
+     */
+    List<HeapPageId> load() {
+        ArrayList<HeapPageId> pids = new ArrayList<HeapPageId>();
+        File file = this.file;
+        if (file == null || !file.exists()) {
+            return pids;
+        }
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (dis.readInt() != MAGIC) {
+                return pids;
+            }
+            int n = dis.readInt();
+            for (int i = 0; i < n; i++) {
+                int tableId = dis.readInt();
+                pids.add(new HeapPageId(tableId, dis.readInt()));
+            }
+        } catch (IOException e) {
+            // a torn file: restore what was read
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Reads the pages listed in the file into the pool, on the calling
+     * thread, until the pool is full.
+     *
+     * @return the number of pages restored
+     */
+    public int restore() throws IOException {
+        List<HeapPageId> pids = load();
+        int restored = 0;
+        int from = 0;
+        int room;
+        while (from < pids.size() && (room = this.pool.numFree()) > 0) {
+            // no larger than the room left, so the hottest pages get it
+            int to = Math.min(pids.size(), from + Math.min(room, BATCH_PAGES));
+            List<HeapPageId> batch = new ArrayList<HeapPageId>(pids.subList(from, to));
+            from = to;
+            Collections.sort(batch, FILE_ORDER);
+            int i = 0;
+            while (i < batch.size()) {
+                HeapPageId first = batch.get(i);
+                int n = 1;
+                while (i + n < batch.size()) {
+                    HeapPageId next = batch.get(i + n);
+                    if (next.getTableId() != first.getTableId()
+                            || next.getPageNumber() - first.getPageNumber() >= MAX_RUN
+                            || next.getPageNumber() - batch.get(i + n - 1).getPageNumber() > MAX_GAP + 1) {
+                        break;
+                    }
+                    n++;
+                }
+                restored += restoreRun(batch.subList(i, i + n));
+                i += n;
+            }
+        }
+        this.pagesRestored.addAndGet(restored);
+        return restored;
+    }
+
+    /**
+     * Restores pages of one table, in file order and close enough together
+     * to be read with a single read.
+     */
+    private int restoreRun(List<HeapPageId> run) throws IOException {
+        HeapPageId first = run.get(0);
+        int count = run.get(run.size() - 1).getPageNumber() - first.getPageNumber() + 1;
+        DbFile dbFile;
+        try {
+            dbFile = Database.getCatalog().getDatabaseFile(first.getTableId());
+        } catch (NoSuchElementException e) {
+            // the table has been dropped
+            return 0;
+        }
+        if (!(dbFile instanceof HeapFile)) {
+            return 0;
+        }
+        HeapFile hf = (HeapFile) dbFile;
+        // read the write count first: a write that overlaps the read changes it
+        long writes = hf.writeCount();
+        List<Page> read = hf.readPages(first.getPageNumber(), count);
+        ArrayList<Page> pages = new ArrayList<Page>(run.size());
+        for (HeapPageId pid : run) {
+            int i = pid.getPageNumber() - first.getPageNumber();
+            if (i < read.size()) {
+                pages.add(read.get(i));
+            }
+        }
+        return this.pool.warmPages(hf, pages, writes);
+    }
+
+    /**
+     * Starts warming the pool up, if it has a file: restores the pages
+     * listed in the file on a background thread, then saves the pool's
+     * pages every interval, and when the JVM exits, until {@link #stop} is
+     * called or the pool is no longer the database's. Called once the
+     * catalog has been loaded; does nothing if the thread is running.
+     */
+    public void start() {
+        if (this.file == null) {
+            return;
+        }
+        synchronized (this) {
+            if (this.thread != null) {
+                return;
+            }
+            this.restoring = true;
+            this.stopping = false;
+            this.thread = new Thread("simpledb-warmup") {
+                public void run() {
+                    PoolWarmer.this.run();
+                }
+            };
+            this.thread.setDaemon(true);
+            this.thread.start();
+            this.saving = true;
+        }
+        addShutdownHook();
+    }
+
+    /**
+     * Adds the hook that saves the pages of the database's current pool
+     * when the JVM exits, unless it has been added.
+     */
+    private static synchronized void addShutdownHook() {
+        if (hooked) {
+            return;
+        }
+        hooked = true;
+        Runtime.getRuntime().addShutdownHook(new Thread("simpledb-warmup-save") {
+            public void run() {
+                PoolWarmer warmer = Database.getBufferPool().getWarmer();
+                synchronized (warmer) {
+                    if (!warmer.saving || warmer.file == null) {
+                        return;
+                    }
+                }
+                try {
+                    warmer.save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops saving the pool's pages, after the restore in progress, if
+     * any, finishes.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            this.saving = false;
+            thread = this.thread;
+            if (thread == null) {
+                return;
+            }
+            // not interrupted, which would close the files it reads
+            this.stopping = true;
+            notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** @return whether the warm-up thread is running */
+    public synchronized boolean isRunning() {
+        return this.thread != null;
+    }
+
+    /**
+     * Waits until the pages started being restored by {@link #start} are
+     * in the pool.
+     */
+    public synchronized void awaitRestore() throws InterruptedException {
+        while (this.restoring) {
+            wait();
+        }
+    }
+
+    private boolean isCurrent() {
+        return this.file != null && Database.getBufferPool() == this.pool;
+    }
+
+    private void run() {
+        try {
+            restore();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                this.restoring = false;
+                notifyAll();
+            }
+        }
+        while (true) {
+            synchronized (this) {
+                if (!this.stopping) {
+                    try {
+                        wait(this.interval);
+                    } catch (InterruptedException e) {
+                        this.thread = null;
+                        return;
+                    }
+                }
+                // a pool that has been replaced lets its thread go
+                if (this.stopping || !isCurrent()) {
+                    this.thread = null;
+                    return;
+                }
+            }
+            try {
+                save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetcher reads runs of HeapFile pages ahead of a sequential scan on a
+ * background thread, so that the scan finds them in memory instead of
+ * waiting for a disk read per page. HeapFileIterator asks for read-ahead
+ * once a scan has moved past its first page; each request is served with a
+ * single large read (see {@link HeapFile#readPages}).
+ * <p>
+ * Prefetched pages are staged here, outside the BufferPool, until a
+ * transaction asks for them through {@link BufferPool#getPage}, which still
+ * takes the page's lock first. Staged pages count against the capacity of
+ * the BufferPool, and at most half of it is used for staging; when staging
+ * is full the oldest staged pages are dropped. A staged page is also dropped
+ * if its file has been written since it was read, since it may be stale.
+ * <p>
+ * The read-ahead depth is the number of pages a scan keeps requested ahead
+ * of the page it is on, capped at the pages available for staging. It defaults to the value of the system property
+ * simpledb.prefetchDepth, or 0 (no read-ahead) if that is not set.
+ *
+ * @see BufferPool#setPrefetchDepth
+ */
+public class Prefetcher {
+
+    /** Read-ahead depth of new BufferPools. */
+    public static final int DEFAULT_DEPTH = Integer.getInteger("simpledb.prefetchDepth", 0);
+
+    // a staged page and the write count of its file when it was read
+    private static class Staged {
+        final Page page;
+        final HeapFile file;
+        final long writes;
+
+        Staged(Page page, HeapFile file, long writes) {
+            this.page = page;
+            this.file = file;
+            this.writes = writes;
+        }
+    }
+
+    private final BufferPool pool;
+    private final int maxStaged;
+    private volatile int depth;
+
+    // staged pages in the order they were read, and the pages being read
+    private final LinkedHashMap<PageId, Staged> staged = new LinkedHashMap<>();
+    private final HashMap<PageId, Future<?>> pending = new HashMap<>();
+
+    private final ExecutorService executor;
+
+    private final AtomicLong pagesPrefetched = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a prefetcher for the given BufferPool of the given number of
+     * pages.
+     */
+    public Prefetcher(BufferPool pool, int poolPages) {
+        this.pool = pool;
+        this.maxStaged = poolPages / 2;
+        this.depth = DEFAULT_DEPTH;
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "simpledb-prefetch");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        // an idle BufferPool doesn't keep a thread around
+        executor.allowCoreThreadTimeOut(true);
+        this.executor = executor;
+    }
+
+    /**
+     * @return the number of pages a sequential scan reads ahead, or 0 if
+     *   read-ahead is off; never more than the pages available for staging
+     */
+    public int getDepth() {
+        return Math.min(this.depth, this.maxStaged);
+    }
+
+    /**
+     * Sets the number of pages a sequential scan reads ahead; 0 turns
+     * read-ahead off.
+     */
+    public void setDepth(int depth) {
+        if (depth < 0) {
+            throw new IllegalArgumentException("negative prefetch depth " + depth);
+        }
+        this.depth = depth;
+    }
+
+    /** @return the number of pages read ahead so far */
+    public long getPagesPrefetched() {
+        return this.pagesPrefetched.get();
+    }
+
+    /** @return the number of pages read ahead and then used */
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    /** @return the number of pages read ahead and then dropped unused */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    /**
+     * @return the number of BufferPool pages taken up by staged pages and
+     *   pages being read
+     */
+    public synchronized int size() {
+        return this.staged.size() + this.pending.size();
+    }
+
+    /**
+     * Starts reading up to count pages of the given file, starting at page
+     * first, in the background. Leading pages that are cached, staged or
+     * being read are skipped, and the run is cut short to fit in staging.
+     */
+    public void prefetch(final HeapFile file, int first, int count) {
+        synchronized (this) {
+            if (this.depth == 0) {
+                return;
+            }
+            int tableId = file.getId();
+            int from = first;
+            int end = first + count;
+            while (from < end && isCachedOrStaged(new HeapPageId(tableId, from))) {
+                from++;
+            }
+            // staged pages a scan hasn't come back for, oldest first, make way
+            while (!this.staged.isEmpty() && size() + (end - from) > this.maxStaged) {
+                Iterator<PageId> oldest = this.staged.keySet().iterator();
+                oldest.next();
+                oldest.remove();
+                this.dropped.incrementAndGet();
+            }
+            end = Math.min(end, from + this.maxStaged - size());
+            if (end <= from) {
+                return;
+            }
+
+            final int start = from;
+            final int n = end - from;
+            FutureTask<Void> task = new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws IOException {
+                    read(file, start, n);
+                    return null;
+                }
+            });
+            for (int i = start; i < end; i++) {
+                this.pending.put(new HeapPageId(tableId, i), task);
+            }
+            this.executor.execute(task);
+        }
+    }
+
+    private boolean isCachedOrStaged(PageId pid) {
+        return this.pool.isCached(pid) || this.staged.containsKey(pid) || this.pending.containsKey(pid);
+    }
+
+    /**
+     * Reads a run of pages and stages them, on the background thread.
+     */
+    private void read(HeapFile file, int first, int count) throws IOException {
+        // read the write count first: a write that overlaps the read changes it
+        long writes = file.writeCount();
+        List<Page> pages = null;
+        try {
+            pages = file.readPages(first, count);
+        } finally {
+            synchronized (this) {
+                for (int i = 0; i < count; i++) {
+                    PageId pid = new HeapPageId(file.getId(), first + i);
+                    this.pending.remove(pid);
+                    if (pages != null && i < pages.size()) {
+                        this.staged.put(pid, new Staged(pages.get(i), file, writes));
+                        this.pagesPrefetched.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the given page if it has been read ahead, waiting
+     * for the read if it is in progress.
+     *
+     * @return the page, or null if it was not read ahead or may be stale
+     */
+    public Page take(PageId pid) {
+        Future<?> read;
+        synchronized (this) {
+            if (this.staged.isEmpty() && this.pending.isEmpty()) {
+                return null;
+            }
+            read = this.pending.get(pid);
+        }
+        if (read != null) {
+            try {
+                read.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                // the caller reads the page itself
+                e.printStackTrace();
+                return null;
+            }
+        }
+        synchronized (this) {
+            Staged s = this.staged.remove(pid);
+            if (s == null) {
+                return null;
+            }
+            if (s.file.writeCount() != s.writes) {
+                this.dropped.incrementAndGet();
+                return null;
+            }
+            this.hits.incrementAndGet();
+            return s.page;
+        }
+    }
+
+    /**
+     * Drops the given page if it is staged; reads of it in progress are
+     * left to finish.
+     */
+    public synchronized void discard(PageId pid) {
+        if (this.staged.remove(pid) != null) {
+            this.dropped.incrementAndGet();
+        }
+    }
+}
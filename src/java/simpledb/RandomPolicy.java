@@ -0,0 +1,62 @@
+package simpledb;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * RandomPolicy evicts a page chosen uniformly at random, ignoring how pages
+ * are used. It is the simplest policy, and a baseline for the others.
+ */
+public class RandomPolicy implements EvictionPolicy {
+
+    // the pages known to the policy, in no particular order
+    private PageId[] pages;
+    private int numPages;
+    private final HashMap<PageId, Integer> indexOf = new HashMap<>();
+    private final Random random = new Random();
+
+    /**
+     * Creates a policy for a buffer pool of the given number of pages; it
+     * grows if the pool ever holds more.
+     */
+    public RandomPolicy(int numPages) {
+        this.pages = new PageId[Math.max(numPages, 1)];
+    }
+
+    public synchronized void pageAdded(PageId pid) {
+        if (this.indexOf.containsKey(pid)) {
+            return;
+        }
+        if (this.numPages == this.pages.length) {
+            this.pages = Arrays.copyOf(this.pages, this.numPages * 2);
+        }
+        this.pages[this.numPages] = pid;
+        this.indexOf.put(pid, this.numPages++);
+    }
+
+    public void pageAccessed(PageId pid) {
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Integer i = this.indexOf.remove(pid);
+        if (i != null) {
+            // move the last page into the hole
+            PageId last = this.pages[--this.numPages];
+            this.pages[this.numPages] = null;
+            if (i != this.numPages) {
+                this.pages[i] = last;
+                this.indexOf.put(last, i);
+            }
+        }
+    }
+
+    public synchronized PageId evict() {
+        if (this.numPages == 0) {
+            return null;
+        }
+        PageId pid = this.pages[this.random.nextInt(this.numPages)];
+        pageRemoved(pid);
+        return pid;
+    }
+}
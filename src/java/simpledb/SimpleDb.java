@@ -67,6 +67,63 @@ public class SimpleDb {
                it.close();
             }
         }
+        else if (args[0].equals("repage")) {
+            // rewrite a table file with a new page size or page format
+            HeapFile.PageFormat format = HeapFile.PageFormat.FIXED;
+            if (args.length > 5 && args[args.length-1].equals("slotted")) {
+                format = HeapFile.PageFormat.SLOTTED;
+                args = java.util.Arrays.copyOf(args, args.length-1);
+            }
+            if (args.length<5 || args.length>6){
+                System.err.println("Usage: repage <source.dat> <target.dat> <pageSize> <numOfAttributes> [types] [slotted]");
+                return;
+            }
+            File sourceDatFile=new File(args[1]);
+            File targetDatFile=new File(args[2]);
+            int pageSize=Integer.parseInt(args[3]);
+            int numOfAttributes=Integer.parseInt(args[4]);
+            Type[] ts = new Type[numOfAttributes];
+            for (int i=0;i<numOfAttributes;i++)
+                ts[i]=Type.INT_TYPE;
+            if (args.length == 6) {
+                String[] typeStringAr = args[5].split(",");
+                if (typeStringAr.length!=numOfAttributes)
+                {
+                    System.err.println("The number of types does not agree with the number of columns");
+                    return;
+                }
+                for (int i=0;i<numOfAttributes;i++) {
+                    if (typeStringAr[i].toLowerCase().equals("string"))
+                        ts[i]=Type.STRING_TYPE;
+                    else if (!typeStringAr[i].toLowerCase().equals("int")) {
+                        System.err.println("Unknown type " + typeStringAr[i]);
+                        return;
+                    }
+                }
+            }
+            if (sourceDatFile.getAbsoluteFile().equals(targetDatFile.getAbsoluteFile())) {
+                System.err.println("The target file must differ from the source file");
+                return;
+            }
+            HeapFileEncoder.repage(sourceDatFile,targetDatFile,new TupleDesc(ts),pageSize,format);
+        }
+        else if (args[0].equals("compress") || args[0].equals("decompress")) {
+            // convert a table file to or from compressed pages
+            if (args.length!=3){
+                System.err.println("Usage: " + args[0] + " <source.dat> <target.dat>");
+                return;
+            }
+            File sourceDatFile=new File(args[1]);
+            File targetDatFile=new File(args[2]);
+            if (sourceDatFile.getAbsoluteFile().equals(targetDatFile.getAbsoluteFile())) {
+                System.err.println("The target file must differ from the source file");
+                return;
+            }
+            if (args[0].equals("compress"))
+                HeapFileEncoder.compress(sourceDatFile,targetDatFile);
+            else
+                HeapFileEncoder.decompress(sourceDatFile,targetDatFile);
+        }
         else if (args[0].equals("parser")) {
             // Strip the first argument and call the parser
             String[] newargs = new String[args.length-1];
@@ -0,0 +1,509 @@
+package simpledb;
+
+import java.util.*;
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * SlottedHeapPage is a HeapFile page that stores tuples in variable-length
+ * records, so that strings only take up as many bytes as they have
+ * characters. It is used by tables whose file header records the
+ * {@link HeapFile.PageFormat#SLOTTED} format.
+ * <p>
+ * A page starts with a header of two ints: the number of entries in the slot
+ * directory, and the offset of the start of the record area (0 on a new
+ * page, meaning the end of the page). The slot directory follows, one entry
+ * of two unsigned shorts per slot: the offset of the slot's record, 0 if the
+ * slot is empty, and its length. Records are packed at the end of the page,
+ * growing towards the slot directory. A record stores each int field in 4
+ * bytes and each string field as an unsigned short length followed by its
+ * bytes.
+ * <p>
+ * Slot numbers are the tuple numbers of RecordIds, so records can be moved
+ * around the page (see {@link #compact}) without changing tuples' ids.
+ *
+ * @see HeapFile
+ * @see HeapPage
+ */
+public class SlottedHeapPage implements TuplePage {
+
+    /** Bytes in the page header. */
+    static final int HEADER_SIZE = 8;
+    /** Bytes in a slot directory entry. */
+    static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private final int pageSize;
+
+    // the page's current on-disk image; see HeapPage for how it is shared
+    // with the before image until the page is first modified
+    private ByteBuffer data;
+    private boolean ownsData;
+
+    private int numSlots;
+    // start of the record area
+    private int recordStart;
+    private int numUsedSlots;
+    // total length of the records of the used slots
+    private int recordBytes;
+    // tuples decoded so far, by slot; null while data is a borrowed frame
+    // (see HeapPage)
+    private ArrayList<Tuple> tuples;
+
+    byte[] oldData;
+    private ByteBuffer beforeImageSource;
+    private final Object oldDataLock = new Object();
+    // the BufferPool frame this page was built over, until it is detached
+    private ByteBuffer frame;
+
+    private TransactionId tid;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk, in
+     * the format described above.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Create a SlottedHeapPage directly over a buffer holding the page's
+     * bytes. As with {@link HeapPage#HeapPage(HeapPageId, ByteBuffer)}, the
+     * page never writes to data, and callers must not modify it afterwards.
+     */
+    public SlottedHeapPage(HeapPageId id, ByteBuffer data) throws IOException {
+        this(id, data, false);
+    }
+
+    /**
+     * Create a SlottedHeapPage over a buffer, which is a BufferPool frame if
+     * borrowed is true; see {@link HeapPage#HeapPage(HeapPageId, ByteBuffer, boolean)}.
+     */
+    SlottedHeapPage(HeapPageId id, ByteBuffer data, boolean borrowed) throws IOException {
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.pageSize = HeapPage.pageSizeOf(id.getTableId());
+        try {
+            this.numSlots = data.getInt(0);
+            this.recordStart = data.getInt(4);
+        } catch (IndexOutOfBoundsException e) {
+            throw new EOFException("page data is shorter than the page header");
+        }
+        if (this.recordStart == 0) {
+            this.recordStart = this.pageSize;
+        }
+        if (this.numSlots < 0 || slotDirectoryEnd() > this.recordStart
+                || this.recordStart > this.pageSize) {
+            throw new IOException("corrupt slotted page header in " + id);
+        }
+
+        if (!borrowed) {
+            this.tuples = new ArrayList<Tuple>(Collections.nCopies(this.numSlots, (Tuple) null));
+        }
+        for (int i = 0; i < this.numSlots; i++) {
+            if (recordOffset(data, i) != 0) {
+                this.numUsedSlots++;
+                this.recordBytes += recordLength(data, i);
+            }
+        }
+
+        this.data = data;
+        this.ownsData = false;
+        this.beforeImageSource = data;
+        this.frame = borrowed ? data : null;
+    }
+
+    private int slotDirectoryEnd() {
+        return HEADER_SIZE + this.numSlots * SLOT_SIZE;
+    }
+
+    private static int recordOffset(ByteBuffer data, int slot) {
+        return data.getShort(HEADER_SIZE + slot * SLOT_SIZE) & 0xFFFF;
+    }
+
+    private static int recordLength(ByteBuffer data, int slot) {
+        return data.getShort(HEADER_SIZE + slot * SLOT_SIZE + 2) & 0xFFFF;
+    }
+
+    private void setSlot(int slot, int offset, int length) {
+        this.data.putShort(HEADER_SIZE + slot * SLOT_SIZE, (short) offset);
+        this.data.putShort(HEADER_SIZE + slot * SLOT_SIZE + 2, (short) length);
+    }
+
+    private void writeHeader() {
+        this.data.putInt(0, this.numSlots);
+        this.data.putInt(4, this.recordStart);
+    }
+
+    /**
+     * Returns the number of bytes the given tuple takes up as a record.
+     */
+    private int recordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < this.td.numFields(); i++) {
+            if (this.td.getFieldType(i) == Type.STRING_TYPE) {
+                String s = ((StringField) t.getField(i)).getValue();
+                size += 2 + Math.min(s.length(), Type.STRING_LEN);
+            } else {
+                size += this.td.getFieldType(i).getLen();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the largest number of bytes a record of this table can take up.
+     */
+    private int maxRecordSize() {
+        int size = 0;
+        for (int i = 0; i < this.td.numFields(); i++) {
+            if (this.td.getFieldType(i) == Type.STRING_TYPE) {
+                size += 2 + Type.STRING_LEN;
+            } else {
+                size += this.td.getFieldType(i).getLen();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the bytes not taken up by the header, the slot directory or
+     * records, whether contiguous or not.
+     */
+    private int freeBytes() {
+        return this.pageSize - slotDirectoryEnd() - this.recordBytes;
+    }
+
+    /** Return a view of this page before it was modified
+     -- used by recovery */
+    public SlottedHeapPage getBeforeImage(){
+        try {
+            byte[] oldDataRef = null;
+            ByteBuffer sourceRef = null;
+            synchronized(oldDataLock)
+            {
+                oldDataRef = oldData;
+                sourceRef = beforeImageSource;
+            }
+            if (oldDataRef == null) {
+                return new SlottedHeapPage(pid,sourceRef,sourceRef == frame);
+            }
+            return new SlottedHeapPage(pid,oldDataRef);
+        } catch (IOException e) {
+            e.printStackTrace();
+            //should never happen -- we parsed it OK before!
+            System.exit(1);
+        }
+        return null;
+    }
+
+    public void setBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            oldData = null;
+            beforeImageSource = data;
+            ownsData = false;
+        }
+    }
+
+    /**
+     * Copies a deferred before image out of a read-only (mapped) source
+     * buffer before the page is first modified.
+     */
+    private void preserveBeforeImage() {
+        synchronized(oldDataLock)
+        {
+            if (oldData == null && beforeImageSource.isReadOnly()) {
+                ByteBuffer src = beforeImageSource.duplicate();
+                src.rewind();
+                oldData = new byte[src.remaining()];
+                src.get(oldData);
+                beforeImageSource = null;
+            }
+        }
+    }
+
+    /**
+     * Makes data a private, page-sized copy of the current image that this
+     * page can modify in place.
+     */
+    private void ensureWritable() {
+        if (this.tuples == null) {
+            this.tuples = new ArrayList<Tuple>(Collections.nCopies(this.numSlots, (Tuple) null));
+        }
+        if (ownsData) {
+            return;
+        }
+        byte[] image = new byte[this.pageSize];
+        ByteBuffer src = data.duplicate();
+        src.rewind();
+        src.get(image, 0, Math.min(src.remaining(), image.length));
+        data = ByteBuffer.wrap(image);
+        ownsData = true;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return this.pid;
+    }
+
+    /**
+     * Returns the tuple stored in the given slot, or null if the slot is
+     * empty, decoding it on first use and caching it unless the page is
+     * over a borrowed frame.
+     */
+    private Tuple getTuple(int slot) {
+        Tuple t = this.tuples == null ? null : this.tuples.get(slot);
+        int offset = recordOffset(this.data, slot);
+        if (t == null && offset != 0) {
+            t = new Tuple(this.td);
+            for (int i = 0; i < this.td.numFields(); i++) {
+                if (this.td.getFieldType(i) == Type.STRING_TYPE) {
+                    int len = this.data.getShort(offset) & 0xFFFF;
+                    byte bs[] = new byte[len];
+                    ByteBuffer src = this.data.duplicate();
+                    src.position(offset + 2);
+                    src.get(bs);
+                    t.setField(i, new StringField(new String(bs), Type.STRING_LEN));
+                    offset += 2 + len;
+                } else {
+                    t.setField(i, new IntField(this.data.getInt(offset)));
+                    offset += Type.INT_TYPE.getLen();
+                }
+            }
+            t.setRecordId(new RecordId(this.pid, slot));
+            if (this.tuples != null) {
+                this.tuples.set(slot, t);
+            }
+        }
+        return t;
+    }
+
+    public void detach() {
+        synchronized(oldDataLock)
+        {
+            if (frame == null) {
+                return;
+            }
+            ByteBuffer copy = ByteBuffer.wrap(getPageData());
+            if (data == frame) {
+                data = copy;
+            }
+            if (beforeImageSource == frame) {
+                beforeImageSource = copy;
+            }
+            frame = null;
+        }
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public byte[] getPageData() {
+        byte[] image = new byte[this.pageSize];
+        ByteBuffer src = data.duplicate();
+        src.rewind();
+        src.get(image, 0, Math.min(src.remaining(), image.length));
+        return image;
+    }
+
+    /**
+     * Moves all records to the end of the page, so that the free space
+     * between the slot directory and the records is contiguous.
+     */
+    private void compact() {
+        byte[] image = new byte[this.pageSize];
+        ByteBuffer compacted = ByteBuffer.wrap(image);
+        int end = this.pageSize;
+        for (int i = 0; i < this.numSlots; i++) {
+            int offset = recordOffset(this.data, i);
+            int length = recordLength(this.data, i);
+            compacted.putShort(HEADER_SIZE + i * SLOT_SIZE, (short) (offset == 0 ? 0 : end - length));
+            compacted.putShort(HEADER_SIZE + i * SLOT_SIZE + 2, (short) length);
+            if (offset != 0) {
+                end -= length;
+                for (int j = 0; j < length; j++) {
+                    image[end + j] = this.data.get(offset + j);
+                }
+            }
+        }
+        this.data = compacted;
+        this.recordStart = end;
+        writeHeader();
+    }
+
+    /**
+     * Delete the specified tuple from the page. Its record's bytes are only
+     * reclaimed when the page is next compacted.
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *         already empty.
+     * @param t The tuple to delete
+     */
+    public void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !rid.getPageId().equals(this.pid)) {
+            throw new DbException("tuple doesn't exist in this page!");
+        }
+        int slot = rid.getTupleNumber();
+        if (slot < 0 || slot >= this.numSlots || recordOffset(this.data, slot) == 0) {
+            throw new DbException("tuple slot wasn't being used and is already empty.");
+        }
+
+        preserveBeforeImage();
+        ensureWritable();
+        this.recordBytes -= recordLength(this.data, slot);
+        this.numUsedSlots--;
+        setSlot(slot, 0, 0);
+        this.tuples.set(slot, null);
+        updateFreeSpaceMap();
+    }
+
+    /**
+     * Adds the specified tuple to the page, in the first empty slot or in a
+     * new slot at the end of the slot directory. The page is compacted first
+     * if the tuple fits but the free space is fragmented.
+     * @throws DbException if the tuple does not fit on the page or tupledesc
+     *         is mismatch.
+     * @param t The tuple to add.
+     */
+    public void insertTuple(Tuple t) throws DbException {
+        if (!this.td.equals(t.getTupleDesc())) {
+            throw new DbException("tuple desc doesn't match");
+        }
+        int slot = 0;
+        while (slot < this.numSlots && recordOffset(this.data, slot) != 0) {
+            slot++;
+        }
+        int size = recordSize(t);
+        int needed = size + (slot == this.numSlots ? SLOT_SIZE : 0);
+        if (needed > freeBytes()) {
+            throw new DbException("no room for the tuple in page. page is full!");
+        }
+
+        preserveBeforeImage();
+        ensureWritable();
+        if (slotDirectoryEnd() + needed > this.recordStart) {
+            compact();
+        }
+        if (slot == this.numSlots) {
+            this.numSlots++;
+            this.tuples.add(null);
+        }
+        this.recordStart -= size;
+        int offset = this.recordStart;
+        for (int i = 0; i < this.td.numFields(); i++) {
+            Field f = t.getField(i);
+            if (this.td.getFieldType(i) == Type.STRING_TYPE) {
+                String s = ((StringField) f).getValue();
+                int len = Math.min(s.length(), Type.STRING_LEN);
+                this.data.putShort(offset, (short) len);
+                for (int j = 0; j < len; j++) {
+                    this.data.put(offset + 2 + j, (byte) s.charAt(j));
+                }
+                offset += 2 + len;
+            } else {
+                f.serialize(this.data, offset);
+                offset += this.td.getFieldType(i).getLen();
+            }
+        }
+        setSlot(slot, this.recordStart, size);
+        writeHeader();
+        this.recordBytes += size;
+        this.numUsedSlots++;
+        t.setRecordId(new RecordId(this.pid, slot));
+        this.tuples.set(slot, t);
+        updateFreeSpaceMap();
+    }
+
+    /**
+     * Tells the HeapFile this page belongs to whether the page still has
+     * room for a tuple.
+     */
+    private void updateFreeSpaceMap() {
+        DbFile file;
+        try {
+            file = Database.getCatalog().getDatabaseFile(pid.getTableId());
+        } catch (NoSuchElementException e) {
+            return;
+        }
+        if (file instanceof HeapFile) {
+            ((HeapFile) file).noteFreeSpace(this);
+        }
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public void markDirty(boolean dirty, TransactionId tid) {
+        this.tid = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public TransactionId isDirty() {
+        return this.tid;
+    }
+
+    /**
+     * Returns the number of tuples of the largest possible size that can
+     * still be inserted into this page. Smaller tuples may fit even when
+     * this is 0.
+     */
+    public int getNumEmptySlots() {
+        int free = freeBytes();
+        if (this.numUsedSlots == this.numSlots) {
+            // every new tuple also needs a slot directory entry
+            return free / (maxRecordSize() + SLOT_SIZE);
+        }
+        int emptySlots = this.numSlots - this.numUsedSlots;
+        int fit = free / maxRecordSize();
+        if (fit <= emptySlots) {
+            return fit;
+        }
+        return emptySlots + (free - emptySlots * maxRecordSize()) / (maxRecordSize() + SLOT_SIZE);
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public boolean isSlotUsed(int i) {
+        return i >= 0 && i < this.numSlots && recordOffset(this.data, i) != 0;
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator() {
+        return new Iterator<Tuple>() {
+            private int slot = nextUsedSlot(0);
+
+            private int nextUsedSlot(int from) {
+                while (from < numSlots && !isSlotUsed(from)) {
+                    from++;
+                }
+                return from;
+            }
+
+            public boolean hasNext() {
+                return this.slot < numSlots;
+            }
+
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = getTuple(this.slot);
+                this.slot = nextUsedSlot(this.slot + 1);
+                return t;
+            }
+        };
+    }
+}
@@ -1,8 +1,12 @@
 package simpledb;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 /**
  * Tuple maintains information about the contents of a tuple. Tuples have a
@@ -16,6 +20,11 @@ public class Tuple implements Serializable {
     private RecordId recordId;
     private Field[] fields;
 
+    // serialized bytes that fields not yet set are decoded from on first
+    // access; null once the tuple has been fully materialized
+    private transient volatile ByteBuffer source;
+    private transient int sourceOffset;
+
     /**
      * Create a new tuple with the specified schema (type).
      *
@@ -29,6 +38,26 @@ public class Tuple implements Serializable {
         this.fields = new Field[td.numFields()];
     }
 
+    /**
+     * Create a tuple whose fields are decoded lazily from a serialized tuple
+     * in the fixed-width on-disk format (see {@link TupleDesc#getFieldOffset}).
+     * Each field is only parsed the first time it is read, so operators that
+     * look at a few columns never build Field objects for the others.
+     *
+     * @param td
+     *            the schema of this tuple
+     * @param source
+     *            the bytes holding the tuple; must not change while the tuple
+     *            still reads from them (see {@link #materialize})
+     * @param offset
+     *            the absolute offset of the tuple's first byte in source
+     */
+    Tuple(TupleDesc td, ByteBuffer source, int offset) {
+        this(td);
+        this.sourceOffset = offset;
+        this.source = source;
+    }
+
     /**
      * @return The TupleDesc representing the schema of this tuple.
      */
@@ -88,7 +117,39 @@ public class Tuple implements Serializable {
             throw new IllegalArgumentException("Invalid field index reference");
         }
 
-        return fields[i];
+        Field f = fields[i];
+        ByteBuffer src = this.source;
+        if (f == null && src != null) {
+            f = decodeField(src, i);
+            fields[i] = f;
+        }
+        return f;
+    }
+
+    private Field decodeField(ByteBuffer src, int i) {
+        try {
+            return tupleDesc.getFieldType(i).parse(src, sourceOffset + tupleDesc.getFieldOffset(i));
+        } catch (java.text.ParseException e) {
+            e.printStackTrace();
+            throw new NoSuchElementException("parsing error!");
+        }
+    }
+
+    /**
+     * Decodes every field that has not been read yet and drops the reference
+     * to the bytes this tuple was built over, so the tuple stays valid after
+     * those bytes are changed or reused.
+     */
+    void materialize() {
+        ByteBuffer src = this.source;
+        if (src != null) {
+            for (int i = 0; i < fields.length; i++) {
+                if (fields[i] == null) {
+                    fields[i] = decodeField(src, i);
+                }
+            }
+            this.source = null;
+        }
     }
 
     /**
@@ -101,6 +162,7 @@ public class Tuple implements Serializable {
      */
     public String toString() {
         // some code goes here
+        materialize();
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < fields.length; i++) {
             sb.append(fields[i].toString());
@@ -118,6 +180,7 @@ public class Tuple implements Serializable {
     public Iterator<Field> fields()
     {
         // some code goes here
+        materialize();
         return Arrays.asList(fields).iterator();
     }
 
@@ -127,9 +190,16 @@ public class Tuple implements Serializable {
     public void resetTupleDesc(TupleDesc td)
     {
         // some code goes here
+        // lazily decoded fields are laid out by the old TupleDesc
+        materialize();
         this.tupleDesc = td;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        materialize();
+        out.defaultWriteObject();
+    }
+
     public static Tuple merge(Tuple tuple1, Tuple tuple2) {
         TupleDesc td = TupleDesc.merge(tuple1.getTupleDesc(), tuple2.getTupleDesc());
         Tuple result = new Tuple(td);
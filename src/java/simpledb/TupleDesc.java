@@ -71,6 +71,8 @@ public class TupleDesc implements Serializable {
 
     private static final long serialVersionUID = 1L;
     private List<TDItem> TDItems;
+    // byte offset of each field within a serialized tuple, computed on demand
+    private transient int[] fieldOffsets;
 
     /**
      * Create a new TupleDesc with typeAr.length fields with fields of the
@@ -196,6 +198,35 @@ public class TupleDesc implements Serializable {
         return size;
     }
 
+    /**
+     * Gets the byte offset of the ith field within a tuple serialized in the
+     * fixed-width on-disk format, i.e. the summed lengths of the fields
+     * before it.
+     *
+     * @param i
+     *            The index of the field. It must be a valid index.
+     * @return the offset of the ith field
+     * @throws NoSuchElementException
+     *             if i is not a valid field reference.
+     */
+    public int getFieldOffset(int i) throws NoSuchElementException {
+        if (i < 0 || i >= numFields()) {
+            throw new NoSuchElementException("Invalid field index reference");
+        }
+
+        int[] offsets = this.fieldOffsets;
+        if (offsets == null) {
+            offsets = new int[numFields()];
+            int offset = 0;
+            for (int j = 0; j < offsets.length; j++) {
+                offsets[j] = offset;
+                offset += TDItems.get(j).fieldType.getLen();
+            }
+            this.fieldOffsets = offsets;
+        }
+        return offsets[i];
+    }
+
     /**
      * Merge two TupleDescs into one, with td1.numFields + td2.numFields fields,
      * with the first td1.numFields coming from td1 and the remaining from td2.
@@ -0,0 +1,50 @@
+package simpledb;
+
+import java.util.Iterator;
+
+/**
+ * TuplePage is the interface HeapFile uses for its pages, whatever their
+ * on-disk format.
+ *
+ * @see HeapPage
+ * @see SlottedHeapPage
+ * @see HeapFile.PageFormat
+ */
+public interface TuplePage extends Page {
+
+    /**
+     * Returns the number of tuples that can still be inserted into this
+     * page. For pages with variable-length tuples this is a lower bound:
+     * the number of tuples of the largest possible size that fit.
+     */
+    public int getNumEmptySlots();
+
+    /**
+     * Adds the specified tuple to the page; the tuple's RecordId is updated
+     * to reflect that it is now stored on this page.
+     * @throws DbException if the page is full or the tupledesc mismatches
+     */
+    public void insertTuple(Tuple t) throws DbException;
+
+    /**
+     * Deletes the specified tuple from the page.
+     * @throws DbException if this tuple is not on this page, or tuple slot
+     *         is already empty.
+     */
+    public void deleteTuple(Tuple t) throws DbException;
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on
+     * this iterator throws an UnsupportedOperationException)
+     */
+    public Iterator<Tuple> iterator();
+
+    /**
+     * Copies what this page still reads from the BufferPool frame it was
+     * built over onto the heap, so that the frame can be reused. Does
+     * nothing for pages that were not built over a frame.
+     *
+     * @see FrameArena
+     */
+    public void detach();
+}
@@ -0,0 +1,227 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BackgroundWriterTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 8;
+    private static final int TABLE_PAGES = 12;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private BackgroundWriter writer;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * TABLE_PAGES, null, null);
+        bp = Database.resetBufferPool(POOL_PAGES);
+        writer = bp.getBackgroundWriter();
+        writer.setInterval(5);
+        writer.setCleanTarget(0);
+    }
+
+    @After public void tearDown() {
+        writer.setCleanTarget(0);
+    }
+
+    /** Deletes the first tuple of page pgNo of the table as tid. */
+    private void dirty(TransactionId tid, int pgNo) throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+    }
+
+    private boolean onDisk(int pgNo) {
+        HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+        Page page = hf.readPage(pid);
+        return page.getId().equals(pid) && ((HeapPage) page).getNumEmptySlots() == 1;
+    }
+
+    /** Waits for the writer to run at least the given number of rounds. */
+    private void awaitRounds(long rounds) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (writer.getRounds() < rounds && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Without a clean target the writer doesn't run, and dirty pages stay
+     * in the pool
+     */
+    @Test public void off() throws Exception {
+        TransactionId tid = new TransactionId();
+        dirty(tid, 0);
+        bp.transactionComplete(tid);
+        Thread.sleep(50);
+        assertFalse(writer.isRunning());
+        assertEquals(1, bp.numDirtyPages());
+        assertFalse(onDisk(0));
+    }
+
+    /**
+     * Pages of committed transactions are written, up to the clean target
+     */
+    @Test public void writesCommittedPages() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++)
+            dirty(tid, i);
+        bp.transactionComplete(tid);
+        assertEquals(4, bp.numDirtyPages());
+
+        // 8 frames, half of them already clean, need one more
+        writer.setCleanTarget(5.0 / POOL_PAGES);
+        writer.wake();
+        awaitRounds(2);
+        assertEquals(3, bp.numDirtyPages());
+        assertEquals(1, writer.getPagesWritten());
+
+        writer.setCleanTarget(1);
+        writer.wake();
+        awaitRounds(writer.getRounds() + 2);
+        assertEquals(0, bp.numDirtyPages());
+        assertEquals(4, writer.getPagesWritten());
+        for (int i = 0; i < 4; i++)
+            assertTrue(onDisk(i));
+
+        // the pages are clean, so evicting them writes nothing
+        tid = new TransactionId();
+        for (int i = 4; i < TABLE_PAGES; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertTrue(bp.getEvictions() > 0);
+        assertEquals(0, bp.getDirtyEvictions());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages of running transactions are left alone until they commit
+     */
+    @Test public void skipsRunningTransactions() throws Exception {
+        writer.setCleanTarget(1);
+        TransactionId tid = new TransactionId();
+        dirty(tid, 0);
+        awaitRounds(3);
+        assertTrue(writer.isRunning());
+        assertEquals(0, writer.getPagesWritten());
+        assertTrue(writer.getPagesSkipped() > 0);
+        assertEquals(1, bp.numDirtyPages());
+        assertFalse(onDisk(0));
+
+        bp.transactionComplete(tid);
+        awaitRounds(writer.getRounds() + 2);
+        assertEquals(1, writer.getPagesWritten());
+        assertEquals(0, bp.numDirtyPages());
+        assertTrue(onDisk(0));
+    }
+
+    /**
+     * Evicting a dirty page is counted
+     */
+    @Test public void dirtyEvictions() throws Exception {
+        TransactionId tid = new TransactionId();
+        dirty(tid, 0);
+        bp.transactionComplete(tid);
+        // pinning a pool full of other pages forces page 0 out
+        tid = new TransactionId();
+        for (int i = 1; i <= POOL_PAGES; i++)
+            bp.pinPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY, null);
+        assertEquals(1, bp.getEvictions());
+        assertEquals(1, bp.getDirtyEvictions());
+        assertTrue(onDisk(0));
+        for (int i = 1; i <= POOL_PAGES; i++)
+            bp.unpinPage(new HeapPageId(hf.getId(), i));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Checkpoints, which flush the pool while they hold the log's monitor,
+     * run alongside the writer
+     */
+    @Test public void checkpointWhileWriting() throws Exception {
+        writer.setCleanTarget(1);
+        writer.setInterval(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread checkpointer = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Database.getLogFile().logCheckpoint();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }
+        };
+        Thread committer = new Thread() {
+            public void run() {
+                try {
+                    for (int round = 0; round < 500; round++) {
+                        TransactionId tid = new TransactionId();
+                        for (int i = 0; i < POOL_PAGES / 2; i++) {
+                            HeapPageId pid = new HeapPageId(hf.getId(), i);
+                            bp.getPage(tid, pid, Permissions.READ_WRITE).markDirty(true, tid);
+                        }
+                        bp.transactionComplete(tid);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        committer.setDaemon(true);
+        checkpointer.start();
+        committer.start();
+        committer.join(30000);
+        checkpointer.join(30000);
+
+        assertNull(ManagementFactory.getThreadMXBean().findMonitorDeadlockedThreads());
+        assertFalse(committer.isAlive());
+        assertFalse(checkpointer.isAlive());
+        assertEquals(0, failures.get());
+        assertTrue(writer.getPagesWritten() > 0);
+    }
+
+    /**
+     * The clean target must be a fraction
+     */
+    @Test public void badTarget() {
+        for (double target : Arrays.asList(-0.5, 1.5)) {
+            try {
+                writer.setCleanTarget(target);
+                fail("expected IllegalArgumentException");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.PrintWriter;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferPartitionTest extends SimpleDbTestBase {
+
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile hot;
+    private HeapFile big;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hot = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * 4, null, null);
+        big = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * 20, null, null);
+        bp = Database.resetBufferPool(8, "hot:4");
+        Database.getCatalog().setPartition(hot.getId(), "hot");
+    }
+
+    private void read(TransactionId tid, HeapFile hf, int pgNo) throws Exception {
+        bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Pages go into the partition of their table, and a partition's pages
+     * are only evicted by its own
+     */
+    @Test public void pagesStayInTheirPartition() throws Exception {
+        BufferPartition hotPart = bp.getPartition("hot");
+        BufferPartition dflt = bp.getPartition(BufferPartition.DEFAULT);
+        assertEquals(12, bp.getNumPages());
+        assertSame(hotPart, bp.partitionOf(hot.getId()));
+        assertSame(dflt, bp.partitionOf(big.getId()));
+
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 4; i++)
+            read(tid, hot, i);
+        for (int i = 0; i < 20; i++)
+            read(tid, big, i);
+        assertEquals(4, hotPart.size());
+        assertEquals(8, dflt.size());
+        assertEquals(0, hotPart.getEvictions());
+        assertEquals(12, dflt.getEvictions());
+
+        // the hot table is still cached
+        for (int i = 0; i < 4; i++)
+            read(tid, hot, i);
+        assertEquals(4, hotPart.getHits());
+        assertEquals(4, hotPart.getMisses());
+        assertEquals(0.5, hotPart.getHitRatio(), 1e-9);
+        assertEquals(0, dflt.getHits());
+        assertEquals(20, dflt.getMisses());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A full partition evicts its own pages when more of its tables' pages
+     * are read
+     */
+    @Test public void fullPartitionEvicts() throws Exception {
+        Database.getCatalog().setPartition(big.getId(), "hot");
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 10; i++)
+            read(tid, big, i);
+        BufferPartition hotPart = bp.getPartition("hot");
+        assertEquals(4, hotPart.size());
+        assertEquals(6, hotPart.getEvictions());
+        assertEquals(0, bp.getPartition(BufferPartition.DEFAULT).size());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Tables assigned to a partition the pool doesn't have use the default
+     * partition
+     */
+    @Test public void unknownPartition() throws Exception {
+        Database.getCatalog().setPartition(hot.getId(), "cold");
+        assertSame(bp.getPartition(BufferPartition.DEFAULT), bp.partitionOf(hot.getId()));
+        Database.getCatalog().setPartition(hot.getId(), null);
+        assertNull(Database.getCatalog().getPartition(hot.getId()));
+        assertSame(bp.getPartition(BufferPartition.DEFAULT), bp.partitionOf(hot.getId()));
+    }
+
+    /**
+     * Partition specs set the size and policy of each partition
+     */
+    @Test public void addPartitions() {
+        bp.addPartitions(" a:16:lru2, b:32 ,");
+        assertEquals(8 + 4 + 16 + 32, bp.getNumPages());
+        assertEquals(4, bp.getPartitions().size());
+        assertTrue(bp.getPartition("a").getEvictionPolicy() instanceof Lru2Policy);
+        assertEquals(32, bp.getPartition("b").getNumPages());
+        assertNull(bp.getPartition("c"));
+
+        for (String spec : new String[] { "hot:4", "c", "c:x", "c:0", "c:4:nosuchpolicy", "c:1:clock:x" }) {
+            try {
+                bp.addPartitions(spec);
+                fail("expected IllegalArgumentException for " + spec);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * The catalog reads table partitions from the schema
+     */
+    @Test public void loadSchema() throws Exception {
+        File dir = File.createTempFile("partition", "");
+        dir.delete();
+        dir.mkdir();
+        dir.deleteOnExit();
+        File schema = new File(dir, "catalog.txt");
+        schema.deleteOnExit();
+        new File(dir, "t.dat").deleteOnExit();
+        new File(dir, "u.dat").deleteOnExit();
+        PrintWriter out = new PrintWriter(schema);
+        out.println("t (a int, b int) partition=hot");
+        out.println("u (a int)");
+        out.close();
+
+        Catalog catalog = Database.getCatalog();
+        catalog.loadSchema(schema.getAbsolutePath());
+        assertEquals("hot", catalog.getPartition(catalog.getTableId("t")));
+        assertNull(catalog.getPartition(catalog.getTableId("u")));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPartitionTest.class);
+    }
+}
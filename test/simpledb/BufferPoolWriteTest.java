@@ -48,6 +48,25 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	}
     }
     
+    // class that runs a hook just before a batch of its pages is written
+    class HeapFileHooked extends HeapFile {
+
+        private Runnable beforeWrite;
+
+        public HeapFileHooked(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        void writePages(java.util.List<Page> pages) throws IOException {
+            if (beforeWrite != null) {
+                beforeWrite.run();
+                beforeWrite = null;
+            }
+            super.writePages(pages);
+        }
+    }
+
     /**
      * Set up initial resources for each unit test.
      */
@@ -133,6 +152,101 @@ public class BufferPoolWriteTest extends TestUtil.CreateHeapFile {
     	assertEquals(10, count);
     }
 
+    /**
+     * Unit test for BufferPool.flushAllPages() and flushPages(), which write
+     * dirty pages in batches
+     */
+    @Test public void flushPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId other = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            TransactionId t = i % 2 == 0 ? tid : other;
+            HeapPage p = (HeapPage) bp.getPage(t, new HeapPageId(hf.getId(), i), Permissions.READ_WRITE);
+            bp.deleteTuple(t, p.iterator().next());
+        }
+        for (int i = 0; i < 3; i++)
+            bp.insertTuple(tid, empty.getId(), Utility.getHeapTuple(i, 2));
+        assertEquals(11, bp.numDirtyPages());
+
+        bp.flushPages(other);
+        assertEquals(6, bp.numDirtyPages());
+        for (int i = 0; i < 10; i++) {
+            HeapPage p = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), i));
+            assertEquals(i % 2 == 0 ? 0 : 1, p.getNumEmptySlots());
+        }
+
+        bp.flushAllPages();
+        assertEquals(0, bp.numDirtyPages());
+        for (int i = 0; i < 10; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(1, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+            assertEquals(0, bp.getPinCount(pid));
+        }
+        assertEquals(504 - 3, ((HeapPage) empty.readPage(new HeapPageId(empty.getId(), 0))).getNumEmptySlots());
+        bp.transactionComplete(other);
+    }
+
+    /**
+     * A page changed again once flushPages has gathered it is written as it
+     * was gathered, and stays dirty with the later change
+     */
+    @Test public void flushPagesWritesGatheredImage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504, null, null);
+        HeapFileHooked hooked = new HeapFileHooked(hf.getFile(), hf.getTupleDesc());
+        Database.getCatalog().addTable(hooked, SystemTestUtil.getUUID());
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(hooked.getId(), 0);
+        final HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+        bp.deleteTuple(tid, page.iterator().next());
+
+        hooked.beforeWrite = new Runnable() {
+            public void run() {
+                try {
+                    page.deleteTuple(page.iterator().next());
+                } catch (DbException e) {
+                    throw new RuntimeException(e);
+                }
+                page.markDirty(true, tid);
+            }
+        };
+        bp.flushPages(tid);
+        assertEquals(1, ((HeapPage) hooked.readPage(pid)).getNumEmptySlots());
+        assertEquals(tid, page.isDirty());
+        assertEquals(2, page.getNumEmptySlots());
+    }
+
+    /**
+     * Commit logs only the pages the transaction dirtied, and abort reverts
+     * only those, however many other pages the pool holds
+     */
+    @Test public void completeTouchesOwnPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504*10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId reader = new TransactionId();
+        for (int i = 2; i < 10; i++)
+            bp.getPage(reader, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        TransactionId other = new TransactionId();
+        HeapPageId p0 = new HeapPageId(hf.getId(), 0);
+        HeapPageId p1 = new HeapPageId(hf.getId(), 1);
+        bp.deleteTuple(tid, ((HeapPage) bp.getPage(tid, p0, Permissions.READ_WRITE)).iterator().next());
+        bp.deleteTuple(other, ((HeapPage) bp.getPage(other, p1, Permissions.READ_WRITE)).iterator().next());
+
+        int records = Database.getLogFile().getTotalRecords();
+        bp.transactionComplete(tid);
+        assertEquals(records + 1, Database.getLogFile().getTotalRecords());
+        bp.transactionComplete(reader);
+        assertEquals(records + 1, Database.getLogFile().getTotalRecords());
+
+        // p0 still holds tid's committed change, and stays cached; other's
+        // delete from p1 is undone in the pool
+        bp.transactionComplete(other, false);
+        assertTrue(bp.isCached(p0));
+        tid = new TransactionId();
+        assertEquals(1, ((HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY)).getNumEmptySlots());
+        assertEquals(0, ((HeapPage) bp.getPage(tid, p1, Permissions.READ_ONLY)).getNumEmptySlots());
+    }
+
     /**
      * JUnit suite target
      */
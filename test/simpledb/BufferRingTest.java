@@ -0,0 +1,127 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class BufferRingTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 20;
+    private static final int HOT_PAGES = 8;
+    private static final int TUPLES_PER_PAGE = 504;
+    // scanned pages between rounds of lookups
+    private static final int LOOKUP_EVERY = 8;
+
+    /** Counts the pages read from disk. */
+    private static class CountingHeapFile extends HeapFile {
+        int reads;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile hot;
+    private HeapFile big;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * HOT_PAGES, 1000, null, null);
+        hot = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hot, SystemTestUtil.getUUID());
+        big = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * 100, null, null);
+        Database.resetBufferPool(POOL_PAGES);
+    }
+
+    /**
+     * Scans the big table once, looking up every hot page every few pages
+     * scanned.
+     *
+     * @return the fraction of hot page lookups that were buffer pool hits
+     */
+    private double hotHitRate() throws Exception {
+        TransactionId tid = new TransactionId();
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < HOT_PAGES; i++)
+            bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+        hot.reads = 0;
+
+        int lookups = 0;
+        DbFileIterator it = big.iterator(tid);
+        it.open();
+        for (int n = 1; it.hasNext(); n++) {
+            it.next();
+            if (n % (TUPLES_PER_PAGE * LOOKUP_EVERY) == 0) {
+                for (int i = 0; i < HOT_PAGES; i++) {
+                    bp.getPage(tid, new HeapPageId(hot.getId(), i), Permissions.READ_ONLY);
+                    lookups++;
+                }
+            }
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        return 1.0 - (double) hot.reads / lookups;
+    }
+
+    /**
+     * A large scan through a ring leaves the working set of lookups alone
+     */
+    @Test public void ringKeepsWorkingSet() throws Exception {
+        assertNull(Database.getBufferPool().newScanRing(HOT_PAGES));
+        assertNotNull(Database.getBufferPool().newScanRing(big.numPages()));
+
+        double withRing = hotHitRate();
+
+        Database.resetBufferPool(POOL_PAGES);
+        Database.getBufferPool().setScanRingPages(0);
+        assertNull(Database.getBufferPool().newScanRing(big.numPages()));
+        double withoutRing = hotHitRate();
+
+        assertEquals(1.0, withRing, 0.0);
+        assertTrue("hit rate without ring " + withoutRing, withoutRing < withRing);
+    }
+
+    /**
+     * Ring pages another reader uses stay in the pool after the scan
+     */
+    @Test public void sharedPagesLeaveTheRing() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        BufferRing ring = bp.newScanRing(big.numPages());
+        TransactionId tid = new TransactionId();
+        HeapPageId shared = new HeapPageId(big.getId(), 0);
+        bp.getPage(tid, shared, Permissions.READ_ONLY, ring);
+        // someone else uses the page, then the scan reads on
+        bp.getPage(tid, shared, Permissions.READ_ONLY);
+        for (int i = 1; i < 3 * ring.size(); i++)
+            bp.getPage(tid, new HeapPageId(big.getId(), i), Permissions.READ_ONLY, ring);
+
+        assertTrue(bp.isCached(shared));
+        assertFalse(bp.isCached(new HeapPageId(big.getId(), 1)));
+        assertTrue(bp.isCached(new HeapPageId(big.getId(), 3 * ring.size() - 1)));
+        bp.releaseScanRing(ring);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferRingTest.class);
+    }
+}
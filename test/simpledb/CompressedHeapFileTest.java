@@ -0,0 +1,161 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class CompressedHeapFileTest extends SimpleDbTestBase {
+
+    private static File tempFile(String prefix) throws Exception {
+        File f = File.createTempFile(prefix, ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        return f;
+    }
+
+    private static CompressedHeapFile openCompressed(int cols, File f) {
+        CompressedHeapFile hf = new CompressedHeapFile(f, Utility.getTupleDesc(cols));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        return hf;
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.compress() and decompress()
+     */
+    @Test public void compressAndDecompress() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile plain = SystemTestUtil.createRandomHeapFile(3, 2000, 100, null, tuples);
+
+        File f = tempFile("compressed");
+        HeapFileEncoder.compress(plain.getFile(), f);
+        assertTrue(CompressedHeapFile.isCompressed(f));
+        assertFalse(CompressedHeapFile.isCompressed(plain.getFile()));
+        assertTrue(f.length() < plain.getFile().length());
+
+        CompressedHeapFile compressed = openCompressed(3, f);
+        assertEquals(plain.numPages(), compressed.numPages());
+        assertEquals(BufferPool.getPageSize(), compressed.getPageSize());
+        for (int i = 0; i < plain.numPages(); i++) {
+            HeapPageId pid = new HeapPageId(plain.getId(), i);
+            assertArrayEquals(plain.readPage(pid).getPageData(),
+                    compressed.readPage(new HeapPageId(compressed.getId(), i)).getPageData());
+        }
+        SystemTestUtil.matchTuples(compressed, tuples);
+
+        try {
+            HeapFileEncoder.compress(f, tempFile("twice"));
+            fail("expected IOException");
+        } catch (java.io.IOException e) {
+        }
+
+        File g = tempFile("decompressed");
+        HeapFileEncoder.decompress(f, g);
+        HeapFile back = Utility.openHeapFile(3, g);
+        assertEquals(plain.numPages(), back.numPages());
+        SystemTestUtil.matchTuples(back, tuples);
+    }
+
+    /**
+     * Unit test for CompressedHeapFile.writePage(), in place and appended
+     */
+    @Test public void insertAndDelete() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile plain = SystemTestUtil.createRandomHeapFile(2, 10, 1000000, null, tuples);
+        File f = tempFile("compressed");
+        HeapFileEncoder.compress(plain.getFile(), f);
+        CompressedHeapFile compressed = openCompressed(2, f);
+
+        // fill the first page with tuples that barely compress, so it
+        // outgrows its space, and then spill onto a second page
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 600; i++) {
+            int[] values = {i * 7919, i * 104729};
+            Database.getBufferPool().insertTuple(tid, compressed.getId(), Utility.getHeapTuple(values));
+            ArrayList<Integer> row = new ArrayList<Integer>();
+            row.add(values[0]);
+            row.add(values[1]);
+            tuples.add(row);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+
+        tid = new TransactionId();
+        DbFileIterator it = compressed.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(tid, first);
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(((IntField) first.getField(0)).getValue());
+        row.add(((IntField) first.getField(1)).getValue());
+        tuples.remove(row);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        // read everything back through a fresh index
+        compressed.close();
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        CompressedHeapFile reopened = openCompressed(2, f);
+        assertEquals(2, reopened.numPages());
+        SystemTestUtil.matchTuples(reopened, tuples);
+    }
+
+    /**
+     * A crash part-way through an in-place write leaves the index entry
+     * spanning a whole stream: the new, shorter stream under the old length,
+     * or the old stream under the new, longer length
+     */
+    @Test public void tornInPlaceWrite() throws Exception {
+        HeapFile plain = SystemTestUtil.createRandomHeapFile(2, 10, 1000000, null, null);
+        byte[] oldImage = plain.readPage(new HeapPageId(plain.getId(), 0)).getPageData();
+        File f = tempFile("compressed");
+        HeapFileEncoder.compress(plain.getFile(), f);
+
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.seek(24);
+        long entryOffset = raf.readLong();
+        raf.seek(entryOffset);
+        long offset = raf.readLong();
+        int length = raf.readInt();
+        int reserved = raf.readInt();
+
+        // growing: the entry is lengthened, the old bytes are still there
+        raf.seek(entryOffset + 8);
+        raf.writeInt(reserved);
+        raf.close();
+        CompressedHeapFile compressed = openCompressed(2, f);
+        assertArrayEquals(oldImage,
+                compressed.readPage(new HeapPageId(compressed.getId(), 0)).getPageData());
+        compressed.close();
+
+        // shrinking: the new bytes are written, the entry is not shortened yet
+        byte[] emptyImage = HeapPage.createEmptyPageData();
+        ByteBuffer stream = CompressedHeapFile.deflate(emptyImage);
+        assertTrue(stream.remaining() < length);
+        raf = new RandomAccessFile(f, "rw");
+        raf.seek(entryOffset + 8);
+        raf.writeInt(length);
+        raf.getChannel().write(stream, offset);
+        raf.close();
+        compressed = openCompressed(2, f);
+        assertArrayEquals(emptyImage,
+                compressed.readPage(new HeapPageId(compressed.getId(), 0)).getPageData());
+        compressed.close();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(CompressedHeapFileTest.class);
+    }
+}
@@ -0,0 +1,195 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class DeadlockDetectorTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 500;
+
+    private LockManager lm;
+    private DeadlockDetector detector;
+    private TransactionId t1, t2, t3;
+
+    @Before public void setUp() {
+        lm = new LockManager(4);
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.DETECT);
+        detector = lm.getDetector();
+        detector.setInterval(10);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+    }
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(1, pgNo);
+    }
+
+    /**
+     * Requests a lock in a thread of its own, and records whether it was
+     * aborted
+     */
+    private class Grabber extends Thread {
+        final PageId pid;
+        final TransactionId tid;
+        final Permissions perm;
+        volatile boolean aborted;
+
+        Grabber(TransactionId tid, PageId pid, Permissions perm) {
+            this.tid = tid;
+            this.pid = pid;
+            this.perm = perm;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.getLock(pid, tid, perm);
+            } catch (TransactionAbortedException e) {
+                aborted = true;
+            }
+        }
+    }
+
+    private static HashSet<TransactionId> set(TransactionId... tids) {
+        return new HashSet<TransactionId>(Arrays.asList(tids));
+    }
+
+    /**
+     * Cycles are found in waits-for graphs, and only cycles
+     */
+    @Test public void findCycle() {
+        HashMap<TransactionId, HashSet<TransactionId>> graph = new HashMap<>();
+        graph.put(t1, set(t2));
+        graph.put(t2, set(t3));
+        assertNull(DeadlockDetector.findCycle(graph));
+
+        graph.put(t3, set(t1));
+        List<TransactionId> cycle = DeadlockDetector.findCycle(graph);
+        assertEquals(set(t1, t2, t3), new HashSet<TransactionId>(cycle));
+        assertEquals(3, cycle.size());
+
+        graph.put(t3, set(t2));
+        assertEquals(set(t2, t3), new HashSet<TransactionId>(DeadlockDetector.findCycle(graph)));
+        graph.remove(t3);
+        assertNull(DeadlockDetector.findCycle(graph));
+    }
+
+    /**
+     * Builds a cycle of t1 and t2, with t1 holding locks on page 0 and
+     * t1Extra more pages, and t2 on page 1 and t2Extra more, exclusive ones
+     * if the flags say so
+     *
+     * @return the grabbers of t1 and t2
+     */
+    private Grabber[] deadlock(int t1Extra, int t2Extra, boolean t1ExclusiveExtra, boolean t2ExclusiveExtra)
+            throws Exception {
+        lm.getLock(pid(0), t1, Permissions.READ_ONLY);
+        lm.getLock(pid(1), t2, Permissions.READ_ONLY);
+        for (int i = 0; i < t1Extra; i++)
+            lm.getLock(pid(2 + i), t1, t1ExclusiveExtra ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        for (int i = 0; i < t2Extra; i++)
+            lm.getLock(pid(100 + i), t2, t2ExclusiveExtra ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        Grabber g1 = new Grabber(t1, pid(1), Permissions.READ_WRITE);
+        Grabber g2 = new Grabber(t2, pid(0), Permissions.READ_WRITE);
+        long end = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!g1.aborted && !g2.aborted && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        // only one victim
+        Thread.sleep(50);
+        assertTrue(g1.aborted != g2.aborted);
+        assertEquals(1, detector.getDeadlocks());
+        return new Grabber[] { g1, g2 };
+    }
+
+    /**
+     * By default the youngest transaction of a cycle is aborted, and the
+     * others get their locks once it releases its own
+     */
+    @Test public void youngest() throws Exception {
+        assertEquals(DeadlockDetector.Victim.YOUNGEST, detector.getVictim());
+        Grabber[] g = deadlock(5, 0, false, false);
+        assertTrue(g[1].aborted);
+        lm.releaseAllLocks(t2);
+        g[0].join(WAIT_MILLIS);
+        assertTrue(lm.holdsLock(pid(1), t1, LockType.EXCLUSIVE));
+    }
+
+    /**
+     * The transaction holding the fewest locks may be chosen
+     */
+    @Test public void fewestLocks() throws Exception {
+        detector.setVictim(DeadlockDetector.Victim.FEWEST_LOCKS);
+        Grabber[] g = deadlock(0, 5, false, false);
+        assertTrue(g[0].aborted);
+    }
+
+    /**
+     * The transaction that changed the fewest pages may be chosen, however
+     * many it read
+     */
+    @Test public void leastWork() throws Exception {
+        detector.setVictim(DeadlockDetector.Victim.LEAST_WORK);
+        Grabber[] g = deadlock(10, 2, false, true);
+        assertTrue(g[0].aborted);
+    }
+
+    /**
+     * The thread starts when a transaction waits, and stops once nobody has
+     * waited for a while
+     */
+    @Test public void thread() throws Exception {
+        lm.getLock(pid(0), t1, Permissions.READ_WRITE);
+        assertFalse(detector.isRunning());
+        Grabber g2 = new Grabber(t2, pid(0), Permissions.READ_ONLY);
+        Thread.sleep(50);
+        assertTrue(detector.isRunning());
+        assertTrue(detector.getRounds() > 0);
+        lm.releaseAllLocks(t1);
+        g2.join(WAIT_MILLIS);
+        assertFalse(g2.aborted);
+
+        long end = System.currentTimeMillis() + 5000;
+        while (detector.isRunning() && System.currentTimeMillis() < end)
+            Thread.sleep(10);
+        assertFalse(detector.isRunning());
+        assertEquals(0, detector.getDeadlocks());
+    }
+
+    /**
+     * Intervals and policies are checked
+     */
+    @Test public void badArguments() {
+        try {
+            detector.setInterval(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            detector.setVictim(null);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(DeadlockDetectorTest.class);
+    }
+}
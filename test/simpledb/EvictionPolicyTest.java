@@ -0,0 +1,119 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class EvictionPolicyTest extends SimpleDbTestBase {
+
+    private static PageId page(int pageNo) {
+        return new HeapPageId(1, pageNo);
+    }
+
+    /**
+     * Every policy evicts each page it knows once, and forgets removed pages
+     */
+    @Test public void evictsEveryPage() {
+        for (String name : new String[] {"clock", "lru2", "random"}) {
+            EvictionPolicy policy = BufferPool.newEvictionPolicy(name, 4);
+            // more pages than the pool was sized for
+            for (int i = 0; i < 10; i++)
+                policy.pageAdded(page(i));
+            policy.pageAdded(page(3));
+            policy.pageAccessed(page(4));
+            policy.pageRemoved(page(5));
+            policy.pageRemoved(page(42));
+
+            HashSet<PageId> evicted = new HashSet<PageId>();
+            for (PageId pid = policy.evict(); pid != null; pid = policy.evict())
+                assertTrue(name, evicted.add(pid));
+            assertEquals(name, 9, evicted.size());
+            assertFalse(name, evicted.contains(page(5)));
+        }
+    }
+
+    /**
+     * CLOCK gives recently used pages a second chance
+     */
+    @Test public void clockSecondChance() {
+        EvictionPolicy policy = new ClockPolicy(3);
+        for (int i = 0; i < 3; i++)
+            policy.pageAdded(page(i));
+        // the first sweep clears every bit; then use one remaining page again
+        PageId first = policy.evict();
+        PageId used = first.equals(page(0)) ? page(1) : page(0);
+        policy.pageAccessed(used);
+
+        PageId second = policy.evict();
+        assertFalse(second.equals(first));
+        assertFalse(second.equals(used));
+        assertEquals(used, policy.evict());
+        assertNull(policy.evict());
+    }
+
+    /**
+     * LRU-2 keeps pages used twice over pages scanned once
+     */
+    @Test public void lru2ScanResistance() {
+        EvictionPolicy policy = new Lru2Policy(8);
+        PageId hot = page(0);
+        policy.pageAdded(hot);
+        // evicted from the first-use queue, then read again: now it is hot
+        for (int i = 1; i < 8; i++)
+            policy.pageAdded(page(i));
+        for (int i = 0; i < 8; i++) {
+            PageId victim = policy.evict();
+            if (victim.equals(hot))
+                break;
+        }
+        policy.pageAdded(hot);
+
+        // a long scan of pages used once never displaces it
+        for (int i = 100; i < 200; i++) {
+            policy.pageAdded(page(i));
+            assertNotEquals(hot, policy.evict());
+            policy.pageAccessed(hot);
+        }
+    }
+
+    /**
+     * The BufferPool evicts the pages its policy chooses
+     */
+    @Test public void bufferPoolUsesPolicy() throws Exception {
+        HeapFile hf = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 504 * 5, null, null);
+        final HashSet<PageId> evicted = new HashSet<PageId>();
+        EvictionPolicy policy = new Lru2Policy(2) {
+            public PageId evict() {
+                PageId pid = super.evict();
+                evicted.add(pid);
+                return pid;
+            }
+        };
+        BufferPool bp = new BufferPool(2, policy);
+        assertSame(policy, bp.getEvictionPolicy());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 5; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertEquals(3, evicted.size());
+        for (PageId pid : evicted)
+            assertFalse(bp.isCached(pid));
+        bp.transactionComplete(tid);
+    }
+
+    private static void assertNotEquals(Object unexpected, Object actual) {
+        assertFalse("unexpected " + actual, unexpected.equals(actual));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(EvictionPolicyTest.class);
+    }
+}
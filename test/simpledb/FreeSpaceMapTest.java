@@ -0,0 +1,140 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class FreeSpaceMapTest extends SimpleDbTestBase {
+
+    /**
+     * Unit test for FreeSpaceMap.nextFreePage()
+     */
+    @Test public void nextFreePage() {
+        FreeSpaceMap map = new FreeSpaceMap();
+        // pages the map has never seen are free
+        assertEquals(0, map.nextFreePage(0, 3));
+
+        map.setFree(0, false);
+        map.setFree(1, true);
+        map.setFree(2, false);
+        assertEquals(1, map.nextFreePage(0, 3));
+        assertEquals(-1, map.nextFreePage(2, 3));
+
+        map.setFree(1, false);
+        assertEquals(-1, map.nextFreePage(0, 3));
+        assertEquals(3, map.nextFreePage(0, 4));
+
+        // skipping ahead leaves the pages in between free
+        map.setFree(6, false);
+        assertEquals(3, map.nextFreePage(0, 7));
+        assertEquals(-1, map.nextFreePage(6, 7));
+    }
+
+    /**
+     * Unit test for FreeSpaceMap.save() and FreeSpaceMap.load()
+     */
+    @Test public void saveAndLoad() throws Exception {
+        File table = File.createTempFile("fsm", ".dat");
+        table.deleteOnExit();
+        File sidecar = new File(table.getPath() + ".fsm");
+        sidecar.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(table);
+        out.write(new byte[3 * BufferPool.getPageSize()]);
+        out.close();
+
+        FreeSpaceMap map = new FreeSpaceMap();
+        map.setFree(0, false);
+        map.setFree(1, true);
+        map.setFree(2, false);
+        assertTrue(map.isDirty());
+        map.save(sidecar, table);
+        assertFalse(map.isDirty());
+
+        FreeSpaceMap loaded = FreeSpaceMap.load(sidecar, table);
+        assertNotNull(loaded);
+        assertEquals(1, loaded.nextFreePage(0, 3));
+        assertEquals(-1, loaded.nextFreePage(2, 3));
+
+        // a table that changed after the map was saved is not trusted
+        out = new FileOutputStream(table, true);
+        out.write(new byte[BufferPool.getPageSize()]);
+        out.close();
+        assertNull(FreeSpaceMap.load(sidecar, table));
+    }
+
+    /**
+     * Unit test for the map HeapFile rebuilds from its page headers
+     */
+    @Test public void rebuildFromPages() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+        int tableId = hf.getId();
+        int numTuples = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        int headerSize = (int) Math.ceil(numTuples / 8.0);
+        byte[] empty = new byte[numTuples * 8 + headerSize];
+        byte[] full = new byte[numTuples * 8 + headerSize];
+        for (int i = 0; i < full.length; i++) {
+            full[i] = (byte) 0xFF;
+        }
+        hf.writePage(new HeapPage(new HeapPageId(tableId, 0), full));
+        hf.writePage(new HeapPage(new HeapPageId(tableId, 1), full));
+        hf.writePage(new HeapPage(new HeapPageId(tableId, 2), empty));
+
+        FreeSpaceMap map = hf.getFreeSpaceMap();
+        assertEquals(2, map.nextFreePage(0, hf.numPages()));
+
+        // inserts go straight to the page with room
+        TransactionId tid = new TransactionId();
+        hf.insertTuple(tid, Utility.getHeapTuple(1, 2));
+        assertEquals(3, hf.numPages());
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * The first page write after the map is saved deletes its sidecar, so
+     * that a crash before the next save cannot leave a stale map behind
+     */
+    @Test public void writeDeletesSidecar() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        File sidecar = hf.getFreeSpaceMapFile();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        hf.getFreeSpaceMap();
+        hf.saveFreeSpaceMap();
+        assertTrue(sidecar.exists());
+
+        hf.writePage(hf.readPage(pid));
+        assertFalse(sidecar.exists());
+        hf.writePage(hf.readPage(pid));
+        hf.saveFreeSpaceMap();
+        assertTrue(sidecar.exists());
+    }
+
+    /**
+     * Aborting a transaction gives the map back the room its inserts took
+     */
+    @Test public void abortRestoresFreeSpace() throws Exception {
+        int numTuples = (BufferPool.getPageSize() * 8) / (8 * 8 + 1);
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, numTuples - 1, null, null);
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, hf.getId(), Utility.getHeapTuple(1, 2));
+        FreeSpaceMap map = hf.getFreeSpaceMap();
+        assertEquals(-1, map.nextFreePage(0, hf.numPages()));
+
+        Database.getBufferPool().transactionComplete(tid, false);
+        assertEquals(0, map.nextFreePage(0, hf.numPages()));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FreeSpaceMapTest.class);
+    }
+}
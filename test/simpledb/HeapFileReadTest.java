@@ -3,6 +3,7 @@ package simpledb;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
 
+import java.io.File;
 import java.util.*;
 import org.junit.After;
 import org.junit.Before;
@@ -77,6 +78,48 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         assertFalse(page.isSlotUsed(20));
     }
 
+    /**
+     * Unit test for HeapFile.readPage() on a memory-mapped file
+     */
+    @Test
+    public void readPageMapped() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage copied = (HeapPage) hf.readPage(pid);
+
+        hf.setMemoryMapped(true);
+        HeapPage mapped = (HeapPage) hf.readPage(pid);
+        assertEquals(484, mapped.getNumEmptySlots());
+        assertArrayEquals(copied.getPageData(), mapped.getPageData());
+        assertArrayEquals(copied.getPageData(), mapped.getBeforeImage().getPageData());
+
+        // the before image survives the mapped bytes being overwritten
+        mapped.deleteTuple(mapped.iterator().next());
+        hf.writePage(mapped);
+        assertFalse(hf.isMemoryMapped());
+        assertArrayEquals(copied.getPageData(), mapped.getBeforeImage().getPageData());
+        assertEquals(485, ((HeapPage) hf.readPage(pid)).getNumEmptySlots());
+    }
+
+    /**
+     * Tuples read from a mapped page keep their values after the page is
+     * rewritten underneath the mapping
+     */
+    @Test
+    public void mappedTuplesSurviveRewrite() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Tuple expected = ((HeapPage) hf.readPage(pid)).iterator().next();
+        hf.setMemoryMapped(true);
+        // nothing has been read from this tuple yet
+        Tuple first = ((HeapPage) hf.readPage(pid)).iterator().next();
+
+        HeapPage writer = (HeapPage) hf.readPage(pid);
+        writer.deleteTuple(writer.iterator().next());
+        writer.insertTuple(Utility.getHeapTuple(new int[] { -1, -1 }));
+        hf.writePage(writer);
+        assertEquals(new IntField(-1), ((HeapPage) hf.readPage(pid)).iterator().next().getField(1));
+        assertEquals(expected.getField(1), first.getField(1));
+    }
+
     @Test
     public void testIteratorBasic() throws Exception {
         HeapFile smallFile = SystemTestUtil.createRandomHeapFile(2, 3, null,
@@ -121,6 +164,64 @@ public class HeapFileReadTest extends SimpleDbTestBase {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.getPageSize() on files with a header
+     */
+    @Test
+    public void pageSizeFromHeader() throws Exception {
+        assertEquals(BufferPool.getPageSize(), hf.getPageSize());
+
+        File f = File.createTempFile("paged", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile paged = HeapFile.create(f, td, 16384);
+        Database.getCatalog().addTable(paged, SystemTestUtil.getUUID());
+        assertEquals(16384, paged.getPageSize());
+        assertEquals(0, paged.numPages());
+
+        // 16 KB pages hold 2016 two-int tuples; the header is not a page
+        for (int i = 0; i < 2017; i++)
+            Database.getBufferPool().insertTuple(tid, paged.getId(), Utility.getHeapTuple(i, 2));
+        Database.getBufferPool().flushAllPages();
+        assertEquals(2, paged.numPages());
+        assertEquals(3 * 16384, f.length());
+        HeapPage first = (HeapPage) paged.readPage(new HeapPageId(paged.getId(), 0));
+        assertEquals(0, first.getNumEmptySlots());
+        assertEquals(16384, first.getPageData().length);
+
+        try {
+            HeapFile.create(f, td, 12345);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.repage()
+     */
+    @Test
+    public void repage() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile small = SystemTestUtil.createRandomHeapFile(2, 1200, null, tuples);
+        assertEquals(3, small.numPages());
+
+        File f = File.createTempFile("repaged", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.repage(small.getFile(), f, td, 32768);
+        HeapFile repaged = Utility.openHeapFile(2, f);
+        assertEquals(32768, repaged.getPageSize());
+        assertEquals(1, repaged.numPages());
+        SystemTestUtil.matchTuples(repaged, tuples);
+
+        // and back to the default page size, with a header this time
+        File g = File.createTempFile("repaged", ".dat");
+        g.deleteOnExit();
+        HeapFileEncoder.repage(f, g, td, BufferPool.getPageSize());
+        HeapFile back = Utility.openHeapFile(2, g);
+        assertEquals(3, back.numPages());
+        SystemTestUtil.matchTuples(back, tuples);
+    }
+
     /**
      * JUnit suite target
      */
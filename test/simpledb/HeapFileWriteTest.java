@@ -1,5 +1,8 @@
 package simpledb;
 
+import java.util.ArrayList;
+import java.util.Random;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -86,6 +89,38 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    /**
+     * Unit test for HeapFile.writePages(), with pages out of order, gaps
+     * between them, and a run longer than a single gathering write
+     */
+    @Test public void writePages() throws Exception {
+        int tableId = empty.getId();
+        int[] pageNos = new int[HeapFile.MAX_WRITE_RUN + 10];
+        for (int i = 0; i < pageNos.length; i++)
+            pageNos[i] = i;
+        // pages 3 and 7 left out, the rest shuffled
+        ArrayList<Page> pages = new ArrayList<Page>();
+        Random r = new Random(1);
+        for (int pgNo : pageNos) {
+            if (pgNo == 3 || pgNo == 7)
+                continue;
+            HeapPage page = new HeapPage(new HeapPageId(tableId, pgNo), HeapPage.createEmptyPageData());
+            page.insertTuple(Utility.getHeapTuple(pgNo, 2));
+            pages.add(r.nextInt(pages.size() + 1), page);
+        }
+        empty.writePages(pages);
+
+        assertEquals(pageNos.length, empty.numPages());
+        for (int pgNo : pageNos) {
+            HeapPage page = (HeapPage) empty.readPage(new HeapPageId(tableId, pgNo));
+            if (pgNo == 3 || pgNo == 7) {
+                assertFalse(page.iterator().hasNext());
+            } else {
+                assertEquals(pgNo, ((IntField) page.iterator().next().getField(0)).getValue());
+            }
+        }
+    }
+
     /**
      * JUnit suite target
      */
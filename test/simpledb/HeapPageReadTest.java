@@ -120,6 +120,37 @@ public class HeapPageReadTest extends SimpleDbTestBase {
             assertFalse(page.isSlotUsed(i));
     }
 
+    /**
+     * Unit test for HeapPage.getNumEmptySlots() and HeapPage.iterator() on
+     * a page whose header has bits set past the last slot
+     */
+    @Test public void fullHeader() throws Exception {
+        byte[] full = new byte[BufferPool.getPageSize()];
+        Arrays.fill(full, (byte) 0xFF);
+        HeapPage page = new HeapPage(pid, full);
+        assertEquals(0, page.getNumEmptySlots());
+
+        int count = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next())
+            count++;
+        assertEquals(504, count);
+
+        // freeing slots in different header words is seen by both
+        page.deleteTuple(page.iterator().next());
+        Iterator<Tuple> it = page.iterator();
+        for (int i = 0; i < 100; i++)
+            it.next();
+        Tuple t = it.next();
+        assertEquals(101, t.getRecordId().getTupleNumber());
+        page.deleteTuple(t);
+        assertEquals(2, page.getNumEmptySlots());
+        assertFalse(page.isSlotUsed(0));
+        assertFalse(page.isSlotUsed(101));
+        assertEquals(0, page.nextSlot(0, false));
+        assertEquals(101, page.nextSlot(1, false));
+        assertEquals(504, page.nextSlot(102, false));
+    }
+
     /**
      * JUnit suite target
      */
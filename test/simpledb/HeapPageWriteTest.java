@@ -1,5 +1,6 @@
 package simpledb;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -126,6 +127,35 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Unit test for HeapPage.getPageData() after inserts and deletes
+     */
+    @Test public void pageDataAfterModification() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+
+        Tuple deleted = page.iterator().next();
+        page.deleteTuple(deleted);
+        Tuple added = Utility.getHeapTuple(new int[] {42, 17});
+        page.insertTuple(added);
+
+        // a page rebuilt from the image holds the same tuples
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertEquals(page.getNumEmptySlots(), copy.getNumEmptySlots());
+        Iterator<Tuple> it = page.iterator();
+        Iterator<Tuple> copyIt = copy.iterator();
+        while (it.hasNext()) {
+            assertEquals(it.next().toString(), copyIt.next().toString());
+        }
+        assertTrue(!copyIt.hasNext());
+
+        // the deleted tuple still reads its fields, and the before image
+        // is untouched by the changes
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES[0][0],
+                ((IntField) deleted.getField(0)).getValue());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
@@ -0,0 +1,468 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+
+public class LockManagerTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 200;
+
+    private LockManager lm;
+    private PageId p0, p1;
+    private TransactionId t1, t2, t3, t4;
+
+    @Before public void setUp() {
+        lm = new LockManager(4);
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.DETECT);
+        lm.getDetector().setInterval(10);
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+        t1 = new TransactionId();
+        t2 = new TransactionId();
+        t3 = new TransactionId();
+        t4 = new TransactionId();
+    }
+
+    /**
+     * Requests a lock on a page, a record or a table (given by its id) in a
+     * thread of its own, so the test can see whether it waits
+     */
+    private class Grabber extends Thread {
+        final Object item;
+        final TransactionId tid;
+        final Permissions perm;
+        volatile boolean acquired;
+        volatile Exception error;
+
+        Grabber(TransactionId tid, Object item, Permissions perm) {
+            this.tid = tid;
+            this.item = item;
+            this.perm = perm;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                if (item instanceof RecordId) {
+                    lm.getRecordLock((RecordId) item, tid, perm);
+                } else if (item instanceof Integer) {
+                    lm.getTableLock((Integer) item, tid, perm);
+                } else {
+                    lm.getLock((PageId) item, tid, perm);
+                }
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        /** @return whether the request was granted within WAIT_MILLIS */
+        boolean granted() throws InterruptedException {
+            join(WAIT_MILLIS);
+            return acquired;
+        }
+    }
+
+    /**
+     * A writer waiting for readers isn't overtaken by later readers, and
+     * gets the lock once the readers release it
+     */
+    @Test public void writerNotStarved() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_ONLY);
+        Grabber writer = new Grabber(t2, p0, Permissions.READ_WRITE);
+        assertFalse(writer.granted());
+        Grabber reader = new Grabber(t3, p0, Permissions.READ_ONLY);
+        assertFalse(reader.granted());
+        assertFalse(lm.trySharedLock(p0, t4));
+
+        lm.releaseAllLocks(t1);
+        assertTrue(writer.granted());
+        assertFalse(reader.granted());
+        assertTrue(lm.holdsLock(p0, t2, LockType.EXCLUSIVE));
+
+        lm.releaseAllLocks(t2);
+        assertTrue(reader.granted());
+        assertTrue(lm.holdsLock(p0, t3, LockType.SHARED));
+    }
+
+    /**
+     * The readers at the head of the queue are granted together, and the
+     * writer after them keeps waiting
+     */
+    @Test public void readersGrantedTogether() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_WRITE);
+        Grabber r2 = new Grabber(t2, p0, Permissions.READ_ONLY);
+        Grabber r3 = new Grabber(t3, p0, Permissions.READ_ONLY);
+        assertFalse(r3.granted());
+        Grabber w4 = new Grabber(t4, p0, Permissions.READ_WRITE);
+        assertFalse(w4.granted());
+
+        lm.releaseLock(p0, t1);
+        assertTrue(r2.granted());
+        assertTrue(r3.granted());
+        assertFalse(w4.granted());
+
+        lm.releaseAllLocks(t2);
+        assertFalse(w4.granted());
+        lm.releaseAllLocks(t3);
+        assertTrue(w4.granted());
+    }
+
+    /**
+     * The only reader may upgrade at once; otherwise the upgrade waits for
+     * the other readers, ahead of the requests already queued
+     */
+    @Test public void upgrade() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_ONLY);
+        lm.getLock(p0, t1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(p0, t1, LockType.EXCLUSIVE));
+        lm.releaseAllLocks(t1);
+
+        lm.getLock(p0, t1, Permissions.READ_ONLY);
+        lm.getLock(p0, t2, Permissions.READ_ONLY);
+        Grabber w3 = new Grabber(t3, p0, Permissions.READ_WRITE);
+        assertFalse(w3.granted());
+        Grabber up = new Grabber(t1, p0, Permissions.READ_WRITE);
+        assertFalse(up.granted());
+
+        lm.releaseAllLocks(t2);
+        assertTrue(up.granted());
+        assertFalse(w3.granted());
+        lm.releaseAllLocks(t1);
+        assertTrue(w3.granted());
+    }
+
+    /**
+     * One transaction of a cycle of waits is aborted, and the others
+     * proceed once it releases its locks
+     */
+    @Test public void deadlock() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_ONLY);
+        lm.getLock(p1, t2, Permissions.READ_ONLY);
+        Grabber g1 = new Grabber(t1, p1, Permissions.READ_WRITE);
+        assertFalse(g1.granted());
+        Grabber g2 = new Grabber(t2, p0, Permissions.READ_WRITE);
+        g2.join(WAIT_MILLIS);
+        assertTrue(g2.error instanceof TransactionAbortedException);
+        assertFalse(g1.granted());
+        lm.releaseAllLocks(t2);
+        assertTrue(g1.granted());
+    }
+
+    /**
+     * Two readers both upgrading deadlock; one of them is aborted
+     */
+    @Test public void upgradeDeadlock() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_ONLY);
+        lm.getLock(p0, t2, Permissions.READ_ONLY);
+        Grabber g1 = new Grabber(t1, p0, Permissions.READ_WRITE);
+        assertFalse(g1.granted());
+        Grabber g2 = new Grabber(t2, p0, Permissions.READ_WRITE);
+        g2.join(WAIT_MILLIS);
+        g1.join(WAIT_MILLIS);
+        assertTrue(g1.error instanceof TransactionAbortedException
+                || g2.error instanceof TransactionAbortedException);
+        assertFalse(g1.error != null && g2.error != null);
+    }
+
+    /**
+     * Releasing the locks of a transaction, e.g. one whose thread died
+     * waiting, aborts its request, so it doesn't hold up the queue
+     */
+    @Test public void releaseDropsRequests() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_WRITE);
+        Grabber g2 = new Grabber(t2, p0, Permissions.READ_WRITE);
+        assertFalse(g2.granted());
+        Grabber g3 = new Grabber(t3, p0, Permissions.READ_ONLY);
+        assertFalse(g3.granted());
+
+        lm.releaseAllLocks(t2);
+        lm.releaseAllLocks(t1);
+        assertTrue(g3.granted());
+        assertFalse(lm.holdsLock(p0, t2, LockType.ANY));
+        g2.join(WAIT_MILLIS);
+        assertTrue(g2.error instanceof TransactionAbortedException);
+    }
+
+    /**
+     * Releasing a transaction's locks releases all of them, including one
+     * it released singly and locked again, and leaves others' locks alone
+     */
+    @Test public void releaseOwnLocks() throws Exception {
+        for (int i = 0; i < 1000; i++) {
+            lm.getLock(new HeapPageId(1, i), t1, Permissions.READ_ONLY);
+            lm.getLock(new HeapPageId(2, i), t2, Permissions.READ_WRITE);
+        }
+        lm.releaseLock(p0, t1);
+        assertFalse(lm.holdsLock(p0, t1, LockType.ANY));
+        lm.getLock(p0, t1, Permissions.READ_WRITE);
+        Grabber w3 = new Grabber(t3, p1, Permissions.READ_WRITE);
+        assertFalse(w3.granted());
+
+        lm.releaseAllLocks(t1);
+        assertTrue(w3.granted());
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(lm.holdsLock(new HeapPageId(1, i), t1, LockType.ANY));
+            assertTrue(lm.holdsLock(new HeapPageId(2, i), t2, LockType.EXCLUSIVE));
+        }
+    }
+
+    /**
+     * Under wait-die an older transaction waits for a younger one, and a
+     * younger one that would wait for an older one is aborted at once
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        lm.getLock(p0, t2, Permissions.READ_WRITE);
+        Grabber older = new Grabber(t1, p0, Permissions.READ_ONLY);
+        assertFalse(older.granted());
+        assertNull(older.error);
+        try {
+            lm.getLock(p0, t3, Permissions.READ_ONLY);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t3);
+
+        lm.releaseAllLocks(t2);
+        assertTrue(older.granted());
+        assertTrue(lm.holdsLock(p0, t1, LockType.SHARED));
+    }
+
+    /**
+     * Under wound-wait an older transaction wounds the younger one it would
+     * wait for, whose waiting request and next request are aborted; a
+     * younger transaction waits for an older one
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        lm.getLock(p0, t1, Permissions.READ_WRITE);
+        lm.getLock(p1, t2, Permissions.READ_WRITE);
+        Grabber younger = new Grabber(t2, p0, Permissions.READ_ONLY);
+        assertFalse(younger.granted());
+        assertNull(younger.error);
+
+        // t1 waits for t2, wounding it
+        Grabber older = new Grabber(t1, p1, Permissions.READ_ONLY);
+        younger.join(WAIT_MILLIS);
+        assertTrue(younger.error instanceof TransactionAbortedException);
+        assertFalse(older.granted());
+        try {
+            lm.getLock(new HeapPageId(1, 2), t2, Permissions.READ_ONLY);
+            fail("expected TransactionAbortedException");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        lm.releaseAllLocks(t2);
+        assertTrue(older.granted());
+        // t2's abort is over; a new request of it is served
+        lm.getLock(new HeapPageId(1, 2), t2, Permissions.READ_ONLY);
+    }
+
+    /**
+     * The deadlocks of the detection tests are prevented by both policies,
+     * by aborting the younger transaction
+     */
+    @Test public void preventDeadlock() throws Exception {
+        for (LockManager.DeadlockPolicy policy : new LockManager.DeadlockPolicy[] {
+                LockManager.DeadlockPolicy.WAIT_DIE, LockManager.DeadlockPolicy.WOUND_WAIT }) {
+            lm.setDeadlockPolicy(policy);
+            lm.getLock(p0, t1, Permissions.READ_ONLY);
+            lm.getLock(p1, t2, Permissions.READ_ONLY);
+            Grabber g1 = new Grabber(t1, p1, Permissions.READ_WRITE);
+            Grabber g2 = new Grabber(t2, p0, Permissions.READ_WRITE);
+            g2.join(WAIT_MILLIS);
+            assertTrue(policy.toString(), g2.error instanceof TransactionAbortedException);
+            lm.releaseAllLocks(t2);
+            assertTrue(policy.toString(), g1.granted());
+            assertEquals(0, lm.getDetector().getRounds());
+            lm.releaseAllLocks(t1);
+        }
+    }
+
+    /**
+     * Lock modes conflict and combine as in the compatibility matrix
+     */
+    @Test public void lockModes() {
+        LockManager.LockMode IS = LockManager.LockMode.IS, IX = LockManager.LockMode.IX,
+                S = LockManager.LockMode.S, SIX = LockManager.LockMode.SIX, X = LockManager.LockMode.X;
+        assertTrue(IS.compatible(SIX));
+        assertTrue(IX.compatible(IX));
+        assertFalse(IX.compatible(S));
+        assertFalse(SIX.compatible(IX));
+        assertFalse(X.compatible(IS));
+        assertEquals(SIX, S.join(IX));
+        assertEquals(X, SIX.join(X));
+        assertTrue(SIX.covers(S));
+        assertTrue(SIX.covers(IX));
+        assertFalse(S.covers(IX));
+    }
+
+    /**
+     * Transactions writing different records of a page don't wait for each
+     * other, but do for the same record; each holds intention locks on the
+     * page and table
+     */
+    @Test public void recordLocks() throws Exception {
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        lm.getRecordLock(r0, t1, Permissions.READ_WRITE);
+        Grabber w2 = new Grabber(t2, r1, Permissions.READ_WRITE);
+        assertTrue(w2.granted());
+        assertTrue(lm.holdsLock(r0, t1, LockType.EXCLUSIVE));
+        assertEquals(LockManager.LockMode.IX, lm.heldMode(p0, t1));
+        assertEquals(LockManager.LockMode.IX, lm.heldMode(LockManager.tableKey(1), t2));
+
+        Grabber r3 = new Grabber(t3, r0, Permissions.READ_ONLY);
+        assertFalse(r3.granted());
+        // a page lock conflicts with the intention locks below it
+        Grabber w4 = new Grabber(t4, p0, Permissions.READ_ONLY);
+        assertFalse(w4.granted());
+
+        lm.releaseAllLocks(t1);
+        assertTrue(r3.granted());
+        lm.releaseAllLocks(t2);
+        assertTrue(w4.granted());
+    }
+
+    /**
+     * A table lock waits for page locks in the table that conflict with it,
+     * and holds back conflicting page locks taken after it
+     */
+    @Test public void tableLocks() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_WRITE);
+        // IS on the table is compatible with t1's IX
+        lm.getLock(new HeapPageId(1, 2), t3, Permissions.READ_ONLY);
+        Grabber reader = new Grabber(t2, 1, Permissions.READ_ONLY);
+        assertFalse(reader.granted());
+
+        lm.releaseAllLocks(t1);
+        assertTrue(reader.granted());
+        Grabber writer = new Grabber(t4, p1, Permissions.READ_WRITE);
+        assertFalse(writer.granted());
+        assertFalse(lm.trySharedLock(p0, t1));
+        assertFalse(lm.holdsLock(p0, t1, LockType.ANY));
+        assertNull(lm.heldMode(LockManager.tableKey(1), t1));
+        lm.releaseAllLocks(t2);
+        assertTrue(writer.granted());
+    }
+
+    /**
+     * A table lock waits for the writers holding records of it, whether
+     * they locked a free slot without waiting or escalated to a page lock
+     */
+    @Test public void tableLocksAndRecords() throws Exception {
+        lm.setEscalationThreshold(2);
+        lm.getIntentionLock(p0, t1, Permissions.READ_WRITE);
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 0), t1));
+        Grabber reader = new Grabber(t2, 1, Permissions.READ_ONLY);
+        assertFalse(reader.granted());
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 1), t1));
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 2), t1));
+        assertTrue(lm.holdsLock(p0, t1, LockType.EXCLUSIVE));
+        assertFalse(reader.granted());
+        lm.releaseAllLocks(t1);
+        assertTrue(reader.granted());
+
+        // and the records wait for the table lock
+        Grabber record = new Grabber(t3, new RecordId(p1, 0), Permissions.READ_WRITE);
+        assertFalse(record.granted());
+        lm.releaseAllLocks(t2);
+        assertTrue(record.granted());
+        assertEquals(LockManager.LockMode.IX, lm.heldMode(LockManager.tableKey(1), t3));
+    }
+
+    /**
+     * Writers looking for a free slot lock only records nobody else holds,
+     * without waiting, and escalate only when no other writer is on the
+     * page
+     */
+    @Test public void tryRecordLocks() throws Exception {
+        lm.setEscalationThreshold(2);
+        lm.getIntentionLock(p0, t1, Permissions.READ_WRITE);
+        lm.getIntentionLock(p0, t2, Permissions.READ_WRITE);
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 0), t1));
+        assertFalse(lm.tryRecordLock(new RecordId(p0, 0), t2));
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 1), t2));
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 2), t1));
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 3), t1));
+        // t2 is on the page, so t1 keeps its record locks
+        assertEquals(LockManager.LockMode.IX, lm.heldMode(p0, t1));
+        assertTrue(lm.holdsLock(new RecordId(p0, 3), t1, LockType.EXCLUSIVE));
+
+        lm.releaseAllLocks(t2);
+        assertTrue(lm.tryRecordLock(new RecordId(p0, 4), t1));
+        assertTrue(lm.holdsLock(p0, t1, LockType.EXCLUSIVE));
+        assertFalse(lm.holdsLock(new RecordId(p0, 0), t1, LockType.ANY));
+        lm.getIntentionLock(p1, t3, Permissions.READ_WRITE);
+        assertTrue(lm.tryRecordLock(new RecordId(p1, 0), t3));
+        Grabber reader = new Grabber(t4, new RecordId(p0, 1), Permissions.READ_ONLY);
+        assertFalse(reader.granted());
+        lm.releaseAllLocks(t1);
+        assertTrue(reader.granted());
+    }
+
+    /**
+     * A transaction's record locks on a page are replaced with a page lock
+     * once there are more than the threshold of them: S for reads, X once
+     * it wrote one
+     */
+    @Test public void escalation() throws Exception {
+        lm.setEscalationThreshold(4);
+        for (int i = 0; i < 4; i++) {
+            lm.getRecordLock(new RecordId(p0, i), t1, Permissions.READ_ONLY);
+        }
+        assertEquals(LockManager.LockMode.IS, lm.heldMode(p0, t1));
+        lm.getRecordLock(new RecordId(p0, 4), t1, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(p0, t1, LockType.SHARED));
+        for (int i = 0; i < 5; i++) {
+            assertFalse(lm.holdsLock(new RecordId(p0, i), t1, LockType.ANY));
+        }
+        // covered by the page lock
+        lm.getRecordLock(new RecordId(p0, 5), t1, Permissions.READ_ONLY);
+        assertFalse(lm.holdsLock(new RecordId(p0, 5), t1, LockType.ANY));
+        Grabber writer = new Grabber(t2, new RecordId(p0, 9), Permissions.READ_WRITE);
+        assertFalse(writer.granted());
+        lm.releaseAllLocks(t1);
+        assertTrue(writer.granted());
+
+        lm.getRecordLock(new RecordId(p1, 0), t3, Permissions.READ_WRITE);
+        for (int i = 1; i < 5; i++) {
+            lm.getRecordLock(new RecordId(p1, i), t3, Permissions.READ_ONLY);
+        }
+        assertTrue(lm.holdsLock(p1, t3, LockType.EXCLUSIVE));
+        assertFalse(lm.holdsLock(new RecordId(p1, 0), t3, LockType.ANY));
+    }
+
+    /**
+     * A transaction reading a page and writing one of its records holds
+     * SIX on it, which lets others read other records but not the page
+     */
+    @Test public void sharedIntentionExclusive() throws Exception {
+        lm.getLock(p0, t1, Permissions.READ_ONLY);
+        lm.getRecordLock(new RecordId(p0, 0), t1, Permissions.READ_WRITE);
+        assertEquals(LockManager.LockMode.SIX, lm.heldMode(p0, t1));
+        Grabber other = new Grabber(t2, new RecordId(p0, 1), Permissions.READ_ONLY);
+        assertTrue(other.granted());
+        Grabber page = new Grabber(t3, p0, Permissions.READ_ONLY);
+        assertFalse(page.granted());
+        lm.releaseAllLocks(t1);
+        assertTrue(page.granted());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
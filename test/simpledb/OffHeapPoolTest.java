@@ -0,0 +1,147 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class OffHeapPoolTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 4;
+    private static final int TABLE_PAGES = 12;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private BufferPool bp;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        tuples = new ArrayList<ArrayList<Integer>>();
+        hf = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * TABLE_PAGES, null, tuples);
+        bp = offHeapPool();
+    }
+
+    private static BufferPool offHeapPool() {
+        return Database.resetBufferPool(new BufferPool(POOL_PAGES,
+                BufferPool.newEvictionPolicy(BufferPool.DEFAULT_EVICTION_POLICY, POOL_PAGES), true));
+    }
+
+    private static ArrayList<Integer> values(Tuple t) {
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        for (int i = 0; i < t.getTupleDesc().numFields(); i++)
+            row.add(((IntField) t.getField(i)).getValue());
+        return row;
+    }
+
+    /**
+     * Unit test for FrameArena
+     */
+    @Test public void arena() {
+        FrameArena arena = new FrameArena(3, 16);
+        HashSet<Integer> frames = new HashSet<Integer>();
+        for (int i = 0; i < 3; i++)
+            frames.add(arena.allocate());
+        assertEquals(new HashSet<Integer>(Arrays.asList(0, 1, 2)), frames);
+        assertEquals(-1, arena.allocate());
+        assertEquals(0, arena.numFree());
+
+        arena.frame(1).putInt(12, 42);
+        assertEquals(16, arena.frame(0).remaining());
+        assertEquals(0, arena.frame(0).getInt(12));
+        assertEquals(0, arena.frame(2).getInt(0));
+        assertEquals(42, arena.frame(1).getInt(12));
+
+        arena.release(1);
+        assertEquals(1, arena.allocate());
+    }
+
+    /**
+     * Tuples read from arena frames stay valid after their frames are reused
+     */
+    @Test public void scan() throws Exception {
+        assertNotNull(bp.getArena());
+        TransactionId tid = new TransactionId();
+        ArrayList<Tuple> read = new ArrayList<Tuple>();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        while (it.hasNext())
+            read.add(it.next());
+        it.close();
+        assertEquals(0, bp.getArena().numFree());
+
+        ArrayList<ArrayList<Integer>> rows = new ArrayList<ArrayList<Integer>>();
+        for (Tuple t : read)
+            rows.add(values(t));
+        assertEquals(tuples, rows);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * A page held on to after its eviction still has its contents
+     */
+    @Test public void evictedPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        for (int i = 1; i < TABLE_PAGES; i++)
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        assertFalse(bp.isCached(pid));
+
+        assertArrayEquals(hf.readPage(pid).getPageData(), page.getPageData());
+        Iterator<Tuple> it = page.iterator();
+        for (int i = 0; i < TUPLES_PER_PAGE; i++)
+            assertEquals(tuples.get(i), values(it.next()));
+        assertArrayEquals(page.getPageData(), page.getBeforeImage().getPageData());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pages modified in the pool are written back correctly, and aborted
+     * changes are dropped
+     */
+    @Test public void modify() throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+        bp.deleteTuple(tid, first);
+        tuples.remove(0);
+        bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(new int[] {7, 8}));
+        tuples.add(new ArrayList<Integer>(Arrays.asList(7, 8)));
+        bp.transactionComplete(tid);
+        // commits don't force pages, and an abort discards them
+        bp.flushAllPages();
+
+        tid = new TransactionId();
+        it = hf.iterator(tid);
+        it.open();
+        bp.deleteTuple(tid, it.next());
+        it.close();
+        bp.transactionComplete(tid, false);
+
+        bp.flushAllPages();
+        bp = offHeapPool();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OffHeapPoolTest.class);
+    }
+}
@@ -0,0 +1,225 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PageTableTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 4;
+    private static final int TABLE_PAGES = 12;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    /** Counts the pages read from disk, and reads slowly when asked to. */
+    private static class CountingHeapFile extends HeapFile {
+        final AtomicInteger reads = new AtomicInteger();
+        volatile int delayMillis;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            if (delayMillis > 0) {
+                try {
+                    Thread.sleep(delayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.readPage(pid);
+        }
+    }
+
+    private CountingHeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * TABLE_PAGES, 1000, null, null);
+        hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+        Database.resetBufferPool(POOL_PAGES);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * Threads missing on the same page at once read it only once
+     */
+    @Test public void loadOnce() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final Page[] seen = new Page[8];
+        hf.delayMillis = 50;
+        Thread[] threads = new Thread[seen.length];
+        for (int i = 0; i < threads.length; i++) {
+            final int n = i;
+            threads[i] = new Thread() {
+                public void run() {
+                    try {
+                        seen[n] = bp.getPage(tid, pid(0), Permissions.READ_ONLY);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        assertEquals(1, hf.reads.get());
+        for (Page p : seen) {
+            assertSame(seen[0], p);
+        }
+    }
+
+    /**
+     * A pinned page stays in the pool until it is unpinned
+     */
+    @Test public void pinnedNotEvicted() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY, null);
+        assertEquals(1, bp.getPinCount(pid(0)));
+        for (int i = 1; i < TABLE_PAGES; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        assertTrue(bp.isCached(pid(0)));
+
+        bp.unpinPage(pid(0));
+        assertEquals(0, bp.getPinCount(pid(0)));
+        // a pool full of pinned pages leaves no room for page 0, whatever
+        // the eviction policy thinks of it
+        for (int i = 1; i <= POOL_PAGES; i++) {
+            bp.pinPage(tid, pid(i), Permissions.READ_ONLY, null);
+        }
+        assertFalse(bp.isCached(pid(0)));
+    }
+
+    /**
+     * With every page pinned, the pool grows past its capacity instead of
+     * failing, and shrinks back once pages are unpinned
+     */
+    @Test public void allPinned() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        for (int i = 0; i < POOL_PAGES + 2; i++) {
+            bp.pinPage(tid, pid(i), Permissions.READ_ONLY, null);
+        }
+        for (int i = 0; i < POOL_PAGES + 2; i++) {
+            assertTrue(bp.isCached(pid(i)));
+            bp.unpinPage(pid(i));
+        }
+
+        bp.getPage(tid, pid(POOL_PAGES + 2), Permissions.READ_ONLY);
+        int cached = 0;
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            if (bp.isCached(pid(i)))
+                cached++;
+        }
+        assertEquals(POOL_PAGES, cached);
+    }
+
+    /**
+     * A scan pins the page it is on, and leaves nothing pinned behind
+     */
+    @Test public void scanPins() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < TUPLES_PER_PAGE; i++) {
+            it.next();
+        }
+        assertEquals(1, bp.getPinCount(pid(0)));
+        it.next();
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(1, bp.getPinCount(pid(1)));
+        it.close();
+        assertEquals(0, bp.getPinCount(pid(1)));
+
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            assertEquals(0, bp.getPinCount(pid(i)));
+        }
+        it.close();
+    }
+
+    /**
+     * Checkpoints, which flush the pool while they hold the log's monitor,
+     * run alongside evictions that log the pages of running transactions
+     */
+    @Test public void checkpointDuringEviction() throws Exception {
+        final BufferPool bp = Database.getBufferPool();
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread checkpointer = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Database.getLogFile().logCheckpoint();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }
+        };
+        Thread loader = new Thread() {
+            public void run() {
+                try {
+                    for (int round = 0; round < 50; round++) {
+                        TransactionId t = new TransactionId();
+                        for (int i = 0; i < TABLE_PAGES; i++) {
+                            bp.getPage(t, pid(i), Permissions.READ_WRITE).markDirty(true, t);
+                        }
+                        bp.transactionComplete(t);
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                } finally {
+                    done.set(true);
+                }
+            }
+        };
+        checkpointer.setDaemon(true);
+        loader.setDaemon(true);
+        checkpointer.start();
+        loader.start();
+        loader.join(30000);
+        checkpointer.join(30000);
+
+        assertNull(ManagementFactory.getThreadMXBean().findMonitorDeadlockedThreads());
+        assertFalse(loader.isAlive());
+        assertFalse(checkpointer.isAlive());
+        assertEquals(0, failures.get());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTableTest.class);
+    }
+}
@@ -0,0 +1,191 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PoolSizerTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 48;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private PoolSizer sizer;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * TABLE_PAGES, null, null);
+        bp = Database.resetBufferPool(16);
+        sizer = bp.getSizer();
+    }
+
+    @After public void tearDown() {
+        sizer.setMaxPages(0);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /** Reads pages first to end - 1 as one transaction. */
+    private void read(int first, int end) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = first; i < end; i++)
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+    }
+
+    private boolean onDisk(int pgNo) {
+        HeapPage page = (HeapPage) hf.readPage(pid(pgNo));
+        return page.getNumEmptySlots() == 1;
+    }
+
+    /**
+     * A larger pool keeps more pages
+     */
+    @Test public void grow() throws Exception {
+        bp.resize(32);
+        assertEquals(32, bp.getNumPages());
+        read(0, 32);
+        read(0, 32);
+        assertEquals(0, bp.getEvictions());
+        assertEquals(32, bp.getPartition(BufferPartition.DEFAULT).getHits());
+    }
+
+    /**
+     * Shrinking evicts pages down to the new size, writing the dirty ones
+     */
+    @Test public void shrink() throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 16; i++) {
+            HeapPage page = (HeapPage) bp.getPage(tid, pid(i), Permissions.READ_WRITE);
+            bp.deleteTuple(tid, page.iterator().next());
+        }
+        bp.transactionComplete(tid);
+        assertEquals(16, bp.numDirtyPages());
+
+        bp.resize(4);
+        assertEquals(4, bp.getNumPages());
+        assertEquals(4, bp.getPartition(BufferPartition.DEFAULT).size());
+        assertEquals(12, bp.getDirtyEvictions());
+        for (int i = 0; i < 16; i++)
+            if (!bp.isCached(pid(i)))
+                assertTrue(onDisk(i));
+    }
+
+    /**
+     * A pool that misses grows by a step at a time, up to the maximum
+     */
+    @Test public void growsOnMisses() throws Exception {
+        sizer.setMaxPages(40);
+        read(0, 32);
+        assertEquals(16, sizer.round(false));
+        assertEquals(32, bp.getNumPages());
+        // no requests since
+        assertEquals(0, sizer.round(false));
+
+        read(16, 48);
+        assertEquals(8, sizer.round(false));
+        assertEquals(40, bp.getNumPages());
+        read(0, 48);
+        assertEquals(0, sizer.round(false));
+        assertEquals(2, sizer.getGrowths());
+        assertEquals(0, sizer.getShrinks());
+    }
+
+    /**
+     * A pool that hits doesn't grow
+     */
+    @Test public void staysOnHits() throws Exception {
+        sizer.setMaxPages(40);
+        read(0, 8);
+        sizer.round(false);
+        read(0, 8);
+        read(0, 8);
+        read(0, 8);
+        assertEquals(0, sizer.round(false));
+    }
+
+    /**
+     * Memory pressure shrinks the pool, down to the minimum
+     */
+    @Test public void shrinksUnderPressure() throws Exception {
+        sizer.setMaxPages(64);
+        sizer.setMinPages(8);
+        bp.resize(32);
+        read(0, 32);
+        assertEquals(-16, sizer.round(true));
+        assertEquals(16, bp.getNumPages());
+        assertEquals(16, bp.getPartition(BufferPartition.DEFAULT).size());
+        assertEquals(-8, sizer.round(true));
+        assertEquals(0, sizer.round(true));
+        assertEquals(8, bp.getNumPages());
+        assertEquals(2, sizer.getShrinks());
+    }
+
+    /**
+     * The sizer's thread starts with the pool's reads once sizing is on,
+     * and stops when it is turned off
+     */
+    @Test public void thread() throws Exception {
+        read(0, 32);
+        assertFalse(sizer.isRunning());
+
+        sizer.setMaxPages(48);
+        sizer.setInterval(5);
+        read(0, 32);
+        assertTrue(sizer.isRunning());
+        long end = System.currentTimeMillis() + 10000;
+        while (sizer.getGrowths() == 0 && System.currentTimeMillis() < end) {
+            read(0, 48);
+            Thread.sleep(5);
+        }
+        assertTrue(bp.getNumPages() > 16);
+
+        sizer.setMaxPages(0);
+        while (sizer.isRunning() && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        assertFalse(sizer.isRunning());
+    }
+
+    /**
+     * Sizes and fractions are checked
+     */
+    @Test public void badArguments() throws Exception {
+        try {
+            bp.resize(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            sizer.setHeapReserve(1);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            sizer.setMinPages(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PoolSizerTest.class);
+    }
+}
@@ -0,0 +1,190 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PoolWarmerTest extends SimpleDbTestBase {
+
+    private static final int TABLE_PAGES = 12;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private File dump;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, TUPLES_PER_PAGE * TABLE_PAGES, null, null);
+        bp = Database.resetBufferPool(TABLE_PAGES);
+        dump = File.createTempFile("warmup", ".dat");
+        dump.deleteOnExit();
+        bp.getWarmer().setFile(dump);
+    }
+
+    @After public void tearDown() {
+        bp.getWarmer().stop();
+        dump.delete();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /** Reads the given pages, in order, as one transaction. */
+    private void read(BufferPool bp, int... pgNos) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int pgNo : pgNos) {
+            bp.getPage(tid, pid(pgNo), Permissions.READ_ONLY);
+            Thread.sleep(1);
+        }
+        bp.transactionComplete(tid);
+    }
+
+    /** Makes a new, empty buffer pool of the given size that saves to the same file. */
+    private BufferPool restart(int pages) {
+        bp = Database.resetBufferPool(pages);
+        bp.getWarmer().setFile(dump);
+        return bp;
+    }
+
+    /**
+     * The pages saved are read back into a new pool, without counting as
+     * misses, and are then found there
+     */
+    @Test public void saveAndRestore() throws Exception {
+        read(bp, 3, 7, 8, 9, 1);
+        assertEquals(5, bp.getWarmer().save());
+
+        restart(TABLE_PAGES);
+        assertEquals(5, bp.getWarmer().restore());
+        assertEquals(5, bp.getWarmer().getPagesRestored());
+        for (int pgNo : new int[] { 1, 3, 7, 8, 9 })
+            assertTrue(bp.isCached(pid(pgNo)));
+        assertFalse(bp.isCached(pid(0)));
+
+        BufferPartition partition = bp.getPartition(BufferPartition.DEFAULT);
+        assertEquals(0, partition.getMisses());
+        read(bp, 1, 3, 7, 8, 9);
+        assertEquals(5, partition.getHits());
+        assertEquals(0, partition.getMisses());
+    }
+
+    /**
+     * A smaller pool gets the most recently used pages, and nothing is
+     * evicted to make room
+     */
+    @Test public void hottestFirst() throws Exception {
+        read(bp, 0, 1, 2, 3, 4, 5, 6, 7);
+        bp.getWarmer().save();
+
+        restart(4);
+        read(bp, 11);
+        assertEquals(3, bp.getWarmer().restore());
+        for (int pgNo : new int[] { 11, 7, 6, 5 })
+            assertTrue(bp.isCached(pid(pgNo)));
+        assertFalse(bp.isCached(pid(4)));
+        assertEquals(0, bp.getEvictions());
+    }
+
+    /**
+     * Pages already cached and pages of tables dropped since are passed over
+     */
+    @Test public void passesOver() throws Exception {
+        read(bp, 0, 1, 2);
+        bp.getWarmer().save();
+
+        restart(TABLE_PAGES);
+        read(bp, 1);
+        assertEquals(2, bp.getWarmer().restore());
+
+        restart(TABLE_PAGES);
+        Database.getCatalog().clear();
+        assertEquals(0, bp.getWarmer().restore());
+    }
+
+    /**
+     * A missing or foreign file restores nothing
+     */
+    @Test public void badFile() throws Exception {
+        dump.delete();
+        assertEquals(0, bp.getWarmer().restore());
+        assertTrue(new File(dump.getPath()).createNewFile());
+        assertEquals(0, bp.getWarmer().restore());
+    }
+
+    /**
+     * Starting restores the pages, then saves the pool every interval
+     */
+    @Test public void start() throws Exception {
+        read(bp, 2, 4);
+        bp.getWarmer().save();
+
+        PoolWarmer warmer = restart(TABLE_PAGES).getWarmer();
+        warmer.setInterval(5);
+        warmer.start();
+        assertTrue(warmer.isRunning());
+        warmer.awaitRestore();
+        assertEquals(2, warmer.getPagesRestored());
+        read(bp, 6);
+        long end = System.currentTimeMillis() + 10000;
+        while (warmer.getSaves() == 0 && System.currentTimeMillis() < end)
+            Thread.sleep(5);
+        warmer.stop();
+        assertFalse(warmer.isRunning());
+
+        restart(TABLE_PAGES);
+        assertEquals(3, bp.getWarmer().restore());
+    }
+
+    /**
+     * A pool whose warmer was started can be collected once it has been
+     * replaced and its warmer stopped: the JVM's exit saves whichever pool
+     * is current, rather than holding on to each pool started
+     */
+    @Test public void replacedPoolCollected() throws Exception {
+        PoolWarmer warmer = bp.getWarmer();
+        warmer.start();
+        warmer.awaitRestore();
+        warmer.stop();
+        WeakReference<BufferPool> old = new WeakReference<BufferPool>(bp);
+        warmer = null;
+        restart(TABLE_PAGES);
+        for (int i = 0; i < 20 && old.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(old.get());
+    }
+
+    /**
+     * Without a file there is nothing to do
+     */
+    @Test public void off() throws Exception {
+        PoolWarmer warmer = bp.getWarmer();
+        warmer.setFile(null);
+        warmer.start();
+        assertFalse(warmer.isRunning());
+        assertEquals(0, warmer.save());
+        assertEquals(0, warmer.restore());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PoolWarmerTest.class);
+    }
+}
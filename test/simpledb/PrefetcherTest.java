@@ -0,0 +1,92 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class PrefetcherTest extends SimpleDbTestBase {
+
+    private static final int POOL_PAGES = 20;
+
+    private ArrayList<ArrayList<Integer>> tuples;
+    private HeapFile hf;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        this.tuples = new ArrayList<ArrayList<Integer>>();
+        // 40 pages of 504 two-int tuples
+        this.hf = SystemTestUtil.createRandomHeapFile(2, 504 * 40, null, tuples);
+        Database.resetBufferPool(POOL_PAGES);
+        Database.getBufferPool().setPrefetchDepth(8);
+        this.tid = new TransactionId();
+    }
+
+    @After public void tearDown() throws Exception {
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * A sequential scan is served from pages read ahead
+     */
+    @Test public void sequentialScan() throws Exception {
+        assertEquals(8, Database.getBufferPool().getPrefetchDepth());
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+
+        Prefetcher prefetcher = Database.getBufferPool().getPrefetcher();
+        // every page after the first two may come from read-ahead
+        assertTrue(prefetcher.getHits() >= 30);
+        assertTrue(prefetcher.getPagesPrefetched() >= prefetcher.getHits());
+        assertTrue(prefetcher.size() <= POOL_PAGES / 2);
+    }
+
+    /**
+     * The depth is capped at half the pool, and 0 turns read-ahead off
+     */
+    @Test public void depth() throws Exception {
+        Database.getBufferPool().setPrefetchDepth(100);
+        assertEquals(POOL_PAGES / 2, Database.getBufferPool().getPrefetchDepth());
+
+        Database.getBufferPool().setPrefetchDepth(0);
+        SystemTestUtil.matchTuples(hf, tid, tuples);
+        assertEquals(0, Database.getBufferPool().getPrefetcher().getPagesPrefetched());
+    }
+
+    /**
+     * Pages read ahead are not used once their file has been written
+     */
+    @Test public void staleAfterWrite() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPageId pid = new HeapPageId(hf.getId(), 5);
+        bp.prefetch(hf, 5, 1);
+        // let the read finish before the write
+        while (bp.getPrefetcher().getPagesPrefetched() < 1)
+            Thread.sleep(1);
+
+        HeapPage page = (HeapPage) hf.readPage(pid);
+        page.deleteTuple(page.iterator().next());
+        hf.writePage(page);
+
+        HeapPage read = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+        assertEquals(page.getNumEmptySlots(), read.getNumEmptySlots());
+        assertTrue(bp.getPrefetcher().getDropped() >= 1);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PrefetcherTest.class);
+    }
+}
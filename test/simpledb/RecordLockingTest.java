@@ -0,0 +1,271 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class RecordLockingTest extends SimpleDbTestBase {
+
+    private static final int WAIT_MILLIS = 500;
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private HeapPageId p0;
+
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        p0 = new HeapPageId(hf.getId(), 0);
+    }
+
+    /**
+     * Inserts or deletes a tuple as a transaction in a thread of its own,
+     * so the test can see whether it waits
+     */
+    private class Writer extends Thread {
+        final TransactionId tid;
+        final Tuple insert;
+        final Tuple delete;
+        volatile boolean done;
+        volatile Exception error;
+
+        Writer(TransactionId tid, Tuple insert, Tuple delete) {
+            this.tid = tid;
+            this.insert = insert;
+            this.delete = delete;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                if (insert != null) {
+                    bp.insertTuple(tid, hf.getId(), insert);
+                } else {
+                    bp.deleteTuple(tid, delete);
+                }
+                done = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        /** @return whether the change was made within WAIT_MILLIS */
+        boolean finished() throws InterruptedException {
+            join(WAIT_MILLIS);
+            return done;
+        }
+    }
+
+    private static Tuple tuple(int v) {
+        return Utility.getHeapTuple(new int[] {v, v});
+    }
+
+    private ArrayList<Integer> firstColumn(HeapPage page) {
+        ArrayList<Integer> values = new ArrayList<Integer>();
+        for (java.util.Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            values.add(((IntField) it.next().getField(0)).getValue());
+        }
+        return values;
+    }
+
+    private HeapPage readPage() throws Exception {
+        TransactionId tid = new TransactionId();
+        HeapPage page = (HeapPage) bp.getPage(tid, p0, Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        return page;
+    }
+
+    /**
+     * Two transactions insert into and delete from one page at once, which
+     * page locks would have made one of them wait for the other to finish
+     */
+    @Test public void writersShareAPage() throws Exception {
+        java.util.Iterator<Tuple> it = readPage().iterator();
+        Tuple first = it.next();
+        Tuple second = it.next();
+
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        bp.insertTuple(t1, hf.getId(), tuple(-1));
+        assertTrue(new Writer(t2, tuple(-2), null).finished());
+        assertEquals(1, hf.numPages());
+        bp.deleteTuple(t1, first);
+        assertTrue(new Writer(t2, null, second).finished());
+
+        // but not one record
+        TransactionId t3 = new TransactionId();
+        Writer blocked = new Writer(t3, null, second);
+        assertFalse(blocked.finished());
+        bp.transactionComplete(t2);
+        blocked.join(WAIT_MILLIS);
+        assertTrue(blocked.error instanceof DbException);
+        bp.transactionComplete(t1);
+        bp.transactionComplete(t3);
+
+        ArrayList<Integer> values = firstColumn(readPage());
+        assertEquals(10, values.size());
+        assertTrue(values.contains(-1));
+        assertTrue(values.contains(-2));
+    }
+
+    /**
+     * A transaction's abort undoes its own changes to a page, and keeps
+     * those another transaction made to it meanwhile, even once the page
+     * has been written and read back
+     */
+    @Test public void abortKeepsOthersChanges() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        Tuple doomed = readPage().iterator().next();
+        int doomedValue = ((IntField) doomed.getField(0)).getValue();
+        bp.insertTuple(t1, hf.getId(), tuple(-1));
+        bp.deleteTuple(t1, doomed);
+        assertTrue(new Writer(t2, tuple(-2), null).finished());
+        bp.flushAllPages();
+        bp.discardPage(p0);
+
+        bp.transactionComplete(t1, false);
+        bp.transactionComplete(t2, true);
+        ArrayList<Integer> values = firstColumn(readPage());
+        assertEquals(11, values.size());
+        assertFalse(values.contains(-1));
+        assertTrue(values.contains(-2));
+        assertTrue(values.contains(doomedValue));
+
+        bp.flushAllPages();
+        HeapPage onDisk = (HeapPage) hf.readPage(p0);
+        assertEquals(values, firstColumn(onDisk));
+    }
+
+    /**
+     * A transaction that inserted a record into a page and then fetched the
+     * page for writing aborts after the page was evicted: the insert, which
+     * eviction wrote to disk, is undone and stays undone
+     */
+    @Test public void abortAfterEviction() throws Exception {
+        HeapFile other = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        bp = Database.resetBufferPool(1);
+        TransactionId t1 = new TransactionId();
+        bp.insertTuple(t1, hf.getId(), tuple(-1));
+        bp.getPage(t1, p0, Permissions.READ_WRITE);
+        // reading another page evicts p0
+        bp.getPage(t1, new HeapPageId(other.getId(), 0), Permissions.READ_ONLY);
+        assertTrue(firstColumn((HeapPage) hf.readPage(p0)).contains(-1));
+
+        bp.transactionComplete(t1, false);
+        ArrayList<Integer> values = firstColumn(readPage());
+        assertEquals(10, values.size());
+        assertFalse(values.contains(-1));
+        bp.flushAllPages();
+        assertEquals(values, firstColumn((HeapPage) hf.readPage(p0)));
+    }
+
+    /**
+     * A transaction that inserts more records into a page than the
+     * escalation threshold locks the whole page instead
+     */
+    @Test public void insertsEscalate() throws Exception {
+        bp.getLockManager().setEscalationThreshold(4);
+        TransactionId t1 = new TransactionId();
+        for (int i = 0; i < 4; i++) {
+            bp.insertTuple(t1, hf.getId(), tuple(-i));
+        }
+        assertFalse(bp.getLockManager().holdsLock(p0, t1, LockType.EXCLUSIVE));
+        bp.insertTuple(t1, hf.getId(), tuple(-4));
+        assertTrue(bp.getLockManager().holdsLock(p0, t1, LockType.EXCLUSIVE));
+        TransactionId t2 = new TransactionId();
+        Writer blocked = new Writer(t2, tuple(-5), null);
+        assertFalse(blocked.finished());
+        bp.transactionComplete(t1);
+        assertTrue(blocked.finished());
+        bp.transactionComplete(t2);
+    }
+
+    /**
+     * Checkpoints, which flush the pool while they hold the log's monitor,
+     * run alongside transactions changing records and undoing them
+     */
+    @Test public void checkpointDuringRecordChanges() throws Exception {
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicInteger failures = new AtomicInteger();
+        Thread checkpointer = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        Database.getLogFile().logCheckpoint();
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    failures.incrementAndGet();
+                }
+            }
+        };
+        Thread[] changers = new Thread[2];
+        for (int n = 0; n < changers.length; n++) {
+            final int first = -1000 * (n + 1);
+            changers[n] = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200; i++) {
+                            TransactionId tid = new TransactionId();
+                            bp.insertTuple(tid, hf.getId(), tuple(first - i));
+                            bp.transactionComplete(tid, i % 2 == 0);
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        failures.incrementAndGet();
+                    }
+                }
+            };
+            changers[n].setDaemon(true);
+        }
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+        for (Thread changer : changers) {
+            changer.start();
+        }
+        for (Thread changer : changers) {
+            changer.join(30000);
+        }
+        done.set(true);
+        checkpointer.join(30000);
+
+        assertNull(ManagementFactory.getThreadMXBean().findMonitorDeadlockedThreads());
+        for (Thread changer : changers) {
+            assertFalse(changer.isAlive());
+        }
+        assertFalse(checkpointer.isAlive());
+        assertEquals(0, failures.get());
+        // the committed half of each changer's inserts
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        bp.transactionComplete(tid);
+        assertEquals(10 + 200, count);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
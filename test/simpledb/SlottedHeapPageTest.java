@@ -0,0 +1,163 @@
+package simpledb;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+    private TupleDesc td;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() throws Exception {
+        this.pid = new HeapPageId(-1, -1);
+        this.td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE});
+        Database.getCatalog().addTable(new SkeletonFile(-1, td), SystemTestUtil.getUUID());
+    }
+
+    private Tuple tuple(int i, String s) {
+        Tuple t = new Tuple(td);
+        t.setField(0, new IntField(i));
+        t.setField(1, new StringField(s, Type.STRING_LEN));
+        return t;
+    }
+
+    private ArrayList<String> strings(SlottedHeapPage page) {
+        ArrayList<String> result = new ArrayList<String>();
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            result.add(((IntField) t.getField(0)).getValue() + ":" + ((StringField) t.getField(1)).getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Unit test for SlottedHeapPage.insertTuple() and iterator()
+     */
+    @Test public void insertAndRead() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        assertFalse(page.iterator().hasNext());
+
+        // short strings take up far less room than fixed 132-byte slots
+        int n = 0;
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(tuple(n, "name " + n));
+            n++;
+        }
+        assertTrue(n > 3 * (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1));
+
+        // smaller tuples may still fit once no full-sized tuple does
+        page.insertTuple(tuple(-1, ""));
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        ArrayList<String> values = strings(copy);
+        assertEquals(n + 1, values.size());
+        assertEquals("0:name 0", values.get(0));
+        assertEquals("-1:", values.get(n));
+    }
+
+    /**
+     * Unit test for SlottedHeapPage.deleteTuple() and compaction
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, HeapPage.createEmptyPageData());
+        ArrayList<Tuple> inserted = new ArrayList<Tuple>();
+        for (int i = 0; page.getNumEmptySlots() > 0; i++) {
+            Tuple t = tuple(i, "abcdefghijklmnopqrstuvwxyz".substring(0, i % 26));
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        page.setBeforeImage();
+        byte[] before = page.getPageData();
+
+        // free every other tuple, then fill the fragmented space again
+        int deleted = 0;
+        for (int i = 0; i < inserted.size(); i += 2) {
+            page.deleteTuple(inserted.get(i));
+            deleted++;
+        }
+        try {
+            page.deleteTuple(inserted.get(0));
+            fail("expected DbException");
+        } catch (DbException e) {
+        }
+        int added = 0;
+        while (page.getNumEmptySlots() > 0) {
+            Tuple t = tuple(1000 + added, "x");
+            page.insertTuple(t);
+            // deleted slots are reused first
+            if (added < deleted)
+                assertEquals(2 * added, t.getRecordId().getTupleNumber());
+            added++;
+        }
+        assertTrue(added >= deleted);
+
+        // the surviving tuples keep their record ids and values
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        for (Iterator<Tuple> it = copy.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            int v = ((IntField) t.getField(0)).getValue();
+            if (v < 1000) {
+                assertEquals(1, v % 2);
+                assertEquals(v, t.getRecordId().getTupleNumber());
+            }
+        }
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+    }
+
+    /**
+     * Unit test for HeapFileEncoder.repage() to and from slotted pages
+     */
+    @Test public void repageSlotted() throws Exception {
+        ArrayList<ArrayList<Integer>> tuples = new ArrayList<ArrayList<Integer>>();
+        HeapFile fixed = SystemTestUtil.createRandomHeapFile(3, 2000, null, tuples);
+        TupleDesc intTd = Utility.getTupleDesc(3);
+
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFileEncoder.repage(fixed.getFile(), f, intTd, 8192, HeapFile.PageFormat.SLOTTED);
+        HeapFile slotted = Utility.openHeapFile(3, f);
+        assertEquals(HeapFile.PageFormat.SLOTTED, slotted.getPageFormat());
+        assertTrue(slotted.readPage(new HeapPageId(slotted.getId(), 0)) instanceof SlottedHeapPage);
+        SystemTestUtil.matchTuples(slotted, tuples);
+
+        // inserts and deletes go through the same HeapFile paths
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().insertTuple(tid, slotted.getId(), Utility.getHeapTuple(new int[] {1, 2, 3}));
+        ArrayList<Integer> row = new ArrayList<Integer>();
+        row.add(1); row.add(2); row.add(3);
+        tuples.add(row);
+        SystemTestUtil.matchTuples(slotted, tid, tuples);
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getBufferPool().flushAllPages();
+
+        File g = File.createTempFile("fixed", ".dat");
+        g.deleteOnExit();
+        HeapFileEncoder.repage(f, g, intTd, 4096);
+        HeapFile back = Utility.openHeapFile(3, g);
+        assertEquals(HeapFile.PageFormat.FIXED, back.getPageFormat());
+        SystemTestUtil.matchTuples(back, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
@@ -3,6 +3,8 @@ package simpledb;
 import static org.junit.Assert.assertEquals;
 import junit.framework.JUnit4TestAdapter;
 
+import java.nio.ByteBuffer;
+
 import org.junit.Test;
 
 import simpledb.systemtest.SimpleDbTestBase;
@@ -57,6 +59,31 @@ public class TupleTest extends SimpleDbTestBase {
 	}
     }
 
+    /**
+     * Unit test for tuples that decode their fields from serialized bytes
+     */
+    @Test public void lazyFields() {
+        TupleDesc td = new TupleDesc(new Type[]{Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE});
+        ByteBuffer bytes = ByteBuffer.allocate(4 + td.getSize());
+        bytes.putInt(0, 99);
+        bytes.putInt(4, 7);
+        bytes.putInt(8, 3);
+        bytes.put(12, (byte) 'a').put(13, (byte) 'b').put(14, (byte) 'c');
+        bytes.putInt(12 + Type.STRING_LEN, 42);
+
+        Tuple tup = new Tuple(td, bytes, 4);
+        assertEquals(new IntField(42), tup.getField(2));
+        assertEquals(new StringField("abc", Type.STRING_LEN), tup.getField(1));
+
+        // set fields win over the bytes, and materialized tuples no longer read them
+        tup.setField(2, new IntField(1));
+        tup.materialize();
+        bytes.putInt(4, -1);
+        assertEquals(new IntField(7), tup.getField(0));
+        assertEquals(new IntField(1), tup.getField(2));
+        assertEquals("7\tabc\t1", tup.toString());
+    }
+
     /**
      * JUnit suite target
      */
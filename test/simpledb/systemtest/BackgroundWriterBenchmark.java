@@ -0,0 +1,92 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures what a background writer saves page misses. Each round, an
+ * update transaction deletes a tuple from each of a few random pages and
+ * commits, the workload then pauses briefly, as a client would between
+ * requests, and a read transaction looks up random pages of a table larger
+ * than the pool. Every lookup that misses evicts a page; without the writer
+ * the pages the updates dirtied are written by those evictions, with it
+ * they have mostly been written during the pauses. Reports the latency of
+ * the lookups and the evictions that had to write.
+ * <p>
+ * Commits are left out of the timings. The
+ * updates dirty few pages, so a pool that is mostly clean anyway only sees
+ * background writing with a high clean target; the default is 1.
+ * <p>
+ * Usage: ant runbench -Dbench=BackgroundWriterBenchmark [-Dargs="cleanTarget [rounds]"]
+ */
+public class BackgroundWriterBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+    static final int TABLE_PAGES = 2000;
+    static final int POOL_PAGES = 200;
+    static final int UPDATES = 8;
+    static final int LOOKUPS = 40;
+    static final int PAUSE_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        double target = args.length > 0 ? Double.parseDouble(args[0]) : 1;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 300;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * TABLE_PAGES, 1000000, null, null);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        // the first run warms up the JIT and isn't reported
+        for (int run = 0; run < 3; run++) {
+            double t = run == 2 ? target : 0;
+            BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+            bp.getBackgroundWriter().setCleanTarget(t);
+            Random r = new Random(1);
+            long[] latencies = new long[rounds * LOOKUPS];
+            int n = 0;
+            long sum = 0;
+            for (int round = 0; round < rounds; round++) {
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < UPDATES; i++) {
+                    HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(TABLE_PAGES));
+                    HeapPage page = (HeapPage) bp.getPage(tid, pid, Permissions.READ_WRITE);
+                    Iterator<Tuple> it = page.iterator();
+                    if (it.hasNext()) {
+                        bp.deleteTuple(tid, it.next());
+                    }
+                }
+                bp.transactionComplete(tid);
+                Thread.sleep(PAUSE_MILLIS);
+
+                tid = new TransactionId();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(TABLE_PAGES));
+                    long start = System.nanoTime();
+                    TuplePage page = (TuplePage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+                    latencies[n++] = System.nanoTime() - start;
+                    sum += page.getNumEmptySlots();
+                }
+                bp.transactionComplete(tid);
+            }
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long l : latencies) {
+                total += l;
+            }
+            BackgroundWriter writer = bp.getBackgroundWriter();
+            writer.setCleanTarget(0);
+            if (run == 0) {
+                continue;
+            }
+            System.out.printf("clean target %.2f: lookups mean %6.1f us, p50 %6.1f us, p99 %7.1f us; "
+                    + "%d evictions, %d dirty; %d pages written in the background (checksum %d)%n",
+                    t, total / 1e3 / n, latencies[n / 2] / 1e3, latencies[n * 99 / 100] / 1e3,
+                    bp.getEvictions(), bp.getDirtyEvictions(), writer.getPagesWritten(), sum);
+        }
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,69 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Times checkpoints that find thousands of dirty pages in the buffer pool.
+ * Each run, a transaction deletes a tuple from every page of a table, in
+ * random order, and commits; then a checkpoint writes the dirty pages. The
+ * time of the checkpoint is reported on its own, and with an fsync of the
+ * table afterwards, which is when the writes have to reach the disk.
+ * <p>
+ * Usage: ant runbench -Dbench=CheckpointBenchmark [-Dargs="pages [runs]"]
+ */
+public class CheckpointBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * pages, 1000000, null, null);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(pages + 100);
+        RandomAccessFile sync = new RandomAccessFile(f, "r");
+
+        int[] order = new int[pages];
+        for (int i = 0; i < pages; i++) {
+            order[i] = i;
+        }
+        Random r = new Random(1);
+        for (int i = pages - 1; i > 0; i--) {
+            int j = r.nextInt(i + 1);
+            int tmp = order[i];
+            order[i] = order[j];
+            order[j] = tmp;
+        }
+
+        System.out.printf("%d dirty pages (%.0f MB)%n", pages, (double) pages * BufferPool.getPageSize() / (1 << 20));
+        long bestFlush = Long.MAX_VALUE;
+        long bestSync = Long.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            TransactionId tid = new TransactionId();
+            for (int pgNo : order) {
+                HeapPage page = (HeapPage) bp.getPage(tid, new HeapPageId(table.getId(), pgNo),
+                        Permissions.READ_WRITE);
+                bp.deleteTuple(tid, page.iterator().next());
+            }
+            bp.transactionComplete(tid);
+            sync.getFD().sync();
+
+            long start = System.nanoTime();
+            Database.getLogFile().logCheckpoint();
+            long flushed = System.nanoTime();
+            sync.getFD().sync();
+            long synced = System.nanoTime();
+            bestFlush = Math.min(bestFlush, flushed - start);
+            bestSync = Math.min(bestSync, synced - start);
+        }
+        System.out.printf("checkpoint %8.1f ms, with fsync %8.1f ms%n", bestFlush / 1e6, bestSync / 1e6);
+        sync.close();
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures the latency of small committing transactions against buffer
+ * pools of different sizes. The pool is first filled with the pages of a
+ * large table; then each transaction inserts one tuple into a small table
+ * and commits. Only the commits are timed. A commit that visits every
+ * page in the pool gets slower as the pool grows; one that visits only the
+ * pages the transaction dirtied doesn't.
+ * <p>
+ * Usage: ant runbench -Dbench=CommitBenchmark [-Dargs="commits [poolPages...]"]
+ */
+public class CommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int commits = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int[] pools = {50, 50000};
+        if (args.length > 1) {
+            pools = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                pools[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int poolPages : pools) {
+            File f = OffHeapPoolBenchmark.writeTable(poolPages);
+            HeapFile big = new HeapFile(f, Utility.getTupleDesc(2));
+            Database.getCatalog().addTable(big, "big");
+            File g = File.createTempFile("commit", ".dat");
+            g.deleteOnExit();
+            new File(g.getPath() + ".fsm").deleteOnExit();
+            HeapFile small = Utility.createEmptyHeapFile(g.getAbsolutePath(), 2);
+
+            BufferPool bp = Database.resetBufferPool(poolPages);
+            TransactionId reader = new TransactionId();
+            for (int i = 0; i < poolPages; i++) {
+                bp.getPage(reader, new HeapPageId(big.getId(), i), Permissions.READ_ONLY);
+            }
+            // the pages stay cached, but the commits don't have to release
+            // the reader's locks
+            bp.transactionComplete(reader);
+
+            long total = 0;
+            long worst = 0;
+            for (int i = 0; i < commits; i++) {
+                TransactionId tid = new TransactionId();
+                bp.insertTuple(tid, small.getId(), Utility.getHeapTuple(i, 2));
+                long start = System.nanoTime();
+                bp.transactionComplete(tid);
+                long ns = System.nanoTime() - start;
+                total += ns;
+                worst = Math.max(worst, ns);
+            }
+            System.out.printf("%6d-page pool: %d commits, mean %9.3f ms, worst %9.3f ms%n",
+                    poolPages, commits, total / 1e6 / commits, worst / 1e6);
+
+            Database.getCatalog().clear();
+        }
+    }
+}
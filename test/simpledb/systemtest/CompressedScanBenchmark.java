@@ -0,0 +1,58 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Compares the on-disk size and cold SeqScan time of the DBLP tables stored
+ * as plain HeapFiles and as CompressedHeapFiles, in both page formats.
+ * <p>
+ * Each table is converted with {@link HeapFileEncoder#repage} and
+ * {@link HeapFileEncoder#compress}, then scanned with a cold buffer pool,
+ * reading every field (see {@link SlottedScanBenchmark}). Compressed scans
+ * pay for decompressing every page they read.
+ * <p>
+ * Usage: ant runbench -Dbench=CompressedScanBenchmark [-Dargs="runs"]
+ */
+public class CompressedScanBenchmark {
+
+    static File tempFile() throws Exception {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        return f;
+    }
+
+    static void report(String label, HeapFile table, int runs) throws Exception {
+        Database.getCatalog().addTable(table, label);
+        long best = SlottedScanBenchmark.bestScan(table, runs);
+        System.out.printf("%-26s %6d pages %7d KB  scan %8.2f ms%n",
+                label, table.numPages(), table.getFile().length() / 1024, best / 1e6);
+    }
+
+    static void compare(String name, TupleDesc td, int runs) throws Exception {
+        for (HeapFile.PageFormat format : HeapFile.PageFormat.values()) {
+            File plainFile = tempFile();
+            HeapFileEncoder.repage(new File(name + ".dat"), plainFile, td,
+                    BufferPool.getPageSize(), format);
+            File compressedFile = tempFile();
+            HeapFileEncoder.compress(plainFile, compressedFile);
+
+            String label = name + " " + format.name().toLowerCase();
+            report(label, new HeapFile(plainFile, td), runs);
+            report(label + " deflate", new CompressedHeapFile(compressedFile, td), runs);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        compare("authors", new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE},
+                new String[] {"id", "name"}), runs);
+        compare("papers", new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+                new String[] {"id", "title", "venueid"}), runs);
+        compare("paperauths", new TupleDesc(new Type[] {Type.INT_TYPE, Type.INT_TYPE},
+                new String[] {"paperid", "authorid"}), runs);
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,139 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures the throughput of SeqScans of one table run by several threads
+ * at once, each thread in its own transaction, and counts the pages read from
+ * disk. With the table cached every getPage is a hit; with a table larger
+ * than the pool every scan misses on every page, and threads scanning in
+ * step miss on the same page at the same time, which a pool without
+ * load-once misses reads more than once.
+ * <p>
+ * The table is generated; the OS cache is left warm, so that misses measure
+ * the pool rather than the disk.
+ * <p>
+ * Usage: ant runbench -Dbench=ConcurrentScanBenchmark [-Dargs="runs scansPerThread"]
+ */
+public class ConcurrentScanBenchmark {
+
+    static final int[] THREADS = {1, 2, 4, 8};
+    static final int TUPLES_PER_PAGE = 504;
+
+    // scans that failed, e.g. on a page evicted while it was being fetched
+    static final AtomicLong failures = new AtomicLong();
+
+    /** Counts the pages read from disk. */
+    static class CountingHeapFile extends HeapFile {
+        final AtomicLong reads = new AtomicLong();
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads.incrementAndGet();
+            return super.readPage(pid);
+        }
+    }
+
+    static CountingHeapFile createTable(int pages) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * pages, 1000000, null, null);
+        CountingHeapFile table = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    /**
+     * Runs scansPerThread scans of the table on each of the given number of
+     * threads, started together, each thread in one transaction.
+     *
+     * @return the elapsed nanoseconds, not counting the commits
+     */
+    static long run(final HeapFile table, int threads, final int scansPerThread) throws Exception {
+        final CyclicBarrier start = new CyclicBarrier(threads + 1);
+        final CyclicBarrier done = new CyclicBarrier(threads + 1);
+        final AtomicLong checksum = new AtomicLong();
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Thread() {
+                public void run() {
+                    TransactionId tid = new TransactionId();
+                    try {
+                        start.await();
+                        long sum = 0;
+                        for (int s = 0; s < scansPerThread; s++) {
+                            SeqScan scan = new SeqScan(tid, table.getId(), "t");
+                            try {
+                                scan.open();
+                                while (scan.hasNext()) {
+                                    sum += scan.next().getField(1).hashCode();
+                                }
+                            } catch (Exception e) {
+                                failures.incrementAndGet();
+                            }
+                            scan.close();
+                        }
+                        checksum.addAndGet(sum);
+                        done.await();
+                        // the commits are not part of the scans
+                        Database.getBufferPool().transactionComplete(tid);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            workers[i].start();
+        }
+        start.await();
+        long begin = System.nanoTime();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        for (Thread t : workers) {
+            t.join();
+        }
+        SlottedScanBenchmark.checksum += checksum.get();
+        return elapsed;
+    }
+
+    static void measure(String name, CountingHeapFile table, int poolPages, int runs, int scansPerThread)
+            throws Exception {
+        System.out.printf("%s: %d-page table, %d-page buffer pool%n", name, table.numPages(), poolPages);
+        for (int threads : THREADS) {
+            long best = Long.MAX_VALUE;
+            long reads = 0;
+            for (int r = 0; r < runs; r++) {
+                Database.resetBufferPool(poolPages);
+                table.reads.set(0);
+                failures.set(0);
+                best = Math.min(best, run(table, threads, scansPerThread));
+                reads = table.reads.get();
+            }
+            long pages = (long) table.numPages() * threads * scansPerThread;
+            System.out.printf("%d thread(s) %9.2f ms %8.1f kpages/s  disk reads %6d of %6d page requests%s%n",
+                    threads, best / 1e6, pages / (best / 1e6), reads, pages,
+                    failures.get() > 0 ? ", " + failures.get() + " scans failed" : "");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int scansPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processor(s)");
+
+        CountingHeapFile small = createTable(200);
+        CountingHeapFile big = createTable(1000);
+        // warm up the JIT
+        run(small, 2, 1);
+        run(big, 2, 1);
+
+        measure("cached", small, 1000, runs, scansPerThread);
+        measure("misses", big, BufferPool.DEFAULT_PAGES, runs, scansPerThread);
+        Database.getCatalog().clear();
+    }
+}
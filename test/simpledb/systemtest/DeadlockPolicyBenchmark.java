@@ -0,0 +1,158 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Compares the LockManager's deadlock policies on workloads in the style
+ * of DeadlockTest and TransactionTest, run through the BufferPool by
+ * concurrent threads. An aborted transaction is retried as a new one.
+ * <ul>
+ * <li>crossing: each transaction reads two random pages of a small table,
+ * then asks for write locks on both, the read-then-write pattern that
+ * deadlocks in DeadlockTest;
+ * <li>counter: each transaction reads a counter tuple from a one-page
+ * table, deletes it and inserts it incremented, as TransactionTest's
+ * testers do; at the end the counter is checked against the commits.
+ * </ul>
+ * Reported for each workload and policy are the transactions committed per
+ * second and the fraction of transactions aborted.
+ * <p>
+ * Usage: ant runbench -Dbench=DeadlockPolicyBenchmark [-Dargs="threads [seconds [pages]]"]
+ */
+public class DeadlockPolicyBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int pages = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * pages, 1000000, null, null);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        File g = File.createTempFile("counter", ".dat");
+        g.deleteOnExit();
+        new File(g.getPath() + ".fsm").deleteOnExit();
+        HeapFile counter = Utility.createEmptyHeapFile(g.getAbsolutePath(), 2);
+        Database.getCatalog().addTable(counter, SystemTestUtil.getUUID());
+
+        for (String workload : new String[] { "crossing", "counter" }) {
+            for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+                BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+                bp.getLockManager().setDeadlockPolicy(policy);
+                if (workload.equals("counter")) {
+                    resetCounter(bp, counter);
+                }
+                long[] result = run(workload, table, counter, pages, threads, seconds);
+                long commits = result[0];
+                long aborts = result[1];
+                String check = "";
+                if (workload.equals("counter")) {
+                    TransactionId tid = new TransactionId();
+                    int value = readCounter(bp, tid, counter).getValue();
+                    bp.transactionComplete(tid);
+                    check = value == commits ? ", counter ok" : ", COUNTER " + value + " != " + commits;
+                }
+                System.out.printf("%-8s %-10s %8.0f transactions/s, %5.1f%% aborted%s%n",
+                        workload, policy, commits / (double) seconds,
+                        100.0 * aborts / Math.max(1, commits + aborts), check);
+            }
+        }
+        Database.getCatalog().clear();
+    }
+
+    /**
+     * Runs the workload on threads for the given time.
+     *
+     * @return the numbers of transactions committed and aborted
+     */
+    static long[] run(final String workload, final HeapFile table, final HeapFile counter, final int pages,
+            int threads, int seconds) throws InterruptedException {
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random r = new Random(t);
+            workers[t] = new Thread() {
+                public void run() {
+                    BufferPool bp = Database.getBufferPool();
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            if (workload.equals("crossing")) {
+                                int a = r.nextInt(pages);
+                                int b = (a + 1 + r.nextInt(pages - 1)) % pages;
+                                HeapPageId pa = new HeapPageId(table.getId(), a);
+                                HeapPageId pb = new HeapPageId(table.getId(), b);
+                                bp.getPage(tid, pa, Permissions.READ_ONLY);
+                                bp.getPage(tid, pb, Permissions.READ_ONLY);
+                                bp.getPage(tid, pa, Permissions.READ_WRITE);
+                                bp.getPage(tid, pb, Permissions.READ_WRITE);
+                            } else {
+                                Tuple t = readCounterTuple(bp, tid, counter);
+                                int value = ((IntField) t.getField(0)).getValue();
+                                bp.deleteTuple(tid, t);
+                                bp.insertTuple(tid, counter.getId(), Utility.getHeapTuple(value + 1, 2));
+                            }
+                            bp.transactionComplete(tid, true);
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            try {
+                                bp.transactionComplete(tid, false);
+                            } catch (Exception e2) {
+                                e2.printStackTrace();
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            return;
+                        }
+                    }
+                }
+            };
+        }
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        return new long[] { commits.get(), aborts.get() };
+    }
+
+    static Tuple readCounterTuple(BufferPool bp, TransactionId tid, HeapFile counter) throws Exception {
+        for (int i = 0; i < counter.numPages(); i++) {
+            TuplePage page = (TuplePage) bp.getPage(tid, new HeapPageId(counter.getId(), i), Permissions.READ_ONLY);
+            Iterator<Tuple> it = page.iterator();
+            if (it.hasNext()) {
+                return it.next();
+            }
+        }
+        throw new DbException("no counter");
+    }
+
+    static IntField readCounter(BufferPool bp, TransactionId tid, HeapFile counter) throws Exception {
+        return (IntField) readCounterTuple(bp, tid, counter).getField(0);
+    }
+
+    /** Leaves the counter table with one tuple, 0. */
+    static void resetCounter(BufferPool bp, HeapFile counter) throws Exception {
+        TransactionId tid = new TransactionId();
+        while (true) {
+            try {
+                bp.deleteTuple(tid, readCounterTuple(bp, tid, counter));
+            } catch (DbException e) {
+                break;
+            }
+        }
+        bp.insertTuple(tid, counter.getId(), Utility.getHeapTuple(0, 2));
+        bp.transactionComplete(tid);
+    }
+}
@@ -0,0 +1,96 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Compares eviction policies on a mix of point lookups and a scan.
+ * <p>
+ * A hot table that fits comfortably in the buffer pool gets point lookups,
+ * skewed towards its first pages, while a table many times the size of the
+ * pool is scanned over and over; every scanned page is followed by a few
+ * lookups. Misses are counted through readPage, and each policy runs the
+ * same sequence of accesses, in one read-only transaction so that commits
+ * don't dominate the time.
+ * <p>
+ * Usage: ant runbench -Dbench=EvictionBenchmark [-Dargs="accesses poolPages hotPages scanPages"]
+ */
+public class EvictionBenchmark {
+
+    static final String[] POLICIES = {"random", "clock", "lru2"};
+    static final int LOOKUPS_PER_SCANNED_PAGE = 3;
+
+    /** Counts the pages read from disk. */
+    static class CountingHeapFile extends HeapFile {
+        long reads;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            reads++;
+            return super.readPage(pid);
+        }
+    }
+
+    static CountingHeapFile table(int pages) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * pages, 1000, null, null);
+        f.deleteOnExit();
+        CountingHeapFile table = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        return table;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int accesses = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : BufferPool.DEFAULT_PAGES;
+        int hotPages = args.length > 2 ? Integer.parseInt(args[2]) : poolPages / 2;
+        int scanPages = args.length > 3 ? Integer.parseInt(args[3]) : poolPages * 20;
+
+        CountingHeapFile hot = table(hotPages);
+        CountingHeapFile cold = table(scanPages);
+        System.out.printf("%d accesses, %d-page pool, %d hot pages, %d scanned pages%n",
+                accesses, poolPages, hotPages, scanPages);
+
+        for (int round = 0; round < 2; round++) {
+            // the first round warms up the JIT
+            for (String name : POLICIES) {
+                BufferPool bp = new BufferPool(poolPages, BufferPool.newEvictionPolicy(name, poolPages));
+                hot.reads = 0;
+                cold.reads = 0;
+                Random random = new Random(42);
+                int scanPos = 0;
+
+                long start = System.nanoTime();
+                TransactionId tid = new TransactionId();
+                for (int i = 0; i < accesses; i++) {
+                    PageId pid;
+                    if (i % (LOOKUPS_PER_SCANNED_PAGE + 1) == 0) {
+                        pid = new HeapPageId(cold.getId(), scanPos);
+                        scanPos = (scanPos + 1) % scanPages;
+                    } else {
+                        // skewed: the square of a uniform value favours low pages
+                        double u = random.nextDouble();
+                        pid = new HeapPageId(hot.getId(), (int) (u * u * hotPages));
+                    }
+                    bp.getPage(tid, pid, Permissions.READ_ONLY);
+                }
+                bp.transactionComplete(tid);
+                long elapsed = System.nanoTime() - start;
+
+                long hotLookups = accesses - (accesses + LOOKUPS_PER_SCANNED_PAGE) / (LOOKUPS_PER_SCANNED_PAGE + 1);
+                if (round == 1) {
+                    System.out.printf("%-7s hit ratio %6.2f%%  hot hit ratio %6.2f%%  %10.0f accesses/s%n",
+                            name, 100.0 * (accesses - hot.reads - cold.reads) / accesses,
+                            100.0 * (hotLookups - hot.reads) / hotLookups,
+                            accesses / (elapsed / 1e9));
+                }
+            }
+        }
+        Database.getCatalog().clear();
+    }
+}
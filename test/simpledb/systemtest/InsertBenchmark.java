@@ -0,0 +1,49 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Measures bulk insert throughput into a table that starts empty.
+ * <p>
+ * Tuples are inserted through the BufferPool and committed in batches, so
+ * the table grows while it is being filled and later inserts run against
+ * a file with many full pages. Throughput is reported per batch range, which
+ * shows whether the cost of an insert grows with the size of the table.
+ * <p>
+ * Usage: ant runbench -Dbench=InsertBenchmark [-Dargs="tuples batch"]
+ */
+public class InsertBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tuples = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int batch = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int columns = 2;
+
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        HeapFile table = Utility.createEmptyHeapFile(f.getAbsolutePath(), columns);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        System.out.println("inserting " + tuples + " tuples of " + columns
+                + " ints, committing every " + batch);
+
+        long total = 0;
+        for (int done = 0; done < tuples; done += batch) {
+            TransactionId tid = new TransactionId();
+            long start = System.nanoTime();
+            for (int i = 0; i < batch; i++) {
+                Database.getBufferPool().insertTuple(tid, table.getId(),
+                        Utility.getHeapTuple(done + i, columns));
+            }
+            Database.getBufferPool().transactionComplete(tid);
+            long elapsed = System.nanoTime() - start;
+            total += elapsed;
+            System.out.printf("tuples %8d-%-8d %8.2f ms  %10.0f tuples/s  (%d pages)%n",
+                    done, done + batch, elapsed / 1e6, batch / (elapsed / 1e9), table.numPages());
+        }
+        System.out.printf("total %8.2f ms  %10.0f tuples/s%n", total / 1e6, tuples / (total / 1e9));
+        Database.getCatalog().clear();
+    }
+}
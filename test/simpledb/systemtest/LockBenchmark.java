@@ -0,0 +1,84 @@
+package simpledb.systemtest;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import simpledb.*;
+
+/**
+ * Measures the throughput of a LockManager under many concurrent
+ * transactions. Each thread runs transactions that lock a few random pages
+ * out of a small set, a fraction of them exclusively, hold the locks for a
+ * moment and release them all, as BufferPool does at commit. By default
+ * pages are locked in order of page number, so the transactions don't
+ * deadlock and the benchmark measures waiting and waking rather than
+ * aborts; with "random" they are locked in random order, so deadlocks
+ * happen and the victims are retried as new transactions. Reported are the
+ * transactions committed per second and the aborts.
+ * <p>
+ * Usage: ant runbench -Dbench=LockBenchmark [-Dargs="threads [pages [seconds [writePercent [random]]]]"]
+ */
+public class LockBenchmark {
+
+    static final int LOCKS_PER_TRANSACTION = 4;
+    static final int WORK_ITERATIONS = 200;
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int pages = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        final int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        final boolean ordered = args.length <= 4 || !args[4].equals("random");
+
+        final LockManager lm = new LockManager();
+        final AtomicLong commits = new AtomicLong();
+        final AtomicLong aborts = new AtomicLong();
+        final long[] sink = new long[threads];
+        final long end = System.currentTimeMillis() + seconds * 1000L;
+
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random r = new Random(id);
+                    int[] pgNos = new int[LOCKS_PER_TRANSACTION];
+                    while (System.currentTimeMillis() < end) {
+                        TransactionId tid = new TransactionId();
+                        for (int i = 0; i < pgNos.length; i++) {
+                            pgNos[i] = r.nextInt(pages);
+                        }
+                        if (ordered) {
+                            Arrays.sort(pgNos);
+                        }
+                        try {
+                            for (int pgNo : pgNos) {
+                                Permissions perm = r.nextInt(100) < writePercent
+                                        ? Permissions.READ_WRITE : Permissions.READ_ONLY;
+                                lm.getLock(new HeapPageId(1, pgNo), tid, perm);
+                            }
+                            for (int i = 0; i < WORK_ITERATIONS; i++) {
+                                sink[id] += i * pgNos[i % pgNos.length];
+                            }
+                            commits.incrementAndGet();
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                        }
+                        lm.releaseAllLocks(tid);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : workers) {
+            w.start();
+        }
+        for (Thread w : workers) {
+            w.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d threads, %d pages, %d%% writes%s: %.0f transactions/s, %d aborts%n",
+                threads, pages, writePercent, ordered ? "" : ", random order", commits.get() / elapsed, aborts.get());
+    }
+}
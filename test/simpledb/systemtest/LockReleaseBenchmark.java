@@ -0,0 +1,68 @@
+package simpledb.systemtest;
+
+import simpledb.*;
+
+/**
+ * Measures what releasing a transaction's locks costs as other
+ * transactions hold more and more locks. For each number of background
+ * locks, background transactions lock that many pages of their own and
+ * keep them; then short transactions each lock a few pages and release
+ * them all, as BufferPool does at commit. Reported is the mean time of a
+ * short transaction's releaseAllLocks, and of the whole transaction.
+ * <p>
+ * Usage: ant runbench -Dbench=LockReleaseBenchmark [-Dargs="transactions [backgroundLocks...]"]
+ */
+public class LockReleaseBenchmark {
+
+    static final int LOCKS_PER_TRANSACTION = 8;
+    static final int BACKGROUND_TRANSACTIONS = 10;
+
+    public static void main(String[] args) throws Exception {
+        int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int[] backgrounds = { 0, 1000, 10000, 100000 };
+        if (args.length > 1) {
+            backgrounds = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                backgrounds[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        for (int background : backgrounds) {
+            LockManager lm = new LockManager();
+            TransactionId[] holders = new TransactionId[BACKGROUND_TRANSACTIONS];
+            for (int i = 0; i < holders.length; i++) {
+                holders[i] = new TransactionId();
+            }
+            for (int i = 0; i < background; i++) {
+                lm.getLock(new HeapPageId(1, i), holders[i % holders.length],
+                        i % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+            }
+            // warm up, then time
+            run(lm, transactions / 10);
+            long[] times = run(lm, transactions);
+            System.out.printf("%7d background locks: release %6.2f us, transaction %6.2f us%n",
+                    background, times[0] / 1e3 / transactions, times[1] / 1e3 / transactions);
+        }
+    }
+
+    /**
+     * Runs transactions that lock pages of their own and release them.
+     *
+     * @return the nanoseconds spent in releaseAllLocks and in all
+     */
+    static long[] run(LockManager lm, int transactions) throws TransactionAbortedException {
+        long release = 0;
+        long start = System.nanoTime();
+        for (int t = 0; t < transactions; t++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < LOCKS_PER_TRANSACTION; i++) {
+                lm.getLock(new HeapPageId(2, t * LOCKS_PER_TRANSACTION + i), tid,
+                        i % 2 == 0 ? Permissions.READ_ONLY : Permissions.READ_WRITE);
+            }
+            long r = System.nanoTime();
+            lm.releaseAllLocks(tid);
+            release += System.nanoTime() - r;
+        }
+        return new long[] { release, System.nanoTime() - start };
+    }
+}
@@ -427,6 +427,81 @@ public class LogTest extends SimpleDbTestBase {
         t.commit();
     }
 
+    @Test public void TestAbortCommitSharedPage()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 and T2 insert into the same page at once
+        // T1 aborts, T2 commits
+        // crash
+        // only T2 data should be there, before and after recovery
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 5, 0);
+
+        Transaction t2 = new Transaction();
+        t2.start();
+        insertRow(hf1, t2, 6, 0);
+        Database.getBufferPool().flushAllPages();
+        insertRow(hf1, t1, 7, 0);
+
+        abort(t1);
+        t2.commit();
+        assertEquals(1, hf1.numPages());
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, false);
+        look(hf1, t, 6, true);
+        look(hf1, t, 7, false);
+        t.commit();
+
+        crash();
+
+        t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 5, false);
+        look(hf1, t, 6, true);
+        look(hf1, t, 7, false);
+        t.commit();
+    }
+
+    @Test public void TestOpenCommitSharedPageCrash()
+            throws IOException, DbException, TransactionAbortedException {
+        setup();
+        doInsert(hf1, 1, 2);
+
+        // *** Test:
+        // T1 inserts but does not commit
+        // T2 inserts into the same page and commits
+        // crash
+        // only T2 data should be there
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insertRow(hf1, t1, 8, 0);
+        Database.getBufferPool().flushAllPages(); // XXX defeat NO-STEAL-based abort
+
+        // T2 commits
+        doInsert(hf1, 9, 10);
+        assertEquals(1, hf1.numPages());
+
+        crash();
+
+        Transaction t = new Transaction();
+        t.start();
+        look(hf1, t, 1, true);
+        look(hf1, t, 8, false);
+        look(hf1, t, 9, true);
+        look(hf1, t, 10, true);
+        t.commit();
+    }
+
     /** Make test compatible with older version of ant. */
     public static junit.framework.Test suite() {
         return new junit.framework.JUnit4TestAdapter(LogTest.class);
@@ -0,0 +1,177 @@
+package simpledb.systemtest;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import simpledb.*;
+
+/**
+ * Compares a buffer pool that keeps its pages on the Java heap with one
+ * that keeps them in an off-heap {@link FrameArena}, with a pool large
+ * enough to cache the whole table. The arena of an off-heap pool of
+ * 1.5 times the table is allocated outside -Xmx. After a first scan loads the table, it
+ * reports the heap the cached pages retain, then runs repeated full scans
+ * and random page lookups and reports their throughput and the collections
+ * they cause, with the longest pause.
+ * <p>
+ * Run it once per mode, since the heap left over by one mode would skew the
+ * other. For a GC log, run the class directly with -Xlog:gc.
+ * <p>
+ * Usage: ant runbench -Dbench=OffHeapPoolBenchmark -Dargs="heap|offheap [pages [scans]]"
+ */
+public class OffHeapPoolBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+    static final int LOOKUPS = 200000;
+
+    /**
+     * Writes a table of two int columns straight in the HeapPage format,
+     * much faster than encoding it tuple by tuple.
+     */
+    static File writeTable(int pages) throws Exception {
+        File f = File.createTempFile("offheap", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        Random r = new Random(1);
+        int headerBytes = (TUPLES_PER_PAGE + 7) / 8;
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 20));
+        for (int p = 0; p < pages; p++) {
+            for (int i = 0; i < headerBytes; i++) {
+                out.writeByte(0xFF);
+            }
+            for (int i = 0; i < TUPLES_PER_PAGE * 2; i++) {
+                out.writeInt(r.nextInt());
+            }
+            for (int i = headerBytes + TUPLES_PER_PAGE * 8; i < BufferPool.getPageSize(); i++) {
+                out.writeByte(0);
+            }
+        }
+        out.close();
+        return f;
+    }
+
+    static long scan(TransactionId tid, HeapFile table) throws Exception {
+        long sum = 0;
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            sum += t.getField(0).hashCode() + t.getField(1).hashCode();
+        }
+        scan.close();
+        return sum;
+    }
+
+    static long lookups(TransactionId tid, HeapFile table, int n) throws Exception {
+        Random r = new Random(2);
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(table.numPages()));
+            TuplePage page = (TuplePage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            // one tuple from each page, as an index lookup would
+            sum += page.iterator().next().getField(1).hashCode();
+        }
+        return sum;
+    }
+
+    static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    static long gcCount() {
+        long n = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            n += gc.getCollectionCount();
+        }
+        return n;
+    }
+
+    static long gcMillis() {
+        long ms = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ms += gc.getCollectionTime();
+        }
+        return ms;
+    }
+
+    public static void main(String[] args) throws Exception {
+        boolean offHeap = args.length > 0 && args[0].equals("offheap");
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 4000;
+        int scans = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        // the longest collection pause
+        final AtomicLong maxPause = new AtomicLong();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener(new NotificationListener() {
+                public void handleNotification(Notification n, Object handback) {
+                    if (!n.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                        return;
+                    }
+                    long ms = GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData())
+                            .getGcInfo().getDuration();
+                    maxPause.accumulateAndGet(ms, Math::max);
+                }
+            }, null, null);
+        }
+
+        File f = writeTable(pages);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, "t");
+        long baseline = usedHeap();
+
+        // big enough that scans of the table don't go through a ring
+        int poolPages = pages * 3 / 2;
+        Database.resetBufferPool(new BufferPool(poolPages,
+                BufferPool.newEvictionPolicy(BufferPool.DEFAULT_EVICTION_POLICY, poolPages), offHeap));
+        TransactionId tid = new TransactionId();
+        double mb = (double) pages * BufferPool.getPageSize() / (1 << 20);
+        System.out.printf("%s pool of %d pages, %d-page table (%.0f MB), max heap %d MB%n",
+                offHeap ? "off-heap" : "heap", poolPages, pages, mb, Runtime.getRuntime().maxMemory() >> 20);
+
+        long start = System.nanoTime();
+        long sum = scan(tid, table);
+        System.out.printf("load scan        %9.1f ms%n", (System.nanoTime() - start) / 1e6);
+        System.out.printf("heap retained    %9.1f MB%n", (usedHeap() - baseline) / (double) (1 << 20));
+
+        // notifications of the collections usedHeap asked for come late
+        Thread.sleep(1000);
+        maxPause.set(0);
+        long gcs = gcCount();
+        long gcMs = gcMillis();
+        start = System.nanoTime();
+        for (int i = 0; i < scans; i++) {
+            sum += scan(tid, table);
+        }
+        long scanNs = System.nanoTime() - start;
+        start = System.nanoTime();
+        sum += lookups(tid, table, LOOKUPS);
+        long lookupNs = System.nanoTime() - start;
+
+        System.out.printf("cached scans     %9.1f ms/scan %8.1f Mtuples/s%n", scanNs / 1e6 / scans,
+                (double) pages * TUPLES_PER_PAGE * scans / (scanNs / 1e3));
+        System.out.printf("random lookups   %9.1f klookups/s%n", LOOKUPS / (lookupNs / 1e6));
+        System.out.printf("collections %5d, %6d ms in total, longest pause %d ms%n",
+                gcCount() - gcs, gcMillis() - gcMs, maxPause.get());
+        System.out.println("checksum " + sum);
+
+        Database.getBufferPool().transactionComplete(tid);
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,91 @@
+package simpledb.systemtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.Iterator;
+
+import simpledb.*;
+
+/**
+ * Measures the per-page cost of flushing a dirty page at commit.
+ * <p>
+ * Each iteration updates one tuple of a full page (a delete and an insert)
+ * and then does what BufferPool.flushPage and transactionComplete do with
+ * the page: serialize it with getPageData and make the result the before
+ * image. For comparison the same page is also serialized field by field
+ * through a DataOutputStream, which is how getPageData used to build the
+ * image.
+ * <p>
+ * Usage: ant runbench -Dbench=PageDataBenchmark [-Dargs="iterations columns"]
+ */
+public class PageDataBenchmark {
+
+    /** Serializes the page the way getPageData used to. */
+    static byte[] serializeFields(HeapPage page, TupleDesc td) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(BufferPool.getPageSize());
+        DataOutputStream dos = new DataOutputStream(baos);
+        int numSlots = (BufferPool.getPageSize() * 8) / (td.getSize() * 8 + 1);
+        int headerSize = (numSlots + 7) / 8;
+        dos.write(new byte[headerSize]);
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); ) {
+            Tuple t = it.next();
+            for (int j = 0; j < td.numFields(); j++) {
+                t.getField(j).serialize(dos);
+            }
+        }
+        dos.write(new byte[BufferPool.getPageSize() - headerSize - numSlots * td.getSize()]);
+        dos.flush();
+        return baos.toByteArray();
+    }
+
+    static void update(HeapPage page, int i) throws Exception {
+        Tuple t = page.iterator().next();
+        page.deleteTuple(t);
+        Tuple u = new Tuple(t.getTupleDesc());
+        for (int j = 0; j < t.getTupleDesc().numFields(); j++) {
+            u.setField(j, new IntField(i + j));
+        }
+        page.insertTuple(u);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int columns = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        TupleDesc td = Utility.getTupleDesc(columns);
+        File tmp = File.createTempFile("bench", ".dat");
+        tmp.deleteOnExit();
+        HeapFile f = Utility.createEmptyHeapFile(tmp.getAbsolutePath(), columns);
+        HeapPage page = new HeapPage(new HeapPageId(f.getId(), 0), HeapPage.createEmptyPageData());
+        while (page.getNumEmptySlots() > 0) {
+            page.insertTuple(Utility.getHeapTuple(page.getNumEmptySlots(), columns));
+        }
+        page.setBeforeImage();
+        System.out.println("full page of " + columns + " int columns, " + iterations + " commits");
+
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                update(page, i);
+                page.getPageData();
+                page.setBeforeImage();
+            }
+            long image = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                update(page, i);
+                serializeFields(page, td);
+                page.setBeforeImage();
+            }
+            long fields = System.nanoTime() - start;
+
+            if (pass == 1) {
+                System.out.printf("%-26s %8.2f us/commit%n", "page image (getPageData)", image / 1e3 / iterations);
+                System.out.printf("%-26s %8.2f us/commit%n", "field-by-field serialize", fields / 1e3 / iterations);
+            }
+        }
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Sweeps table page sizes, measuring scan and insert throughput at each.
+ * <p>
+ * For every page size the papers table is rewritten with
+ * {@link HeapFileEncoder#repage} and scanned through {@link SeqScan} with a
+ * cold buffer pool (see {@link ScanBenchmark}). Then tuples are inserted
+ * through the BufferPool into an empty table of that page size, committing
+ * in batches. The buffer pool holds {@link BufferPool#DEFAULT_PAGES} pages
+ * at every size.
+ * <p>
+ * Usage: ant runbench -Dbench=PageSizeBenchmark [-Dargs="runs inserts [papers.dat]"]
+ */
+public class PageSizeBenchmark {
+
+    static final int[] PAGE_SIZES = {4096, 8192, 16384, 32768, 65536};
+
+    static final TupleDesc PAPERS = new TupleDesc(
+            new Type[] {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+            new String[] {"id", "title", "venueid"});
+
+    /** Inserts the given number of tuples; returns the elapsed nanoseconds. */
+    static long insert(HeapFile table, int tuples, int batch) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        long start = System.nanoTime();
+        for (int done = 0; done < tuples; done += batch) {
+            TransactionId tid = new TransactionId();
+            for (int i = done; i < Math.min(done + batch, tuples); i++) {
+                Tuple t = new Tuple(PAPERS);
+                t.setField(0, new IntField(i));
+                t.setField(1, new StringField("paper " + i, Type.STRING_LEN));
+                t.setField(2, new IntField(i % 100));
+                Database.getBufferPool().insertTuple(tid, table.getId(), t);
+            }
+            Database.getBufferPool().transactionComplete(tid);
+        }
+        return System.nanoTime() - start;
+    }
+
+    static File tempFile() throws Exception {
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        return f;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int inserts = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        File papers = new File(args.length > 2 ? args[2] : "papers.dat");
+
+        System.out.println("papers.dat: " + papers.length() / 1024 + " KB; "
+                + runs + " cold scans and " + inserts + " inserts per page size");
+        for (int pageSize : PAGE_SIZES) {
+            File f = tempFile();
+            HeapFileEncoder.repage(papers, f, PAPERS, pageSize);
+            HeapFile table = new HeapFile(f, PAPERS);
+            Database.getCatalog().addTable(table, "papers_" + pageSize);
+
+            // warm up the JIT and the OS page cache with one untimed scan
+            ScanBenchmark.coldScan(table);
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < runs; r++) {
+                best = Math.min(best, ScanBenchmark.coldScan(table));
+            }
+
+            HeapFile empty = HeapFile.create(tempFile(), PAPERS, pageSize);
+            Database.getCatalog().addTable(empty, "insert_" + pageSize);
+            long insertTime = insert(empty, inserts, 10000);
+
+            double mb = (double) f.length() / (1024 * 1024);
+            System.out.printf("%3d KB pages: %6d pages  scan %8.2f ms %8.1f MB/s  insert %10.0f tuples/s%n",
+                    pageSize / 1024, table.numPages(), best / 1e6, mb / (best / 1e9),
+                    inserts / (insertTime / 1e9));
+        }
+        Database.getCatalog().clear();
+    }
+}
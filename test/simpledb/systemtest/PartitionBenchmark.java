@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures what a partition of its own saves the lookups of a small, hot
+ * table while random lookups of a table much larger than the pool churn
+ * through the rest of it. Both runs use a pool of the same total size: the
+ * first caches both tables in the default partition, the second gives the
+ * hot table a partition just large enough for it. Reports the latency of
+ * the hot lookups and the hit ratio of each partition.
+ * <p>
+ * Usage: ant runbench -Dbench=PartitionBenchmark [-Dargs="rounds [coldPerHot]"]
+ */
+public class PartitionBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+    static final int HOT_PAGES = 32;
+    static final int COLD_PAGES = 4000;
+    static final int POOL_PAGES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int coldPerHot = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * HOT_PAGES, 1000000, null, null);
+        HeapFile hot = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hot, "hot");
+        File g = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * COLD_PAGES, 1000000, null, null);
+        HeapFile cold = new HeapFile(g, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(cold, "cold");
+
+        // the first run warms up the JIT and isn't reported
+        for (int run = 0; run < 3; run++) {
+            boolean partitioned = run == 2;
+            BufferPool bp;
+            if (partitioned) {
+                bp = Database.resetBufferPool(POOL_PAGES - HOT_PAGES, "hot:" + HOT_PAGES);
+                Database.getCatalog().setPartition(hot.getId(), "hot");
+            } else {
+                bp = Database.resetBufferPool(POOL_PAGES);
+                Database.getCatalog().setPartition(hot.getId(), null);
+            }
+
+            Random r = new Random(1);
+            long[] latencies = new long[rounds];
+            long sum = 0;
+            TransactionId tid = new TransactionId();
+            for (int round = 0; round < rounds; round++) {
+                for (int i = 0; i < coldPerHot; i++) {
+                    HeapPageId pid = new HeapPageId(cold.getId(), r.nextInt(COLD_PAGES));
+                    sum += ((TuplePage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots();
+                }
+                HeapPageId pid = new HeapPageId(hot.getId(), r.nextInt(HOT_PAGES));
+                long start = System.nanoTime();
+                TuplePage page = (TuplePage) bp.getPage(tid, pid, Permissions.READ_ONLY);
+                latencies[round] = System.nanoTime() - start;
+                sum += page.getNumEmptySlots();
+            }
+            bp.transactionComplete(tid);
+            if (run == 0) {
+                continue;
+            }
+
+            Arrays.sort(latencies);
+            long total = 0;
+            for (long l : latencies) {
+                total += l;
+            }
+            System.out.printf("%s: hot lookups mean %6.1f us, p50 %6.1f us, p99 %7.1f us (checksum %d)%n",
+                    partitioned ? "hot partition" : "one partition", total / 1e3 / rounds,
+                    latencies[rounds / 2] / 1e3, latencies[rounds * 99 / 100] / 1e3, sum);
+            for (BufferPartition partition : bp.getPartitions()) {
+                System.out.println("    " + partition);
+            }
+        }
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Shows a PoolSizer at work. Random lookups over a table run against a
+ * pool that starts far smaller than the table, so the pool grows while the
+ * heap has room. Part way through, the benchmark fills most of the heap
+ * with ballast, and the pool shrinks to make room; later the ballast is
+ * dropped and the pool may grow again. Every half second it reports the
+ * pool's size, the pages in it and the hit ratio of the lookups since the
+ * last report, and at the end the number of resizes.
+ * <p>
+ * Run it with the runbench heap (512 MB); the ballast takes three quarters
+ * of the heap.
+ * <p>
+ * Usage: ant runbench -Dbench=PoolSizerBenchmark [-Dargs="seconds"]
+ */
+public class PoolSizerBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+    static final int TABLE_PAGES = 8000;
+    static final int START_PAGES = 256;
+    static final int REPORT_MILLIS = 500;
+
+    public static void main(String[] args) throws Exception {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 15;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * TABLE_PAGES, 1000000, null, null);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+
+        BufferPool bp = Database.resetBufferPool(START_PAGES);
+        PoolSizer sizer = bp.getSizer();
+        sizer.setMaxPages(TABLE_PAGES);
+        sizer.setInterval(100);
+        BufferPartition partition = bp.getPartition(BufferPartition.DEFAULT);
+
+        Random r = new Random(1);
+        ArrayList<byte[]> ballast = new ArrayList<byte[]>();
+        long start = System.currentTimeMillis();
+        long end = start + seconds * 1000L;
+        long nextReport = start + REPORT_MILLIS;
+        long hits = 0;
+        long misses = 0;
+        long sum = 0;
+        String phase = "grow";
+        while (System.currentTimeMillis() < end) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < 1000; i++) {
+                HeapPageId pid = new HeapPageId(table.getId(), r.nextInt(TABLE_PAGES));
+                sum += ((TuplePage) bp.getPage(tid, pid, Permissions.READ_ONLY)).getNumEmptySlots();
+            }
+            bp.transactionComplete(tid);
+
+            long now = System.currentTimeMillis();
+            if (phase.equals("grow") && now - start > seconds * 1000L / 3) {
+                phase = "ballast";
+                long room = Runtime.getRuntime().maxMemory() * 3 / 4;
+                for (long b = 0; b < room; b += 1 << 20) {
+                    ballast.add(new byte[1 << 20]);
+                }
+            } else if (phase.equals("ballast") && now - start > seconds * 2000L / 3) {
+                phase = "free";
+                ballast.clear();
+                System.gc();
+            }
+            if (now >= nextReport) {
+                long h = partition.getHits() - hits;
+                long m = partition.getMisses() - misses;
+                hits += h;
+                misses += m;
+                System.out.printf("%6.1f s %-8s pool %5d pages, %5d cached, hit ratio %5.1f%%%n",
+                        (now - start) / 1e3, phase, bp.getNumPages(), partition.size(), 100.0 * h / (h + m));
+                nextReport += REPORT_MILLIS;
+            }
+        }
+        sizer.setMaxPages(0);
+        System.out.printf("%d rounds, %d growths, %d shrinks (checksum %d)%n",
+                sizer.getRounds(), sizer.getGrowths(), sizer.getShrinks(), sum);
+        Database.getCatalog().clear();
+    }
+}
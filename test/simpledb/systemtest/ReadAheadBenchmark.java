@@ -0,0 +1,112 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import simpledb.*;
+
+/**
+ * Measures cold SeqScans of authors.dat at several read-ahead depths,
+ * against the raw sequential read bandwidth of the file.
+ * <p>
+ * Before every run the OS page cache is dropped by writing to
+ * /proc/sys/vm/drop_caches, which needs root; otherwise the runs measure a
+ * warm OS cache and the benchmark says so. Scans read every field (see
+ * {@link SlottedScanBenchmark}).
+ * <p>
+ * Usage: ant runbench -Dbench=ReadAheadBenchmark [-Dargs="runs poolPages [file.dat]"]
+ */
+public class ReadAheadBenchmark {
+
+    static final int[] DEPTHS = {0, 4, 8, 16, 32, 64};
+
+    static boolean dropCaches() {
+        try {
+            new ProcessBuilder("sync").start().waitFor();
+            FileOutputStream out = new FileOutputStream("/proc/sys/vm/drop_caches");
+            try {
+                out.write("3\n".getBytes());
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /** Reads the whole file in 1 MB chunks; returns the elapsed nanoseconds. */
+    static long rawRead(File f) throws Exception {
+        dropCaches();
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        FileChannel ch = raf.getChannel();
+        ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        long start = System.nanoTime();
+        while (ch.read(buf) >= 0) {
+            buf.clear();
+        }
+        long elapsed = System.nanoTime() - start;
+        raf.close();
+        return elapsed;
+    }
+
+    static long scan(HeapFile table, int poolPages, int depth) throws Exception {
+        dropCaches();
+        Database.resetBufferPool(poolPages);
+        Database.getBufferPool().setPrefetchDepth(depth);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        int fields = table.getTupleDesc().numFields();
+
+        long start = System.nanoTime();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            for (int i = 0; i < fields; i++) {
+                SlottedScanBenchmark.checksum += t.getField(i).hashCode();
+            }
+        }
+        scan.close();
+        long elapsed = System.nanoTime() - start;
+
+        Database.getBufferPool().transactionComplete(tid);
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+        int poolPages = args.length > 1 ? Integer.parseInt(args[1]) : BufferPool.DEFAULT_PAGES;
+        File f = new File(args.length > 2 ? args[2] : "authors.dat");
+        TupleDesc td = new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE},
+                new String[] {"id", "name"});
+        HeapFile table = new HeapFile(f, td);
+        Database.getCatalog().addTable(table, "authors");
+
+        double mb = (double) f.length() / (1024 * 1024);
+        System.out.printf("%s: %.1f MB, %d-page buffer pool, %s OS cache%n", f, mb, poolPages,
+                dropCaches() ? "cold" : "WARM (cannot drop)");
+        // warm up the JIT
+        scan(table, poolPages, 0);
+        scan(table, poolPages, 8);
+
+        long raw = Long.MAX_VALUE;
+        for (int r = 0; r < runs; r++) {
+            raw = Math.min(raw, rawRead(f));
+        }
+        System.out.printf("raw 1 MB reads      %8.2f ms %8.1f MB/s%n", raw / 1e6, mb / (raw / 1e9));
+        for (int depth : DEPTHS) {
+            long best = Long.MAX_VALUE;
+            for (int r = 0; r < runs; r++) {
+                best = Math.min(best, scan(table, poolPages, depth));
+            }
+            Prefetcher p = Database.getBufferPool().getPrefetcher();
+            System.out.printf("depth %2d (eff. %2d) %8.2f ms %8.1f MB/s  prefetched %5d hits %5d dropped %d%n",
+                    depth, p.getDepth(), best / 1e6, mb / (best / 1e9),
+                    p.getPagesPrefetched(), p.getHits(), p.getDropped());
+        }
+        Database.getCatalog().clear();
+    }
+}
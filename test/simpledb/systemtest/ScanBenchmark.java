@@ -0,0 +1,161 @@
+package simpledb.systemtest;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures full SeqScan throughput over a cold buffer pool.
+ * <p>
+ * Every run scans the table once through {@link SeqScan} after resetting the
+ * buffer pool, so each page is read from the file exactly once. The same
+ * table is scanned through the current HeapFile and through a HeapFile that
+ * reads pages the old way (a new RandomAccessFile per page), so the numbers
+ * compare the two read paths directly. A third series scans the table in
+ * memory-mapped mode.
+ * <p>
+ * Usage: ant runbench -Dbench=ScanBenchmark [-Dargs="pages runs [file.dat columns]"]
+ */
+public class ScanBenchmark {
+
+    /** Reads every page by opening, seeking and closing a RandomAccessFile. */
+    static class PerPageFileHeapFile extends HeapFile {
+        public PerPageFileHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            try {
+                int pgSz = BufferPool.getPageSize();
+                byte[] pgData = new byte[pgSz];
+                RandomAccessFile reader = new RandomAccessFile(getFile(), "r");
+                reader.seek((long) pid.getPageNumber() * pgSz);
+                reader.read(pgData);
+                reader.close();
+                return new HeapPage(new HeapPageId(pid.getTableId(), pid.getPageNumber()), pgData);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("page does not exist in this file");
+            }
+        }
+    }
+
+    /**
+     * Scans the table once with a cold buffer pool.
+     *
+     * @return the elapsed time in nanoseconds
+     */
+    static long coldScan(DbFile table) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+
+        long start = System.nanoTime();
+        scan.open();
+        while (scan.hasNext()) {
+            scan.next();
+        }
+        scan.close();
+        long elapsed = System.nanoTime() - start;
+
+        Database.getBufferPool().transactionComplete(tid);
+        return elapsed;
+    }
+
+    static void report(String label, int pages, long[] times) {
+        long best = Long.MAX_VALUE;
+        long total = 0;
+        for (long t : times) {
+            best = Math.min(best, t);
+            total += t;
+        }
+        double mb = (double) pages * BufferPool.getPageSize() / (1024 * 1024);
+        System.out.printf("%-28s best %8.2f ms  avg %8.2f ms  %8.1f MB/s  %10.0f pages/s%n",
+                label, best / 1e6, total / 1e6 / times.length,
+                mb / (best / 1e9), pages / (best / 1e9));
+    }
+
+    /**
+     * Opens the table named by args[2] (with args[3] int columns), or builds
+     * a random int table of the requested number of pages.
+     */
+    static File tableFile(String[] args, int pages, int columns) throws IOException {
+        if (args.length >= 4) {
+            return new File(args[2]);
+        }
+        int tuplesPerPage = (BufferPool.getPageSize() * 8) / (columns * Type.INT_TYPE.getLen() * 8 + 1);
+        return randomIntTable(columns, pages * tuplesPerPage);
+    }
+
+    /**
+     * Writes a table of random ints straight through HeapFileEncoder, without
+     * keeping the rows in memory.
+     */
+    static File randomIntTable(int columns, int rows) throws IOException {
+        File text = File.createTempFile("bench", ".txt");
+        text.deleteOnExit();
+        Random r = new Random(0);
+        BufferedWriter bw = new BufferedWriter(new FileWriter(text));
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < columns; j++) {
+                if (j > 0) {
+                    bw.write(',');
+                }
+                bw.write(String.valueOf(r.nextInt()));
+            }
+            bw.write('\n');
+        }
+        bw.close();
+
+        File f = File.createTempFile("bench", ".dat");
+        f.deleteOnExit();
+        HeapFileEncoder.convert(text, f, BufferPool.getPageSize(), columns);
+        text.delete();
+        return f;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int columns = args.length >= 4 ? Integer.parseInt(args[3]) : 4;
+
+        File f = tableFile(args, pages, columns);
+        TupleDesc td = Utility.getTupleDesc(columns);
+
+        HeapFile channelFile = new HeapFile(f, td);
+        Database.getCatalog().addTable(channelFile, "channel");
+        pages = channelFile.numPages();
+        PerPageFileHeapFile perPageFile = new PerPageFileHeapFile(f, td);
+
+        System.out.println("Scanning " + pages + " pages (" + f.length() / 1024 + " KB), "
+                + runs + " runs each");
+
+        // warm up the JIT and the OS page cache with one untimed scan
+        coldScan(channelFile);
+
+        HeapFile mappedFile = new HeapFile(f, td);
+        mappedFile.setMemoryMapped(true);
+
+        long[] channelTimes = new long[runs];
+        long[] perPageTimes = new long[runs];
+        long[] mappedTimes = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            Database.getCatalog().addTable(perPageFile, "perpage");
+            perPageTimes[i] = coldScan(perPageFile);
+            Database.getCatalog().addTable(channelFile, "channel");
+            channelTimes[i] = coldScan(channelFile);
+            Database.getCatalog().addTable(mappedFile, "mapped");
+            mappedTimes[i] = coldScan(mappedFile);
+        }
+
+        report("RandomAccessFile per page", pages, perPageTimes);
+        report("shared FileChannel", pages, channelTimes);
+        report("memory-mapped", pages, mappedTimes);
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,94 @@
+package simpledb.systemtest;
+
+import java.util.Iterator;
+
+import simpledb.*;
+
+/**
+ * Measures the HeapPage operations that look at the slot bitmap, for a range
+ * of page sizes: counting empty slots, iterating over a sparsely filled
+ * page, and inserting into a page whose only empty slot is the last one.
+ * <p>
+ * Usage: ant runbench -Dbench=SlotScanBenchmark [-Dargs="iterations"]
+ */
+public class SlotScanBenchmark {
+
+    static int tableId;
+
+    static HeapPage page(byte[] data) throws Exception {
+        return new HeapPage(new HeapPageId(tableId, 0), data);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int[] pageSizes = {4096, 65536, 1 << 20};
+
+        // the first pass warms up the JIT and is not reported
+        for (int pass = 0; pass < 2; pass++)
+        for (int pageSize : pageSizes) {
+            BufferPool.setPageSize(pageSize);
+            Database.reset();
+            HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 0, null, null);
+            tableId = hf.getId();
+
+            // a page with one used slot in every 64
+            HeapPage sparse = page(HeapPage.createEmptyPageData());
+            int slots = sparse.getNumEmptySlots();
+            for (int i = 0; i < slots; i++) {
+                sparse.insertTuple(Utility.getHeapTuple(i, 2));
+            }
+            Iterator<Tuple> it = sparse.iterator();
+            for (int i = 0; it.hasNext(); i++) {
+                Tuple t = it.next();
+                if (i % 64 != 0) {
+                    sparse.deleteTuple(t);
+                }
+            }
+            byte[] sparseData = sparse.getPageData();
+
+            // a full page with the last slot emptied
+            HeapPage full = page(HeapPage.createEmptyPageData());
+            Tuple last = null;
+            while (full.getNumEmptySlots() > 0) {
+                last = Utility.getHeapTuple(1, 2);
+                full.insertTuple(last);
+            }
+            full.deleteTuple(last);
+            byte[] almostFull = full.getPageData();
+
+            long count = 0;
+            long start = System.nanoTime();
+            HeapPage p = page(sparseData);
+            for (int r = 0; r < iterations; r++) {
+                count += p.getNumEmptySlots();
+            }
+            long countTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int r = 0; r < iterations; r++) {
+                for (Iterator<Tuple> i = p.iterator(); i.hasNext(); i.next()) {
+                    count++;
+                }
+            }
+            long iterTime = System.nanoTime() - start;
+
+            long insertTime = 0;
+            for (int r = 0; r < iterations; r++) {
+                HeapPage q = page(almostFull);
+                start = System.nanoTime();
+                q.insertTuple(Utility.getHeapTuple(r, 2));
+                insertTime += System.nanoTime() - start;
+            }
+
+            if (pass == 0) {
+                continue;
+            }
+            System.out.printf("page %7d B, %6d slots: getNumEmptySlots %8.2f us  iterate %8.2f us"
+                    + "  insert into last slot %8.2f us  (%d)%n",
+                    pageSize, slots, countTime / 1e3 / iterations, iterTime / 1e3 / iterations,
+                    insertTime / 1e3 / iterations, count % 10);
+        }
+        BufferPool.resetPageSize();
+        Database.getCatalog().clear();
+    }
+}
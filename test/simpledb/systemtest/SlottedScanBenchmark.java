@@ -0,0 +1,83 @@
+package simpledb.systemtest;
+
+import java.io.File;
+
+import simpledb.*;
+
+/**
+ * Compares the size and cold SeqScan time of the DBLP string tables stored
+ * in fixed-length HeapPages and in SlottedHeapPages.
+ * <p>
+ * Each table is converted to slotted pages of the same page size with
+ * {@link HeapFileEncoder#repage}, then both versions are scanned with a cold
+ * buffer pool. Every field of every tuple is read, since fixed-length pages
+ * otherwise only decode fields on demand.
+ * <p>
+ * Usage: ant runbench -Dbench=SlottedScanBenchmark [-Dargs="runs"]
+ */
+public class SlottedScanBenchmark {
+
+    static int checksum;
+
+    /** Scans the table with a cold buffer pool, reading every field. */
+    static long coldScan(DbFile table) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        SeqScan scan = new SeqScan(tid, table.getId(), "t");
+        int fields = table.getTupleDesc().numFields();
+
+        long start = System.nanoTime();
+        scan.open();
+        while (scan.hasNext()) {
+            Tuple t = scan.next();
+            for (int i = 0; i < fields; i++) {
+                checksum += t.getField(i).hashCode();
+            }
+        }
+        scan.close();
+        long elapsed = System.nanoTime() - start;
+
+        Database.getBufferPool().transactionComplete(tid);
+        return elapsed;
+    }
+
+    static long bestScan(DbFile table, int runs) throws Exception {
+        // warm up the JIT and the OS page cache with one untimed scan
+        coldScan(table);
+        long best = Long.MAX_VALUE;
+        for (int r = 0; r < runs; r++) {
+            best = Math.min(best, coldScan(table));
+        }
+        return best;
+    }
+
+    static void compare(String name, TupleDesc td, int runs) throws Exception {
+        File fixedFile = new File(name + ".dat");
+        HeapFile fixed = new HeapFile(fixedFile, td);
+        Database.getCatalog().addTable(fixed, name);
+
+        File slottedFile = File.createTempFile(name, ".dat");
+        slottedFile.deleteOnExit();
+        new File(slottedFile.getPath() + ".fsm").deleteOnExit();
+        HeapFileEncoder.repage(fixedFile, slottedFile, td, BufferPool.getPageSize(),
+                HeapFile.PageFormat.SLOTTED);
+        HeapFile slotted = new HeapFile(slottedFile, td);
+        Database.getCatalog().addTable(slotted, name + "_slotted");
+
+        long fixedTime = bestScan(fixed, runs);
+        long slottedTime = bestScan(slotted, runs);
+        System.out.printf("%-8s fixed   %6d pages %7d KB  scan %8.2f ms%n",
+                name, fixed.numPages(), fixedFile.length() / 1024, fixedTime / 1e6);
+        System.out.printf("%-8s slotted %6d pages %7d KB  scan %8.2f ms%n",
+                name, slotted.numPages(), slottedFile.length() / 1024, slottedTime / 1e6);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        compare("authors", new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE},
+                new String[] {"id", "name"}), runs);
+        compare("papers", new TupleDesc(new Type[] {Type.INT_TYPE, Type.STRING_TYPE, Type.INT_TYPE},
+                new String[] {"id", "title", "venueid"}), runs);
+        Database.getCatalog().clear();
+    }
+}
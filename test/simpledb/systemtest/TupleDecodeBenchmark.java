@@ -0,0 +1,96 @@
+package simpledb.systemtest;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import simpledb.*;
+
+/**
+ * Measures the cost of turning page bytes into tuples for a selective filter.
+ * <p>
+ * The pages of the DBLP venues table are read into memory once. Each run
+ * then rebuilds a HeapPage from every page's bytes and evaluates
+ * {@code year >= 2000}: once reading only the year field, as Filter does,
+ * and once forcing every field of every tuple to be decoded, which is what
+ * HeapPage used to do when it was constructed. Reported are throughput and
+ * the bytes allocated per tuple on the benchmark thread.
+ * <p>
+ * Usage: ant runbench -Dbench=TupleDecodeBenchmark [-Dargs="runs [schema-file]"]
+ */
+public class TupleDecodeBenchmark {
+
+    private static final int YEAR = 2;
+
+    /** Reads and decodes every page; returns the number of matching tuples. */
+    static int filterPages(ArrayList<byte[]> pages, int tableId, boolean decodeAll) throws Exception {
+        Predicate p = new Predicate(YEAR, Predicate.Op.GREATER_THAN_OR_EQ, new IntField(2000));
+        int matches = 0;
+        for (int i = 0; i < pages.size(); i++) {
+            HeapPage page = new HeapPage(new HeapPageId(tableId, i), pages.get(i));
+            Iterator<Tuple> it = page.iterator();
+            while (it.hasNext()) {
+                Tuple t = it.next();
+                if (decodeAll) {
+                    // decode every field, as the eager constructor did
+                    t.fields();
+                }
+                if (p.filter(t)) {
+                    matches++;
+                }
+            }
+        }
+        return matches;
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static void run(String label, ArrayList<byte[]> pages, int tableId, boolean decodeAll,
+                    int runs, long tuples) throws Exception {
+        long best = Long.MAX_VALUE;
+        long bytes = 0;
+        for (int r = 0; r < runs; r++) {
+            long allocBefore = allocatedBytes();
+            long start = System.nanoTime();
+            filterPages(pages, tableId, decodeAll);
+            best = Math.min(best, System.nanoTime() - start);
+            bytes = allocatedBytes() - allocBefore;
+        }
+        System.out.printf("%-22s best %8.2f ms  %8.2f Mtuples/s  %7.1f bytes allocated/tuple%n",
+                label, best / 1e6, tuples / (best / 1e9) / 1e6, (double) bytes / tuples);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        String schema = args.length > 1 ? args[1] : "dblp_simpledb.schema";
+
+        Database.getCatalog().loadSchema(schema);
+        int tableId = Database.getCatalog().getTableId("venues");
+        HeapFile venues = (HeapFile) Database.getCatalog().getDatabaseFile(tableId);
+
+        ArrayList<byte[]> pages = new ArrayList<byte[]>();
+        long tuples = 0;
+        for (int i = 0; i < venues.numPages(); i++) {
+            HeapPage page = (HeapPage) venues.readPage(new HeapPageId(tableId, i));
+            pages.add(page.getPageData());
+            for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+                tuples++;
+            }
+        }
+        System.out.println("venues: " + pages.size() + " pages, " + tuples + " tuples, "
+                + runs + " runs each");
+
+        // warm up the JIT for both paths
+        for (int i = 0; i < 3; i++) {
+            filterPages(pages, tableId, true);
+            filterPages(pages, tableId, false);
+        }
+
+        run("decode every field", pages, tableId, true, runs, tuples);
+        run("decode year only", pages, tableId, false, runs, tuples);
+        Database.getCatalog().clear();
+    }
+}
@@ -0,0 +1,160 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import simpledb.*;
+
+/**
+ * Measures how soon lookup latency settles after a restart, with and
+ * without restoring the buffer pool's pages. A workload of random lookups
+ * into a hot set of pages, scattered over a table four times the size of
+ * the pool but fitting in the pool, first runs
+ * until the pool is warm, and the pool's pages are saved. Each restart then
+ * replaces the pool with an empty one and runs the workload again, once
+ * cold and once while a {@link PoolWarmer} restores the saved pages in the
+ * background. The workload runs in windows of lookups; reported are the
+ * p99 latency of each of the first windows, and the time until a window's
+ * p99 is within twice that of the warm pool. Last, the saved pages are
+ * restored with no workload running, to time the restore alone.
+ * <p>
+ * Before each restart the benchmark asks Linux to drop its page cache, if
+ * it is allowed to (as root), so that the pages have to come from disk;
+ * otherwise misses are served from the page cache and cost much less.
+ * <p>
+ * Usage: ant runbench -Dbench=WarmupBenchmark [-Dargs="windows [lookupsPerWindow]"]
+ */
+public class WarmupBenchmark {
+
+    static final int TUPLES_PER_PAGE = 504;
+    static final int TABLE_PAGES = 8000;
+    static final int POOL_PAGES = 2000;
+    static final int HOT_PAGES = 1500;
+    static final int SHOWN_WINDOWS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int windows = args.length > 0 ? Integer.parseInt(args[0]) : 40;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, TUPLES_PER_PAGE * TABLE_PAGES, 1000000, null, null);
+        HeapFile table = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
+        int[] hot = new int[HOT_PAGES];
+        Random r = new Random(1);
+        for (int i = 0; i < HOT_PAGES; i++) {
+            hot[i] = r.nextInt(TABLE_PAGES);
+        }
+        File dump = File.createTempFile("warmup", ".dat");
+        dump.deleteOnExit();
+
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        bp.getWarmer().setFile(dump);
+        long[] steady = run(table, hot, windows, lookups, new Random(2));
+        long steadyP99 = steady[steady.length - 1];
+        int saved = bp.getWarmer().save();
+        System.out.printf("warm pool: p99 %7.1f us; %d pages saved%n", steadyP99 / 1e3, saved);
+
+        for (boolean warm : new boolean[] { false, true }) {
+            bp = Database.resetBufferPool(POOL_PAGES);
+            boolean dropped = dropPageCache();
+            long start = System.nanoTime();
+            if (warm) {
+                bp.getWarmer().setFile(dump);
+                bp.getWarmer().start();
+            }
+            long[] p99s = run(table, hot, windows, lookups, new Random(3));
+            long[] ends = lastEnds;
+            bp.getWarmer().stop();
+
+            StringBuilder sb = new StringBuilder();
+            for (int w = 0; w < Math.min(SHOWN_WINDOWS, p99s.length); w++) {
+                sb.append(String.format(" %.0f", p99s[w] / 1e3));
+            }
+            double settled = -1;
+            for (int w = 0; w < p99s.length; w++) {
+                if (p99s[w] <= 2 * steadyP99) {
+                    settled = (ends[w] - start) / 1e6;
+                    break;
+                }
+            }
+            System.out.printf("%s restart%s: window p99s (us)%s ...; settled after %s, %d pages restored%n",
+                    warm ? "warmed" : "cold", dropped ? "" : " (page cache kept)", sb,
+                    settled < 0 ? "never" : String.format("%.0f ms", settled),
+                    bp.getWarmer().getPagesRestored());
+        }
+
+        // and how long the pages take to restore with no workload competing
+        bp = Database.resetBufferPool(POOL_PAGES);
+        bp.getWarmer().setFile(dump);
+        dropPageCache();
+        long start = System.nanoTime();
+        int restored = bp.getWarmer().restore();
+        System.out.printf("restore alone: %d pages in %.0f ms%n", restored, (System.nanoTime() - start) / 1e6);
+        Database.getCatalog().clear();
+    }
+
+    // when each window of the last run ended, System.nanoTime()
+    static long[] lastEnds;
+
+    /**
+     * Runs the lookup workload in windows.
+     *
+     * @return the p99 latency of each window, in nanoseconds
+     */
+    static long[] run(HeapFile table, int[] hot, int windows, int lookups, Random r) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        long[] p99s = new long[windows];
+        lastEnds = new long[windows];
+        long[] latencies = new long[lookups];
+        long sum = 0;
+        for (int w = 0; w < windows; w++) {
+            TransactionId tid = new TransactionId();
+            for (int i = 0; i < lookups; i++) {
+                int pgNo = hot[r.nextInt(hot.length)];
+                long start = System.nanoTime();
+                TuplePage page = (TuplePage) bp.getPage(tid, new HeapPageId(table.getId(), pgNo),
+                        Permissions.READ_ONLY);
+                latencies[i] = System.nanoTime() - start;
+                sum += page.getNumEmptySlots();
+            }
+            bp.transactionComplete(tid);
+            lastEnds[w] = System.nanoTime();
+            Arrays.sort(latencies);
+            p99s[w] = latencies[lookups * 99 / 100];
+        }
+        if (sum < 0) {
+            System.out.println(sum);
+        }
+        return p99s;
+    }
+
+    /**
+     * Asks Linux to drop its page cache.
+     *
+     * @return false if that isn't allowed
+     */
+    static boolean dropPageCache() {
+        File control = new File("/proc/sys/vm/drop_caches");
+        if (!control.canWrite()) {
+            return false;
+        }
+        try {
+            Runtime.getRuntime().exec(new String[] { "sync" }).waitFor();
+            FileWriter out = new FileWriter(control);
+            try {
+                out.write("3\n");
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}